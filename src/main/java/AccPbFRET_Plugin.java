@@ -24,9 +24,14 @@ import java.awt.event.WindowListener;
 import java.awt.image.*;
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.text.*;
 import java.util.*;
+import java.util.concurrent.*;
 import javax.swing.*;
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
 import javax.swing.text.*;
 
 
@@ -37,10 +42,15 @@ public class AccPbFRET_Plugin extends JFrame implements ActionListener, WindowLi
     private final String javaVersion = "1.6.0_05";
     private int windowWidth = 650;
     private int windowHeight = 890;
-    private ImagePlus donorBefore, donorAfter, acceptorBefore, acceptorAfter, transferImage = null;
-    private ImageProcessor donorBeforeSave = null, donorAfterSave = null, acceptorBeforeSave = null, acceptorAfterSave = null;
+    private ImagePlus donorBefore, donorAfter, acceptorBefore, acceptorAfter, transferImage = null, uncertaintyImage = null, partialBlMapImage = null;
+    // set when a channel image changes after the transfer image has been calculated from it
+    private boolean transferImageOutdated = false;
+    private Map<ImagePlus, ChannelPipeline> pipelines = Collections.synchronizedMap(new IdentityHashMap<ImagePlus, ChannelPipeline>());
     private ResultsTable resultsTable;
     private Analyzer analyzer;
+    private ResultsBuffer resultsBuffer = new ResultsBuffer();
+    private int resultsFlushRows = 1;
+    private File resultsFile = null;
     private ApplyMaskDialog applyMaskDialog;
     private CalculateImgRatioDialog calculateImgRatioDialog;
     private ShiftDialog shiftDialog;
@@ -53,9 +63,13 @@ public class AccPbFRET_Plugin extends JFrame implements ActionListener, WindowLi
     private JMenuItem openMenuItem, saveTiffMenuItem, saveBmpMenuItem, splitMenuItem, applyMaskMenuItem, bleachingMaskMenuItem, calculateImgRatioMenuItem, thresholdMenuItem, shiftMenuItem;
     private JMenuItem lutFireMenuItem, lutSpectrumMenuItem, histogramMenuItem, convertMenuItem, exitMenuItem, helpMenuItem, aboutMenuItem, checkVersionMenuItem;
     private JMenuItem saveMessagesMenuItem, clearMessagesMenuItem;
-    private JMenuItem semiAutomaticMenuItem, resetImagesMenuItem;
+    private JMenuItem semiAutomaticMenuItem, streamingMenuItem, surveyMenuItem, resetImagesMenuItem;
+    private JMenuItem parallelismMenuItem, benchmarkMenuItem, sensitivitySweepMenuItem, customFormulaMenuItem, uncertaintyMenuItem, bleachedRegionMenuItem;
+    private JMenuItem partialBlMapMenuItem, percentilesMenuItem, measureAllRoisMenuItem, gridMeasurementMenuItem;
+    private JMenuItem efficiencyHistogramMenuItem, saveEfficiencyHistogramMenuItem, pooledStatisticsMenuItem, exportTuplesMenuItem;
+    private JMenuItem efficiencyDensityMenuItem, bootstrapMenuItem, resultsOutputMenuItem;
     private JCheckBoxMenuItem donorBlCorrMenuItem, accCrossTalkCorrMenuItem, accPhotoprCorrMenuItem, partialBlCorrMenuItem;
-    private JCheckBoxMenuItem debugMenuItem;
+    private JCheckBoxMenuItem debugMenuItem, livePreviewMenuItem;
     private JButton setDonorBeforeButton, setDonorAfterButton, setAcceptorBeforeButton, setAcceptorAfterButton;
     private JButton subtractDonorBeforeButton, subtractDonorAfterButton, subtractAcceptorBeforeButton, subtractAcceptorAfterButton;
     private JButton thresholdDonorBeforeButton, thresholdDonorAfterButton, thresholdAcceptorBeforeButton, thresholdAcceptorAfterButton;
@@ -76,6 +90,70 @@ public class AccPbFRET_Plugin extends JFrame implements ActionListener, WindowLi
     private int currentlyProcessedFile = 0;
     private String currentlyProcessedFileName = null;
     private String currentDirectory = null;
+    private int parallelism = Runtime.getRuntime().availableProcessors();
+    private ForkJoinPool forkJoinPool = null;
+    private FrameBufferPool framePool = new FrameBufferPool();
+    private ValidityMaskCache validityMasks = new ValidityMaskCache();
+    // loaded at startup if the running Java has the vector module, otherwise the reason why it is not used
+    private FretVectorLoop vectorLoop = null;
+    private String vectorLoopProblem = "it is being loaded.";
+    // the pipeline of a channel image (with its stage frames) is dropped when the image is closed
+    private ImageListener pipelineListener = new ImageListener() {
+        public void imageOpened(ImagePlus image) {}
+
+        public void imageUpdated(ImagePlus image) {}
+
+        public void imageClosed(ImagePlus image) {
+            pipelines.remove(image);
+        }
+    };
+    private RoiMaskCache roiMasks = new RoiMaskCache();
+    private final int previewSize = 512;
+    private javax.swing.Timer previewTimer, fullPreviewTimer;
+    private ImagePlus previewImage = null;
+    private int previewGeneration = 0;
+    private FretFormula customFormula = null;
+    private String customFormulaText = "";
+    private boolean uncertaintyMap = false;
+    private float detectorGain = 1;
+    private float detectorOffset = 0;
+    private boolean bleachedRegionOnly = false;
+    private boolean bleachedRegionFromRoi = false;
+    private float bleachedRegionThreshold = 0.25f;
+    private int bleachedRegionMargin = 10;
+    private Rectangle bleachedRegionBounds = null;
+    private float[] bleachedRegionAB = null, bleachedRegionAA = null;
+    private boolean partialBlMapEnabled = false;
+    private float partialBlMapRadius = 2;
+    private float[] partialBlMap = null;
+    private float[] partialBlMapAB = null, partialBlMapAA = null;
+    private int surveyBin = 1;
+    private int loadingBin = 1;
+    private double[] percentiles = {5, 25, 75, 95};
+    private boolean interquartileRange = true;
+    private int bootstrapResamples = 0;
+    private double bootstrapConfidence = 95;
+    private long bootstrapSeed = 1;
+    private boolean gridMeasurement = false;
+    private int gridBlockSize = 32;
+    private double histogramMin = -1;
+    private double histogramMax = 1;
+    private int histogramBins = 200;
+    private boolean histogramAccumulate = false;
+    private EfficiencyHistogram efficiencyHistogram = null;
+    private LinkedHashMap<File, EfficiencySketch> pooledStatistics = new LinkedHashMap<File, EfficiencySketch>();
+    private EfficiencySketch fileSketch = null;
+    private boolean densityEnabled = false;
+    private int densityAxis = EfficiencyDensity.ACCEPTOR;
+    private double densityXMin = 0;
+    private double densityXMax = 4096;
+    private int densityXBins = 256;
+    private double densityEMin = -1;
+    private double densityEMax = 1;
+    private int densityEBins = 200;
+    private boolean densityAccumulate = false;
+    private EfficiencyDensity efficiencyDensity = null;
+    private ImagePlus densityImage = null;
     public Color originalButtonColor = null;
     public Color greenColor = new Color(142, 207, 125);
 
@@ -87,6 +165,7 @@ public class AccPbFRET_Plugin extends JFrame implements ActionListener, WindowLi
 		ToolTipManager.sharedInstance().setDismissDelay(10000);
         format = new SimpleDateFormat("HH:mm:ss");
         createGui();
+        initLivePreview();
         setDefaultCloseOperation(JFrame.DO_NOTHING_ON_CLOSE);
         Dimension screen = Toolkit.getDefaultToolkit().getScreenSize();
         setSize(windowWidth, windowHeight);
@@ -95,9 +174,35 @@ public class AccPbFRET_Plugin extends JFrame implements ActionListener, WindowLi
         currentDirectory = System.getProperty("user.home");
         originalButtonColor = setDonorBeforeButton.getBackground();
         openImageButton.requestFocus();
+        ImagePlus.addImageListener(framePool);
+        ImagePlus.addImageListener(validityMasks);
+        ImagePlus.addImageListener(pipelineListener);
+        loadVectorLoop();
 	}
 
 
+    // Compiles the vector kernel in the background, the scalar kernel is used until it is loaded or if it is not available.
+    private void loadVectorLoop() {
+        new SwingWorker<FretVectorLoop, Object>() {
+            protected FretVectorLoop doInBackground() {
+                return FretVectorKernel.load();
+            }
+
+            protected void done() {
+                try {
+                    vectorLoop = get();
+                    vectorLoopProblem = null;
+                    log("The transfer image is calculated with the vector kernel.");
+                } catch (ExecutionException ex) {
+                    vectorLoopProblem = ex.getCause().getMessage();
+                } catch (Exception ex) {
+                    vectorLoopProblem = ex.toString();
+                }
+            }
+        }.execute();
+    }
+
+
     public void createGui() {
 		setFont(new Font("Helvetica", Font.PLAIN, 12));
         menuBar = new JMenuBar();
@@ -133,6 +238,14 @@ public class AccPbFRET_Plugin extends JFrame implements ActionListener, WindowLi
         semiAutomaticMenuItem.setActionCommand("semiAutomaticProcessing");
         semiAutomaticMenuItem.addActionListener(this);
         fileMenu.add(semiAutomaticMenuItem);
+        streamingMenuItem = new JMenuItem("Streaming processing...");
+        streamingMenuItem.setActionCommand("streamingProcessing");
+        streamingMenuItem.addActionListener(this);
+        fileMenu.add(streamingMenuItem);
+        surveyMenuItem = new JMenuItem("Survey mode...");
+        surveyMenuItem.setActionCommand("surveyMode");
+        surveyMenuItem.addActionListener(this);
+        fileMenu.add(surveyMenuItem);
         resetImagesMenuItem = new JMenuItem("Reset all");
         resetImagesMenuItem.setActionCommand("resetImages");
         resetImagesMenuItem.addActionListener(this);
@@ -169,6 +282,34 @@ public class AccPbFRET_Plugin extends JFrame implements ActionListener, WindowLi
         histogramMenuItem.setActionCommand("histogram");
         histogramMenuItem.addActionListener(this);
         imageMenu.add(histogramMenuItem);
+        efficiencyHistogramMenuItem = new JMenuItem("E histogram...");
+        efficiencyHistogramMenuItem.setActionCommand("efficiencyHistogram");
+        efficiencyHistogramMenuItem.addActionListener(this);
+        imageMenu.add(efficiencyHistogramMenuItem);
+        saveEfficiencyHistogramMenuItem = new JMenuItem("Save E histogram...");
+        saveEfficiencyHistogramMenuItem.setActionCommand("saveEfficiencyHistogram");
+        saveEfficiencyHistogramMenuItem.addActionListener(this);
+        imageMenu.add(saveEfficiencyHistogramMenuItem);
+        efficiencyDensityMenuItem = new JMenuItem("E density...");
+        efficiencyDensityMenuItem.setActionCommand("efficiencyDensity");
+        efficiencyDensityMenuItem.addActionListener(this);
+        imageMenu.add(efficiencyDensityMenuItem);
+        pooledStatisticsMenuItem = new JMenuItem("Pooled statistics...");
+        pooledStatisticsMenuItem.setActionCommand("pooledStatistics");
+        pooledStatisticsMenuItem.addActionListener(this);
+        imageMenu.add(pooledStatisticsMenuItem);
+        exportTuplesMenuItem = new JMenuItem("Export pixel tuples...");
+        exportTuplesMenuItem.setActionCommand("exportPixelTuples");
+        exportTuplesMenuItem.addActionListener(this);
+        imageMenu.add(exportTuplesMenuItem);
+        measureAllRoisMenuItem = new JMenuItem("Measure all ROIs");
+        measureAllRoisMenuItem.setActionCommand("measureAllRois");
+        measureAllRoisMenuItem.addActionListener(this);
+        imageMenu.add(measureAllRoisMenuItem);
+        gridMeasurementMenuItem = new JMenuItem("Grid measurement...");
+        gridMeasurementMenuItem.setActionCommand("gridMeasurement");
+        gridMeasurementMenuItem.addActionListener(this);
+        imageMenu.add(gridMeasurementMenuItem);
         lutFireMenuItem = new JMenuItem("LUT Fire");
         lutFireMenuItem.setActionCommand("lutFire");
         lutFireMenuItem.addActionListener(this);
@@ -197,6 +338,48 @@ public class AccPbFRET_Plugin extends JFrame implements ActionListener, WindowLi
         partialBlCorrMenuItem.setActionCommand("partialblcorrm");
         partialBlCorrMenuItem.addActionListener(this);
         correctionMenu.add(partialBlCorrMenuItem);
+        correctionMenu.addSeparator();
+        customFormulaMenuItem = new JMenuItem("Custom formula...");
+        customFormulaMenuItem.setActionCommand("customFormula");
+        customFormulaMenuItem.addActionListener(this);
+        correctionMenu.add(customFormulaMenuItem);
+        uncertaintyMenuItem = new JMenuItem("Uncertainty image...");
+        uncertaintyMenuItem.setActionCommand("uncertaintyModel");
+        uncertaintyMenuItem.addActionListener(this);
+        correctionMenu.add(uncertaintyMenuItem);
+        bleachedRegionMenuItem = new JMenuItem("Bleached region...");
+        bleachedRegionMenuItem.setActionCommand("bleachedRegion");
+        bleachedRegionMenuItem.addActionListener(this);
+        correctionMenu.add(bleachedRegionMenuItem);
+        partialBlMapMenuItem = new JMenuItem("Partial photobleaching map...");
+        partialBlMapMenuItem.setActionCommand("partialBlMap");
+        partialBlMapMenuItem.addActionListener(this);
+        correctionMenu.add(partialBlMapMenuItem);
+        livePreviewMenuItem = new JCheckBoxMenuItem("Live preview");
+        livePreviewMenuItem.setSelected(false);
+        livePreviewMenuItem.setActionCommand("livePreview");
+        livePreviewMenuItem.addActionListener(this);
+        correctionMenu.add(livePreviewMenuItem);
+        sensitivitySweepMenuItem = new JMenuItem("Sensitivity sweep...");
+        sensitivitySweepMenuItem.setActionCommand("sensitivitySweep");
+        sensitivitySweepMenuItem.addActionListener(this);
+        correctionMenu.add(sensitivitySweepMenuItem);
+        percentilesMenuItem = new JMenuItem("Percentiles...");
+        percentilesMenuItem.setActionCommand("percentiles");
+        percentilesMenuItem.addActionListener(this);
+        correctionMenu.add(percentilesMenuItem);
+        bootstrapMenuItem = new JMenuItem("Bootstrap confidence intervals...");
+        bootstrapMenuItem.setActionCommand("bootstrap");
+        bootstrapMenuItem.addActionListener(this);
+        correctionMenu.add(bootstrapMenuItem);
+        parallelismMenuItem = new JMenuItem("Parallel computation...");
+        parallelismMenuItem.setActionCommand("parallelism");
+        parallelismMenuItem.addActionListener(this);
+        correctionMenu.add(parallelismMenuItem);
+        resultsOutputMenuItem = new JMenuItem("Results output...");
+        resultsOutputMenuItem.setActionCommand("resultsOutput");
+        resultsOutputMenuItem.addActionListener(this);
+        correctionMenu.add(resultsOutputMenuItem);
         exitMenuItem = new JMenuItem("Exit");
         exitMenuItem.setActionCommand("exit");
         exitMenuItem.addActionListener(this);
@@ -215,6 +398,10 @@ public class AccPbFRET_Plugin extends JFrame implements ActionListener, WindowLi
         debugMenuItem.setActionCommand("debugmode");
         debugMenuItem.addActionListener(this);
         helpMenu.add(debugMenuItem);
+        benchmarkMenuItem = new JMenuItem("Benchmark transfer image kernels");
+        benchmarkMenuItem.setActionCommand("benchmarkKernels");
+        benchmarkMenuItem.addActionListener(this);
+        helpMenu.add(benchmarkMenuItem);
         aboutMenuItem = new JMenuItem("About");
         aboutMenuItem.setActionCommand("about");
         aboutMenuItem.addActionListener(this);
@@ -597,7 +784,7 @@ public class AccPbFRET_Plugin extends JFrame implements ActionListener, WindowLi
         gc.gridx = 0;
         gc.gridy = 21;
         gc.insets = new Insets(0,6,0,6);
-        JLabel thInfo = new JLabel("(Threshold setting: set threshold, press apply, select \"Set bg pixels to NaN\", press ok and close threshold window)");
+        JLabel thInfo = new JLabel("(Threshold setting: enter the limits and the value of the background pixels, it is kept when the blur or background changes)");
         thInfo.setFont(new Font("Helvetica", Font.PLAIN, 10));
         container.add(thInfo, gc);
         gc.gridwidth = 1;
@@ -909,14 +1096,13 @@ public class AccPbFRET_Plugin extends JFrame implements ActionListener, WindowLi
 
                 int width = ip1.getWidth();
                 int height = ip1.getHeight();
-                float[][] newImgPoints = new float[width][height];
-                for (int i = 0; i < width; i++) {
-                    for (int j = 0; j < height; j++) {
-                        newImgPoints[i][j] = ip1P[width*j+i] - ip2P[width*j+i];
-                    }
+                float[] newImgPixels = framePool.borrow(width, height);
+                for (int i = 0; i < newImgPixels.length; i++) {
+                    newImgPixels[i] = ip1P[i] - ip2P[i];
                 }
-                FloatProcessor fp = new FloatProcessor(newImgPoints);
+                FloatProcessor fp = new FloatProcessor(width, height, newImgPixels, null);
                 ImagePlus newImg = new ImagePlus("Acceptor before - acceptor after", fp);
+                framePool.attach(newImg, newImgPixels);
                 newImg.changes = false;
                 newImg.show();
                 IJ.run("Threshold...");
@@ -1044,6 +1230,7 @@ public class AccPbFRET_Plugin extends JFrame implements ActionListener, WindowLi
                 (new Opener()).open(imageFile.getAbsolutePath());
                 WindowManager.putBehind();
                 this.actionPerformed(new ActionEvent(this,ActionEvent.ACTION_PERFORMED,"split"));
+                loadingBin = surveyBin;
                 this.actionPerformed(new ActionEvent(this,ActionEvent.ACTION_PERFORMED,"setAcceptorAfter"));
                 this.actionPerformed(new ActionEvent(this,ActionEvent.ACTION_PERFORMED,"lutSpectrum"));
                 WindowManager.putBehind();
@@ -1058,6 +1245,8 @@ public class AccPbFRET_Plugin extends JFrame implements ActionListener, WindowLi
             } catch (Exception ex) {
                 logError("Could not open and set the selected LSM image.");
                 logException(ex.getMessage(), ex);
+            } finally {
+                loadingBin = 1;
             }
       	} else if (e.getActionCommand().equals("setDonorBefore")) {
             ImagePlus ip = WindowManager.getCurrentImage();
@@ -1086,6 +1275,8 @@ public class AccPbFRET_Plugin extends JFrame implements ActionListener, WindowLi
             donorBefore = ip;
             donorBefore.setTitle("Donor before bleaching - " + new Date().toString());
             new ImageConverter(donorBefore).convertToGray32();
+            int bin = binLoadedChannel(donorBefore);
+            pipelines.put(donorBefore, new ChannelPipeline(donorBefore.getProcessor(), bin));
             if (automaticallyProcessedFiles == null) {
                 currentlyProcessedFileName = null;
             }
@@ -1117,6 +1308,8 @@ public class AccPbFRET_Plugin extends JFrame implements ActionListener, WindowLi
             donorAfter = ip;
             donorAfter.setTitle("Donor after bleaching - " + new Date().toString());
             new ImageConverter(donorAfter).convertToGray32();
+            int bin = binLoadedChannel(donorAfter);
+            pipelines.put(donorAfter, new ChannelPipeline(donorAfter.getProcessor(), bin));
             setDonorAfterButton.setBackground(greenColor);
       	} else if (e.getActionCommand().equals("setAcceptorBefore")) {
             acceptorBefore = WindowManager.getCurrentImage();
@@ -1138,7 +1331,8 @@ public class AccPbFRET_Plugin extends JFrame implements ActionListener, WindowLi
             }
             acceptorBefore.setTitle("Acceptor before bleaching - " + new Date().toString());
             new ImageConverter(acceptorBefore).convertToGray32();
-            acceptorBeforeSave = acceptorBefore.getProcessor().duplicate();
+            int bin = binLoadedChannel(acceptorBefore);
+            pipelines.put(acceptorBefore, new ChannelPipeline(acceptorBefore.getProcessor(), bin));
             setAcceptorBeforeButton.setBackground(greenColor);
       	} else if (e.getActionCommand().equals("setAcceptorAfter")) {
             acceptorAfter = WindowManager.getCurrentImage();
@@ -1160,23 +1354,24 @@ public class AccPbFRET_Plugin extends JFrame implements ActionListener, WindowLi
             }
             acceptorAfter.setTitle("Acceptor after bleaching - " + new Date().toString());
             new ImageConverter(acceptorAfter).convertToGray32();
-            acceptorAfterSave = acceptorAfter.getProcessor().duplicate();
+            int bin = binLoadedChannel(acceptorAfter);
+            pipelines.put(acceptorAfter, new ChannelPipeline(acceptorAfter.getProcessor(), bin));
             setAcceptorAfterButton.setBackground(greenColor);
       	} else if (e.getActionCommand().equals("clearAB")) {
       	    if (acceptorBefore == null) {
                 logError("No image is set as acceptor before bleaching.");
                 return;
             }
+            pipelines.remove(acceptorBefore);
             acceptorBefore = null;
-            acceptorBeforeSave = null;
             setAcceptorBeforeButton.setBackground(originalButtonColor);
       	} else if (e.getActionCommand().equals("clearAA")) {
       	    if (acceptorAfter == null) {
                 logError("No image is set as acceptor after bleaching.");
                 return;
             }
+            pipelines.remove(acceptorAfter);
             acceptorAfter = null;
-            acceptorAfterSave = null;
             setAcceptorAfterButton.setBackground(originalButtonColor);
       	} else if (e.getActionCommand().equals("copyRoi")) {
       	    if (donorBefore == null) {
@@ -1213,34 +1408,12 @@ public class AccPbFRET_Plugin extends JFrame implements ActionListener, WindowLi
                 return;
             }
 
-            int width = donorBefore.getWidth();
-            int height = donorBefore.getHeight();
-            double sum = 0;
-            int count = 0;
-            for (int i=0; i < width; i++) {
-                for (int j=0; j < height; j++) {
-                    if (donorBefore.getRoi().contains(i, j)) {
-                        sum += donorBefore.getProcessor().getPixelValue(i,j);
-                        count++;
-                    }
-		        }
-		    }
-		    float backgroundAvg = (float)(sum/count);
-
-            float i = 0;
-            for (int x=0; x < width; x++) {
-                for (int y=0; y < height; y++) {
-                    i = donorBefore.getProcessor().getPixelValue(x,y);
-                    i = i - backgroundAvg;
-                    if (i < 0) {
-                       i=0;
-                    }
-		            donorBefore.getProcessor().putPixelValue(x, y, i);
-		        }
-		    }
-		    donorBefore.updateAndDraw();
+            float backgroundAvg = roiMean(donorBefore);
+
+            pipelineOf(donorBefore).addBackground(backgroundAvg);
+            showPipelineOutput(donorBefore);
+            pipelineOf(donorBefore).saveState();
 		    donorBefore.killRoi();
-            donorBeforeSave = donorBefore.getProcessor().duplicate();
             log("Subtracted background ("+backgroundAvg+") of donor before bleaching.");
             subtractDonorBeforeButton.setBackground(greenColor);
       	} else if (e.getActionCommand().equals("subtractDonorAfter")) {
@@ -1252,34 +1425,12 @@ public class AccPbFRET_Plugin extends JFrame implements ActionListener, WindowLi
                 return;
             }
 
-            int width = donorAfter.getWidth();
-            int height = donorAfter.getHeight();
-            double sum = 0;
-            int count = 0;
-            for (int i=0; i < width; i++) {
-                for (int j=0; j < height; j++) {
-                    if (donorAfter.getRoi().contains(i, j)) {
-                        sum += donorAfter.getProcessor().getPixelValue(i,j);
-                        count++;
-                    }
-		        }
-		    }
-		    float backgroundAvg = (float)(sum/count);
-
-            float i = 0;
-            for (int x=0; x < width; x++) {
-                for (int y=0; y < height; y++) {
-                    i = donorAfter.getProcessor().getPixelValue(x,y);
-                    i = i - backgroundAvg;
-                    if (i < 0) {
-                       i=0;
-                    }
-		            donorAfter.getProcessor().putPixelValue(x, y, i);
-		        }
-		    }
-		    donorAfter.updateAndDraw();
+            float backgroundAvg = roiMean(donorAfter);
+
+            pipelineOf(donorAfter).addBackground(backgroundAvg);
+            showPipelineOutput(donorAfter);
+            pipelineOf(donorAfter).saveState();
 		    donorAfter.killRoi();
-            donorAfterSave = donorAfter.getProcessor().duplicate();
 		    log("Subtracted background ("+backgroundAvg+") of donor after bleaching.");
             subtractDonorAfterButton.setBackground(greenColor);
       	} else if (e.getActionCommand().equals("subtractAcceptorBefore")) {
@@ -1291,33 +1442,12 @@ public class AccPbFRET_Plugin extends JFrame implements ActionListener, WindowLi
                 return;
             }
 
-            int width = acceptorBefore.getWidth();
-            int height = acceptorBefore.getHeight();
-            double sum = 0;
-            int count = 0;
-            for (int i=0; i < width; i++) {
-                for (int j=0; j < height; j++) {
-                    if (acceptorBefore.getRoi().contains(i, j)) {
-                        sum += acceptorBefore.getProcessor().getPixelValue(i,j);
-                        count++;
-                    }
-		        }
-		    }
-		    float backgroundAvg = (float)(sum/count);
-
-            float i = 0;
-            for (int x=0; x < width; x++) {
-                for (int y=0; y < height; y++) {
-                    i = acceptorBefore.getProcessor().getPixelValue(x,y)- backgroundAvg;
-                    if (i < 0) {
-                       i=0;
-                    }
-		            acceptorBefore.getProcessor().putPixelValue(x, y, i);
-		        }
-		    }
-		    acceptorBefore.updateAndDraw();
+            float backgroundAvg = roiMean(acceptorBefore);
+
+            pipelineOf(acceptorBefore).addBackground(backgroundAvg);
+            showPipelineOutput(acceptorBefore);
+            pipelineOf(acceptorBefore).saveState();
 		    acceptorBefore.killRoi();
-            acceptorBeforeSave = acceptorBefore.getProcessor().duplicate();
             log("Subtracted background ("+backgroundAvg+") of acceptor before bleaching.");
             subtractAcceptorBeforeButton.setBackground(greenColor);
       	} else if (e.getActionCommand().equals("subtractAcceptorAfter")) {
@@ -1329,33 +1459,12 @@ public class AccPbFRET_Plugin extends JFrame implements ActionListener, WindowLi
                 return;
             }
 
-            int width = acceptorAfter.getWidth();
-            int height = acceptorAfter.getHeight();
-            double sum = 0;
-            int count = 0;
-            for (int i=0; i < width; i++) {
-                for (int j=0; j < height; j++) {
-                    if (acceptorAfter.getRoi().contains(i, j)) {
-                        sum += acceptorAfter.getProcessor().getPixelValue(i,j);
-                        count++;
-                    }
-		        }
-		    }
-		    float backgroundAvg = (float)(sum/count);
-
-            float i = 0;
-            for (int x=0; x < width; x++) {
-                for (int y=0; y < height; y++) {
-                    i = acceptorAfter.getProcessor().getPixelValue(x,y)- backgroundAvg;
-                    if (i < 0) {
-                       i=0;
-                    }
-		            acceptorAfter.getProcessor().putPixelValue(x, y, i);
-		        }
-		    }
-		    acceptorAfter.updateAndDraw();
+            float backgroundAvg = roiMean(acceptorAfter);
+
+            pipelineOf(acceptorAfter).addBackground(backgroundAvg);
+            showPipelineOutput(acceptorAfter);
+            pipelineOf(acceptorAfter).saveState();
 		    acceptorAfter.killRoi();
-            acceptorAfterSave = acceptorAfter.getProcessor().duplicate();
             log("Subtracted background ("+backgroundAvg+") of acceptor after bleaching.");
             subtractAcceptorAfterButton.setBackground(greenColor);
       	} else if (e.getActionCommand().equals("thresholdDonorBefore")) {
@@ -1363,84 +1472,72 @@ public class AccPbFRET_Plugin extends JFrame implements ActionListener, WindowLi
                 logError("No image is set as donor before bleaching.");
                 return;
             }
-            IJ.selectWindow(donorBefore.getTitle());
-            IJ.run("Threshold...");
-            thresholdDonorBeforeButton.setBackground(greenColor);
+            thresholdChannel(donorBefore, thresholdDonorBeforeButton);
       	} else if (e.getActionCommand().equals("thresholdDonorAfter")) {
       	    if (donorAfter == null) {
                 logError("No image is set as donor after bleaching.");
                 return;
             }
-            IJ.selectWindow(donorAfter.getTitle());
-            IJ.run("Threshold...");
-            thresholdDonorAfterButton.setBackground(greenColor);
+            thresholdChannel(donorAfter, thresholdDonorAfterButton);
       	} else if (e.getActionCommand().equals("thresholdAcceptorBefore")) {
       	    if (acceptorBefore == null) {
                 logError("No image is set as acceptor before bleaching.");
                 return;
             }
-            IJ.selectWindow(acceptorBefore.getTitle());
-            IJ.run("Threshold...");
-            thresholdAcceptorBeforeButton.setBackground(greenColor);
+            thresholdChannel(acceptorBefore, thresholdAcceptorBeforeButton);
       	} else if (e.getActionCommand().equals("thresholdAcceptorAfter")) {
       	    if (acceptorAfter == null) {
                 logError("No image is set as acceptor after bleaching.");
                 return;
             }
-            IJ.selectWindow(acceptorAfter.getTitle());
-            IJ.run("Threshold...");
-            thresholdAcceptorAfterButton.setBackground(greenColor);
+            thresholdChannel(acceptorAfter, thresholdAcceptorAfterButton);
       	} else if (e.getActionCommand().equals("resetDB")) {
       	    if (donorBefore == null) {
                 logError("No image is set as donor before bleaching.");
                 return;
             }
-      	    if (donorBeforeSave == null) {
+            if (!pipelineOf(donorBefore).restoreState()) {
                 logError("No saved image.");
                 return;
             }
-            donorBefore.setProcessor(donorBefore.getTitle(), donorBeforeSave.duplicate());
-            donorBefore.updateAndDraw();
-            thresholdDonorBeforeButton.setBackground(originalButtonColor);
+            showPipelineOutput(donorBefore);
+            thresholdDonorBeforeButton.setBackground(pipelineOf(donorBefore).isThresholded() ? greenColor : originalButtonColor);
             smoothDonorBeforeButton.setBackground(originalButtonColor);
       	} else if (e.getActionCommand().equals("resetDA")) {
       	    if (donorAfter == null) {
                 logError("No image is set as donor after bleaching.");
                 return;
             }
-      	    if (donorAfterSave == null) {
+            if (!pipelineOf(donorAfter).restoreState()) {
                 logError("No saved image.");
                 return;
             }
-            donorAfter.setProcessor(donorAfter.getTitle(), donorAfterSave.duplicate());
-            donorAfter.updateAndDraw();
-            thresholdDonorAfterButton.setBackground(originalButtonColor);
+            showPipelineOutput(donorAfter);
+            thresholdDonorAfterButton.setBackground(pipelineOf(donorAfter).isThresholded() ? greenColor : originalButtonColor);
             smoothDonorAfterButton.setBackground(originalButtonColor);
       	} else if (e.getActionCommand().equals("resetAB")) {
       	    if (acceptorBefore == null) {
                 logError("No image is set as acceptor before bleaching.");
                 return;
             }
-      	    if (acceptorBeforeSave == null) {
+            if (!pipelineOf(acceptorBefore).restoreState()) {
                 logError("No saved image.");
                 return;
             }
-            acceptorBefore.setProcessor(acceptorBefore.getTitle(), acceptorBeforeSave.duplicate());
-            acceptorBefore.updateAndDraw();
-            thresholdAcceptorBeforeButton.setBackground(originalButtonColor);
+            showPipelineOutput(acceptorBefore);
+            thresholdAcceptorBeforeButton.setBackground(pipelineOf(acceptorBefore).isThresholded() ? greenColor : originalButtonColor);
             smoothAcceptorBeforeButton.setBackground(originalButtonColor);
       	} else if (e.getActionCommand().equals("resetAA")) {
       	    if (acceptorAfter == null) {
                 logError("No image is set as acceptor after bleaching.");
                 return;
             }
-      	    if (acceptorAfterSave == null) {
+            if (!pipelineOf(acceptorAfter).restoreState()) {
                 logError("No saved image.");
                 return;
             }
-            acceptorAfter.setProcessor(acceptorAfter.getTitle(), acceptorAfterSave.duplicate());
-            acceptorAfter.updateAndDraw();
-            thresholdAcceptorAfterButton.setBackground(originalButtonColor);
+            showPipelineOutput(acceptorAfter);
+            thresholdAcceptorAfterButton.setBackground(pipelineOf(acceptorAfter).isThresholded() ? greenColor : originalButtonColor);
             smoothAcceptorAfterButton.setBackground(originalButtonColor);
       	} else if (e.getActionCommand().equals("smoothDBefore")) {
       	    if (donorBefore == null) {
@@ -1458,11 +1555,8 @@ public class AccPbFRET_Plugin extends JFrame implements ActionListener, WindowLi
                         logError("Radius has to be given for Gaussian blur.");
                         return;
                     }
-                    GaussianBlur gb = new GaussianBlur();
-                    if(!gb.blur(donorBefore.getProcessor(), radius))  {
-                        return;
-                    }
-    		        donorBefore.updateAndDraw();
+                    pipelineOf(donorBefore).setBlurRadius(radius);
+                    showPipelineOutput(donorBefore);
                     smoothDonorBeforeButton.setBackground(greenColor);
     		        log("Gaussian blurred donor before bleaching.");
     		    }
@@ -1483,11 +1577,8 @@ public class AccPbFRET_Plugin extends JFrame implements ActionListener, WindowLi
                         logError("Radius has to be given for Gaussian blur.");
                         return;
                     }
-                    GaussianBlur gb = new GaussianBlur();
-                    if(!gb.blur(donorAfter.getProcessor(), radius))  {
-                        return;
-                    }
-    		        donorAfter.updateAndDraw();
+                    pipelineOf(donorAfter).setBlurRadius(radius);
+                    showPipelineOutput(donorAfter);
                     smoothDonorAfterButton.setBackground(greenColor);
     		        log("Gaussian blurred donor after bleaching.");
     		    }
@@ -1508,11 +1599,8 @@ public class AccPbFRET_Plugin extends JFrame implements ActionListener, WindowLi
                         logError("Radius has to be given for Gaussian blur.");
                         return;
                     }
-                    GaussianBlur gb = new GaussianBlur();
-                    if(!gb.blur(acceptorBefore.getProcessor(), radius))  {
-                        return;
-                    }
-    		        acceptorBefore.updateAndDraw();
+                    pipelineOf(acceptorBefore).setBlurRadius(radius);
+                    showPipelineOutput(acceptorBefore);
                     smoothAcceptorBeforeButton.setBackground(greenColor);
     		        log("Gaussian blurred acceptor before bleaching.");
     		    }
@@ -1533,11 +1621,8 @@ public class AccPbFRET_Plugin extends JFrame implements ActionListener, WindowLi
                         logError("Radius has to be given for Gaussian blur.");
                         return;
                     }
-                    GaussianBlur gb = new GaussianBlur();
-                    if(!gb.blur(acceptorAfter.getProcessor(), radius))  {
-                        return;
-                    }
-    		        acceptorAfter.updateAndDraw();
+                    pipelineOf(acceptorAfter).setBlurRadius(radius);
+                    showPipelineOutput(acceptorAfter);
                     smoothAcceptorAfterButton.setBackground(greenColor);
     		        log("Gaussian blurred acceptor after bleaching.");
     		    }
@@ -1576,32 +1661,25 @@ public class AccPbFRET_Plugin extends JFrame implements ActionListener, WindowLi
                 int shiftX = 0;
                 int shiftY = 0;
                 if (maxx != 0 || maxy != 0){
-                    ShiftDialog sd = new ShiftDialog(this);
                     if (maxy > height/2) {
                         log("Shifting donor after image up " + (height-maxy) + " pixel" + ((height-maxy)>1?"s":"") + ".");
-                        sd.shiftUp(donorAfter, height-maxy);
-                        if (applyShiftCB.isSelected()){
-                            sd.shiftUp(acceptorAfter, height-maxy);
-                        }
+                        shiftY = maxy - height;
                     } else if (maxy != 0) {
                         log("Shifting donor after image down " + maxy + " pixel" + (maxy>1?"s":"") + ".");
-                        sd.shiftDown(donorAfter, maxy);
-                        if (applyShiftCB.isSelected()){
-                            sd.shiftDown(acceptorAfter, maxy);
-                        }
+                        shiftY = maxy;
                     }
                     if (maxx > width/2) {
                         log("Shifting donor after image to the left " + (width-maxx) + " pixel" + ((width-maxx)>1?"s":"") + ".");
-                        sd.shiftLeft(donorAfter, width-maxx);
-                        if (applyShiftCB.isSelected()){
-                            sd.shiftLeft(acceptorAfter, width-maxx);
-                        }
+                        shiftX = maxx - width;
                     } else if (maxx != 0) {
                         log("Shifting donor after image to the right " + maxx + " pixel" + (maxx>1?"s":"") + ".");
-                        sd.shiftRight(donorAfter, maxx);
-                        if (applyShiftCB.isSelected()){
-                            sd.shiftRight(acceptorAfter, maxx);
-                        }
+                        shiftX = maxx;
+                    }
+                    pipelineOf(donorAfter).shift(shiftX, shiftY);
+                    showPipelineOutput(donorAfter);
+                    if (applyShiftCB.isSelected() && acceptorAfter != null) {
+                        pipelineOf(acceptorAfter).shift(shiftX, shiftY);
+                        showPipelineOutput(acceptorAfter);
                     }
                     actionPerformed(new ActionEvent(registerButton, 1, "registerImages"));
                 } else {
@@ -1611,39 +1689,53 @@ public class AccPbFRET_Plugin extends JFrame implements ActionListener, WindowLi
                     double p = 1.10;
                     log("Registration finished.");
                     Roi roi = donorBefore.getRoi();
-                    if (roi == null) {
+                    Rectangle region = roi == null ? bleachedRegion(width, height) : null;
+                    if (region != null) {
+                        // only the statistics are computed in the bleached region, the ROIs of the images are kept
+                        roi = new Roi(region);
+                    } else if (roi == null) {
                         logWarning("The calculated statistics after registration are more authoritative if there is a ROI defined in the donor before image, and the calculations are based on that.");
                         donorAfter.killRoi();
                     } else {
                         donorAfter.setRoi(donorBefore.getRoi());
                     }
 
-                    ImageStatistics isMeanDB = ImageStatistics.getStatistics(donorBefore.getProcessor(), Measurements.MEAN,null);
-                    ImageStatistics isMeanDA = ImageStatistics.getStatistics(donorAfter.getProcessor(), Measurements.MEAN,null);
-                    ImageStatistics isStdDevDB = ImageStatistics.getStatistics(donorBefore.getProcessor(), Measurements.STD_DEV,null);
-                    ImageStatistics isStdDevDA = ImageStatistics.getStatistics(donorAfter.getProcessor(), Measurements.STD_DEV,null);
-
-                    for (int x=0; x < width; x++) {
-                        for (int y=0; y < height; y++) {
-                            if (roi != null && roi.contains(x,y)) {
+                    // mean and standard deviation (n - 1) of the finite pixels in the ROI
+                    double[] sum = new double[2];
+                    double[] sum2 = new double[2];
+                    double[] n = new double[2];
+                    RoiMask mask = roiMasks.get(roi, width, height);
+                    Rectangle bounds = mask.getBounds();
+                    ImageProcessor ipDB = donorBefore.getProcessor();
+                    ImageProcessor ipDA = donorAfter.getProcessor();
+                    for (int y=bounds.y; y < bounds.y + bounds.height; y++) {
+                        for (int x=bounds.x; x < bounds.x + bounds.width; x++) {
+                            if (mask.contains(x,y)) {
                                 countAll++;
-                                db = donorBefore.getProcessor().getPixelValue(x,y);
-                                da = donorAfter.getProcessor().getPixelValue(x,y);
+                                db = ipDB.getPixelValue(x,y);
+                                da = ipDA.getPixelValue(x,y);
                                 if (db != 0 && da != 0 && db / da > p) {
                                     count++;
                                 }
-                            } else if (roi == null) {
-                                countAll++;
-                                db = donorBefore.getProcessor().getPixelValue(x,y);
-                                da = donorAfter.getProcessor().getPixelValue(x,y);
-                                if (db != 0 && da != 0 && db / da > p) {
-                                    count++;
+                                float[] values = {db, da};
+                                for (int c = 0; c < values.length; c++) {
+                                    if (values[c] >= -Float.MAX_VALUE && values[c] <= Float.MAX_VALUE) {
+                                        n[c]++;
+                                        sum[c] += values[c];
+                                        sum2[c] += (double)values[c] * values[c];
+                                    }
                                 }
                             }
                         }
                     }
-                    log("Relative dispersion (SD/mean) of donor before bleaching image: " + df.format((float)(isStdDevDB.stdDev/isMeanDB.mean)));
-                    log("Relative dispersion (SD/mean) of donor after bleaching image: " + df.format((float)(isStdDevDA.stdDev/isMeanDA.mean)));
+                    double[] dispersion = new double[2];
+                    for (int c = 0; c < dispersion.length; c++) {
+                        double mean = sum[c] / n[c];
+                        double stdDev = n[c] > 1 ? Math.sqrt(Math.max(0, (n[c] * sum2[c] - sum[c] * sum[c]) / n[c] / (n[c] - 1))) : 0;
+                        dispersion[c] = stdDev / mean;
+                    }
+                    log("Relative dispersion (SD/mean) of donor before bleaching image: " + df.format((float)dispersion[0]));
+                    log("Relative dispersion (SD/mean) of donor after bleaching image: " + df.format((float)dispersion[1]));
                     df.applyPattern("#0.0");
                     log(df.format(count/countAll*100) + "% of pixels has lower intensity by 10% in the donor after than in the donor before image.");
                     registerButton.setBackground(greenColor);
@@ -1665,6 +1757,7 @@ public class AccPbFRET_Plugin extends JFrame implements ActionListener, WindowLi
           	}
             logScrollPane.setPreferredSize(new Dimension(10,10));
       	} else if (e.getActionCommand().equals("donorblcorrm")) {
+            schedulePreview();
           	if (donorBlCorrMenuItem.isSelected()) {
                 donorBlCorrLabel.setVisible(true);
                 donorBlCorrField.setVisible(true);
@@ -1683,6 +1776,7 @@ public class AccPbFRET_Plugin extends JFrame implements ActionListener, WindowLi
                 }
             }
       	} else if (e.getActionCommand().equals("acccrtalkcorrm")) {
+            schedulePreview();
           	if (accCrossTalkCorrMenuItem.isSelected()) {
                 accCrossTalkCorrLabel.setVisible(true);
                 accCrossTalkCorrField.setVisible(true);
@@ -1701,6 +1795,7 @@ public class AccPbFRET_Plugin extends JFrame implements ActionListener, WindowLi
                 }
             }
       	} else if (e.getActionCommand().equals("accphprcorrm")) {
+            schedulePreview();
           	if (accPhotoprCorrMenuItem.isSelected()) {
                 accPhotoprCorrLabel.setVisible(true);
                 accPhotoprCorrField.setVisible(true);
@@ -1719,6 +1814,7 @@ public class AccPbFRET_Plugin extends JFrame implements ActionListener, WindowLi
                 }
             }
       	} else if (e.getActionCommand().equals("partialblcorrm")) {
+            schedulePreview();
           	if (partialBlCorrMenuItem.isSelected()) {
                 partialBlCorrLabel.setVisible(true);
                 partialBlCorrField.setVisible(true);
@@ -1732,6 +1828,277 @@ public class AccPbFRET_Plugin extends JFrame implements ActionListener, WindowLi
                 linePartialBl.setVisible(false);
            	    logScrollPane.setPreferredSize(new Dimension(10,10));
             }
+      	} else if (e.getActionCommand().equals("parallelism")) {
+            String value = JOptionPane.showInputDialog(this, "Number of threads used for creating the transfer image\n(1 = serial computation, available processors: " + Runtime.getRuntime().availableProcessors() + "):", "" + parallelism);
+            if (value == null) {
+                return;
+            }
+            int threads = 0;
+            try {
+                threads = Integer.parseInt(value.trim());
+            } catch (Exception ex) {
+                logError("The number of threads has to be a positive integer.");
+                return;
+            }
+            if (threads < 1) {
+                logError("The number of threads has to be a positive integer.");
+                return;
+            }
+            if (threads != parallelism && forkJoinPool != null) {
+                forkJoinPool.shutdown();
+                forkJoinPool = null;
+            }
+            parallelism = threads;
+            log("Parallel computation: " + parallelism + " thread" + (parallelism > 1 ? "s" : "") + ".");
+      	} else if (e.getActionCommand().equals("resultsOutput")) {
+            GenericDialog gd = new GenericDialog("Results output");
+            gd.addNumericField("Rows collected before the results are shown (semi-automatic processing):", resultsFlushRows, 0);
+            gd.addCheckbox("Append the results to a CSV file", resultsFile != null);
+            gd.showDialog();
+            if (gd.wasCanceled()) {
+                return;
+            }
+            double rows = gd.getNextNumber();
+            boolean toFile = gd.getNextBoolean();
+            if (gd.invalidNumber() || rows < 1) {
+                logError("The number of rows has to be a positive integer.");
+                return;
+            }
+            File file = null;
+            if (toFile) {
+                JFileChooser jfc = new JFileChooser(currentDirectory);
+                jfc.setFileSelectionMode(JFileChooser.FILES_ONLY);
+                jfc.setDialogTitle("Append the results to...");
+                if (jfc.showSaveDialog(this) != JFileChooser.APPROVE_OPTION || jfc.getSelectedFile() == null) {
+                    return;
+                }
+                currentDirectory = jfc.getCurrentDirectory().toString();
+                file = jfc.getSelectedFile();
+            }
+            flushResults(true);
+            resultsFlushRows = (int)rows;
+            resultsFile = file;
+            log("Results output: shown every " + resultsFlushRows + " row" + (resultsFlushRows > 1 ? "s" : "") + " in semi-automatic processing"
+                + (resultsFile != null ? ", appended to " + resultsFile + "." : "."));
+      	} else if (e.getActionCommand().equals("percentiles")) {
+            GenericDialog gd = new GenericDialog("Percentiles");
+            gd.addStringField("Percentiles of the transfer efficiency (comma separated):", PercentileSelector.format(percentiles), 20);
+            gd.addCheckbox("Interquartile range (P75 - P25)", interquartileRange);
+            gd.showDialog();
+            if (gd.wasCanceled()) {
+                return;
+            }
+            String[] items = gd.getNextString().trim().split("[,;\\s]+");
+            boolean iqr = gd.getNextBoolean();
+            double[] values = new double[items[0].length() == 0 ? 0 : items.length];
+            try {
+                for (int i = 0; i < values.length; i++) {
+                    values[i] = Double.parseDouble(items[i]);
+                    if (!(values[i] >= 0 && values[i] <= 100)) {
+                        throw new NumberFormatException();
+                    }
+                }
+            } catch (NumberFormatException ex) {
+                logError("The percentiles have to be numbers between 0 and 100.");
+                return;
+            }
+            percentiles = values;
+            interquartileRange = iqr;
+            log("Percentiles: " + (percentiles.length > 0 ? PercentileSelector.format(percentiles) : "none") + (interquartileRange ? ", interquartile range." : "."));
+      	} else if (e.getActionCommand().equals("bootstrap")) {
+            GenericDialog gd = new GenericDialog("Bootstrap confidence intervals");
+            gd.addNumericField("Resamples (0: no confidence intervals):", bootstrapResamples, 0);
+            gd.addNumericField("Confidence level (%):", bootstrapConfidence, 1);
+            gd.addNumericField("Random seed:", bootstrapSeed, 0);
+            gd.showDialog();
+            if (gd.wasCanceled()) {
+                return;
+            }
+            double resamples = gd.getNextNumber();
+            double confidence = gd.getNextNumber();
+            double seed = gd.getNextNumber();
+            if (gd.invalidNumber() || resamples < 0 || resamples > 1000000) {
+                logError("The number of resamples has to be between 0 and 1000000.");
+                return;
+            } else if (!(confidence > 0 && confidence < 100)) {
+                logError("The confidence level has to be between 0 and 100 %.");
+                return;
+            }
+            bootstrapResamples = (int)resamples;
+            bootstrapConfidence = confidence;
+            bootstrapSeed = (long)seed;
+            if (bootstrapResamples > 0) {
+                log("Bootstrap: " + PercentileSelector.format(bootstrapConfidence) + " % confidence intervals of the ROI mean and median from "
+                    + bootstrapResamples + " resamples, seed " + bootstrapSeed + ".");
+            } else {
+                log("Bootstrap: no confidence intervals.");
+            }
+      	} else if (e.getActionCommand().equals("livePreview")) {
+            if (livePreviewMenuItem.isSelected()) {
+                log("Live preview: the transfer image is recalculated while the correction factors are edited.");
+                schedulePreview();
+            } else {
+                stopPreview();
+            }
+      	} else if (e.getActionCommand().equals("customFormula")) {
+            Object input = JOptionPane.showInputDialog(this, "<html>Transfer efficiency of a pixel as an expression of the pixel values db, da, ab, aa<br>" +
+                                                       "(donor before, donor after, acceptor before, acceptor after bleaching) and of<br>" +
+                                                       "the correction factors bl, ct, pp, pb (donor bleaching, acceptor cross-talk,<br>" +
+                                                       "acceptor photoproduct, partial acceptor photobleaching). Available functions:<br>" +
+                                                       "sqrt, exp, log, pow, abs, min, max. Leave it empty to use the built-in formulas.</html>",
+                                                       "Custom formula", JOptionPane.PLAIN_MESSAGE, null, null, customFormulaText);
+            if (input == null) {
+                return;
+            }
+            String text = input.toString().trim();
+            if (text.equals("")) {
+                customFormula = null;
+                customFormulaText = "";
+                log("Custom formula: the built-in formulas are used.");
+            } else {
+                try {
+                    customFormula = FretFormulaCompiler.compile(text);
+                } catch (IllegalArgumentException ex) {
+                    logError("Custom formula: " + ex.getMessage());
+                    return;
+                }
+                customFormulaText = text;
+                log("Custom formula: E = " + text);
+            }
+            schedulePreview();
+      	} else if (e.getActionCommand().equals("uncertaintyModel")) {
+            GenericDialog gd = new GenericDialog("Uncertainty image");
+            gd.addCheckbox("Create transfer uncertainty image", uncertaintyMap);
+            gd.addNumericField("Detector gain (intensity units per photon):", detectorGain, 3);
+            gd.addNumericField("Detector offset:", detectorOffset, 3);
+            gd.showDialog();
+            if (gd.wasCanceled()) {
+                return;
+            }
+            boolean enabled = gd.getNextBoolean();
+            double gain = gd.getNextNumber();
+            double offset = gd.getNextNumber();
+            if (gd.invalidNumber() || !(gain > 0)) {
+                logError("The detector gain has to be a positive number.");
+                return;
+            }
+            uncertaintyMap = enabled;
+            detectorGain = (float)gain;
+            detectorOffset = (float)offset;
+            if (uncertaintyMap) {
+                log("Uncertainty image: shot noise variance = " + detectorGain + " * (intensity - " + detectorOffset + ").");
+            } else {
+                log("Uncertainty image: disabled.");
+            }
+      	} else if (e.getActionCommand().equals("bleachedRegion")) {
+            String[] sources = {"Acceptor before - acceptor after", "ROI of the donor before image"};
+            GenericDialog gd = new GenericDialog("Bleached region");
+            gd.addCheckbox("Process only the bleached region", bleachedRegionOnly);
+            gd.addChoice("Bleached region from:", sources, sources[bleachedRegionFromRoi ? 1 : 0]);
+            gd.addNumericField("Threshold (fraction of the maximal difference):", bleachedRegionThreshold, 2);
+            gd.addNumericField("Margin (full resolution pixels):", bleachedRegionMargin, 0);
+            gd.showDialog();
+            if (gd.wasCanceled()) {
+                return;
+            }
+            boolean enabled = gd.getNextBoolean();
+            boolean fromRoi = gd.getNextChoiceIndex() == 1;
+            double threshold = gd.getNextNumber();
+            double margin = gd.getNextNumber();
+            if (gd.invalidNumber() || threshold <= 0 || threshold > 1) {
+                logError("The threshold has to be between 0 and 1.");
+                return;
+            } else if (margin < 0) {
+                logError("The margin cannot be negative.");
+                return;
+            }
+            bleachedRegionOnly = enabled;
+            bleachedRegionFromRoi = fromRoi;
+            bleachedRegionThreshold = (float)threshold;
+            bleachedRegionMargin = (int)margin;
+            bleachedRegionAB = null;
+            bleachedRegionAA = null;
+            if (bleachedRegionOnly) {
+                log("Bleached region: only the bounding box of the " + (bleachedRegionFromRoi ? "ROI of the donor before image" : "bleached area") +
+                    " plus " + bleachedRegionMargin + " pixels is processed.");
+            } else {
+                log("Bleached region: the whole image is processed.");
+            }
+      	} else if (e.getActionCommand().equals("partialBlMap")) {
+            GenericDialog gd = new GenericDialog("Partial photobleaching map");
+            gd.addCheckbox("Correct partial acceptor photobleaching pixel by pixel", partialBlMapEnabled);
+            gd.addNumericField("Smoothing radius (full resolution pixels):", partialBlMapRadius, 1);
+            gd.showDialog();
+            if (gd.wasCanceled()) {
+                return;
+            }
+            boolean enabled = gd.getNextBoolean();
+            double radius = gd.getNextNumber();
+            if (gd.invalidNumber() || radius < 0) {
+                logError("The smoothing radius cannot be negative.");
+                return;
+            }
+            if (enabled != partialBlMapEnabled || (float)radius != partialBlMapRadius) {
+                partialBlMap = null;
+            }
+            partialBlMapEnabled = enabled;
+            partialBlMapRadius = (float)radius;
+            if (partialBlMapEnabled) {
+                log("Partial photobleaching map: the correction factor is calculated pixel by pixel (smoothing radius: " + partialBlMapRadius + ").");
+                if (partialBlMap == null) {
+                    logWarning("The partial acceptor photobleaching correction has to be calculated again.");
+                    calculatePartialBlCorrButton.setBackground(originalButtonColor);
+                }
+            } else {
+                log("Partial photobleaching map: a single correction factor is used.");
+            }
+            schedulePreview();
+      	} else if (e.getActionCommand().equals("surveyMode")) {
+            String[] bins = {"Off (full resolution)", "2x2 binning", "4x4 binning"};
+            GenericDialog gd = new GenericDialog("Survey mode");
+            gd.addMessage("In survey mode the LSM images are binned when they are opened (Open & Set LSM,\n" +
+                          "semi-automatic processing), and processed at reduced resolution.");
+            gd.addChoice("Survey mode:", bins, bins[surveyBin == 4 ? 2 : surveyBin == 2 ? 1 : 0]);
+            gd.showDialog();
+            if (gd.wasCanceled()) {
+                return;
+            }
+            surveyBin = 1 << gd.getNextChoiceIndex();
+            if (surveyBin > 1) {
+                log("Survey mode: LSM images are binned " + surveyBin + "x" + surveyBin + " when they are opened.");
+            } else {
+                log("Survey mode: off.");
+            }
+      	} else if (e.getActionCommand().equals("streamingProcessing")) {
+            streamingProcessing();
+      	} else if (e.getActionCommand().equals("sensitivitySweep")) {
+            sensitivitySweep();
+      	} else if (e.getActionCommand().equals("benchmarkKernels")) {
+            FretKernel kernel = createFretKernel();
+            if (kernel == null) {
+                return;
+            }
+            int width = donorAfter.getWidth();
+            int height = donorAfter.getHeight();
+            float[] out = framePool.borrow(width, height);
+            log("Transfer image kernel throughput on " + width + "x" + height + " pixels:");
+            FretKernel scalar = kernel.withVectorLoop(null);
+            logKernelThroughput("scalar, 1 thread", scalar, out, width, height, false);
+            if (kernel.isVectorized()) {
+                logKernelThroughput("vector, 1 thread", kernel, out, width, height, false);
+            }
+            if (parallelism > 1) {
+                logKernelThroughput("scalar, " + parallelism + " threads", scalar, out, width, height, true);
+                if (kernel.isVectorized()) {
+                    logKernelThroughput("vector, " + parallelism + " threads", kernel, out, width, height, true);
+                }
+            }
+            if (vectorLoop == null) {
+                log("  The vector kernel is not used: " + vectorLoopProblem);
+            } else if (!kernel.isVectorized()) {
+                log("  The vector kernel is not used with partial photobleaching correction or a custom formula.");
+            }
+            framePool.release(width, height, out);
       	} else if (e.getActionCommand().equals("calculateDonorBlCorrection")) {
             if (donorBlCorrDialog != null) {
                 donorBlCorrDialog.setVisible(false);
@@ -1761,313 +2128,78 @@ public class AccPbFRET_Plugin extends JFrame implements ActionListener, WindowLi
                 logError("No image is set as acceptor after bleaching.");
                 return;
             } else {
-                ImageProcessor ipAB = acceptorBefore.getProcessor();
-                ImageProcessor ipAA = acceptorAfter.getProcessor();
+                float[] ipABP = (float[])acceptorBefore.getProcessor().getPixels();
+                float[] ipAAP = (float[])acceptorAfter.getProcessor().getPixels();
                 int width = acceptorBefore.getWidth();
-                int height = acceptorBefore.getHeight();
-                double sum = 0;
-                int count = 0;
-                if (acceptorBefore.getRoi() != null) {
-                    acceptorAfter.setRoi(acceptorBefore.getRoi());
-                    for (int i=0; i<width; i++) {
-                        for (int j=0; j<height; j++) {
-                            if (acceptorBefore.getRoi().contains(i, j)) {
-                                if (!Float.isNaN(ipAA.getPixelValue(i,j)) && !Float.isNaN(ipAB.getPixelValue(i,j))) {
-                                    sum += ipAA.getPixelValue(i,j) / ipAB.getPixelValue(i,j);
-                                    count++;
-                                }
-                            }
-		                }
-		            }
+                long[] valid = ValidityMaskCache.and(validityMasks.get(acceptorBefore), validityMasks.get(acceptorAfter));
+                Roi roi = acceptorBefore.getRoi();
+                if (roi != null) {
+                    acceptorAfter.setRoi(roi);
         		} else {
                     logWarning("No ROI is defined for acceptor before bleaching.");
                     acceptorAfter.killRoi();
-                    for (int i=0; i<width; i++) {
-                        for (int j=0; j<height; j++) {
-                            if (!Float.isNaN(ipAA.getPixelValue(i,j)) && !Float.isNaN(ipAB.getPixelValue(i,j))) {
-                                sum += ipAA.getPixelValue(i,j) / ipAB.getPixelValue(i,j);
-                                count++;
-                            }
-		                }
-		            }
         		}
+                RoiMask mask = roiMasks.get(roi, width, acceptorBefore.getHeight());
+                Rectangle bounds = mask.getBounds();
+                int first = bounds.y * width;
+                int last = (bounds.y + bounds.height) * width;
+                double sum = 0;
+                int count = 0;
+                for (int w = first >>> 6; w < (last + 63) >>> 6; w++) {
+                    if (valid[w] == 0) {
+                        continue;
+                    }
+                    int end = Math.min(last, (w + 1) << 6);
+                    for (int i = Math.max(first, w << 6); i < end; i++) {
+                        if (ValidityMaskCache.isValid(valid, i) && mask.contains(i % width, i / width)) {
+                            sum += ipAAP[i] / ipABP[i];
+                            count++;
+                        }
+                    }
+                }
 		        float partialBlCorrFactor = (float)(sum/count);
                 DecimalFormat df = new DecimalFormat("#.###");
                 partialBlCorrField.setText(df.format(partialBlCorrFactor).toString());
+                if (partialBlMapEnabled) {
+                    calculatePartialBlMap(ipABP, ipAAP, valid, roi, width, acceptorBefore.getHeight());
+                }
                 calculatePartialBlCorrButton.setBackground(greenColor);
             }
       	} else if (e.getActionCommand().equals("createFretImage")) {
-            if (donorBefore == null) {
-                logError("No image is set as donor before bleaching.");
-                return;
-      	    } else if (donorAfter == null) {
-                logError("No image is set as donor after bleaching.");
-                return;
-      	    } else if ((useAcceptorAsMask.isSelected() || accCrossTalkCorrMenuItem.isSelected() || accPhotoprCorrMenuItem.isSelected()) && acceptorBefore == null) {
-                logError("No image is set as acceptor before bleaching.");
+            FretKernel kernel = createFretKernel();
+            if (kernel == null) {
                 return;
-            } else {
-                if (donorBlCorrMenuItem.isSelected() && donorBlCorrField.getText().trim().equals("")) {
-                    logError("Bleaching correction factor has to be given.");
-                    return;
-                } else if (accCrossTalkCorrMenuItem.isSelected() && accCrossTalkCorrField.getText().trim().equals("")) {
-                    logError("Acceptor cross-talk correction factor has to be given.");
-                    return;
-                } else if (accPhotoprCorrMenuItem.isSelected() && accPhotoprCorrField.getText().trim().equals("")) {
-                    logError("Acceptor photoproduct correction factor has to be given.");
-                    return;
-                } else if (partialBlCorrMenuItem.isSelected() && partialBlCorrField.getText().trim().equals("")) {
-                    logError("Partial acceptor photobleaching correction factor has to be given.");
-                    return;
-                } else {
-                    float donorBlCorr = 1;
-                    if (donorBlCorrMenuItem.isSelected()) {
-                        try {
-                            donorBlCorr = Float.parseFloat(donorBlCorrField.getText().trim());
-                        } catch (Exception ex) {
-                            logError("Donor bleaching correction factor has to be given.");
-                            return;
-                        }
-                        if (donorBlCorr < 1) {
-                            logWarning("The donor bleaching correction factor should not be lower than 1.");
-                        }
-                    }
-                    float acceptorCTCorr = 0;
-                    if (accCrossTalkCorrMenuItem.isSelected()) {
-                        try {
-                            acceptorCTCorr = Float.parseFloat(accCrossTalkCorrField.getText().trim());
-                        } catch (Exception ex) {
-                            logError("Acceptor cross-talk correction factor has to be given.");
-                            return;
-                        }
-                        if (acceptorCTCorr < 0) {
-                            logWarning("The acceptor cross-talk correction factor should not be lower than 0.");
-                        }
-                    }
-                    float acceptorPPCorr = 0;
-                    if (accPhotoprCorrMenuItem.isSelected()) {
-                        try {
-                            acceptorPPCorr = Float.parseFloat(accPhotoprCorrField.getText().trim());
-                        } catch (Exception ex) {
-                            logError("Acceptor photoproduct correction factor has to be given.");
-                            return;
-                        }
-                        if (acceptorPPCorr < 0) {
-                            logWarning("The acceptor photoproduct correction factor should not be lower than 0.");
-                        }
-                    }
-                    float partialBlCorr = 0;
-                    if (partialBlCorrMenuItem.isSelected()) {
-                        try {
-                            partialBlCorr = Float.parseFloat(partialBlCorrField.getText().trim());
-                        } catch (Exception ex) {
-                            logError("Partial acceptor photobleaching correction factor has to be given.");
-                            return;
-                        }
-                        if (partialBlCorr < 0) {
-                            logWarning("The partial acceptor photobleaching correction should not be lower than 0.");
-                        }
-                        if (partialBlCorr > 1) {
-                            logWarning("The partial acceptor photobleaching correction should not be higher than 1.");
-                        }
-                    }
-                    ImageProcessor ipDB = donorBefore.getProcessor().duplicate();
-                    ImageProcessor ipDA = donorAfter.getProcessor().duplicate();
-                    ImageProcessor ipAB = null;
-                    if (acceptorBefore != null) {
-                        ipAB = acceptorBefore.getProcessor().duplicate();
-                    }
-
-                    float[] ipDBP = (float[])ipDB.getPixels();
-                    float[] ipDAP = (float[])ipDA.getPixels();
-                    float[] ipABP = null;
-                    if (ipAB != null) {
-                        ipABP = (float[])ipAB.getPixels();
-                    }
-
-                    if (!partialBlCorrMenuItem.isSelected()) {
-                        // acceptor cross-talk correction
-                        if (accCrossTalkCorrMenuItem.isSelected()) {
-                            for (int i = 0; i < ipABP.length; i++) {
-                                if (!Float.isNaN(ipDBP[i]) && !Float.isNaN(ipABP[i])) {
-                                    ipDBP[i] = ipDBP[i] - ipABP[i] * acceptorCTCorr;
-                                } else {
-                                    ipDBP[i] = Float.NaN;
-                                }
-                            }
-                        }
-
-                        // acceptor photoproduct correction
-                        if (accPhotoprCorrMenuItem.isSelected()) {
-                            for (int i = 0; i < ipABP.length; i++) {
-                                if (!Float.isNaN(ipDAP[i]) && !Float.isNaN(ipABP[i])) {
-                                    ipDAP[i] = ipDAP[i] - ipABP[i] * acceptorPPCorr;
-                                } else {
-                                    ipDAP[i] = Float.NaN;
-                                }
-                            }
-                        }
-
-                        // donor bleaching correction
-                        if (donorBlCorrMenuItem.isSelected()) {
-                            for (int i = 0; i < ipDAP.length; i++) {
-                                if (!Float.isNaN(ipDAP[i])) {
-                                    ipDAP[i] = ipDAP[i] * donorBlCorr;
-                                } else {
-                                    ipDAP[i] = Float.NaN;
-                                }
-                            }
-                        }
-
-                        for (int i = 0; i < ipDAP.length; i++) {
-                            ipDAP[i] = (float)1 - (ipDBP[i] / ipDAP[i]);
-                        }
-                    } else {
-                        if (accCrossTalkCorrMenuItem.isSelected()) {
-                            for (int i = 0; i < ipABP.length; i++) {
-                                if (!Float.isNaN(ipDBP[i]) && !Float.isNaN(ipABP[i])) {
-                                    ipDBP[i] = ipDBP[i] - ipABP[i] * acceptorCTCorr;
-                                } else {
-                                    ipDBP[i] = Float.NaN;
-                                }
-                            }
-                        }
-
-                        for (int i = 0; i < ipDBP.length; i++) {
-                            if (accCrossTalkCorrMenuItem.isSelected() || accPhotoprCorrMenuItem.isSelected()) {
-                                if (!Float.isNaN(ipDBP[i]) && !Float.isNaN(ipDAP[i]) && !Float.isNaN(ipABP[i])) {
-                                    ipDAP[i] = (float)((double)donorBlCorr*((double)ipDAP[i] - ((double)partialBlCorr*(double)acceptorCTCorr+(double)acceptorPPCorr*((double)1-(double)partialBlCorr))*(double)ipABP[i]) - (double)partialBlCorr*(double)ipDBP[i]);
-                                } else {
-                                    ipDAP[i] = Float.NaN;
-                                }
-                            } else {
-                                if (!Float.isNaN(ipDBP[i]) && !Float.isNaN(ipDAP[i])) {
-                                    ipDAP[i] = (float)((double)donorBlCorr*(double)ipDAP[i] - (double)partialBlCorr*(double)ipDBP[i]);
-                                } else {
-                                    ipDAP[i] = Float.NaN;
-                                }
-                            }
-                        }
-
-                        for (int i = 0; i < ipDAP.length; i++) {
-                            ipDAP[i] = (float)((double)1 - (((double)1-(double)partialBlCorr)*(double)ipDBP[i] / (double)ipDAP[i]));
-                        }
-                    }
-
-                    int width = ipDA.getWidth();
-                    int height = ipDA.getHeight();
-                    float[][] tiPoints = new float[width][height];
-                    for (int i = 0; i < width; i++) {
-                        for (int j = 0; j < height; j++) {
-                            tiPoints[i][j] = ipDAP[width*j+i];
-                        }
-                    }
-
-                    float iv = 0;
-                    for (int x=0; x < width; x++) {
-                        for (int y=0; y < height; y++) {
-                            iv = tiPoints[x][y];
-                            if (useAcceptorAsMask.isSelected() && (Float.isNaN(ipABP[width*y+x]) || ipABP[width*y+x] == 0)) {
-                                tiPoints[x][y] = Float.NaN;
-                            }
-        		        }
-		            }
-
-                    FloatProcessor tiFp = new FloatProcessor(tiPoints);
-                    if (transferImage != null && transferImage.getProcessor() != null) {
-                        ColorModel cm = transferImage.getProcessor().getColorModel();
-                        transferImage.setProcessor("Transfer image", tiFp);
-                        transferImage.getProcessor().setColorModel(cm);
-                        transferImage.updateAndDraw();
-                    } else {
-                        transferImage = new ImagePlus("Transfer image", tiFp);
-                        transferImage.show();
-                    }
+            }
+            int width = donorAfter.getWidth();
+            int height = donorAfter.getHeight();
+            Rectangle region = bleachedRegion(width, height);
+            DensityAccumulator density = densityEnabled ? createDensityAccumulator(width, height) : null;
+            float[] variancePixels = calculateTransferImage(kernel, density);
+            float[] tiPixels = (float[])transferImage.getProcessor().getPixels();
+            if (density != null) {
+                addEfficiencyDensity(density.merge());
+            }
 
-                    analyzer = new Analyzer();
-            		resultsTable =Analyzer.getResultsTable();
-		            resultsTable.setPrecision(3);
-                    resultsTable.incrementCounter();
-                    int widthTi = transferImage.getWidth();
-                    int heightTi = transferImage.getHeight();
-                    if(currentlyProcessedFileName != null) {
-                        resultsTable.addLabel("File", currentlyProcessedFileName);
-                    }
-                    if (transferImage.getRoi() != null) {
-                        Roi roi = transferImage.getRoi();
-                        int count = 0;
-                        int notNan = 0;
-                        for (int i=0; i<widthTi; i++) {
-                            for (int j=0; j<heightTi; j++) {
-                                if (roi.contains(i, j)) {
-                                   count++;
-                                   if (transferImage.getProcessor().getPixelValue(i, j) >= -1) {
-                                       notNan++;
-                                   }
-                               }
-		                    }
-		                }
-                        resultsTable.addValue("Pixels", count);
-                        resultsTable.addValue("Not NaN p.", notNan);
-                    } else {
-                        int notNan = 0;
-                        for (int i=0; i<widthTi; i++) {
-                            for (int j=0; j<heightTi; j++) {
-                               if (transferImage.getProcessor().getPixelValue(i, j) >= -1) {
-                                   notNan++;
-                               }
-		                    }
-		                }
-                        resultsTable.addValue("Pixels", widthTi*heightTi);
-                        resultsTable.addValue("Not NaN p.", notNan);
-                    }
-                    ImageStatistics isMean = ImageStatistics.getStatistics(tiFp, Measurements.MEAN,null);
-                    resultsTable.addValue("Mean", (float)isMean.mean);
-                    ImageStatistics isMedian = ImageStatistics.getStatistics(tiFp, Measurements.MEDIAN,null);
-                    resultsTable.addValue("Median", (float)isMedian.median);
-                    ImageStatistics isStdDev = ImageStatistics.getStatistics(tiFp, Measurements.STD_DEV,null);
-                    resultsTable.addValue("Std. dev.", (float)isStdDev.stdDev);
-                    ImageStatistics isMinMax = ImageStatistics.getStatistics(tiFp, Measurements.MIN_MAX,null);
-                    resultsTable.addValue("Min", (float)isMinMax.min);
-                    resultsTable.addValue("Max", (float)isMinMax.max);
-                    if (transferImage.getRoi() != null) {
-                       donorBefore.setRoi(transferImage.getRoi());
-                       donorAfter.setRoi(transferImage.getRoi());
-                       if (acceptorBefore != null) {
-                           acceptorBefore.setRoi(transferImage.getRoi());
-                       }
-                    } else {
-                       donorBefore.killRoi();
-                       donorAfter.killRoi();
-                       if (acceptorBefore != null) {
-                           acceptorBefore.killRoi();
-                       }
-                    }
-                    ImageStatistics isMinMaxDB = ImageStatistics.getStatistics(donorBefore.getProcessor(), Measurements.MIN_MAX,null);
-                    resultsTable.addValue("Min (DB)", (float)isMinMaxDB.min);
-                    resultsTable.addValue("Max (DB)", (float)isMinMaxDB.max);
-                    ImageStatistics isDBMean = ImageStatistics.getStatistics(donorBefore.getProcessor(), Measurements.MEAN,null);
-                    resultsTable.addValue("Mean (DB)", (float)isDBMean.mean);
-                    ImageStatistics isMinMaxDA = ImageStatistics.getStatistics(donorAfter.getProcessor(), Measurements.MIN_MAX,null);
-                    resultsTable.addValue("Min (DA)", (float)isMinMaxDA.min);
-                    resultsTable.addValue("Max (DA)", (float)isMinMaxDA.max);
-                    ImageStatistics isDAMean = ImageStatistics.getStatistics(donorAfter.getProcessor(), Measurements.MEAN,null);
-                    resultsTable.addValue("Mean (DA)", (float)isDAMean.mean);
-                    ImageStatistics isABMean = null;
-                    if (acceptorBefore != null) {
-                       ImageStatistics isMinMaxAB = ImageStatistics.getStatistics(acceptorBefore.getProcessor(), Measurements.MIN_MAX,null);
-                       resultsTable.addValue("Min (AB)", (float)isMinMaxAB.min);
-                       resultsTable.addValue("Max (AB)", (float)isMinMaxAB.max);
-                       isABMean = ImageStatistics.getStatistics(acceptorBefore.getProcessor(), Measurements.MEAN,null);
-                       resultsTable.addValue("Mean (AB)", (float)isABMean.mean);
-                    } else {
-                       resultsTable.addValue("Min (AB)", (float)0);
-                       resultsTable.addValue("Max (AB)", (float)0);
-                       resultsTable.addValue("Mean (AB)", (float)0);
-                    }
-                    analyzer.displayResults();
-                    analyzer.updateHeadings();
-    		    }
+            resultsBuffer.incrementCounter();
+            int widthTi = transferImage.getWidth();
+            int heightTi = transferImage.getHeight();
+            if(currentlyProcessedFileName != null) {
+                resultsBuffer.addLabel("File", currentlyProcessedFileName);
+            }
+            if (binFactor() > 1) {
+                resultsBuffer.addValue("Bin", binFactor());
+            }
+            Roi measuredRoi = transferImage.getRoi();
+            if (measuredRoi == null && region != null) {
+                measuredRoi = new Roi(region);
+            }
+            addMeasurements(tiPixels, variancePixels, measuredRoi, widthTi, heightTi);
+            flushResults(automaticallyProcessedFiles == null);
+            if (gridMeasurement) {
+                measureGrid(tiPixels, widthTi, heightTi);
+            }
+            if (histogramAccumulate && efficiencyHistogram != null) {
+                efficiencyHistogram.merge(histogramOf(tiPixels, measuredRoi, widthTi, heightTi));
             }
             donorBefore.changes = false;
   	        donorAfter.changes = false;
@@ -2085,91 +2217,99 @@ public class AccPbFRET_Plugin extends JFrame implements ActionListener, WindowLi
                 logError("Transfer image required.");
                 return;
             }
-            resultsTable.incrementCounter();
+            if (!(transferImage.getProcessor().getPixels() instanceof float[])) {
+                logError("The transfer image has to be a 32-bit image.");
+                return;
+            }
+            if (!updateOutdatedTransferImage()) {
+                return;
+            }
+            resultsBuffer.incrementCounter();
             int width = transferImage.getWidth();
             int height = transferImage.getHeight();
             if(currentlyProcessedFileName != null) {
-                resultsTable.addLabel("File", currentlyProcessedFileName);
+                resultsBuffer.addLabel("File", currentlyProcessedFileName);
             }
-            if (transferImage.getRoi() != null) {
-                Roi roi = transferImage.getRoi();
-                int count = 0;
-                int notNan = 0;
-                for (int i=0; i<width; i++) {
-                    for (int j=0; j<height; j++) {
-                        if (roi.contains(i, j)) {
-                            count++;
-                            if (transferImage.getProcessor().getPixelValue(i, j) >= -1) {
-                                notNan++;
-                            }
-                        }
-		            }
-		        }
-                resultsTable.addValue("Pixels", count);
-                resultsTable.addValue("Not NaN p.", notNan);
-            } else {
-                int notNan = 0;
-                for (int i=0; i<width; i++) {
-                    for (int j=0; j<height; j++) {
-                        if (transferImage.getProcessor().getPixelValue(i, j) >= -1) {
-                            notNan++;
-                        }
-		            }
-		        }
-                resultsTable.addValue("Pixels", width*height);
-                resultsTable.addValue("Not NaN p.", notNan);
-            }
-            ImageStatistics isMean = ImageStatistics.getStatistics(transferImage.getProcessor(), Measurements.MEAN,null);
-            resultsTable.addValue("Mean", (float)isMean.mean);
-            ImageStatistics isMedian = ImageStatistics.getStatistics(transferImage.getProcessor(), Measurements.MEDIAN,null);
-            resultsTable.addValue("Median", (float)isMedian.median);
-            ImageStatistics isStdDev = ImageStatistics.getStatistics(transferImage.getProcessor(), Measurements.STD_DEV,null);
-            resultsTable.addValue("Std. dev.", (float)isStdDev.stdDev);
-            ImageStatistics isMinMax = ImageStatistics.getStatistics(transferImage.getProcessor(), Measurements.MIN_MAX,null);
-            resultsTable.addValue("Min", (float)isMinMax.min);
-            resultsTable.addValue("Max", (float)isMinMax.max);
-            if (transferImage.getRoi() != null) {
-                donorBefore.setRoi(transferImage.getRoi());
-                donorAfter.setRoi(transferImage.getRoi());
-                if (acceptorBefore != null) {
-                    acceptorBefore.setRoi(transferImage.getRoi());
-                }
-            } else {
-                donorBefore.killRoi();
-                donorAfter.killRoi();
-                if (acceptorBefore != null) {
-                    acceptorBefore.killRoi();
+            if (binFactor() > 1) {
+                resultsBuffer.addValue("Bin", binFactor());
+            }
+            Roi measuredRoi = transferImage.getRoi();
+            if (measuredRoi == null) {
+                Rectangle region = bleachedRegion(width, height);
+                if (region != null) {
+                    measuredRoi = new Roi(region);
                 }
             }
-            ImageStatistics isMinMaxDB = ImageStatistics.getStatistics(donorBefore.getProcessor(), Measurements.MIN_MAX,null);
-            resultsTable.addValue("Min (DB)", (float)isMinMaxDB.min);
-            resultsTable.addValue("Max (DB)", (float)isMinMaxDB.max);
-            ImageStatistics isDBMean = ImageStatistics.getStatistics(donorBefore.getProcessor(), Measurements.MEAN,null);
-            resultsTable.addValue("Mean (DB)", (float)isDBMean.mean);
-            ImageStatistics isMinMaxDA = ImageStatistics.getStatistics(donorAfter.getProcessor(), Measurements.MIN_MAX,null);
-            resultsTable.addValue("Min (DA)", (float)isMinMaxDA.min);
-            resultsTable.addValue("Max (DA)", (float)isMinMaxDA.max);
-            ImageStatistics isDAMean = ImageStatistics.getStatistics(donorAfter.getProcessor(), Measurements.MEAN,null);
-            resultsTable.addValue("Mean (DA)", (float)isDAMean.mean);
-            ImageStatistics isABMean = null;
-            if (acceptorBefore != null) {
-                ImageStatistics isMinMaxAB = ImageStatistics.getStatistics(acceptorBefore.getProcessor(), Measurements.MIN_MAX,null);
-                resultsTable.addValue("Min (AB)", (float)isMinMaxAB.min);
-                resultsTable.addValue("Max (AB)", (float)isMinMaxAB.max);
-                isABMean = ImageStatistics.getStatistics(acceptorBefore.getProcessor(), Measurements.MEAN,null);
-                resultsTable.addValue("Mean (AB)", (float)isABMean.mean);
-            } else {
-                resultsTable.addValue("Min (AB)", (float)0);
-                resultsTable.addValue("Max (AB)", (float)0);
-                resultsTable.addValue("Mean (AB)", (float)0);
+            addMeasurements((float[])transferImage.getProcessor().getPixels(), uncertaintyPixels(width, height), measuredRoi, width, height);
+            flushResults(automaticallyProcessedFiles == null);
+      	} else if (e.getActionCommand().equals("measureAllRois")) {
+            measureAllRois();
+      	} else if (e.getActionCommand().equals("efficiencyHistogram")) {
+            efficiencyHistogram();
+      	} else if (e.getActionCommand().equals("efficiencyDensity")) {
+            efficiencyDensity();
+      	} else if (e.getActionCommand().equals("pooledStatistics")) {
+            pooledStatistics();
+      	} else if (e.getActionCommand().equals("exportPixelTuples")) {
+            exportPixelTuples();
+      	} else if (e.getActionCommand().equals("saveEfficiencyHistogram")) {
+            if (efficiencyHistogram == null) {
+                logError("No E histogram has been calculated.");
+                return;
             }
-            analyzer.displayResults();
-            analyzer.updateHeadings();
-      	} else if (e.getActionCommand().equals("semiAutomaticProcessing")) {
-        	int choice = JOptionPane.showConfirmDialog(this, "Semi-automatic processing of images\n\nOpens and processes FRET images in a given directory. It works with\n"+
-                                                             "Zeiss LSM images (tested with LSM 510 Version 4.0), which contain two\n"+
-                                                             "channels:\n"+
-                                                             "1. donor channel (before and after photobleaching)\n"+
+            JFileChooser jfc = new JFileChooser(currentDirectory);
+            jfc.setFileSelectionMode(JFileChooser.FILES_ONLY);
+            jfc.setDialogTitle("Save E histogram (.csv: text, other: binary)...");
+            jfc.showSaveDialog(this);
+            if (jfc.getSelectedFile() == null) {
+                return;
+            }
+            currentDirectory = jfc.getCurrentDirectory().toString();
+            if (jfc.getSelectedFile().exists()) {
+                int resp = JOptionPane.showConfirmDialog(this,
+                    "Overwrite existing file?","Confirmation",
+                    JOptionPane.OK_CANCEL_OPTION,
+                    JOptionPane.QUESTION_MESSAGE);
+                if (resp == JOptionPane.CANCEL_OPTION) {
+                    return;
+                }
+            }
+            try {
+                if (jfc.getSelectedFile().getName().toLowerCase().endsWith(".csv")) {
+                    efficiencyHistogram.writeCsv(jfc.getSelectedFile());
+                } else {
+                    efficiencyHistogram.writeBinary(jfc.getSelectedFile());
+                }
+                log("E histogram saved: " + jfc.getSelectedFile());
+            } catch (IOException ioe) {
+                logError("Could not save the E histogram: " + ioe.getMessage());
+            }
+      	} else if (e.getActionCommand().equals("gridMeasurement")) {
+            GenericDialog gd = new GenericDialog("Grid measurement");
+            gd.addCheckbox("Measure the blocks of the transfer image after Create", gridMeasurement);
+            gd.addNumericField("Block size (full resolution pixels):", gridBlockSize, 0);
+            gd.showDialog();
+            if (gd.wasCanceled()) {
+                return;
+            }
+            boolean enabled = gd.getNextBoolean();
+            double size = gd.getNextNumber();
+            if (gd.invalidNumber() || size < 1) {
+                logError("The block size has to be a positive integer.");
+                return;
+            }
+            gridMeasurement = enabled;
+            gridBlockSize = (int)size;
+            if (!gridMeasurement) {
+                log("Grid measurement: disabled.");
+            } else if (transferImage != null && transferImage.getProcessor().getPixels() instanceof float[]) {
+                measureGrid((float[])transferImage.getProcessor().getPixels(), transferImage.getWidth(), transferImage.getHeight());
+            }
+      	} else if (e.getActionCommand().equals("semiAutomaticProcessing")) {
+        	int choice = JOptionPane.showConfirmDialog(this, "Semi-automatic processing of images\n\nOpens and processes FRET images in a given directory. It works with\n"+
+                                                             "Zeiss LSM images (tested with LSM 510 Version 4.0), which contain two\n"+
+                                                             "channels:\n"+
+                                                             "1. donor channel (before and after photobleaching)\n"+
                                                              "2. acceptor channel (before and after photobleaching)\n\n"+
                                                              "The upper left corner (1/6 x 1/6 of the image) is considered as background.\n"+
                                                              "Threshold settings, creation of FRET image and measurements have to be\n"+
@@ -2197,14 +2337,24 @@ public class AccPbFRET_Plugin extends JFrame implements ActionListener, WindowLi
                 nextButton.setVisible(true);
                 useLsmImages.setSelected(true);
                 logScrollPane.setPreferredSize(new Dimension(10,10));
+                pooledStatistics.remove(chooser.getSelectedFile());
+                fileSketch = null;
                 automaticallyProcessedFiles = chooser.getSelectedFile().listFiles();
                 processFile(0);
             }
       	} else if (e.getActionCommand().equals("nextImage")) {
+            if (fileSketch != null) {
+                poolStatistics(automaticallyProcessedFiles[currentlyProcessedFile].getParentFile(), fileSketch);
+                fileSketch = null;
+            }
             if(transferImage != null) {
                 transferImage.changes = false;
                 transferImage.close();
       	    }
+            if(uncertaintyImage != null) {
+                uncertaintyImage.changes = false;
+                uncertaintyImage.close();
+      	    }
             if(donorBefore != null) {
                 donorBefore.changes = false;
                 donorBefore.close();
@@ -2222,6 +2372,9 @@ public class AccPbFRET_Plugin extends JFrame implements ActionListener, WindowLi
                 acceptorAfter.close();
       	    }
       	    if(!useAcceptorAsMask.isSelected()) {
+                if (WindowManager.getFrame("Results") == null) {
+                    flushResults(true);
+                }
                 IJ.selectWindow("Results");
          	    WindowManager.putBehind();
          	    if(WindowManager.getCurrentImage() != null) {
@@ -2234,6 +2387,10 @@ public class AccPbFRET_Plugin extends JFrame implements ActionListener, WindowLi
                 transferImage.changes = false;
                 transferImage.close();
       	    }
+            if(uncertaintyImage != null) {
+                uncertaintyImage.changes = false;
+                uncertaintyImage.close();
+      	    }
             if(donorBefore != null) {
                 donorBefore.changes = false;
                 donorBefore.close();
@@ -2320,6 +2477,10 @@ public class AccPbFRET_Plugin extends JFrame implements ActionListener, WindowLi
         resetAllButtonColors();
         if(currentFile >= automaticallyProcessedFiles.length) {
             log("Processing files has been finished.");
+            if (!pooledStatistics.isEmpty()) {
+                showPooledStatistics();
+            }
+            flushResults(true);
             nextButton.setVisible(false);
             logScrollPane.setPreferredSize(new Dimension(10,10));
             IJ.selectWindow("Results");
@@ -2337,17 +2498,22 @@ public class AccPbFRET_Plugin extends JFrame implements ActionListener, WindowLi
         (new Opener()).open(automaticallyProcessedFiles[currentFile].getAbsolutePath());
         WindowManager.putBehind();
         this.actionPerformed(new ActionEvent(this,ActionEvent.ACTION_PERFORMED,"split"));
-        this.actionPerformed(new ActionEvent(this,ActionEvent.ACTION_PERFORMED,"setAcceptorAfter"));
-        this.actionPerformed(new ActionEvent(this,ActionEvent.ACTION_PERFORMED,"lutSpectrum"));
-        WindowManager.putBehind();
-        this.actionPerformed(new ActionEvent(this,ActionEvent.ACTION_PERFORMED,"setDonorAfter"));
-        this.actionPerformed(new ActionEvent(this,ActionEvent.ACTION_PERFORMED,"lutSpectrum"));
-        WindowManager.putBehind();
-        this.actionPerformed(new ActionEvent(this,ActionEvent.ACTION_PERFORMED,"setAcceptorBefore"));
-        this.actionPerformed(new ActionEvent(this,ActionEvent.ACTION_PERFORMED,"lutSpectrum"));
-        WindowManager.putBehind();
-        this.actionPerformed(new ActionEvent(this,ActionEvent.ACTION_PERFORMED,"setDonorBefore"));
-        this.actionPerformed(new ActionEvent(this,ActionEvent.ACTION_PERFORMED,"lutSpectrum"));
+        loadingBin = surveyBin;
+        try {
+            this.actionPerformed(new ActionEvent(this,ActionEvent.ACTION_PERFORMED,"setAcceptorAfter"));
+            this.actionPerformed(new ActionEvent(this,ActionEvent.ACTION_PERFORMED,"lutSpectrum"));
+            WindowManager.putBehind();
+            this.actionPerformed(new ActionEvent(this,ActionEvent.ACTION_PERFORMED,"setDonorAfter"));
+            this.actionPerformed(new ActionEvent(this,ActionEvent.ACTION_PERFORMED,"lutSpectrum"));
+            WindowManager.putBehind();
+            this.actionPerformed(new ActionEvent(this,ActionEvent.ACTION_PERFORMED,"setAcceptorBefore"));
+            this.actionPerformed(new ActionEvent(this,ActionEvent.ACTION_PERFORMED,"lutSpectrum"));
+            WindowManager.putBehind();
+            this.actionPerformed(new ActionEvent(this,ActionEvent.ACTION_PERFORMED,"setDonorBefore"));
+            this.actionPerformed(new ActionEvent(this,ActionEvent.ACTION_PERFORMED,"lutSpectrum"));
+        } finally {
+            loadingBin = 1;
+        }
         this.actionPerformed(new ActionEvent(this,ActionEvent.ACTION_PERFORMED,"registerImages"));
         donorBefore.setRoi(new Roi(0, 0, donorBefore.getWidth()/6, donorBefore.getHeight()/6));
         this.actionPerformed(new ActionEvent(this,ActionEvent.ACTION_PERFORMED,"copyRoi"));
@@ -2359,28 +2525,15 @@ public class AccPbFRET_Plugin extends JFrame implements ActionListener, WindowLi
         } else if (useAcceptorAsMask.isSelected()) {
             this.actionPerformed(new ActionEvent(this,ActionEvent.ACTION_PERFORMED,"subtractAcceptorBefore"));
         }
-        donorBefore.setRoi(new Roi(0, 0, donorBefore.getWidth()/6, donorBefore.getHeight()/6));
-        this.actionPerformed(new ActionEvent(this,ActionEvent.ACTION_PERFORMED,"copyRoi"));
-        donorBefore.getProcessor().setValue(0);
-        donorBefore.getProcessor().fill();
-        donorAfter.getProcessor().setValue(0);
-        donorAfter.getProcessor().fill();
-        if (partialBlCorrMenuItem.isSelected()) {
-            acceptorBefore.getProcessor().setValue(0);
-            acceptorBefore.getProcessor().fill();
-            acceptorAfter.getProcessor().setValue(0);
-            acceptorAfter.getProcessor().fill();
-        } else if (useAcceptorAsMask.isSelected()) {
-            acceptorBefore.getProcessor().setValue(0);
-            acceptorBefore.getProcessor().fill();
-        }
-        donorBefore.killRoi();
-        donorAfter.killRoi();
+        // the background corner is set to 0 in the pipelines, so that the blur stage keeps it
+        Rectangle corner = new Rectangle(0, 0, donorBefore.getWidth()/6, donorBefore.getHeight()/6);
+        clearPipelineRegion(donorBefore, corner);
+        clearPipelineRegion(donorAfter, corner);
         if (partialBlCorrMenuItem.isSelected()) {
-            acceptorBefore.killRoi();
-            acceptorAfter.killRoi();
+            clearPipelineRegion(acceptorBefore, corner);
+            clearPipelineRegion(acceptorAfter, corner);
         } else if (useAcceptorAsMask.isSelected()) {
-            acceptorBefore.killRoi();
+            clearPipelineRegion(acceptorBefore, corner);
         }
         this.actionPerformed(new ActionEvent(this,ActionEvent.ACTION_PERFORMED,"smoothDBefore"));
         this.actionPerformed(new ActionEvent(this,ActionEvent.ACTION_PERFORMED,"smoothDAfter"));
@@ -2393,1155 +2546,3060 @@ public class AccPbFRET_Plugin extends JFrame implements ActionListener, WindowLi
     }
 
 
-    private void resetAll() {
-        donorBefore = null;
-        donorBeforeSave = null;
-        donorAfter = null;
-        donorAfterSave = null;
-        acceptorBefore = null;
-        acceptorBeforeSave = null;
-        acceptorAfter = null;
-        acceptorAfterSave = null;
-        setDonorBeforeButton.setBackground(originalButtonColor);
-        setDonorAfterButton.setBackground(originalButtonColor);
-        setAcceptorBeforeButton.setBackground(originalButtonColor);
-        setAcceptorAfterButton.setBackground(originalButtonColor);
-        registerButton.setBackground(originalButtonColor);
-        subtractDonorBeforeButton.setBackground(originalButtonColor);
-        subtractDonorAfterButton.setBackground(originalButtonColor);
-        subtractAcceptorBeforeButton.setBackground(originalButtonColor);
-        subtractAcceptorAfterButton.setBackground(originalButtonColor);
-        smoothDonorBeforeButton.setBackground(originalButtonColor);
-        smoothDonorAfterButton.setBackground(originalButtonColor);
-        smoothAcceptorBeforeButton.setBackground(originalButtonColor);
-        smoothAcceptorAfterButton.setBackground(originalButtonColor);
-        thresholdDonorBeforeButton.setBackground(originalButtonColor);
-        thresholdDonorAfterButton.setBackground(originalButtonColor);
-        thresholdAcceptorBeforeButton.setBackground(originalButtonColor);
-        thresholdAcceptorAfterButton.setBackground(originalButtonColor);
-        calculateDBCorrButton.setBackground(originalButtonColor);
-        calculateAccCTCorrButton.setBackground(originalButtonColor);
-        calculateAccPPCorrButton.setBackground(originalButtonColor);
-        calculatePartialBlCorrButton.setBackground(originalButtonColor);
+    private FretKernel createFretKernel() {
+        return createFretKernel(true);
+    }
 
-        nextButton.setVisible(false);
-        logScrollPane.setPreferredSize(new Dimension(10,10));
-        currentlyProcessedFile = 0;
-        automaticallyProcessedFiles = null;
-        currentlyProcessedFileName = null;
+
+    // Without verbose, invalid settings only return null instead of logging messages (live preview).
+    private FretKernel createFretKernel(boolean verbose) {
+        if (donorBefore == null) {
+            if (verbose) {
+                logError("No image is set as donor before bleaching.");
+            }
+            return null;
+        } else if (donorAfter == null) {
+            if (verbose) {
+                logError("No image is set as donor after bleaching.");
+            }
+            return null;
+        } else if ((useAcceptorAsMask.isSelected() || accCrossTalkCorrMenuItem.isSelected() || accPhotoprCorrMenuItem.isSelected()) && acceptorBefore == null) {
+            if (verbose) {
+                logError("No image is set as acceptor before bleaching.");
+            }
+            return null;
+        } else {
+            float[] factors = readCorrectionFactors(verbose);
+            if (factors == null) {
+                return null;
+            }
+            float donorBlCorr = factors[0];
+            float acceptorCTCorr = factors[1];
+            float acceptorPPCorr = factors[2];
+            float partialBlCorr = factors[3];
+            float[] ipDBP = (float[])donorBefore.getProcessor().getPixels();
+            float[] ipDAP = (float[])donorAfter.getProcessor().getPixels();
+            float[] ipABP = null;
+            if (acceptorBefore != null) {
+                ipABP = (float[])acceptorBefore.getProcessor().getPixels();
+            }
+            FretKernel kernel = new FretKernel(ipDBP, ipDAP, ipABP, donorBlCorr, acceptorCTCorr, acceptorPPCorr, partialBlCorr,
+                                               accCrossTalkCorrMenuItem.isSelected(), accPhotoprCorrMenuItem.isSelected(),
+                                               partialBlCorrMenuItem.isSelected(), useAcceptorAsMask.isSelected()).withVectorLoop(vectorLoop);
+            if (partialBlCorrMenuItem.isSelected() && partialBlMapEnabled) {
+                if (customFormula != null) {
+                    if (verbose) {
+                        logWarning("The partial photobleaching map is not used with a custom formula.");
+                    }
+                } else if (partialBlMap == null || partialBlMap.length != ipDBP.length || acceptorBefore == null || acceptorAfter == null
+                           || partialBlMapAB != acceptorBefore.getProcessor().getPixels() || partialBlMapAA != acceptorAfter.getProcessor().getPixels()) {
+                    if (verbose) {
+                        logError("The partial acceptor photobleaching map has to be calculated.");
+                    }
+                    return null;
+                } else {
+                    kernel = kernel.withPartialBlMap(partialBlMap);
+                }
+            }
+            if (customFormula != null) {
+                if (FretFormulaCompiler.uses(customFormulaText, "ab") && acceptorBefore == null) {
+                    if (verbose) {
+                        logError("No image is set as acceptor before bleaching. (custom formula)");
+                    }
+                    return null;
+                } else if (FretFormulaCompiler.uses(customFormulaText, "aa") && acceptorAfter == null) {
+                    if (verbose) {
+                        logError("No image is set as acceptor after bleaching. (custom formula)");
+                    }
+                    return null;
+                }
+                float[] ipAAP = null;
+                if (acceptorAfter != null) {
+                    ipAAP = (float[])acceptorAfter.getProcessor().getPixels();
+                }
+                return kernel.withFormula(customFormula, ipAAP);
+            }
+            long[] validity = ValidityMaskCache.and(validityMasks.get(donorBefore), validityMasks.get(donorAfter));
+            if (kernel.readsAcceptor()) {
+                validity = ValidityMaskCache.and(validity, validityMasks.get(acceptorBefore));
+            }
+            return kernel.withValidity(validity);
+        }
     }
 
 
-    private void resetAllButtonColors() {
-        setDonorBeforeButton.setBackground(originalButtonColor);
-        setDonorAfterButton.setBackground(originalButtonColor);
-        setAcceptorBeforeButton.setBackground(originalButtonColor);
-        setAcceptorAfterButton.setBackground(originalButtonColor);
-        registerButton.setBackground(originalButtonColor);
-        subtractDonorBeforeButton.setBackground(originalButtonColor);
-        subtractDonorAfterButton.setBackground(originalButtonColor);
-        subtractAcceptorBeforeButton.setBackground(originalButtonColor);
-        subtractAcceptorAfterButton.setBackground(originalButtonColor);
-        smoothDonorBeforeButton.setBackground(originalButtonColor);
-        smoothDonorAfterButton.setBackground(originalButtonColor);
-        smoothAcceptorBeforeButton.setBackground(originalButtonColor);
-        smoothAcceptorAfterButton.setBackground(originalButtonColor);
-        thresholdDonorBeforeButton.setBackground(originalButtonColor);
-        thresholdDonorAfterButton.setBackground(originalButtonColor);
-        thresholdAcceptorBeforeButton.setBackground(originalButtonColor);
-        thresholdAcceptorAfterButton.setBackground(originalButtonColor);
-        calculateDBCorrButton.setBackground(originalButtonColor);
-        calculateAccCTCorrButton.setBackground(originalButtonColor);
-        calculateAccPPCorrButton.setBackground(originalButtonColor);
-        calculatePartialBlCorrButton.setBackground(originalButtonColor);
+    // Correction factors of the Corrections menu: donor bleaching, acceptor cross-talk, acceptor photoproduct
+    // and partial photobleaching (disabled corrections: 1, 0, 0, 0), or null if a selected factor is invalid.
+    private float[] readCorrectionFactors(boolean verbose) {
+        if (donorBlCorrMenuItem.isSelected() && donorBlCorrField.getText().trim().equals("")) {
+            if (verbose) {
+                logError("Bleaching correction factor has to be given.");
+            }
+            return null;
+        } else if (accCrossTalkCorrMenuItem.isSelected() && accCrossTalkCorrField.getText().trim().equals("")) {
+            if (verbose) {
+                logError("Acceptor cross-talk correction factor has to be given.");
+            }
+            return null;
+        } else if (accPhotoprCorrMenuItem.isSelected() && accPhotoprCorrField.getText().trim().equals("")) {
+            if (verbose) {
+                logError("Acceptor photoproduct correction factor has to be given.");
+            }
+            return null;
+        } else if (partialBlCorrMenuItem.isSelected() && partialBlCorrField.getText().trim().equals("")) {
+            if (verbose) {
+                logError("Partial acceptor photobleaching correction factor has to be given.");
+            }
+            return null;
+        } else {
+            float donorBlCorr = 1;
+            if (donorBlCorrMenuItem.isSelected()) {
+                try {
+                    donorBlCorr = Float.parseFloat(donorBlCorrField.getText().trim());
+                } catch (Exception ex) {
+                    if (verbose) {
+                        logError("Donor bleaching correction factor has to be given.");
+                    }
+                    return null;
+                }
+                if (donorBlCorr < 1) {
+                    if (verbose) {
+                        logWarning("The donor bleaching correction factor should not be lower than 1.");
+                    }
+                }
+            }
+            float acceptorCTCorr = 0;
+            if (accCrossTalkCorrMenuItem.isSelected()) {
+                try {
+                    acceptorCTCorr = Float.parseFloat(accCrossTalkCorrField.getText().trim());
+                } catch (Exception ex) {
+                    if (verbose) {
+                        logError("Acceptor cross-talk correction factor has to be given.");
+                    }
+                    return null;
+                }
+                if (acceptorCTCorr < 0) {
+                    if (verbose) {
+                        logWarning("The acceptor cross-talk correction factor should not be lower than 0.");
+                    }
+                }
+            }
+            float acceptorPPCorr = 0;
+            if (accPhotoprCorrMenuItem.isSelected()) {
+                try {
+                    acceptorPPCorr = Float.parseFloat(accPhotoprCorrField.getText().trim());
+                } catch (Exception ex) {
+                    if (verbose) {
+                        logError("Acceptor photoproduct correction factor has to be given.");
+                    }
+                    return null;
+                }
+                if (acceptorPPCorr < 0) {
+                    if (verbose) {
+                        logWarning("The acceptor photoproduct correction factor should not be lower than 0.");
+                    }
+                }
+            }
+            float partialBlCorr = 0;
+            if (partialBlCorrMenuItem.isSelected()) {
+                try {
+                    partialBlCorr = Float.parseFloat(partialBlCorrField.getText().trim());
+                } catch (Exception ex) {
+                    if (verbose) {
+                        logError("Partial acceptor photobleaching correction factor has to be given.");
+                    }
+                    return null;
+                }
+                if (partialBlCorr < 0) {
+                    if (verbose) {
+                        logWarning("The partial acceptor photobleaching correction should not be lower than 0.");
+                    }
+                }
+                if (partialBlCorr > 1) {
+                    if (verbose) {
+                        logWarning("The partial acceptor photobleaching correction should not be higher than 1.");
+                    }
+                }
+            }
+            return new float[] {donorBlCorr, acceptorCTCorr, acceptorPPCorr, partialBlCorr};
+        }
     }
 
 
-    public void log(String text) {
-	    try{
-	        log.getDocument().insertString(log.getDocument().getLength(), "\n" + format.format(new Date()) + " " + text, log.getStyle("BLACK"));
-	        log.setCaretPosition(log.getDocument().getLength());
-    	} catch (javax.swing.text.BadLocationException e) {}
+    private void computeTransferPixels(FretKernel kernel, float[] out, int width, int height) {
+        computeTransferPixels(kernel, out, null, width, height);
     }
 
 
-    public void logError(String text) {
-	    try{
-	        log.getDocument().insertString(log.getDocument().getLength(), "\n" + format.format(new Date()) + " ERROR: " + text, log.getStyle("RED"));
-	        log.setCaretPosition(log.getDocument().getLength());
-    	} catch (javax.swing.text.BadLocationException e) {}
+    // The variance of the transfer efficiency is computed in the same traversal as the efficiency if variance is not null.
+    private void computeTransferPixels(FretKernel kernel, float[] out, float[] variance, int width, int height) {
+        computeTransferPixels(kernel, out, variance, width, height, null);
     }
 
 
-    public void logWarning(String text) {
-	    try{
-	        log.getDocument().insertString(log.getDocument().getLength(), "\n" + format.format(new Date()) + " WARNING: " + text, log.getStyle("BLUE"));
-	        log.setCaretPosition(log.getDocument().getLength());
-    	} catch (javax.swing.text.BadLocationException e) {}
+    // With a region, only its pixels are computed and the rest of the frame is filled with NaN.
+    private void computeTransferPixels(FretKernel kernel, float[] out, float[] variance, int width, int height, Rectangle region) {
+        computeTransferPixels(kernel, out, variance, width, height, region, null);
     }
 
 
-    public void logException(String message, Throwable t) {
-    	try{
-    	    if (debugMenuItem.isSelected()) {
-                StringWriter sw = new StringWriter();
-                PrintWriter pw = new PrintWriter(sw);
-                t.printStackTrace(pw);
-                pw.flush();
-	            log.getDocument().insertString(log.getDocument().getLength(), "\n" + format.format(new Date()) + " ERROR: " + sw.toString(), log.getStyle("RED"));
-                log.setCaretPosition(log.getDocument().getLength());
+    // The computed pixels are added to the density if it is not null.
+    private void computeTransferPixels(FretKernel kernel, float[] out, float[] variance, int width, int height, Rectangle region,
+                                       DensityAccumulator density) {
+        if (region == null) {
+            region = new Rectangle(0, 0, width, height);
+        } else {
+            fillOutside(out, width, height, region);
+            if (variance != null) {
+                fillOutside(variance, width, height, region);
+            }
+        }
+        if (parallelism <= 1 || region.height < 2) {
+            if (region.width == width) {
+                kernel.compute(out, variance, region.y * width, (region.y + region.height) * width);
+                if (density != null) {
+                    density.add(out, region.y * width, (region.y + region.height) * width);
+                }
             } else {
-	            log.getDocument().insertString(log.getDocument().getLength(), "\n" + format.format(new Date()) + " ERROR: " + message, log.getStyle("RED"));
-                log.setCaretPosition(log.getDocument().getLength());
+                for (int y = region.y; y < region.y + region.height; y++) {
+                    kernel.compute(out, variance, y*width + region.x, y*width + region.x + region.width);
+                    if (density != null) {
+                        density.add(out, y*width + region.x, y*width + region.x + region.width);
+                    }
+                }
             }
-    	} catch (javax.swing.text.BadLocationException e) {}
+        } else {
+            getForkJoinPool().invoke(new FretKernelTask(kernel, out, variance, density, width, region.x, region.x + region.width,
+                                                        region.y, region.y + region.height, Math.max(1, region.height / (parallelism * 4))));
+        }
     }
 
 
-    public void exit() {
-    	int choice = JOptionPane.showConfirmDialog(this, "Do you really want to exit?", "Exit", JOptionPane.OK_CANCEL_OPTION);
-        if(choice == JOptionPane.YES_OPTION) {
-            if (shiftDialog != null) {
-                shiftDialog.setVisible(false);
-                shiftDialog.dispose();
+    private static void fillOutside(float[] pixels, int width, int height, Rectangle region) {
+        Arrays.fill(pixels, 0, region.y * width, Float.NaN);
+        for (int y = region.y; y < region.y + region.height; y++) {
+            Arrays.fill(pixels, y*width, y*width + region.x, Float.NaN);
+            Arrays.fill(pixels, y*width + region.x + region.width, (y + 1) * width, Float.NaN);
+        }
+        Arrays.fill(pixels, (region.y + region.height) * width, width*height, Float.NaN);
+    }
+
+
+    // Mean of the pixels in the ROI of the image, the background level of the subtract buttons.
+    public float roiMean(ImagePlus image) {
+        RoiMask mask = roiMasks.get(image.getRoi(), image.getWidth(), image.getHeight());
+        Rectangle bounds = mask.getBounds();
+        ImageProcessor ip = image.getProcessor();
+        double sum = 0;
+        int count = 0;
+        for (int y = bounds.y; y < bounds.y + bounds.height; y++) {
+            for (int x = bounds.x; x < bounds.x + bounds.width; x++) {
+                if (mask.contains(x, y)) {
+                    sum += ip.getPixelValue(x, y);
+                    count++;
+                }
             }
-            if (donorBlCorrDialog != null) {
-                donorBlCorrDialog.setVisible(false);
-                donorBlCorrDialog.dispose();
+        }
+        return (float)(sum/count);
+    }
+
+
+    // Per-pixel partial acceptor photobleaching correction: the AA/AB ratio of the valid pixels in the
+    // ROI, smoothed by normalized convolution (the ratio and the pixel weights are blurred separately),
+    // so pixels outside the ROI or invalid do not pull their neighbours. Pixels without weight are NaN.
+    private void calculatePartialBlMap(float[] ab, float[] aa, long[] valid, Roi roi, int width, int height) {
+        RoiMask mask = roiMasks.get(roi, width, height);
+        float[] ratio = new float[width*height];
+        float[] weight = new float[width*height];
+        getForkJoinPool().invoke(new PartialBlMapTask(ab, aa, valid, mask, ratio, weight, width, 0, height, Math.max(1, height / (parallelism * 4))));
+        float[] inside = weight.clone();
+        FloatProcessor ratioFp = new FloatProcessor(width, height, ratio, null);
+        FloatProcessor weightFp = new FloatProcessor(width, height, weight, null);
+        if (partialBlMapRadius > 0) {
+            double radius = partialBlMapRadius / pipelineOf(acceptorBefore).getBinFactor();
+            new GaussianBlur().blur(ratioFp, radius);
+            new GaussianBlur().blur(weightFp, radius);
+        }
+        float[] map = (float[])ratioFp.getPixels();
+        float[] weights = (float[])weightFp.getPixels();
+        for (int i = 0; i < map.length; i++) {
+            map[i] = inside[i] != 0 && weights[i] > 0 ? map[i] / weights[i] : Float.NaN;
+        }
+        partialBlMap = map;
+        partialBlMapAB = ab;
+        partialBlMapAA = aa;
+        float[] mapPixels = framePool.borrow(width, height);
+        System.arraycopy(map, 0, mapPixels, 0, map.length);
+        partialBlMapImage = showComputedImage(partialBlMapImage, "Partial photobleaching map", mapPixels, width, height);
+        ImageStatistics stats = ImageStatistics.getStatistics(partialBlMapImage.getProcessor(), Measurements.MEAN + Measurements.MEDIAN + Measurements.STD_DEV + Measurements.MIN_MAX, null);
+        DecimalFormat df = new DecimalFormat("#0.000");
+        log("Partial photobleaching map: mean " + df.format(stats.mean) + ", median " + df.format(stats.median) + ", std. dev. " + df.format(stats.stdDev) +
+            ", min " + df.format(stats.min) + ", max " + df.format(stats.max) + " (" + stats.pixelCount + " pixels).");
+    }
+
+
+    // Bounding box of the bleached region plus the margin, clipped to the image, if only the bleached
+    // region is processed (Corrections menu), or null for the whole image. The region is found in the
+    // acceptor before - acceptor after difference, which is scanned again only when these images change.
+    private Rectangle bleachedRegion(int width, int height) {
+        if (!bleachedRegionOnly) {
+            return null;
+        }
+        Rectangle bounds = null;
+        if (bleachedRegionFromRoi) {
+            if (donorBefore == null || donorBefore.getRoi() == null) {
+                logWarning("No ROI is defined in the donor before image, the whole image is processed.");
+                return null;
             }
-            if (acceptorCTCorrDialog != null) {
-                acceptorCTCorrDialog.setVisible(false);
-                acceptorCTCorrDialog.dispose();
+            bounds = donorBefore.getRoi().getBounds();
+        } else {
+            if (acceptorBefore == null || acceptorAfter == null) {
+                logWarning("The bleached region requires the acceptor before and after images, the whole image is processed.");
+                return null;
             }
-            if (applyMaskDialog != null) {
-                applyMaskDialog.setVisible(false);
-                applyMaskDialog.dispose();
+            float[] ab = (float[])acceptorBefore.getProcessor().getPixels();
+            float[] aa = (float[])acceptorAfter.getProcessor().getPixels();
+            if (ab.length != width*height || aa.length != width*height) {
+                logWarning("The acceptor images have a different size, the whole image is processed.");
+                return null;
             }
-            if (calculateImgRatioDialog != null) {
-                calculateImgRatioDialog.setVisible(false);
-                calculateImgRatioDialog.dispose();
+            if (ab != bleachedRegionAB || aa != bleachedRegionAA) {
+                bleachedRegionBounds = differenceBounds(ab, aa, width, height, bleachedRegionThreshold);
+                bleachedRegionAB = ab;
+                bleachedRegionAA = aa;
             }
-            if (helpWindow != null) {
-                helpWindow.setVisible(false);
-                helpWindow.dispose();
+            if (bleachedRegionBounds == null) {
+                logWarning("No bleached region is found, the whole image is processed.");
+                return null;
             }
-            setVisible(false);
-            dispose();
+            bounds = new Rectangle(bleachedRegionBounds);
+        }
+        int margin = (bleachedRegionMargin + binFactor() - 1) / binFactor();
+        bounds.grow(margin, margin);
+        bounds = bounds.intersection(new Rectangle(0, 0, width, height));
+        if (bounds.isEmpty()) {
+            logWarning("The bleached region is outside of the image, the whole image is processed.");
+            return null;
         }
+        return bounds;
     }
 
 
-	public void windowClosing(WindowEvent e){
-		exit();
-	}
-
-
-	public void windowActivated(WindowEvent e){}
-
-
-	public void windowClosed(WindowEvent e){}
+    // Bounding box of the pixels where before - after is at least the threshold fraction of its maximum.
+    private static Rectangle differenceBounds(float[] before, float[] after, int width, int height, float threshold) {
+        float max = 0;
+        for (int i = 0; i < before.length; i++) {
+            float difference = before[i] - after[i];
+            if (difference > max) {
+                max = difference;
+            }
+        }
+        if (max <= 0) {
+            return null;
+        }
+        float limit = threshold * max;
+        int minX = width, minY = height, maxX = -1, maxY = -1;
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int i = y*width + x;
+                if (before[i] - after[i] >= limit) {
+                    minX = Math.min(minX, x);
+                    maxX = Math.max(maxX, x);
+                    minY = Math.min(minY, y);
+                    maxY = Math.max(maxY, y);
+                }
+            }
+        }
+        return new Rectangle(minX, minY, maxX - minX + 1, maxY - minY + 1);
+    }
 
 
-	public void windowDeactivated(WindowEvent e){}
+    // Adds the columns of the transfer image and of the donor and acceptor images, measured in the ROI (the
+    // whole image without ROI) in a single pass, to the current results row. The measured ROI is shown on
+    // the donor and acceptor images. variance is the uncertainty image or null.
+    private void addMeasurements(float[] efficiency, float[] variance, Roi roi, int width, int height) {
+        FretMeasurement measurement = createMeasurement(efficiency, variance, width, height);
+        if (roi == null && bootstrapResamples > 0) {
+            // resampling every pixel of the image would block the user interface for a long time
+            measurement.setBootstrap(0, bootstrapConfidence, bootstrapSeed, null);
+            logWarning("Bootstrap confidence intervals are computed in a ROI only.");
+        }
+        if (automaticallyProcessedFiles != null) {
+            // the last measurement of a file is pooled when the next file is opened
+            fileSketch = createSketch();
+            measurement.setSketch(fileSketch);
+        }
+        measurement.measure(roiMasks.get(roi, width, height));
+        addMeasurementColumns(measurement);
+        ImagePlus[] channels = {donorBefore, donorAfter, acceptorBefore};
+        for (int c = 0; c < channels.length; c++) {
+            if (channels[c] == null) {
+                continue;
+            }
+            if (roi != null) {
+                channels[c].setRoi(roi);
+            } else {
+                channels[c].killRoi();
+            }
+        }
+    }
 
 
-	public void windowDeiconified(WindowEvent e){}
+    private FretMeasurement createMeasurement(float[] efficiency, float[] variance, int width, int height) {
+        float[] ipDBP = pixelsOf(donorBefore, width, height);
+        float[] ipDAP = pixelsOf(donorAfter, width, height);
+        float[] ipABP = pixelsOf(acceptorBefore, width, height);
+        if ((donorBefore != null && ipDBP == null) || (donorAfter != null && ipDAP == null) || (acceptorBefore != null && ipABP == null)) {
+            logWarning("The donor and acceptor images which differ in size from the transfer image are not measured.");
+        }
+        FretMeasurement measurement = new FretMeasurement(efficiency, variance, ipDBP, ipDAP, ipABP, width, height);
+        measurement.setPercentiles(percentiles, interquartileRange);
+        measurement.setBootstrap(bootstrapResamples, bootstrapConfidence, bootstrapSeed, getForkJoinPool());
+        return measurement;
+    }
 
 
-	public void windowIconified(WindowEvent e){}
+    private void addMeasurementColumns(FretMeasurement measurement) {
+        measurement.addEfficiencyColumns(resultsBuffer);
+        measurement.addPercentileColumns(resultsBuffer);
+        measurement.addBootstrapColumns(resultsBuffer);
+        measurement.addChannelColumns(resultsBuffer);
+    }
 
 
-	public void windowOpened(WindowEvent e){}
+    // Shows the rows of the results buffer in the results table (and appends them to the results file) if
+    // force is set or the buffer holds the rows to be collected, then empties the buffer.
+    private void flushResults(boolean force) {
+        if (resultsBuffer.getRowCount() == 0 || (!force && resultsBuffer.getRowCount() < resultsFlushRows)) {
+            return;
+        }
+        if (resultsFile != null) {
+            try {
+                resultsBuffer.appendCsv(resultsFile);
+            } catch (IOException ioe) {
+                logError("Could not append the results to " + resultsFile.getName() + ": " + ioe.getMessage());
+            }
+        }
+        analyzer = new Analyzer();
+        resultsTable = Analyzer.getResultsTable();
+        resultsTable.setPrecision(3);
+        resultsBuffer.addTo(resultsTable);
+        resultsBuffer.clear();
+        analyzer.displayResults();
+        analyzer.updateHeadings();
+    }
 
 
-    public ImagePlus getDonorBefore() {
-        return donorBefore;
+    // The pixels of the uncertainty image if it is open and has the size of the transfer image, or null.
+    private float[] uncertaintyPixels(int width, int height) {
+        if (uncertaintyImage != null && uncertaintyImage.getProcessor() != null && uncertaintyImage.getWindow() != null
+                && uncertaintyImage.getWidth() == width && uncertaintyImage.getHeight() == height) {
+            return (float[])uncertaintyImage.getProcessor().getPixels();
+        }
+        return null;
     }
 
 
-    public ImagePlus getDonorAfter() {
-        return donorAfter;
+    // Measures every ROI of the ROI Manager on the transfer image like Measure does, in parallel, and adds
+    // a results row for each in the order of the ROI Manager.
+    private void measureAllRois() {
+        if (transferImage == null) {
+            logError("Transfer image required.");
+            return;
+        } else if (!(transferImage.getProcessor().getPixels() instanceof float[])) {
+            logError("The transfer image has to be a 32-bit image.");
+            return;
+        }
+        if (!updateOutdatedTransferImage()) {
+            return;
+        }
+        RoiManager manager = RoiManager.getInstance();
+        if (manager == null || manager.getCount() == 0) {
+            logError("There are no ROIs in the ROI Manager.");
+            return;
+        }
+        Roi[] rois = manager.getRoisAsArray();
+        int width = transferImage.getWidth();
+        int height = transferImage.getHeight();
+        FretMeasurement[] measurements = new FretMeasurement[rois.length];
+        measurements[0] = createMeasurement((float[])transferImage.getProcessor().getPixels(), uncertaintyPixels(width, height), width, height);
+        for (int r = 1; r < rois.length; r++) {
+            measurements[r] = measurements[0].copy();
+        }
+        getForkJoinPool().invoke(new RoiMeasurementTask(measurements, rois, 0, rois.length));
+
+        for (int r = 0; r < rois.length; r++) {
+            resultsBuffer.incrementCounter();
+            if(currentlyProcessedFileName != null) {
+                resultsBuffer.addLabel("File", currentlyProcessedFileName);
+            }
+            resultsBuffer.addValue("ROI", manager.getName(r));
+            if (binFactor() > 1) {
+                resultsBuffer.addValue("Bin", binFactor());
+            }
+            addMeasurementColumns(measurements[r]);
+        }
+        flushResults(true);
+        log("Measured " + rois.length + " ROI" + (rois.length > 1 ? "s" : "") + " of the ROI Manager.");
     }
 
 
-    public void setBleachingCorrection(String value) {
-        donorBlCorrField.setText(value);
+    // Mean and standard deviation of the transfer image and the mean of the donor and acceptor images in
+    // the blocks of a grid over the transfer image, in a separate results table. Every image is read once,
+    // each pixel is added to the sums of its block.
+    private void measureGrid(float[] efficiency, int width, int height) {
+        float[][] images = {efficiency, pixelsOf(donorBefore, width, height), pixelsOf(donorAfter, width, height), pixelsOf(acceptorBefore, width, height)};
+        int block = Math.max(1, gridBlockSize / binFactor());
+        BlockStatistics[] statistics = new BlockStatistics[images.length];
+        for (int i = 0; i < images.length; i++) {
+            statistics[i] = images[i] != null ? new BlockStatistics(images[i], width, height, block) : null;
+        }
+        String[] names = {"DB", "DA", "AB"};
+        ResultsTable gridTable = new ResultsTable();
+        gridTable.setPrecision(3);
+        BlockStatistics transfer = statistics[0];
+        for (int row = 0; row < transfer.getRows(); row++) {
+            for (int column = 0; column < transfer.getColumns(); column++) {
+                gridTable.incrementCounter();
+                gridTable.addValue("Column", column);
+                gridTable.addValue("Row", row);
+                gridTable.addValue("X", column * block);
+                gridTable.addValue("Y", row * block);
+                gridTable.addValue("Valid p.", transfer.count(column, row));
+                gridTable.addValue("Mean", (float)transfer.mean(column, row));
+                gridTable.addValue("Std. dev.", (float)transfer.stdDev(column, row));
+                for (int c = 1; c < statistics.length; c++) {
+                    gridTable.addValue("Mean (" + names[c - 1] + ")", statistics[c] != null ? (float)statistics[c].mean(column, row) : 0);
+                }
+            }
+        }
+        gridTable.show("Grid measurements");
+        log("Grid measurement: " + gridTable.getCounter() + " blocks of " + block + " x " + block + " pixels.");
     }
 
 
-    public void setCrosstalkCorrection(String value) {
-        accCrossTalkCorrField.setText(value);
+    // Histogram of the transfer efficiency in a fixed range. Without accumulation it is the histogram of
+    // the ROI of the transfer image; with accumulation, Create and streaming processing add every
+    // transfer image of a batch to it.
+    private void efficiencyHistogram() {
+        GenericDialog gd = new GenericDialog("E histogram");
+        gd.addNumericField("Minimum:", histogramMin, 3);
+        gd.addNumericField("Maximum:", histogramMax, 3);
+        gd.addNumericField("Bins:", histogramBins, 0);
+        gd.addCheckbox("Accumulate the transfer images of Create and streaming processing", histogramAccumulate);
+        gd.showDialog();
+        if (gd.wasCanceled()) {
+            return;
+        }
+        double min = gd.getNextNumber();
+        double max = gd.getNextNumber();
+        double bins = gd.getNextNumber();
+        boolean accumulate = gd.getNextBoolean();
+        if (gd.invalidNumber() || !(max > min)) {
+            logError("The maximum of the histogram has to be greater than the minimum.");
+            return;
+        } else if (bins < 1 || bins > 1000000) {
+            logError("The number of bins has to be between 1 and 1000000.");
+            return;
+        }
+        boolean changed = min != histogramMin || max != histogramMax || (int)bins != histogramBins || accumulate != histogramAccumulate;
+        if ((min != histogramMin || max != histogramMax || (int)bins != histogramBins) && !pooledStatistics.isEmpty()) {
+            pooledStatistics.clear();
+            log("Pooled statistics: cleared, the histogram range has changed.");
+        }
+        histogramMin = min;
+        histogramMax = max;
+        histogramBins = (int)bins;
+        histogramAccumulate = accumulate;
+        if (histogramAccumulate) {
+            if (changed || efficiencyHistogram == null) {
+                efficiencyHistogram = new EfficiencyHistogram(histogramMin, histogramMax, histogramBins);
+                log("E histogram: the transfer images of Create and streaming processing are accumulated.");
+            } else {
+                showEfficiencyHistogram(efficiencyHistogram);
+            }
+            return;
+        }
+        if (transferImage == null) {
+            logError("Transfer image required.");
+            return;
+        } else if (!(transferImage.getProcessor().getPixels() instanceof float[])) {
+            logError("The transfer image has to be a 32-bit image.");
+            return;
+        }
+        efficiencyHistogram = histogramOf((float[])transferImage.getProcessor().getPixels(), transferImage.getRoi(),
+                                          transferImage.getWidth(), transferImage.getHeight());
+        showEfficiencyHistogram(efficiencyHistogram);
     }
 
 
-    public void setPhotoproductCorrection(String value) {
-        accPhotoprCorrField.setText(value);
+    // Density of the transfer efficiency against AB or DB/AB. It is computed with the transfer image by
+    // Create and by streaming processing; with accumulation, the transfer images of a batch add up.
+    private void efficiencyDensity() {
+        GenericDialog gd = new GenericDialog("E density");
+        gd.addCheckbox("Compute the density with the transfer image", densityEnabled);
+        gd.addChoice("X axis:", EfficiencyDensity.AXES, EfficiencyDensity.AXES[densityAxis]);
+        gd.addNumericField("X minimum:", densityXMin, 3);
+        gd.addNumericField("X maximum:", densityXMax, 3);
+        gd.addNumericField("X bins:", densityXBins, 0);
+        gd.addNumericField("E minimum:", densityEMin, 3);
+        gd.addNumericField("E maximum:", densityEMax, 3);
+        gd.addNumericField("E bins:", densityEBins, 0);
+        gd.addCheckbox("Accumulate the transfer images of Create and streaming processing", densityAccumulate);
+        gd.showDialog();
+        if (gd.wasCanceled()) {
+            return;
+        }
+        boolean enabled = gd.getNextBoolean();
+        int axis = gd.getNextChoiceIndex();
+        double xMin = gd.getNextNumber();
+        double xMax = gd.getNextNumber();
+        double xBins = gd.getNextNumber();
+        double eMin = gd.getNextNumber();
+        double eMax = gd.getNextNumber();
+        double eBins = gd.getNextNumber();
+        boolean accumulate = gd.getNextBoolean();
+        if (gd.invalidNumber() || !(xMax > xMin) || !(eMax > eMin)) {
+            logError("The maxima of the density have to be greater than the minima.");
+            return;
+        } else if (xBins < 1 || eBins < 1 || xBins * eBins > 16000000) {
+            logError("The number of bins has to be at least 1 and at most 16000000 in total.");
+            return;
+        }
+        if (efficiencyDensity != null && (!efficiencyDensity.hasRange(axis, xMin, xMax, (int)xBins, eMin, eMax, (int)eBins) || !accumulate)) {
+            efficiencyDensity = null;
+        }
+        densityEnabled = enabled;
+        densityAxis = axis;
+        densityXMin = xMin;
+        densityXMax = xMax;
+        densityXBins = (int)xBins;
+        densityEMin = eMin;
+        densityEMax = eMax;
+        densityEBins = (int)eBins;
+        densityAccumulate = accumulate;
+        if (!densityEnabled) {
+            log("E density: disabled.");
+        } else if (densityAccumulate && efficiencyDensity != null) {
+            showEfficiencyDensity(efficiencyDensity);
+        } else if (densityAccumulate) {
+            log("E density: the transfer images of Create and streaming processing are accumulated.");
+        } else {
+            log("E density: computed with the transfer image.");
+        }
     }
 
 
-    public static void main(String args[]) {
-        new AccPbFRET_Plugin();
+    private DensityAccumulator createDensityAccumulator(int width, int height) {
+        float[] ipDBP = pixelsOf(donorBefore, width, height);
+        float[] ipABP = pixelsOf(acceptorBefore, width, height);
+        if (ipDBP == null || ipABP == null) {
+            logWarning("The E density requires the donor and acceptor before bleaching images.");
+            return null;
+        }
+        return new DensityAccumulator(createDensity(), ipDBP, ipABP);
     }
 
-}
 
+    private EfficiencyDensity createDensity() {
+        return new EfficiencyDensity(densityAxis, densityXMin, densityXMax, densityXBins, densityEMin, densityEMax, densityEBins);
+    }
 
-class ApplyMaskDialog extends JDialog implements ActionListener{
-    private AccPbFRET_Plugin accBlWindow;
-    private ImagePlus toMaskImg, maskImg;
-    private JPanel panel;
-    private JButton setToMaskImgButton, setMaskImgButton, createImagesButton;
 
-    public ApplyMaskDialog(AccPbFRET_Plugin accBlWindow) {
-        setTitle("Apply mask to an image");
-        this.accBlWindow = accBlWindow;
-        setDefaultCloseOperation(JFrame.DISPOSE_ON_CLOSE);
-        setModal(false);
-        createDialogGui();
-        Dimension screen = Toolkit.getDefaultToolkit().getScreenSize();
-        setSize(275, 240);
-        setLocation((screen.width - getWidth())/2, (screen.height - getHeight())/2);
+    // Without accumulation the density replaces the previous one.
+    private void addEfficiencyDensity(EfficiencyDensity density) {
+        if (densityAccumulate && efficiencyDensity != null) {
+            efficiencyDensity.merge(density);
+        } else {
+            efficiencyDensity = density;
+        }
+        showEfficiencyDensity(efficiencyDensity);
     }
 
-    public void createDialogGui() {
-        GridBagLayout gridbaglayout = new GridBagLayout();
-        GridBagConstraints gc = new GridBagConstraints();
-        panel = new JPanel();
-        panel.setLayout(gridbaglayout);
-
-        gc.insets = new Insets(2,2,6,2);
-        gc.fill = GridBagConstraints.BOTH;
-        gc.gridwidth = 2;
-        gc.gridx = 0;
-        gc.gridy = 0;
-        JLabel infoLabel = new JLabel("<html><center>After setting an image to mask and a mask image (with NaN background pixels), two images will be created. The first one will contain the pixles which are not NaN in the mask, and the second one the others.</center></html>");
-        panel.add(infoLabel, gc);
-        gc.insets = new Insets(2,2,2,2);
-        gc.gridx = 0;
-        gc.gridy = 1;
-        setToMaskImgButton = new JButton("Set image to be masked");
-        setToMaskImgButton.addActionListener(this);
-        setToMaskImgButton.setActionCommand("setImageToMask");
-        panel.add(setToMaskImgButton, gc);
-        gc.gridx = 0;
-        gc.gridy = 2;
-        setMaskImgButton = new JButton("Set mask image (with NaN bg. pixels)");
-        setMaskImgButton.addActionListener(this);
-        setMaskImgButton.setActionCommand("setMaskImage");
-        panel.add(setMaskImgButton, gc);
-        gc.gridx = 0;
-        gc.gridy = 3;
-        createImagesButton = new JButton("Create masked images");
-        createImagesButton.addActionListener(this);
-        createImagesButton.setActionCommand("createImages");
-        panel.add(createImagesButton, gc);
 
-        getContentPane().add(panel);
+    private void showEfficiencyDensity(EfficiencyDensity density) {
+        String title = "E vs " + EfficiencyDensity.AXES[density.getAxis()] + " density";
+        ImagePlus image = density.createImage(title);
+        if (densityImage != null && densityImage.getWindow() != null) {
+            densityImage.setProcessor(title, image.getProcessor());
+            densityImage.setCalibration(image.getCalibration());
+            densityImage.getProcessor().resetMinAndMax();
+            densityImage.updateAndDraw();
+        } else {
+            densityImage = image;
+            densityImage.show();
+        }
+        log("E density: " + density.getTotal() + " pixels, " + density.getOutside() + " outside the ranges.");
     }
 
-    public void actionPerformed(ActionEvent e) {
-    	try {
-            if (e.getActionCommand().equals("setImageToMask")) {
-                toMaskImg = WindowManager.getCurrentImage();
-      	        if (toMaskImg == null) {
-                    accBlWindow.logError("No image is selected. (Masking)");
-                    return;
-                }
-                if (toMaskImg.getImageStackSize() > 1) {
-                   accBlWindow.logError("Current image contains more than 1 channel ("+toMaskImg.getImageStackSize()+"). Please split it into parts. (Masking)");
-                   toMaskImg = null;
-                   return;
-                } else if (toMaskImg.getNSlices() > 1) {
-                   accBlWindow.logError("Current image contains more than 1 slice ("+toMaskImg.getNSlices()+"). Please split it into parts. (Masking)");
-                   toMaskImg = null;
-                   return;
-                }
-                toMaskImg.setTitle("Image to mask - " + new Date().toString());
-                new ImageConverter(toMaskImg).convertToGray32();
-                setToMaskImgButton.setBackground(accBlWindow.greenColor);
-      	    } else if (e.getActionCommand().equals("setMaskImage")) {
-                maskImg = WindowManager.getCurrentImage();
-      	        if (maskImg == null) {
-                    accBlWindow.logError("No image is selected. (Masking)");
-                    return;
-                }
-                if (maskImg.getImageStackSize() > 1) {
-                   accBlWindow.logError("Current image contains more than 1 channel ("+maskImg.getImageStackSize()+"). Please split it into parts. (Masking)");
-                   maskImg = null;
-                   return;
-                } else if (maskImg.getNSlices() > 1) {
-                   accBlWindow.logError("Current image contains more than 1 slice ("+maskImg.getNSlices()+"). Please split it into parts. (Masking)");
-                   maskImg = null;
-                   return;
-                }
-                maskImg.setTitle("Mask image - " + new Date().toString());
-                new ImageConverter(maskImg).convertToGray32();
-                setMaskImgButton.setBackground(accBlWindow.greenColor);
-      	    } else if (e.getActionCommand().equals("createImages")) {
-      	        if (toMaskImg == null) {
-                    accBlWindow.logError("No image to mask is set. (Masking)");
-                    return;
-                } else if (maskImg == null) {
-                    accBlWindow.logError("No mask image is set. (Masking)");
-                    return;
-                }
-                ImageProcessor ipTM = toMaskImg.getProcessor();
-                ImageProcessor ipM = maskImg.getProcessor();
-
-                float[] ipTMP = (float[])ipTM.getPixels();
-                float[] ipMP = (float[])ipM.getPixels();
 
-                int width = ipTM.getWidth();
-                int height = ipTM.getHeight();
-                float[][] img1Points = new float[width][height];
-                float[][] img2Points = new float[width][height];
-                for (int i = 0; i < width; i++) {
-                    for (int j = 0; j < height; j++) {
-                        if (!Float.isNaN(ipMP[width*j+i])) {
-                            img1Points[i][j] = ipTMP[width*j+i];
-                            img2Points[i][j] = Float.NaN;
-                        } else {
-                            img1Points[i][j] = Float.NaN;
-                            img2Points[i][j] = ipTMP[width*j+i];
-                        }
+    // Exports the tuples of the valid pixels of the transfer image in the ROI with the donor and acceptor
+    // pixels (NaN for an image which is not set).
+    private void exportPixelTuples() {
+        if (transferImage == null) {
+            logError("Transfer image required.");
+            return;
+        } else if (!(transferImage.getProcessor().getPixels() instanceof float[])) {
+            logError("The transfer image has to be a 32-bit image.");
+            return;
+        }
+        int width = transferImage.getWidth();
+        int height = transferImage.getHeight();
+        float[] efficiency = (float[])transferImage.getProcessor().getPixels();
+        float[][] channels = {pixelsOf(donorBefore, width, height), pixelsOf(donorAfter, width, height),
+                              pixelsOf(acceptorBefore, width, height), pixelsOf(acceptorAfter, width, height)};
+        PixelTupleSink sink = openPixelTupleSink();
+        if (sink == null) {
+            return;
+        }
+        RoiMask mask = roiMasks.get(transferImage.getRoi(), width, height);
+        Rectangle bounds = mask.getBounds();
+        try {
+            PixelTupleBuffer tuples = sink.open(currentlyProcessedFileName != null ? currentlyProcessedFileName : transferImage.getTitle());
+            float[] values = new float[channels.length];
+            for (int y = bounds.y; y < bounds.y + bounds.height; y++) {
+                for (int x = bounds.x; x < bounds.x + bounds.width; x++) {
+                    int i = y*width + x;
+                    float e = efficiency[i];
+                    if (!(e >= -Float.MAX_VALUE && e <= Float.MAX_VALUE) || !mask.contains(x, y)) {
+                        continue;
                     }
+                    for (int c = 0; c < channels.length; c++) {
+                        values[c] = channels[c] != null ? channels[c][i] : Float.NaN;
+                    }
+                    tuples.add(x, y, values[0], values[1], values[2], values[3], e);
                 }
-                FloatProcessor fp1 = new FloatProcessor(img1Points);
-                FloatProcessor fp2 = new FloatProcessor(img2Points);
-                ImagePlus img2 = new ImagePlus("Masked image 2 (pixels outside the mask)", fp2);
-                img2.show();
-                ImagePlus img1 = new ImagePlus("Masked image 1 (pixels in the mask)", fp1);
-                img1.show();
-           }
-        } catch (Throwable t) {
-            accBlWindow.logException(t.toString(), t);
+            }
+            tuples.flush();
+        } catch (IOException ex) {
+            logError("Could not export the pixel tuples: " + ex.getMessage());
         }
+        closePixelTupleSink(sink);
     }
-}
 
 
-class CalculateImgRatioDialog extends JDialog implements ActionListener{
-    private AccPbFRET_Plugin accBlWindow;
-    private ImagePlus firstImg, secondImg;
-    private JPanel panel;
-    private JButton setFirstImgButton, setSecondImgButton, createRatioImageButton;
-    private JCheckBox useMainWindowImages;
+    private PixelTupleSink openPixelTupleSink() {
+        JFileChooser jfc = new JFileChooser(currentDirectory);
+        jfc.setFileSelectionMode(JFileChooser.FILES_ONLY);
+        jfc.setDialogTitle("Export pixel tuples (.csv: text, other: binary)...");
+        jfc.showSaveDialog(this);
+        if (jfc.getSelectedFile() == null) {
+            return null;
+        }
+        if (jfc.getSelectedFile().exists()) {
+            int resp = JOptionPane.showConfirmDialog(this,
+                "Overwrite existing file?","Confirmation",
+                JOptionPane.OK_CANCEL_OPTION,
+                JOptionPane.QUESTION_MESSAGE);
+            if (resp == JOptionPane.CANCEL_OPTION) {
+                return null;
+            }
+        }
+        try {
+            return new PixelTupleSink(jfc.getSelectedFile());
+        } catch (IOException ex) {
+            logError("Could not create " + jfc.getSelectedFile() + ": " + ex.getMessage());
+            return null;
+        }
+    }
 
-    public CalculateImgRatioDialog (AccPbFRET_Plugin accBlWindow) {
-        setTitle("Calculate ratio of two images");
-        this.accBlWindow = accBlWindow;
-        setDefaultCloseOperation(JFrame.DISPOSE_ON_CLOSE);
-        setModal(false);
-        createDialogGui();
-        Dimension screen = Toolkit.getDefaultToolkit().getScreenSize();
-        setSize(275, 250);
-        setLocation((screen.width - getWidth())/2, (screen.height - getHeight())/2);
+
+    private void closePixelTupleSink(PixelTupleSink sink) {
+        try {
+            sink.close();
+            log("Exported " + sink.getCount() + " pixel tuples.");
+        } catch (IOException ex) {
+            logError("Could not close the pixel tuple file: " + ex.getMessage());
+        }
     }
 
-    public void createDialogGui() {
-        GridBagLayout gridbaglayout = new GridBagLayout();
-        GridBagConstraints gc = new GridBagConstraints();
-        panel = new JPanel();
-        panel.setLayout(gridbaglayout);
 
-        gc.insets = new Insets(2,2,6,2);
-        gc.fill = GridBagConstraints.BOTH;
-        gc.gridwidth = 2;
-        gc.gridx = 0;
-        gc.gridy = 0;
-        JLabel infoLabel = new JLabel("<html><center>After setting the two images and pressing the \"Create ratio image\" button, the ratio of the images (image 1 / image 2) will be calculated pixel-by-pixel and displayed as a new 32 bit image.</center></html>");
-        panel.add(infoLabel, gc);
-        gc.insets = new Insets(2,2,2,2);
-        gc.gridx = 0;
-        gc.gridy = 1;
-        useMainWindowImages = new JCheckBox("use images of the main window (1a/1b)", false);
-        useMainWindowImages.setActionCommand("useMainWindowImages");
-        useMainWindowImages.addActionListener(this);
-        useMainWindowImages.setToolTipText("<html>If this checkbox is checked, donor before and after bleaching<BR>images which are set in the main window will be used as<BR>image 1 and image 2.</html>");
-        panel.add(useMainWindowImages, gc);
-        gc.gridx = 0;
-        gc.gridy = 2;
-        setFirstImgButton = new JButton("Set first image (numerator)");
-        setFirstImgButton.addActionListener(this);
-        setFirstImgButton.setActionCommand("setFirstImage");
-        panel.add(setFirstImgButton, gc);
-        gc.gridx = 0;
-        gc.gridy = 3;
-        setSecondImgButton = new JButton("Set second image (denominator)");
-        setSecondImgButton.addActionListener(this);
-        setSecondImgButton.setActionCommand("setSecondImage");
-        panel.add(setSecondImgButton, gc);
-        gc.gridx = 0;
-        gc.gridy = 4;
-        createRatioImageButton = new JButton("Create ratio image");
-        createRatioImageButton.addActionListener(this);
-        createRatioImageButton.setActionCommand("createRatioImage");
-        panel.add(createRatioImageButton, gc);
+    private EfficiencySketch createSketch() {
+        return new EfficiencySketch(new EfficiencyHistogram(histogramMin, histogramMax, histogramBins));
+    }
 
-        getContentPane().add(panel);
+
+    // Adds the statistics of a finished file to the pooled statistics of its directory (condition).
+    private void poolStatistics(File directory, EfficiencySketch sketch) {
+        EfficiencySketch pooled = pooledStatistics.get(directory);
+        if (pooled == null) {
+            pooled = sketch.emptyCopy();
+            pooledStatistics.put(directory, pooled);
+        }
+        try {
+            pooled.merge(sketch);
+        } catch (IllegalArgumentException ex) {
+            logWarning("The statistics of a file measured with another histogram range are not pooled.");
+        }
     }
 
-    public void actionPerformed(ActionEvent e) {
-    	try {
-            if (e.getActionCommand().equals("setFirstImage")) {
-                firstImg = WindowManager.getCurrentImage();
-      	        if (firstImg == null) {
-                    accBlWindow.logError("No image is selected. (Ratio)");
-                    return;
-                }
-                if (firstImg.getImageStackSize() > 1) {
-                   accBlWindow.logError("Current image contains more than 1 channel ("+firstImg.getImageStackSize()+"). Please split it into parts. (Ratio)");
-                   firstImg = null;
-                   return;
-                } else if (firstImg.getNSlices() > 1) {
-                   accBlWindow.logError("Current image contains more than 1 slice ("+firstImg.getNSlices()+"). Please split it into parts. (Ratio)");
-                   firstImg = null;
-                   return;
-                }
-                firstImg.setTitle("Image 1 - " + new Date().toString());
-                new ImageConverter(firstImg).convertToGray32();
-                setFirstImgButton.setBackground(accBlWindow.greenColor);
-      	    } else if (e.getActionCommand().equals("setSecondImage")) {
-                secondImg = WindowManager.getCurrentImage();
-      	        if (secondImg == null) {
-                    accBlWindow.logError("No image is selected. (Ratio)");
-                    return;
-                }
-                if (secondImg.getImageStackSize() > 1) {
-                   accBlWindow.logError("Current image contains more than 1 channel ("+secondImg.getImageStackSize()+"). Please split it into parts. (Ratio)");
-                   secondImg = null;
-                   return;
-                } else if (secondImg.getNSlices() > 1) {
-                   accBlWindow.logError("Current image contains more than 1 slice ("+secondImg.getNSlices()+"). Please split it into parts. (Ratio)");
-                   secondImg = null;
-                   return;
-                }
-                secondImg.setTitle("Image 2 - " + new Date().toString());
-                new ImageConverter(secondImg).convertToGray32();
-                setSecondImgButton.setBackground(accBlWindow.greenColor);
-            } else if (e.getActionCommand().equals("useMainWindowImages")) {
-          	    if (useMainWindowImages.isSelected()) {
-	                setFirstImgButton.setEnabled(false);
-	                setSecondImgButton.setEnabled(false);
-       	        } else {
-	                setFirstImgButton.setEnabled(true);
-	                setSecondImgButton.setEnabled(true);
-          	    }
-      	    } else if (e.getActionCommand().equals("createRatioImage")) {
-      	        ImageProcessor ip1 = null;
-      	        ImageProcessor ip2 = null;
-      	        if (!useMainWindowImages.isSelected()) {
-                    if (firstImg == null) {
-                        accBlWindow.logError("No image 1 is set. (Ratio)");
-                        return;
-                    } else if (secondImg == null) {
-                        accBlWindow.logError("No image 2 is set. (Ratio)");
-                        return;
-                    }
-                    ip1 = firstImg.getProcessor();
-                    ip2 = secondImg.getProcessor();
-                } else {
-                    if (accBlWindow.getDonorBefore() == null) {
-                        accBlWindow.logError("No donor before bleaching image is set. (Ratio)");
-                        return;
-                    } else if (accBlWindow.getDonorAfter() == null) {
-                        accBlWindow.logError("No donor after image is set. (Ratio)");
-                        return;
-                    }
-                    ip1 = accBlWindow.getDonorBefore().getProcessor();
-                    ip2 = accBlWindow.getDonorAfter().getProcessor();
-                }
-
-                float[] ip1P = (float[])ip1.getPixels();
-                float[] ip2P = (float[])ip2.getPixels();
 
-                int width = ip1.getWidth();
-                int height = ip1.getHeight();
-                float[][] ratioImgPoints = new float[width][height];
-                for (int i = 0; i < width; i++) {
-                    for (int j = 0; j < height; j++) {
-                        ratioImgPoints[i][j] = ip1P[width*j+i] / ip2P[width*j+i];
+    private void pooledStatistics() {
+        if (pooledStatistics.isEmpty()) {
+            logError("There are no pooled statistics. They are collected in semi-automatic and streaming processing.");
+            return;
+        }
+        String[] conditions = new String[pooledStatistics.size() + 1];
+        int i = 0;
+        for (File directory : pooledStatistics.keySet()) {
+            conditions[i++] = directory.getName();
+        }
+        conditions[i] = "All";
+        GenericDialog gd = new GenericDialog("Pooled statistics");
+        gd.addChoice("Histogram of:", conditions, conditions[conditions.length - 1]);
+        gd.addCheckbox("Show the histogram", true);
+        gd.addCheckbox("Clear the pooled statistics", false);
+        gd.showDialog();
+        if (gd.wasCanceled()) {
+            return;
+        }
+        int condition = gd.getNextChoiceIndex();
+        boolean showHistogram = gd.getNextBoolean();
+        boolean clear = gd.getNextBoolean();
+        showPooledStatistics();
+        if (showHistogram) {
+            EfficiencySketch selected = null;
+            i = 0;
+            for (EfficiencySketch sketch : pooledStatistics.values()) {
+                if (condition == conditions.length - 1) {
+                    if (selected == null) {
+                        selected = sketch.emptyCopy();
                     }
+                    selected.merge(sketch);
+                } else if (i == condition) {
+                    selected = sketch;
                 }
-                FloatProcessor fp = new FloatProcessor(ratioImgPoints);
-                ImagePlus ratioImg = new ImagePlus("Ratio of images", fp);
-                ratioImg.show();
-           }
-        } catch (Throwable t) {
-            accBlWindow.logException(t.toString(), t);
+                i++;
+            }
+            // it can be saved with Save E histogram
+            efficiencyHistogram = selected.getHistogram();
+            showEfficiencyHistogram(efficiencyHistogram);
+        }
+        if (clear) {
+            pooledStatistics.clear();
+            log("Pooled statistics: cleared.");
         }
     }
-}
 
 
-class ShiftDialog extends JDialog implements ActionListener{
-    private AccPbFRET_Plugin accBlWindow;
-    JPanel panel;
-    JButton leftButton, rightButton, upButton, downButton;
-    JButton cancelButton = new JButton("Close");
+    // A row for each directory (condition) with the statistics of the pixels of all its files.
+    private void showPooledStatistics() {
+        ResultsTable table = new ResultsTable();
+        table.setPrecision(3);
+        for (Map.Entry<File, EfficiencySketch> entry : pooledStatistics.entrySet()) {
+            EfficiencySketch sketch = entry.getValue();
+            table.incrementCounter();
+            table.addValue("Condition", entry.getKey().getName());
+            table.addValue("Files", sketch.getFiles());
+            table.addValue("Pixels", sketch.getCount());
+            table.addValue("Mean", (float)sketch.getMean());
+            table.addValue("Median", (float)sketch.getQuantile(50));
+            table.addValue("Std. dev.", (float)sketch.getStdDev());
+            table.addValue("Min", (float)sketch.getMin());
+            table.addValue("Max", (float)sketch.getMax());
+            for (int p = 0; p < percentiles.length; p++) {
+                table.addValue("P" + PercentileSelector.format(percentiles[p]), (float)sketch.getQuantile(percentiles[p]));
+            }
+            if (interquartileRange) {
+                table.addValue("IQR", (float)(sketch.getQuantile(75) - sketch.getQuantile(25)));
+            }
+        }
+        table.show("Pooled statistics");
+    }
 
-    public ShiftDialog(AccPbFRET_Plugin accBlWindow) {
-        setTitle("32bit image shifter");
-        this.accBlWindow = accBlWindow;
-        setDefaultCloseOperation(JFrame.HIDE_ON_CLOSE);
-        setModal(false);
-        createDialogGui();
-        getRootPane().setDefaultButton(cancelButton);
-        Dimension screen = Toolkit.getDefaultToolkit().getScreenSize();
-        setSize(150, 150);
-        setLocation((screen.width - getWidth())/2, (screen.height - getHeight())/2);
+
+    private EfficiencyHistogram histogramOf(float[] efficiency, Roi roi, int width, int height) {
+        RoiMask mask = roiMasks.get(roi, width, height);
+        Rectangle bounds = mask.getBounds();
+        EfficiencyHistogram template = new EfficiencyHistogram(histogramMin, histogramMax, histogramBins);
+        return getForkJoinPool().invoke(new EfficiencyHistogramTask(efficiency, mask, template, width, bounds.y, bounds.y + bounds.height,
+                                                                     Math.max(1, bounds.height / (parallelism * 4))));
     }
 
-    public void createDialogGui() {
-        GridBagLayout gridbaglayout = new GridBagLayout();
-        GridBagConstraints gc = new GridBagConstraints();
-        panel = new JPanel();
-        panel.setLayout(gridbaglayout);
 
-        gc.insets = new Insets(0,0,0,0);
-        gc.fill = GridBagConstraints.BOTH;
-        gc.gridwidth = 1;
-        gc.gridx = 1;
-        gc.gridy = 0;
-        upButton = new JButton("^");
-        upButton.addActionListener(this);
-        upButton.setActionCommand("up");
-        panel.add(upButton, gc);
-        gc.gridx = 0;
-        gc.gridy = 1;
-        leftButton = new JButton("<");
-        leftButton.addActionListener(this);
-        leftButton.setActionCommand("left");
-        panel.add(leftButton, gc);
-        gc.gridx = 2;
-        gc.gridy = 1;
-        rightButton = new JButton(">");
-        rightButton.addActionListener(this);
-        rightButton.setActionCommand("right");
-        panel.add(rightButton, gc);
-        gc.insets = new Insets(2,2,2,2);
-        gc.gridx = 1;
-        gc.gridy = 2;
-        downButton = new JButton("v");
-        downButton.addActionListener(this);
-        downButton.setActionCommand("down");
-        panel.add(downButton, gc);
-        gc.insets = new Insets(0,0,4,0);
-        gc.gridwidth = 3;
-        gc.gridx = 0;
-        gc.gridy = 3;
-        panel.add(cancelButton, gc);
-        cancelButton.addActionListener(this);
-        cancelButton.setActionCommand("cancel");
+    private void showEfficiencyHistogram(EfficiencyHistogram histogram) {
+        ResultsTable table = new ResultsTable();
+        table.setPrecision(4);
+        double[] centers = new double[histogram.getBins()];
+        double[] counts = new double[histogram.getBins()];
+        long total = histogram.getBelow() + histogram.getAbove();
+        for (int b = 0; b < histogram.getBins(); b++) {
+            double start = histogram.getBinStart(b);
+            double end = b + 1 < histogram.getBins() ? histogram.getBinStart(b + 1) : histogramMax;
+            centers[b] = (start + end) / 2;
+            counts[b] = histogram.getCount(b);
+            total += histogram.getCount(b);
+            table.incrementCounter();
+            table.addValue("Bin start", start);
+            table.addValue("Bin end", end);
+            table.addValue("Count", histogram.getCount(b));
+        }
+        table.show("E histogram");
+        new Plot("E histogram", "Transfer efficiency", "Count", centers, counts).show();
+        log("E histogram: " + total + " pixels, " + histogram.getBelow() + " below and " + histogram.getAbove() + " above the range.");
+    }
 
-        getContentPane().add(panel);
+
+    private static float[] pixelsOf(ImagePlus image, int width, int height) {
+        if (image == null || image.getWidth() != width || image.getHeight() != height || !(image.getProcessor().getPixels() instanceof float[])) {
+            return null;
+        }
+        return (float[])image.getProcessor().getPixels();
     }
 
-    public void actionPerformed(ActionEvent e) {
-    	try {
-            if (e.getActionCommand().equals("cancel")) {
-	            setVisible(false);
-      	    } else if (e.getActionCommand().equals("up")) {
-                ImagePlus image = WindowManager.getCurrentImage();
-                shiftUp(image, 1);
-      	    } else if (e.getActionCommand().equals("down")) {
-                ImagePlus image = WindowManager.getCurrentImage();
-                shiftDown(image, 1);
-      	    } else if (e.getActionCommand().equals("left")) {
-                ImagePlus image = WindowManager.getCurrentImage();
-                shiftLeft(image, 1);
-      	    } else if (e.getActionCommand().equals("right")) {
-                ImagePlus image = WindowManager.getCurrentImage();
-                shiftRight(image, 1);
+
+    private void logKernelThroughput(String name, FretKernel kernel, float[] out, int width, int height, boolean parallel) {
+        int warmUp = 3;
+        int repeats = 10;
+        long start = 0;
+        for (int r = 0; r < warmUp + repeats; r++) {
+            if (r == warmUp) {
+                start = System.nanoTime();
+            }
+            if (parallel) {
+                getForkJoinPool().invoke(new FretKernelTask(kernel, out, width, 0, height, Math.max(1, height / (parallelism * 4))));
+            } else {
+                kernel.compute(out, 0, out.length);
             }
-        } catch (Throwable t) {
-            accBlWindow.logException(t.toString(), t);
         }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        DecimalFormat df = new DecimalFormat("#0.0");
+        log("  " + name + ": " + df.format((double)repeats * out.length / seconds / 1e6) + " Mpixel/s");
     }
 
-    public void shiftUp(ImagePlus image, int value){
-        if (image == null) {
-            return;
+
+    private FloatProcessor showTransferImage(float[] tiPixels, int width, int height) {
+        transferImage = showComputedImage(transferImage, "Transfer image", tiPixels, width, height);
+        transferImageOutdated = false;
+        return (FloatProcessor)transferImage.getProcessor();
+    }
+
+
+    // Calculates and shows the transfer image (and the uncertainty image if it is enabled) of the current
+    // channel images. Returns the variance pixels, or null if no uncertainty image is calculated.
+    private float[] calculateTransferImage(FretKernel kernel, DensityAccumulator density) {
+        int width = donorAfter.getWidth();
+        int height = donorAfter.getHeight();
+        Rectangle region = bleachedRegion(width, height);
+        float[] tiPixels = framePool.borrow(width, height);
+        float[] variancePixels = null;
+        if (uncertaintyMap && customFormula != null) {
+            logWarning("The transfer uncertainty image is not available with a custom formula.");
+        } else if (uncertaintyMap) {
+            variancePixels = framePool.borrow(width, height);
+            kernel = kernel.withNoiseModel(detectorGain, detectorOffset);
         }
-        int width = image.getWidth();
-        int height = image.getHeight();
-        FloatProcessor fp = (FloatProcessor)image.getProcessor();
-        ColorModel cm = fp.getColorModel();
+        computeTransferPixels(kernel, tiPixels, variancePixels, width, height, region, density);
+        showTransferImage(tiPixels, width, height);
+        if (variancePixels != null) {
+            uncertaintyImage = showComputedImage(uncertaintyImage, "Transfer uncertainty", variancePixels, width, height);
+        }
+        return variancePixels;
+    }
 
-        float[] fpPixels = (float[])fp.getPixels();
-        float[][] fpPixels2 = new float[width][height];
-        for (int i = 0; i < width; i++) {
-            for (int j = 0; j < height-value; j++) {
-                fpPixels2[i][j] = fpPixels[width*(j+value)+i];
-            }
+
+    // Calculates the transfer image again if a channel image has changed since it was calculated, so that
+    // the measurements are not taken on a stale image. Returns false if it cannot be calculated.
+    private boolean updateOutdatedTransferImage() {
+        if (!transferImageOutdated) {
+            return true;
         }
-        FloatProcessor newFp = new FloatProcessor(fpPixels2);
-        newFp.setColorModel(cm);
-        image.setProcessor(image.getTitle(), newFp);
-        image.updateAndDraw();
+        FretKernel kernel = createFretKernel();
+        if (kernel == null) {
+            return false;
+        }
+        calculateTransferImage(kernel, null);
+        log("Calculated the transfer image again from the changed channel images.");
+        return true;
     }
 
 
-    public void shiftDown(ImagePlus image, int value){
-        if (image == null) {
-            return;
+    // Shows the pixels in the given image keeping its color model, or in a new image if it is closed.
+    private ImagePlus showComputedImage(ImagePlus image, String title, float[] pixels, int width, int height) {
+        FloatProcessor fp = new FloatProcessor(width, height, pixels, null);
+        if (image != null && image.getProcessor() != null) {
+            // attached before the frame is replaced, the pool checks whether the image still shows the previous frame
+            framePool.attach(image, pixels);
+            ColorModel cm = image.getProcessor().getColorModel();
+            image.setProcessor(title, fp);
+            image.getProcessor().setColorModel(cm);
+            validityMasks.invalidate(image);
+            image.updateAndDraw();
+        } else {
+            image = new ImagePlus(title, fp);
+            image.show();
+            framePool.attach(image, pixels);
         }
-        int width = image.getWidth();
-        int height = image.getHeight();
-        FloatProcessor fp = (FloatProcessor)image.getProcessor();
-        ColorModel cm = fp.getColorModel();
+        return image;
+    }
 
-        float[] fpPixels = (float[])fp.getPixels();
-        float[][] fpPixels2 = new float[width][height];
-        for (int i = 0; i < width; i++) {
-            for (int j = value; j < height; j++) {
-                fpPixels2[i][j] = fpPixels[width*(j-value)+i];
+
+    // Live preview: edits of the correction factors are debounced, then the transfer image is
+    // recalculated off the event dispatch thread on a downsampled proxy of the images, and in
+    // full resolution once the input is idle. Results of outdated edits are dropped.
+    private void initLivePreview() {
+        DocumentListener previewListener = new DocumentListener() {
+            public void insertUpdate(DocumentEvent e) {
+                schedulePreview();
             }
-        }
-        FloatProcessor newFp = new FloatProcessor(fpPixels2);
-        newFp.setColorModel(cm);
-        image.setProcessor(image.getTitle(), newFp);
-        image.updateAndDraw();
+
+            public void removeUpdate(DocumentEvent e) {
+                schedulePreview();
+            }
+
+            public void changedUpdate(DocumentEvent e) {
+                schedulePreview();
+            }
+        };
+        donorBlCorrField.getDocument().addDocumentListener(previewListener);
+        accCrossTalkCorrField.getDocument().addDocumentListener(previewListener);
+        accPhotoprCorrField.getDocument().addDocumentListener(previewListener);
+        partialBlCorrField.getDocument().addDocumentListener(previewListener);
+        previewTimer = new javax.swing.Timer(150, new ActionListener() {
+            public void actionPerformed(ActionEvent e) {
+                updatePreview(false);
+            }
+        });
+        previewTimer.setRepeats(false);
+        fullPreviewTimer = new javax.swing.Timer(1000, new ActionListener() {
+            public void actionPerformed(ActionEvent e) {
+                updatePreview(true);
+            }
+        });
+        fullPreviewTimer.setRepeats(false);
     }
 
 
-    public void shiftLeft(ImagePlus image, int value){
-        if (image == null) {
+    private void schedulePreview() {
+        if (livePreviewMenuItem == null || !livePreviewMenuItem.isSelected()) {
             return;
         }
-        int width = image.getWidth();
-        int height = image.getHeight();
-        FloatProcessor fp = (FloatProcessor)image.getProcessor();
-        ColorModel cm = fp.getColorModel();
+        previewGeneration++;
+        previewTimer.restart();
+        fullPreviewTimer.restart();
+    }
 
-        float[] fpPixels = (float[])fp.getPixels();
-        float[][] fpPixels2 = new float[width][height];
-        for (int i = 0; i < width-value; i++) {
-            for (int j = 0; j < height; j++) {
-                fpPixels2[i][j] = fpPixels[width*j+(i+value)];
-            }
+
+    private void stopPreview() {
+        previewGeneration++;
+        previewTimer.stop();
+        fullPreviewTimer.stop();
+        if (previewImage != null) {
+            previewImage.changes = false;
+            previewImage.close();
+            previewImage = null;
         }
-        FloatProcessor newFp = new FloatProcessor(fpPixels2);
-        newFp.setColorModel(cm);
-        image.setProcessor(image.getTitle(), newFp);
-        image.updateAndDraw();
     }
 
 
-    public void shiftRight(ImagePlus image, int value){
-        if (image == null) {
+    private void updatePreview(final boolean fullResolution) {
+        final FretKernel kernel = createFretKernel(false);
+        if (kernel == null) {
             return;
         }
-        int width = image.getWidth();
-        int height = image.getHeight();
-        FloatProcessor fp = (FloatProcessor)image.getProcessor();
-        ColorModel cm = fp.getColorModel();
+        final int width = donorAfter.getWidth();
+        final int height = donorAfter.getHeight();
+        final int factor = fullResolution ? 1 : Math.max(1, (Math.max(width, height) + previewSize - 1) / previewSize);
+        final int previewWidth = (width + factor - 1) / factor;
+        final int previewHeight = (height + factor - 1) / factor;
+        final int generation = previewGeneration;
+        new SwingWorker<float[], Object>() {
+            protected float[] doInBackground() {
+                FretKernel previewKernel = factor > 1 ? kernel.downsample(width, height, factor) : kernel;
+                float[] pixels = framePool.borrow(previewWidth, previewHeight);
+                computeTransferPixels(previewKernel, pixels, previewWidth, previewHeight);
+                return pixels;
+            }
 
-        float[] fpPixels = (float[])fp.getPixels();
-        float[][] fpPixels2 = new float[width][height];
-        for (int i = value; i < width; i++) {
-            for (int j = 0; j < height; j++) {
-                fpPixels2[i][j] = fpPixels[width*j+(i-value)];
+            protected void done() {
+                float[] pixels;
+                try {
+                    pixels = get();
+                } catch (Exception ex) {
+                    logException(ex.toString(), ex);
+                    return;
+                }
+                if (generation != previewGeneration) {
+                    framePool.release(previewWidth, previewHeight, pixels);
+                } else if (fullResolution) {
+                    showTransferImage(pixels, width, height);
+                } else {
+                    showPreviewImage(pixels, previewWidth, previewHeight, factor);
+                }
             }
-        }
-        FloatProcessor newFp = new FloatProcessor(fpPixels2);
-        newFp.setColorModel(cm);
-        image.setProcessor(image.getTitle(), newFp);
-        image.updateAndDraw();
+        }.execute();
     }
-}
 
 
-class DonorBlCorrDialog extends JDialog implements ActionListener{
-    private AccPbFRET_Plugin accBlWindow;
-    private ImagePlus donorCBefore, donorCAfter;
-    private JPanel panel;
-    private JButton setBeforeButton, setAfterButton, registerButton;
-    private JButton setBeforeThresholdButton, setAfterThresholdButton, calculateButton, setButton;
-    private JButton subtractBeforeButton, subtractAfterButton;
-    private JButton resetButton;
-    private ButtonGroup buttonGroup;
-    private JRadioButton averagesButton, quotientsButton;
-    private JLabel mode1ResultLabel, mode2ResultLabel;
-    private JCheckBox showBlCImagesCB;
-
-    public DonorBlCorrDialog(AccPbFRET_Plugin accBlWindow) {
-        setTitle("Donor bleaching correction factor");
-        this.accBlWindow = accBlWindow;
-        setDefaultCloseOperation(JFrame.DISPOSE_ON_CLOSE);
-        setModal(false);
-        createDialogGui();
-        Dimension screen = Toolkit.getDefaultToolkit().getScreenSize();
-        setSize(300, 410);
-        setLocation((screen.width - getWidth())/2, (screen.height - getHeight())/2);
+    private void showPreviewImage(float[] pixels, int width, int height, int factor) {
+        FloatProcessor fp = new FloatProcessor(width, height, pixels, null);
+        String title = "Transfer image preview (1:" + factor + ")";
+        if (previewImage != null && previewImage.getProcessor() != null && previewImage.getWidth() == width && previewImage.getHeight() == height) {
+            framePool.attach(previewImage, pixels);
+            ColorModel cm = previewImage.getProcessor().getColorModel();
+            previewImage.setProcessor(title, fp);
+            previewImage.getProcessor().setColorModel(cm);
+            validityMasks.invalidate(previewImage);
+            previewImage.updateAndDraw();
+        } else {
+            if (previewImage != null) {
+                previewImage.changes = false;
+                previewImage.close();
+            }
+            previewImage = new ImagePlus(title, fp);
+            previewImage.show();
+            framePool.attach(previewImage, pixels);
+        }
     }
 
-    public void createDialogGui() {
-        GridBagLayout gridbaglayout = new GridBagLayout();
-        GridBagConstraints gc = new GridBagConstraints();
-        panel = new JPanel();
-        panel.setLayout(gridbaglayout);
-
-        gc.insets = new Insets(2,2,6,2);
-        gc.fill = GridBagConstraints.BOTH;
-        gc.gridwidth = GridBagConstraints.REMAINDER;
-        gc.gridx = 0;
-        gc.gridy = 0;
-        JLabel infoLabel = new JLabel("<html><center>This factor is calculated based on images of the donor channel of a donor only labeled sample, before and after photobleaching.</center></html>");
-        panel.add(infoLabel, gc);
-        gc.insets = new Insets(2,2,2,2);
-        gc.gridwidth = 3;
-        gc.gridx = 0;
-        gc.gridy = 1;
-        setBeforeButton = new JButton("Set donor before bleaching (donor only)");
-        setBeforeButton.addActionListener(this);
-        setBeforeButton.setActionCommand("setCBefore");
-        panel.add(setBeforeButton, gc);
-        gc.gridx = 0;
-        gc.gridy = 2;
-        setAfterButton = new JButton("Set donor after bleaching (donor only)");
-        setAfterButton.addActionListener(this);
-        setAfterButton.setActionCommand("setCAfter");
-        panel.add(setAfterButton, gc);
-        gc.gridx = 0;
-        gc.gridy = 3;
-        registerButton = new JButton("Register images");
-        registerButton.addActionListener(this);
-        registerButton.setActionCommand("registerCImages");
-        panel.add(registerButton, gc);
-        gc.gridx = 0;
-        gc.gridy = 4;
-        subtractBeforeButton = new JButton("Subtract background of donor before");
-        subtractBeforeButton.addActionListener(this);
-        subtractBeforeButton.setActionCommand("subtractCBefore");
-        panel.add(subtractBeforeButton, gc);
-        gc.gridx = 0;
-        gc.gridy = 5;
-        subtractAfterButton = new JButton("Subtract background of donor after");
-        subtractAfterButton.addActionListener(this);
-        subtractAfterButton.setActionCommand("subtractCAfter");
-        panel.add(subtractAfterButton, gc);
-        gc.gridx = 0;
-        gc.gridy = 6;
-        setBeforeThresholdButton = new JButton("Set donor before threshold");
-        setBeforeThresholdButton.addActionListener(this);
-        setBeforeThresholdButton.setActionCommand("setCBeforeThreshold");
-        panel.add(setBeforeThresholdButton, gc);
-        gc.gridx = 0;
-        gc.gridy = 7;
-        setAfterThresholdButton = new JButton("Set donor after threshold");
-        setAfterThresholdButton.addActionListener(this);
-        setAfterThresholdButton.setActionCommand("setCAfterThreshold");
-        panel.add(setAfterThresholdButton, gc);
-        gc.gridx = 0;
-        gc.gridy = 8;
-        gc.gridheight = 2;
-        JPanel radioPanel = new JPanel();
-        GridBagLayout gbl = new GridBagLayout();
-        GridBagConstraints gcr = new GridBagConstraints();
-        radioPanel.setLayout(gbl);
-        gcr.insets = new Insets(0,4,4,4);
-        gcr.fill = GridBagConstraints.BOTH;
-        JLabel modeLabel = new JLabel("Mode:");
-        JLabel resultLabel = new JLabel("Result:");
-        mode1ResultLabel = new JLabel("", JLabel.CENTER);
-        mode2ResultLabel = new JLabel("", JLabel.CENTER);
-        quotientsButton = new JRadioButton("point-by-point");
-        quotientsButton.setToolTipText("The factor is the averaged ratio of corresponding pixel values in the donor before and after photobleaching images.");
-        averagesButton = new JRadioButton("average pixels");
-        averagesButton.setToolTipText("The factor is the ratio of the gated pixel averages in the donor before and after photobleaching images.");
-        quotientsButton.setSelected(true);
-        buttonGroup = new ButtonGroup();
-        buttonGroup.add(quotientsButton);
-        buttonGroup.add(averagesButton);
-        gcr.gridx = 0;
-        gcr.gridy = 0;
-        radioPanel.add(modeLabel, gcr);
-        gcr.gridx = 1;
-        gcr.gridy = 0;
-        radioPanel.add(quotientsButton, gcr);
-        gcr.gridx = 2;
-        gcr.gridy = 0;
-        radioPanel.add(averagesButton, gcr);
-        gcr.gridx = 0;
-        gcr.gridy = 1;
-        radioPanel.add(resultLabel, gcr);
-        gcr.gridx = 1;
-        gcr.gridy = 1;
-        radioPanel.add(mode1ResultLabel, gcr);
-        gcr.gridx = 2;
-        gcr.gridy = 1;
-        radioPanel.add(mode2ResultLabel, gcr);
-        panel.add(radioPanel, gc);
-        gc.gridx = 0;
-        gc.gridy = 10;
-        gc.gridheight = 1;
-        showBlCImagesCB = new JCheckBox("show correction image (for manual calc.)");
-        panel.add(showBlCImagesCB, gc);
-        gc.gridwidth = 1;
-        gc.gridheight = 1;
-        gc.gridx = 0;
-        gc.gridy = 11;
-        calculateButton = new JButton("Calculate");
-        calculateButton.addActionListener(this);
-        calculateButton.setActionCommand("calculate");
-        panel.add(calculateButton, gc);
-        gc.gridx = 1;
-        gc.gridy = 11;
-        setButton = new JButton("Set selected");
-        setButton.addActionListener(this);
-        setButton.setActionCommand("setfactor");
-        panel.add(setButton, gc);
-        gc.gridx = 2;
-        gc.gridy = 11;
-        resetButton = new JButton("Reset");
-        resetButton.addActionListener(this);
-        resetButton.setActionCommand("reset");
-        panel.add(resetButton, gc);
 
-        getContentPane().add(panel);
-    }
+    // Measures every LSM image of a directory without opening it: the channels are streamed row by row from
+    // the files (see StreamingFretJob), with the background settings of semi-automatic processing but without
+    // registration and smoothing, and the files are processed concurrently. One results row is added per file.
+    private void streamingProcessing() {
+        float[] factors = readCorrectionFactors(true);
+        if (factors == null) {
+            return;
+        }
+        boolean partial = partialBlCorrMenuItem.isSelected();
+        boolean mask = useAcceptorAsMask.isSelected();
+        if (isPositive(radiusFieldDB) || isPositive(radiusFieldDA) || ((partial || mask) && isPositive(radiusFieldAB)) || (partial && isPositive(radiusFieldAA))) {
+            logError("Streaming processing does not smooth the images, the radius of the Gaussian blur has to be 0.");
+            return;
+        }
+        if (partial && partialBlMapEnabled) {
+            logWarning("The partial photobleaching map is not available in streaming processing, the correction factor is used.");
+        }
+        GenericDialog gd = new GenericDialog("Streaming processing");
+        gd.addMessage("The LSM images of the selected directory are measured without opening them.\n" +
+                      "The upper left corner (1/6 x 1/6 of the image) is considered as background.\n" +
+                      "The images are not registered and not smoothed.");
+        gd.addCheckbox("Save transfer images (<image name>_transfer.tif)", false);
+        gd.addCheckbox("Export the pixel tuples (DB, DA, AB, AA, E) of the valid pixels", false);
+        gd.showDialog();
+        if (gd.wasCanceled()) {
+            return;
+        }
+        final boolean saveTransferImages = gd.getNextBoolean();
+        boolean exportTuples = gd.getNextBoolean();
+        JFileChooser chooser = new JFileChooser(currentDirectory);
+        chooser.setFileSelectionMode(JFileChooser.DIRECTORIES_ONLY);
+        chooser.setDialogTitle("Select directory");
+        chooser.setAcceptAllFileFilterUsed(false);
+        if (chooser.showOpenDialog(this) != JFileChooser.APPROVE_OPTION) {
+            log("Streaming processing: no directory is selected.");
+            return;
+        }
+        currentDirectory = chooser.getSelectedFile().toString();
+        File[] listedFiles = chooser.getSelectedFile().listFiles();
+        final ArrayList<File> files = new ArrayList<File>();
+        for (int i = 0; listedFiles != null && i < listedFiles.length; i++) {
+            if (listedFiles[i].isFile() && (listedFiles[i].getName().endsWith(".lsm") || listedFiles[i].getName().endsWith(".LSM"))) {
+                files.add(listedFiles[i]);
+            }
+        }
+        Collections.sort(files);
+        if (files.isEmpty()) {
+            logError("No LSM image is found in directory: " + chooser.getSelectedFile());
+            return;
+        }
+        PixelTupleSink sink = null;
+        if (exportTuples) {
+            sink = openPixelTupleSink();
+            if (sink == null) {
+                return;
+            }
+        }
+        final PixelTupleSink tupleSink = sink;
+        log("Streaming processing of " + files.size() + " file" + (files.size() > 1 ? "s" : "") + " in directory: " + chooser.getSelectedFile());
+        final ArrayList<Future<double[]>> futures = new ArrayList<Future<double[]>>();
+        boolean[] subtracted = {true, partial || mask, true, partial};
+        final EfficiencyHistogram accumulated = histogramAccumulate ? efficiencyHistogram : null;
+        // The jobs merge their distributions into these when they finish (see StreamingFretJob.setHistogram()).
+        final EfficiencyHistogram histogram = accumulated != null ? accumulated.emptyCopy() : null;
+        final EfficiencySketch sketch = createSketch();
+        final EfficiencyDensity density = densityEnabled ? createDensity() : null;
+        final File directory = chooser.getSelectedFile();
+        pooledStatistics.remove(directory);
+        for (int i = 0; i < files.size(); i++) {
+            File file = files.get(i);
+            File transferFile = null;
+            if (saveTransferImages) {
+                String name = file.getName();
+                transferFile = new File(file.getParentFile(), name.substring(0, name.length() - 4) + "_transfer.tif");
+            }
+            StreamingFretJob job = new StreamingFretJob(file, transferFile, factors, accCrossTalkCorrMenuItem.isSelected(),
+                                                        accPhotoprCorrMenuItem.isSelected(), partial, mask,
+                                                        customFormula, subtracted);
+            if (histogram != null) {
+                job.setHistogram(histogram);
+            }
+            job.setSketch(sketch);
+            if (density != null) {
+                job.setDensity(density);
+            }
+            job.setTupleSink(tupleSink);
+            job.setVectorLoop(vectorLoop);
+            futures.add(getForkJoinPool().submit(job));
+        }
+        final long start = System.nanoTime();
+        new SwingWorker<Object, Object>() {
+            protected Object doInBackground() {
+                for (int i = 0; i < futures.size(); i++) {
+                    try {
+                        futures.get(i).get();
+                    } catch (Exception ex) {
+                        // only waits for the jobs here, done() reports the failed files
+                    }
+                }
+                return null;
+            }
 
-    public void actionPerformed(ActionEvent e) {
-    	try {
-            if (e.getActionCommand().equals("reset")) {
-                donorCBefore = null;
-                donorCAfter = null;
-	            setBeforeButton.setBackground(accBlWindow.originalButtonColor);
-	            setAfterButton.setBackground(accBlWindow.originalButtonColor);
-	            setBeforeThresholdButton.setBackground(accBlWindow.originalButtonColor);
-                setAfterThresholdButton.setBackground(accBlWindow.originalButtonColor);
-                calculateButton.setBackground(accBlWindow.originalButtonColor);
-                setButton.setBackground(accBlWindow.originalButtonColor);
-                subtractBeforeButton.setBackground(accBlWindow.originalButtonColor);
-                subtractAfterButton.setBackground(accBlWindow.originalButtonColor);
-                registerButton.setBackground(accBlWindow.originalButtonColor);
-                mode1ResultLabel.setText("");
-                mode2ResultLabel.setText("");
-      	    } else if (e.getActionCommand().equals("setCBefore")) {
-                donorCBefore = WindowManager.getCurrentImage();
-      	        if (donorCBefore == null) {
-                    accBlWindow.logError("No image is selected. (bl. corr.)");
-                    return;
+            protected void done() {
+                int[] columns = new int[StreamingFretJob.COLUMNS.length];
+                for (int c = 0; c < columns.length; c++) {
+                    columns[c] = resultsBuffer.getColumn(StreamingFretJob.COLUMNS[c], ResultsBuffer.NUMBER);
                 }
-                if (donorCBefore.getNChannels() > 1) {
-                   accBlWindow.logError("Current image contains more than 1 channel ("+donorCBefore.getNChannels()+"). Please split it into parts. (bl. corr.)");
-                   donorCBefore = null;
-                   return;
-                } else if (donorCBefore.getNSlices() > 1) {
-                   accBlWindow.logError("Current image contains more than 1 slice ("+donorCBefore.getNSlices()+"). Please split it into parts. (bl. corr.)");
-                   donorCBefore = null;
-                   return;
+                int measured = 0;
+                for (int i = 0; i < futures.size(); i++) {
+                    double[] values;
+                    try {
+                        values = futures.get(i).get();
+                    } catch (ExecutionException ex) {
+                        logError("Could not process " + files.get(i).getName() + ": " + ex.getCause().getMessage());
+                        continue;
+                    } catch (Exception ex) {
+                        logException(ex.toString(), ex);
+                        continue;
+                    }
+                    resultsBuffer.incrementCounter();
+                    resultsBuffer.addLabel("File", files.get(i).getName());
+                    for (int c = 0; c < columns.length; c++) {
+                        resultsBuffer.addValue(columns[c], (float)values[c]);
+                    }
+                    measured++;
                 }
-                if (donorCBefore != null && donorCAfter != null && donorCBefore.equals(donorCAfter)) {
-                    accBlWindow.logError("The two images must not be the same. Please select and set an other image. (bl. corr.)");
-                    donorCBefore.setTitle("");
-                    donorCBefore = null;
-                    return;
+                flushResults(true);
+                if (measured > 0) {
+                    poolStatistics(directory, sketch);
                 }
-                donorCBefore.setTitle("Donor before bleaching (bl. corr.) - " + new Date().toString());
-                new ImageConverter(donorCBefore).convertToGray32();
-                setBeforeButton.setBackground(accBlWindow.greenColor);
-      	    } else if (e.getActionCommand().equals("setCAfter")) {
-                donorCAfter = WindowManager.getCurrentImage();
-      	        if (donorCAfter == null) {
-                    accBlWindow.logError("No image is selected. (bl. corr.)");
-                    return;
+                if (accumulated != null) {
+                    accumulated.merge(histogram);
+                    showEfficiencyHistogram(accumulated);
                 }
-                if (donorCAfter.getNChannels() > 1) {
-                   accBlWindow.logError("Current image contains more than 1 channel ("+donorCAfter.getNChannels()+"). Please split it into parts. (bl. corr.)");
-                   donorCAfter = null;
-                   return;
-                } else if (donorCAfter.getNSlices() > 1) {
-                   accBlWindow.logError("Current image contains more than 1 slice ("+donorCAfter.getNSlices()+"). Please split it into parts. (bl. corr.)");
-                   donorCAfter = null;
-                   return;
+                if (pooledStatistics.containsKey(directory)) {
+                    showPooledStatistics();
                 }
-                if (donorCBefore != null && donorCAfter != null && donorCBefore.equals(donorCAfter)) {
-                    accBlWindow.logError("The two images must not be the same. Please select and set an other image. (bl. corr.)");
-                    donorCAfter.setTitle("");
-                    donorCAfter = null;
-                    return;
+                if (density != null) {
+                    addEfficiencyDensity(density);
                 }
-                donorCAfter.setTitle("Donor after bleaching (bl. corr.) - " + new Date().toString());
-                new ImageConverter(donorCAfter).convertToGray32();
-                setAfterButton.setBackground(accBlWindow.greenColor);
-      	    } else if (e.getActionCommand().equals("subtractCBefore")) {
-      	        if (donorCBefore == null) {
-                    accBlWindow.logError("No image is set as donor before bleaching. (bl. corr.)");
-                    return;
-                } else if (donorCBefore.getRoi() == null) {
-                    accBlWindow.logError("No ROI is defined for donor before bleaching. (bl. corr.)");
-                    return;
+                if (tupleSink != null) {
+                    closePixelTupleSink(tupleSink);
                 }
-                ImageProcessor ipDB = donorCBefore.getProcessor();
-                int width = donorCBefore.getWidth();
-                int height = donorCBefore.getHeight();
-                double sum = 0;
-                int count = 0;
-                for (int i=0; i<width; i++) {
-                    for (int j=0; j<height; j++) {
-                        if (donorCBefore.getRoi().contains(i, j)) {
-                            sum += ipDB.getPixelValue(i,j);
-                            count++;
-                        }
-		            }
-        		}
-		        float backgroundAvgDB = (float)(sum/count);
+                DecimalFormat df = new DecimalFormat("#0.0");
+                log("Streaming processing has been finished: " + measured + " of " + futures.size() + " files measured in " +
+                    df.format((System.nanoTime() - start) / 1e9) + " s.");
+            }
+        }.execute();
+    }
 
-                float value = 0;
-                for (int x=0; x < width; x++) {
-                    for (int y=0; y < height; y++) {
-                        value = ipDB.getPixelValue(x,y);
-                        value = value - backgroundAvgDB;
-		                ipDB.putPixelValue(x, y, value);
-        		    }
-		        }
-		        donorCBefore.updateAndDraw();
-		        donorCBefore.killRoi();
-                accBlWindow.log("Subtracted background ("+backgroundAvgDB+") of donor before bleaching. (bl. corr.)");
-                subtractBeforeButton.setBackground(accBlWindow.greenColor);
-      	    } else if (e.getActionCommand().equals("subtractCAfter")) {
-      	        if (donorCAfter == null) {
-                    accBlWindow.logError("No image is set as donor after bleaching. (bl. corr.)");
-                    return;
-                } else if (donorCAfter.getRoi() == null) {
-                    accBlWindow.logError("No ROI is defined for donor after bleaching. (bl. corr.)");
-                    return;
-                }
-                ImageProcessor ipDA = donorCAfter.getProcessor();
-                int width = donorCAfter.getWidth();
-                int height = donorCAfter.getHeight();
-                double sum = 0;
-                int count = 0;
-                for (int i=0; i<width; i++) {
-                    for (int j=0; j<height; j++) {
-                        if (donorCAfter.getRoi().contains(i, j)) {
-                            sum += ipDA.getPixelValue(i,j);
-                            count++;
-                        }
-		            }
-        		}
-		        float backgroundAvgDA = (float)(sum/count);
 
-                float value = 0;
-                for (int x=0; x < width; x++) {
-                    for (int y=0; y < height; y++) {
-                        value = ipDA.getPixelValue(x,y);
-                        value = value - backgroundAvgDA;
-		                ipDA.putPixelValue(x, y, value);
-        		    }
-		        }
-		        donorCAfter.updateAndDraw();
-		        donorCAfter.killRoi();
-                accBlWindow.log("Subtracted background ("+backgroundAvgDA+") of donor after bleaching. (bl. corr.)");
-                subtractAfterButton.setBackground(accBlWindow.greenColor);
-      	    } else if (e.getActionCommand().equals("setCBeforeThreshold")) {
-      	        if (donorCBefore == null) {
-                    accBlWindow.logError("No image is set as donor before bleaching. (bl. corr.)");
-                    return;
-                }
-                IJ.selectWindow(donorCBefore.getTitle());
-                IJ.run("Threshold...");
-                setBeforeThresholdButton.setBackground(accBlWindow.greenColor);
-      	    } else if (e.getActionCommand().equals("setCAfterThreshold")) {
-      	        if (donorCAfter == null) {
-                    accBlWindow.logError("No image is set as donor after bleaching. (bl. corr.)");
-                    return;
-                }
-                IJ.selectWindow(donorCAfter.getTitle());
-                IJ.run("Threshold...");
-                setAfterThresholdButton.setBackground(accBlWindow.greenColor);
-      	    } else if (e.getActionCommand().equals("calculate")) {
-                if (donorCBefore == null) {
-                    accBlWindow.logError("No image is set as donor before bleaching. (bl. corr.)");
-                    return;
-      	        } else if (donorCAfter == null) {
-                    accBlWindow.logError("No image is set as donor after bleaching. (bl. corr.)");
-                    return;
-                } else {
-                    DecimalFormat df = new DecimalFormat("#.###");
-                    ImageProcessor ipDB = donorCBefore.getProcessor();
-                    ImageProcessor ipDA = donorCAfter.getProcessor();
-                    float[][] corrImgPoints = null;
-                    int width = ipDB.getWidth();
-                    int height = ipDB.getHeight();
-                    if(showBlCImagesCB.isSelected()) {
-                        corrImgPoints = new float[width][height];
-                    }
-                    double sumc = 0;
-                    double countc = 0;
-                    for (int i = 0; i < width; i++) {
-                        for (int j = 0; j < height; j++) {
-                            if (ipDA.getPixelValue(i, j) > 0 && ipDB.getPixelValue(i, j) > 0) {
-                                double current = ipDB.getPixelValue(i, j) / ipDA.getPixelValue(i, j);
-                                sumc += current;
-                                countc++;
-                                if(showBlCImagesCB.isSelected()) {
-                                    corrImgPoints[i][j] = (float)current;
-                                }
-                            }
-                        }
-                    }
-                    float avg = (float)(sumc / countc);
-                    mode1ResultLabel.setText(df.format(avg).toString());
+    private static boolean isPositive(JTextField radiusField) {
+        try {
+            return Double.parseDouble(radiusField.getText().trim()) > 0;
+        } catch (Exception ex) {
+            return false;
+        }
+    }
 
-                    float[] ipDBP = (float[])ipDB.getPixels();
-                    float[] ipDAP = (float[])ipDA.getPixels();
-                    double avgBefore = 0;
-                    double avgAfter = 0;
-                    countc = 0;
-                    sumc = 0;
-                    for (int i = 0; i < ipDBP.length; i++) {
-                        if (ipDBP[i] > 0) {
-                            sumc += ipDBP[i];
-                            countc++;
-                        }
-                    }
-                    avgBefore = sumc / countc;
-                    countc = 0;
-                    sumc = 0;
-                    for (int i = 0; i < ipDAP.length; i++) {
-                        if (ipDAP[i] > 0) {
-                            sumc += ipDAP[i];
-                            countc++;
-                        }
-                    }
-                    avgAfter = sumc / countc;
-                    mode2ResultLabel.setText(df.format((float)(avgBefore/avgAfter)).toString());
-                    calculateButton.setBackground(accBlWindow.greenColor);
-                    donorCBefore.changes = false;
-                    donorCAfter.changes = false;
-                    if(showBlCImagesCB.isSelected()) {
-                        ImagePlus corrImg = new ImagePlus("Donor bleaching correction image", new FloatProcessor(corrImgPoints));
-                        corrImg.show();
-                    }
-                }
-      	    } else if (e.getActionCommand().equals("setfactor")) {
-                    if (quotientsButton.isSelected()) {
-                        if (mode1ResultLabel.getText().equals("")) {
-                           accBlWindow.logError("The correction factor has to be calculated before setting it. (bl. corr.)");
-                           return;
-                        }
-                        accBlWindow.setBleachingCorrection(mode1ResultLabel.getText());
-                        setButton.setBackground(accBlWindow.greenColor);
-                        accBlWindow.calculateDBCorrButton.setBackground(accBlWindow.greenColor);
-                    } else {
-                        if (mode2ResultLabel.getText().equals("")) {
-                           accBlWindow.logError("The correction factor has to be calculated before setting it. (bl. corr.)");
-                           return;
-                        }
-                        accBlWindow.setBleachingCorrection(mode2ResultLabel.getText());
-                        setButton.setBackground(accBlWindow.greenColor);
-                        accBlWindow.calculateDBCorrButton.setBackground(accBlWindow.greenColor);
-                    }
-      	    } else if (e.getActionCommand().equals("registerCImages")) {
-      	        if (donorCBefore == null) {
-                    accBlWindow.logError("No image is set as donor before bleaching. (bl. corr.)");
-                    return;
-                } else if (donorCAfter == null) {
-                    accBlWindow.logError("No image is set as donor after bleaching. (bl. corr.)");
-                    return;
-                } else {
-                    FHT fht1 = new FHT(donorCBefore.getProcessor().duplicate());
-                    fht1.transform();
-                    FHT fht2 = new FHT(donorCAfter.getProcessor().duplicate());
-                    fht2.transform();
-                    FHT res = fht1.conjugateMultiply(fht2);
-                    res.inverseTransform();
-                    ImagePlus image = new ImagePlus("Result of registration", res);
-                    ImageProcessor ip = image.getProcessor();
-                    int width = ip.getWidth();
-                    int height = ip.getHeight();
-                    int maximum = 0;
-                    int maxx = -1;
-                    int maxy = -1;
-                    for (int i = 0; i < width; i++) {
-                        for (int j = 0; j < height; j++) {
-                            if (ip.getPixel(i, j) > maximum) {
-                                maximum = ip.getPixel(i, j);
-                                maxx = i;
-                                maxy = j;
-                            }
-                        }
-                    }
-                    int shiftX = 0;
-                    int shiftY = 0;
-                    if (maxx != 0 || maxy != 0){
-                        ShiftDialog sd = new ShiftDialog(accBlWindow);
-                        if (maxy > height/2) {
-                            accBlWindow.log("Shifting donor after image up " + (height-maxy) + " pixel" + ((height-maxy)>1?"s":"") + ". (bl. corr.)");
-                            sd.shiftUp(donorCAfter, height-maxy);
-                        } else if (maxy != 0) {
-                            accBlWindow.log("Shifting donor after image down " + maxy + " pixel" + (maxy>1?"s":"") + ". (bl. corr.)");
-                            sd.shiftDown(donorCAfter, maxy);
-                        }
-                        if (maxx > width/2) {
-                            accBlWindow.log("Shifting donor after image to the left " + (width-maxx) + " pixel" + ((width-maxx)>1?"s":"") + ". (bl. corr.)");
-                            sd.shiftLeft(donorCAfter, width-maxx);
-                        } else if (maxx != 0) {
-                            accBlWindow.log("Shifting donor after image to the right " + maxx + " pixel" + (maxx>1?"s":"") + ". (bl. corr.)");
-                            sd.shiftRight(donorCAfter, maxx);
-                        }
-                        actionPerformed(new ActionEvent(registerButton, 1, "registerCImages"));
-                    } else {
-                        accBlWindow.log("Registration finished. Maximum: x=" + maxx + " y=" + maxy + " (bl. corr.)");
-                        registerButton.setBackground(accBlWindow.greenColor);
-                    }
+
+    // Evaluates the ROI mean and median transfer efficiency over a grid of correction factor values.
+    // The valid pixels of the ROI are collected once, then every grid point runs the transfer image
+    // kernel on these pixels only.
+    private void sensitivitySweep() {
+        FretKernel kernel = createFretKernel();
+        if (kernel == null) {
+            return;
+        }
+        String[] names = {"Donor bleaching", "Acceptor cross-talk", "Acceptor photoproduct", "Partial acceptor photobleaching"};
+        boolean[] enabled = {donorBlCorrMenuItem.isSelected(), accCrossTalkCorrMenuItem.isSelected(),
+                             accPhotoprCorrMenuItem.isSelected(), partialBlCorrMenuItem.isSelected() && !kernel.hasPartialBlMap()};
+        float[] base = kernel.getFactors();
+        GenericDialog gd = new GenericDialog("Sensitivity sweep");
+        for (int f = 0; f < names.length; f++) {
+            if (enabled[f]) {
+                gd.addNumericField(names[f] + " from:", base[f], 3);
+                gd.addNumericField(names[f] + " to:", base[f], 3);
+                gd.addNumericField(names[f] + " steps:", 1, 0);
+            }
+        }
+        if (gd.getNumericFields() == null) {
+            logError("No correction is selected in the Corrections menu.");
+            return;
+        }
+        gd.showDialog();
+        if (gd.wasCanceled()) {
+            return;
+        }
+        float[][] values = new float[names.length][];
+        int gridPoints = 1;
+        for (int f = 0; f < names.length; f++) {
+            if (!enabled[f]) {
+                values[f] = new float[] {base[f]};
+                continue;
+            }
+            double from = gd.getNextNumber();
+            double to = gd.getNextNumber();
+            int steps = (int)gd.getNextNumber();
+            if (gd.invalidNumber() || steps < 1) {
+                logError("Invalid sweep range is given for the " + names[f].toLowerCase() + " correction.");
+                return;
+            }
+            values[f] = new float[steps];
+            for (int s = 0; s < steps; s++) {
+                values[f][s] = (float)(steps > 1 ? from + (to - from) * s / (steps - 1) : from);
+            }
+            gridPoints *= steps;
+        }
+        if (gridPoints > SensitivitySweep.MAX_GRID_POINTS) {
+            logError("The sweep contains " + gridPoints + " grid points, at most " + SensitivitySweep.MAX_GRID_POINTS + " are allowed.");
+            return;
+        }
+
+        Roi roi = transferImage != null && transferImage.getRoi() != null ? transferImage.getRoi() : donorBefore.getRoi();
+        if (roi == null) {
+            logWarning("No ROI is defined, the sweep is calculated for the whole image.");
+        }
+        SensitivitySweep sweep = new SensitivitySweep(kernel, roiMasks.get(roi, donorBefore.getWidth(), donorBefore.getHeight()), donorBefore.getWidth());
+        float[][] grid = new float[gridPoints][names.length];
+        for (int g = 0; g < gridPoints; g++) {
+            int rest = g;
+            for (int f = 0; f < names.length; f++) {
+                grid[g][f] = values[f][rest % values[f].length];
+                rest /= values[f].length;
+            }
+        }
+        double[] means = new double[gridPoints];
+        double[] medians = new double[gridPoints];
+        int[] counts = new int[gridPoints];
+        sweep.evaluate(grid, means, medians, counts, parallelism > 1 ? getForkJoinPool() : null);
+
+        ResultsTable sweepTable = new ResultsTable();
+        sweepTable.setPrecision(3);
+        for (int g = 0; g < gridPoints; g++) {
+            sweepTable.incrementCounter();
+            for (int f = 0; f < names.length; f++) {
+                if (enabled[f]) {
+                    sweepTable.addValue(names[f], grid[g][f]);
                 }
             }
-        } catch (Throwable t) {
-            accBlWindow.logException(t.toString(), t);
+            sweepTable.addValue("Pixels", counts[g]);
+            sweepTable.addValue("Mean", means[g]);
+            sweepTable.addValue("Median", medians[g]);
+        }
+        sweepTable.show("Sensitivity sweep");
+
+        // heat map of the mean: the first two swept factors are the x and y axes, further
+        // swept factors are stepped through the slices
+        int[] axes = new int[names.length];
+        int axisCount = 0;
+        for (int f = 0; f < names.length; f++) {
+            if (values[f].length > 1) {
+                axes[axisCount++] = f;
+            }
+        }
+        int mapWidth = axisCount > 0 ? values[axes[0]].length : 1;
+        int mapHeight = axisCount > 1 ? values[axes[1]].length : 1;
+        ImageStack stack = new ImageStack(mapWidth, mapHeight);
+        for (int slice = 0; slice < gridPoints / (mapWidth * mapHeight); slice++) {
+            float[] map = new float[mapWidth * mapHeight];
+            for (int i = 0; i < map.length; i++) {
+                map[i] = (float)means[slice * map.length + i];
+            }
+            String label = "";
+            for (int a = 2; a < axisCount; a++) {
+                label += names[axes[a]] + "=" + grid[slice * map.length][axes[a]] + " ";
+            }
+            stack.addSlice(label.trim(), new FloatProcessor(mapWidth, mapHeight, map, null));
+        }
+        ImagePlus heatMap = new ImagePlus("Sensitivity sweep (mean E)", stack);
+        heatMap.getProcessor().resetMinAndMax();
+        heatMap.show();
+        String axesText = axisCount > 0 ? " x: " + names[axes[0]].toLowerCase() : "";
+        if (axisCount > 1) {
+            axesText += ", y: " + names[axes[1]].toLowerCase();
         }
+        log("Sensitivity sweep: " + gridPoints + " grid points on " + sweep.getPixelCount() + " pixels." + axesText);
     }
-}
 
 
-class AcceptorCTCorrDialog extends JDialog implements ActionListener{
-    private AccPbFRET_Plugin accBlWindow;
-    private ImagePlus donorCBefore, acceptorCBefore;
-    private JPanel panel;
-    private JButton setDonorBeforeButton, setAcceptorBeforeButton;
-    private JButton setDonorBeforeThresholdButton, setAcceptorBeforeThresholdButton, calculateButton, setButton;
-    private JButton subtractDonorBeforeButton, subtractAcceptorBeforeButton;
-    private JButton resetButton;
-    private ButtonGroup buttonGroup;
-    private JRadioButton averagesButton, quotientsButton;
-    private JLabel mode1ResultLabel, mode2ResultLabel;
-    private JCheckBox showCTCImagesCB;
+    // In survey mode the channels of the opened LSM images are binned when they are set. Returns the bin factor.
+    private int binLoadedChannel(ImagePlus image) {
+        if (loadingBin > 1) {
+            image.setProcessor(image.getTitle(), image.getProcessor().bin(loadingBin));
+        }
+        return loadingBin;
+    }
 
-    public AcceptorCTCorrDialog(AccPbFRET_Plugin accBlWindow) {
-        setTitle("Acceptor cross-talk correction factor");
-        this.accBlWindow = accBlWindow;
-        setDefaultCloseOperation(JFrame.DISPOSE_ON_CLOSE);
-        setModal(false);
-        createDialogGui();
-        Dimension screen = Toolkit.getDefaultToolkit().getScreenSize();
-        setSize(300, 380);
-        setLocation((screen.width - getWidth())/2, (screen.height - getHeight())/2);
+
+    // Bin factor of the image set as donor before bleaching (1 at full resolution).
+    private int binFactor() {
+        if (donorBefore == null) {
+            return 1;
+        }
+        return pipelineOf(donorBefore).getBinFactor();
     }
 
-    public void createDialogGui() {
-        GridBagLayout gridbaglayout = new GridBagLayout();
-        GridBagConstraints gc = new GridBagConstraints();
-        panel = new JPanel();
-        panel.setLayout(gridbaglayout);
 
-        gc.insets = new Insets(2,2,6,2);
-        gc.fill = GridBagConstraints.BOTH;
-        gc.gridwidth = GridBagConstraints.REMAINDER;
-        gc.gridx = 0;
-        gc.gridy = 0;
-        JLabel infoLabel = new JLabel("<html><center>This factor is calculated based on images of donor and acceptor channels of an acceptor only labeled sample, before photobleaching.</center></html>");
-        panel.add(infoLabel, gc);
-        gc.insets = new Insets(2,2,2,2);
-        gc.gridwidth = 3;
-        gc.gridx = 0;
-        gc.gridy = 1;
-        setDonorBeforeButton = new JButton("Set donor before bleaching (acc. only)");
-        setDonorBeforeButton.addActionListener(this);
-        setDonorBeforeButton.setActionCommand("setDonorCBefore");
-        panel.add(setDonorBeforeButton, gc);
+    private ChannelPipeline pipelineOf(ImagePlus image) {
+        ChannelPipeline pipeline = pipelines.get(image);
+        if (pipeline == null) {
+            pipeline = new ChannelPipeline(image.getProcessor());
+            pipelines.put(image, pipeline);
+        }
+        return pipeline;
+    }
+
+
+    private void clearPipelineRegion(ImagePlus image, Rectangle region) {
+        pipelineOf(image).clear(region);
+        showPipelineOutput(image);
+    }
+
+
+    // Shows the output of the channel pipeline, recalculating only the outdated stages. If a stage is
+    // recalculated, manual changes of the image are replaced (the threshold is a stage of the pipeline);
+    // if none is, the displayed image is left as it is. The transfer image calculated from the previous
+    // output is marked as outdated, Measure calculates it again.
+    private void showPipelineOutput(ImagePlus image) {
+        ChannelPipeline pipeline = pipelineOf(image);
+        float[] output = pipeline.update();
+        if (output == null) {
+            return;
+        }
+        FloatProcessor fp = new FloatProcessor(image.getWidth(), image.getHeight(), output, null);
+        fp.setColorModel(image.getProcessor().getColorModel());
+        image.setProcessor(image.getTitle(), fp);
+        image.updateAndDraw();
+        if (transferImage != null && !transferImageOutdated
+                && (image == donorBefore || image == donorAfter || image == acceptorBefore || image == acceptorAfter)) {
+            transferImageOutdated = true;
+            log("The transfer image is outdated, it is calculated again by Measure.");
+        }
+        if (debugMenuItem.isSelected()) {
+            int stages = pipeline.getUpdatedStages();
+            log("Recalculated " + stages + " processing stage" + (stages != 1 ? "s" : "") + " of " + image.getTitle() + ".");
+        }
+        schedulePreview();
+    }
+
+
+    // Sets the threshold stage of the pipeline of a channel image. A threshold set on the image with
+    // Image > Adjust > Threshold is offered as the limits, otherwise the current limits of the pipeline
+    // or the default automatic threshold of the image.
+    private void thresholdChannel(ImagePlus image, JButton thresholdButton) {
+        ChannelPipeline pipeline = pipelineOf(image);
+        ImageProcessor ip = image.getProcessor();
+        double lower = pipeline.getLowerThreshold();
+        double upper = pipeline.getUpperThreshold();
+        if (ip.getMinThreshold() != ImageProcessor.NO_THRESHOLD) {
+            lower = ip.getMinThreshold();
+            upper = ip.getMaxThreshold();
+        } else if (!pipeline.isThresholded()) {
+            ip.setAutoThreshold("Default dark");
+            lower = ip.getMinThreshold();
+            upper = ip.getMaxThreshold();
+            ip.resetThreshold();
+        }
+        int mode = pipeline.isThresholded() ? pipeline.getThresholdMode() : ChannelPipeline.THRESHOLD_NAN;
+        GenericDialog gd = new GenericDialog("Threshold of " + image.getTitle());
+        gd.addMessage("The pixels outside the limits are background pixels. The threshold is applied\n" +
+                      "again whenever the background, the registration or the blur of the image changes.");
+        gd.addNumericField("Lower limit:", lower, 3);
+        gd.addNumericField("Upper limit:", upper, 3);
+        gd.addChoice("Background pixels:", ChannelPipeline.THRESHOLD_MODES, ChannelPipeline.THRESHOLD_MODES[mode]);
+        gd.showDialog();
+        if (gd.wasCanceled()) {
+            return;
+        }
+        lower = gd.getNextNumber();
+        upper = gd.getNextNumber();
+        mode = gd.getNextChoiceIndex();
+        if (mode != ChannelPipeline.THRESHOLD_NONE && (gd.invalidNumber() || lower > upper)) {
+            logError("The lower limit of the threshold has to be a number not greater than the upper limit.");
+            return;
+        }
+        pipeline.setThreshold((float)lower, (float)upper, mode);
+        showPipelineOutput(image);
+        if (mode == ChannelPipeline.THRESHOLD_NONE) {
+            log("Threshold of " + image.getTitle() + ": none.");
+            thresholdButton.setBackground(originalButtonColor);
+        } else {
+            log("Threshold of " + image.getTitle() + ": " + (float)lower + " - " + (float)upper + ", background pixels set to " +
+                ChannelPipeline.THRESHOLD_MODES[mode] + ".");
+            thresholdButton.setBackground(greenColor);
+        }
+    }
+
+
+    private synchronized ForkJoinPool getForkJoinPool() {
+        if (forkJoinPool == null) {
+            forkJoinPool = new ForkJoinPool(parallelism);
+        }
+        return forkJoinPool;
+    }
+
+
+    private void resetAll() {
+        pipelines.clear();
+        donorBefore = null;
+        donorAfter = null;
+        acceptorBefore = null;
+        acceptorAfter = null;
+        setDonorBeforeButton.setBackground(originalButtonColor);
+        setDonorAfterButton.setBackground(originalButtonColor);
+        setAcceptorBeforeButton.setBackground(originalButtonColor);
+        setAcceptorAfterButton.setBackground(originalButtonColor);
+        registerButton.setBackground(originalButtonColor);
+        subtractDonorBeforeButton.setBackground(originalButtonColor);
+        subtractDonorAfterButton.setBackground(originalButtonColor);
+        subtractAcceptorBeforeButton.setBackground(originalButtonColor);
+        subtractAcceptorAfterButton.setBackground(originalButtonColor);
+        smoothDonorBeforeButton.setBackground(originalButtonColor);
+        smoothDonorAfterButton.setBackground(originalButtonColor);
+        smoothAcceptorBeforeButton.setBackground(originalButtonColor);
+        smoothAcceptorAfterButton.setBackground(originalButtonColor);
+        thresholdDonorBeforeButton.setBackground(originalButtonColor);
+        thresholdDonorAfterButton.setBackground(originalButtonColor);
+        thresholdAcceptorBeforeButton.setBackground(originalButtonColor);
+        thresholdAcceptorAfterButton.setBackground(originalButtonColor);
+        calculateDBCorrButton.setBackground(originalButtonColor);
+        calculateAccCTCorrButton.setBackground(originalButtonColor);
+        calculateAccPPCorrButton.setBackground(originalButtonColor);
+        calculatePartialBlCorrButton.setBackground(originalButtonColor);
+
+        flushResults(true);
+        nextButton.setVisible(false);
+        logScrollPane.setPreferredSize(new Dimension(10,10));
+        currentlyProcessedFile = 0;
+        automaticallyProcessedFiles = null;
+        currentlyProcessedFileName = null;
+    }
+
+
+    private void resetAllButtonColors() {
+        setDonorBeforeButton.setBackground(originalButtonColor);
+        setDonorAfterButton.setBackground(originalButtonColor);
+        setAcceptorBeforeButton.setBackground(originalButtonColor);
+        setAcceptorAfterButton.setBackground(originalButtonColor);
+        registerButton.setBackground(originalButtonColor);
+        subtractDonorBeforeButton.setBackground(originalButtonColor);
+        subtractDonorAfterButton.setBackground(originalButtonColor);
+        subtractAcceptorBeforeButton.setBackground(originalButtonColor);
+        subtractAcceptorAfterButton.setBackground(originalButtonColor);
+        smoothDonorBeforeButton.setBackground(originalButtonColor);
+        smoothDonorAfterButton.setBackground(originalButtonColor);
+        smoothAcceptorBeforeButton.setBackground(originalButtonColor);
+        smoothAcceptorAfterButton.setBackground(originalButtonColor);
+        thresholdDonorBeforeButton.setBackground(originalButtonColor);
+        thresholdDonorAfterButton.setBackground(originalButtonColor);
+        thresholdAcceptorBeforeButton.setBackground(originalButtonColor);
+        thresholdAcceptorAfterButton.setBackground(originalButtonColor);
+        calculateDBCorrButton.setBackground(originalButtonColor);
+        calculateAccCTCorrButton.setBackground(originalButtonColor);
+        calculateAccPPCorrButton.setBackground(originalButtonColor);
+        calculatePartialBlCorrButton.setBackground(originalButtonColor);
+    }
+
+
+    public void log(String text) {
+	    try{
+	        log.getDocument().insertString(log.getDocument().getLength(), "\n" + format.format(new Date()) + " " + text, log.getStyle("BLACK"));
+	        log.setCaretPosition(log.getDocument().getLength());
+    	} catch (javax.swing.text.BadLocationException e) {}
+    }
+
+
+    public void logError(String text) {
+	    try{
+	        log.getDocument().insertString(log.getDocument().getLength(), "\n" + format.format(new Date()) + " ERROR: " + text, log.getStyle("RED"));
+	        log.setCaretPosition(log.getDocument().getLength());
+    	} catch (javax.swing.text.BadLocationException e) {}
+    }
+
+
+    public void logWarning(String text) {
+	    try{
+	        log.getDocument().insertString(log.getDocument().getLength(), "\n" + format.format(new Date()) + " WARNING: " + text, log.getStyle("BLUE"));
+	        log.setCaretPosition(log.getDocument().getLength());
+    	} catch (javax.swing.text.BadLocationException e) {}
+    }
+
+
+    public void logException(String message, Throwable t) {
+    	try{
+    	    if (debugMenuItem.isSelected()) {
+                StringWriter sw = new StringWriter();
+                PrintWriter pw = new PrintWriter(sw);
+                t.printStackTrace(pw);
+                pw.flush();
+	            log.getDocument().insertString(log.getDocument().getLength(), "\n" + format.format(new Date()) + " ERROR: " + sw.toString(), log.getStyle("RED"));
+                log.setCaretPosition(log.getDocument().getLength());
+            } else {
+	            log.getDocument().insertString(log.getDocument().getLength(), "\n" + format.format(new Date()) + " ERROR: " + message, log.getStyle("RED"));
+                log.setCaretPosition(log.getDocument().getLength());
+            }
+    	} catch (javax.swing.text.BadLocationException e) {}
+    }
+
+
+    public void exit() {
+    	int choice = JOptionPane.showConfirmDialog(this, "Do you really want to exit?", "Exit", JOptionPane.OK_CANCEL_OPTION);
+        if(choice == JOptionPane.YES_OPTION) {
+            if (shiftDialog != null) {
+                shiftDialog.setVisible(false);
+                shiftDialog.dispose();
+            }
+            if (donorBlCorrDialog != null) {
+                donorBlCorrDialog.setVisible(false);
+                donorBlCorrDialog.dispose();
+            }
+            if (acceptorCTCorrDialog != null) {
+                acceptorCTCorrDialog.setVisible(false);
+                acceptorCTCorrDialog.dispose();
+            }
+            if (applyMaskDialog != null) {
+                applyMaskDialog.setVisible(false);
+                applyMaskDialog.dispose();
+            }
+            if (calculateImgRatioDialog != null) {
+                calculateImgRatioDialog.setVisible(false);
+                calculateImgRatioDialog.dispose();
+            }
+            if (helpWindow != null) {
+                helpWindow.setVisible(false);
+                helpWindow.dispose();
+            }
+            if (forkJoinPool != null) {
+                forkJoinPool.shutdown();
+                forkJoinPool = null;
+            }
+            stopPreview();
+            ImagePlus.removeImageListener(framePool);
+            framePool.clear();
+            ImagePlus.removeImageListener(validityMasks);
+            validityMasks.clear();
+            ImagePlus.removeImageListener(pipelineListener);
+            pipelines.clear();
+            setVisible(false);
+            dispose();
+        }
+    }
+
+
+	public void windowClosing(WindowEvent e){
+		exit();
+	}
+
+
+	public void windowActivated(WindowEvent e){}
+
+
+	public void windowClosed(WindowEvent e){}
+
+
+	public void windowDeactivated(WindowEvent e){}
+
+
+	public void windowDeiconified(WindowEvent e){}
+
+
+	public void windowIconified(WindowEvent e){}
+
+
+	public void windowOpened(WindowEvent e){}
+
+
+    public ImagePlus getDonorBefore() {
+        return donorBefore;
+    }
+
+
+    public ImagePlus getDonorAfter() {
+        return donorAfter;
+    }
+
+
+    public FrameBufferPool getFramePool() {
+        return framePool;
+    }
+
+
+    public ValidityMaskCache getValidityMasks() {
+        return validityMasks;
+    }
+
+
+    public void setBleachingCorrection(String value) {
+        donorBlCorrField.setText(value);
+    }
+
+
+    public void setCrosstalkCorrection(String value) {
+        accCrossTalkCorrField.setText(value);
+    }
+
+
+    public void setPhotoproductCorrection(String value) {
+        accPhotoprCorrField.setText(value);
+    }
+
+
+    // Implemented by the classes compiled from custom transfer efficiency formulas. It has to be
+    // public, because the compiled classes are defined by their own class loader.
+    public interface FretFormula {
+        void compute(float[] donorBefore, float[] donorAfter, float[] acceptorBefore, float[] acceptorAfter, float[] out, int from, int to,
+                     float donorBlCorr, float acceptorCTCorr, float acceptorPPCorr, float partialBlCorr);
+    }
+
+
+    // Loop of the formulas without partial photobleaching correction on SIMD registers (see FretVectorKernel).
+    public interface FretVectorLoop {
+        void compute(float[] donorBefore, float[] donorAfter, float[] acceptorBefore, float[] out, int from, int to,
+                     float donorBlCorr, float acceptorCTCorr, float acceptorPPCorr,
+                     boolean crossTalkCorr, boolean photoproductCorr, boolean acceptorAsMask);
+    }
+
+
+    public static void main(String args[]) {
+        new AccPbFRET_Plugin();
+    }
+
+}
+
+
+class ApplyMaskDialog extends JDialog implements ActionListener{
+    private AccPbFRET_Plugin accBlWindow;
+    private ImagePlus toMaskImg, maskImg;
+    private JPanel panel;
+    private JButton setToMaskImgButton, setMaskImgButton, createImagesButton;
+
+    public ApplyMaskDialog(AccPbFRET_Plugin accBlWindow) {
+        setTitle("Apply mask to an image");
+        this.accBlWindow = accBlWindow;
+        setDefaultCloseOperation(JFrame.DISPOSE_ON_CLOSE);
+        setModal(false);
+        createDialogGui();
+        Dimension screen = Toolkit.getDefaultToolkit().getScreenSize();
+        setSize(275, 240);
+        setLocation((screen.width - getWidth())/2, (screen.height - getHeight())/2);
+    }
+
+    public void createDialogGui() {
+        GridBagLayout gridbaglayout = new GridBagLayout();
+        GridBagConstraints gc = new GridBagConstraints();
+        panel = new JPanel();
+        panel.setLayout(gridbaglayout);
+
+        gc.insets = new Insets(2,2,6,2);
+        gc.fill = GridBagConstraints.BOTH;
+        gc.gridwidth = 2;
+        gc.gridx = 0;
+        gc.gridy = 0;
+        JLabel infoLabel = new JLabel("<html><center>After setting an image to mask and a mask image (with NaN background pixels), two images will be created. The first one will contain the pixles which are not NaN in the mask, and the second one the others.</center></html>");
+        panel.add(infoLabel, gc);
+        gc.insets = new Insets(2,2,2,2);
+        gc.gridx = 0;
+        gc.gridy = 1;
+        setToMaskImgButton = new JButton("Set image to be masked");
+        setToMaskImgButton.addActionListener(this);
+        setToMaskImgButton.setActionCommand("setImageToMask");
+        panel.add(setToMaskImgButton, gc);
+        gc.gridx = 0;
+        gc.gridy = 2;
+        setMaskImgButton = new JButton("Set mask image (with NaN bg. pixels)");
+        setMaskImgButton.addActionListener(this);
+        setMaskImgButton.setActionCommand("setMaskImage");
+        panel.add(setMaskImgButton, gc);
+        gc.gridx = 0;
+        gc.gridy = 3;
+        createImagesButton = new JButton("Create masked images");
+        createImagesButton.addActionListener(this);
+        createImagesButton.setActionCommand("createImages");
+        panel.add(createImagesButton, gc);
+
+        getContentPane().add(panel);
+    }
+
+    public void actionPerformed(ActionEvent e) {
+    	try {
+            if (e.getActionCommand().equals("setImageToMask")) {
+                toMaskImg = WindowManager.getCurrentImage();
+      	        if (toMaskImg == null) {
+                    accBlWindow.logError("No image is selected. (Masking)");
+                    return;
+                }
+                if (toMaskImg.getImageStackSize() > 1) {
+                   accBlWindow.logError("Current image contains more than 1 channel ("+toMaskImg.getImageStackSize()+"). Please split it into parts. (Masking)");
+                   toMaskImg = null;
+                   return;
+                } else if (toMaskImg.getNSlices() > 1) {
+                   accBlWindow.logError("Current image contains more than 1 slice ("+toMaskImg.getNSlices()+"). Please split it into parts. (Masking)");
+                   toMaskImg = null;
+                   return;
+                }
+                toMaskImg.setTitle("Image to mask - " + new Date().toString());
+                new ImageConverter(toMaskImg).convertToGray32();
+                setToMaskImgButton.setBackground(accBlWindow.greenColor);
+      	    } else if (e.getActionCommand().equals("setMaskImage")) {
+                maskImg = WindowManager.getCurrentImage();
+      	        if (maskImg == null) {
+                    accBlWindow.logError("No image is selected. (Masking)");
+                    return;
+                }
+                if (maskImg.getImageStackSize() > 1) {
+                   accBlWindow.logError("Current image contains more than 1 channel ("+maskImg.getImageStackSize()+"). Please split it into parts. (Masking)");
+                   maskImg = null;
+                   return;
+                } else if (maskImg.getNSlices() > 1) {
+                   accBlWindow.logError("Current image contains more than 1 slice ("+maskImg.getNSlices()+"). Please split it into parts. (Masking)");
+                   maskImg = null;
+                   return;
+                }
+                maskImg.setTitle("Mask image - " + new Date().toString());
+                new ImageConverter(maskImg).convertToGray32();
+                setMaskImgButton.setBackground(accBlWindow.greenColor);
+      	    } else if (e.getActionCommand().equals("createImages")) {
+      	        if (toMaskImg == null) {
+                    accBlWindow.logError("No image to mask is set. (Masking)");
+                    return;
+                } else if (maskImg == null) {
+                    accBlWindow.logError("No mask image is set. (Masking)");
+                    return;
+                }
+                ImageProcessor ipTM = toMaskImg.getProcessor();
+
+                float[] ipTMP = (float[])ipTM.getPixels();
+
+                int width = ipTM.getWidth();
+                int height = ipTM.getHeight();
+                FrameBufferPool framePool = accBlWindow.getFramePool();
+                float[] img1Pixels = framePool.borrow(width, height);
+                float[] img2Pixels = framePool.borrow(width, height);
+                long[] valid = accBlWindow.getValidityMasks().get(maskImg);
+                for (int w = 0; w < (img1Pixels.length + 63) >>> 6; w++) {
+                    int start = w << 6;
+                    int end = Math.min(img1Pixels.length, start + 64);
+                    if (valid[w] == 0) {
+                        Arrays.fill(img1Pixels, start, end, Float.NaN);
+                        System.arraycopy(ipTMP, start, img2Pixels, start, end - start);
+                    } else if (valid[w] == -1L) {
+                        System.arraycopy(ipTMP, start, img1Pixels, start, end - start);
+                        Arrays.fill(img2Pixels, start, end, Float.NaN);
+                    } else {
+                        for (int i = start; i < end; i++) {
+                            if (ValidityMaskCache.isValid(valid, i)) {
+                                img1Pixels[i] = ipTMP[i];
+                                img2Pixels[i] = Float.NaN;
+                            } else {
+                                img1Pixels[i] = Float.NaN;
+                                img2Pixels[i] = ipTMP[i];
+                            }
+                        }
+                    }
+                }
+                FloatProcessor fp1 = new FloatProcessor(width, height, img1Pixels, null);
+                FloatProcessor fp2 = new FloatProcessor(width, height, img2Pixels, null);
+                ImagePlus img2 = new ImagePlus("Masked image 2 (pixels outside the mask)", fp2);
+                framePool.attach(img2, img2Pixels);
+                img2.show();
+                ImagePlus img1 = new ImagePlus("Masked image 1 (pixels in the mask)", fp1);
+                framePool.attach(img1, img1Pixels);
+                img1.show();
+           }
+        } catch (Throwable t) {
+            accBlWindow.logException(t.toString(), t);
+        }
+    }
+}
+
+
+class CalculateImgRatioDialog extends JDialog implements ActionListener{
+    private AccPbFRET_Plugin accBlWindow;
+    private ImagePlus firstImg, secondImg;
+    private JPanel panel;
+    private JButton setFirstImgButton, setSecondImgButton, createRatioImageButton;
+    private JCheckBox useMainWindowImages;
+
+    public CalculateImgRatioDialog (AccPbFRET_Plugin accBlWindow) {
+        setTitle("Calculate ratio of two images");
+        this.accBlWindow = accBlWindow;
+        setDefaultCloseOperation(JFrame.DISPOSE_ON_CLOSE);
+        setModal(false);
+        createDialogGui();
+        Dimension screen = Toolkit.getDefaultToolkit().getScreenSize();
+        setSize(275, 250);
+        setLocation((screen.width - getWidth())/2, (screen.height - getHeight())/2);
+    }
+
+    public void createDialogGui() {
+        GridBagLayout gridbaglayout = new GridBagLayout();
+        GridBagConstraints gc = new GridBagConstraints();
+        panel = new JPanel();
+        panel.setLayout(gridbaglayout);
+
+        gc.insets = new Insets(2,2,6,2);
+        gc.fill = GridBagConstraints.BOTH;
+        gc.gridwidth = 2;
+        gc.gridx = 0;
+        gc.gridy = 0;
+        JLabel infoLabel = new JLabel("<html><center>After setting the two images and pressing the \"Create ratio image\" button, the ratio of the images (image 1 / image 2) will be calculated pixel-by-pixel and displayed as a new 32 bit image.</center></html>");
+        panel.add(infoLabel, gc);
+        gc.insets = new Insets(2,2,2,2);
+        gc.gridx = 0;
+        gc.gridy = 1;
+        useMainWindowImages = new JCheckBox("use images of the main window (1a/1b)", false);
+        useMainWindowImages.setActionCommand("useMainWindowImages");
+        useMainWindowImages.addActionListener(this);
+        useMainWindowImages.setToolTipText("<html>If this checkbox is checked, donor before and after bleaching<BR>images which are set in the main window will be used as<BR>image 1 and image 2.</html>");
+        panel.add(useMainWindowImages, gc);
+        gc.gridx = 0;
+        gc.gridy = 2;
+        setFirstImgButton = new JButton("Set first image (numerator)");
+        setFirstImgButton.addActionListener(this);
+        setFirstImgButton.setActionCommand("setFirstImage");
+        panel.add(setFirstImgButton, gc);
+        gc.gridx = 0;
+        gc.gridy = 3;
+        setSecondImgButton = new JButton("Set second image (denominator)");
+        setSecondImgButton.addActionListener(this);
+        setSecondImgButton.setActionCommand("setSecondImage");
+        panel.add(setSecondImgButton, gc);
+        gc.gridx = 0;
+        gc.gridy = 4;
+        createRatioImageButton = new JButton("Create ratio image");
+        createRatioImageButton.addActionListener(this);
+        createRatioImageButton.setActionCommand("createRatioImage");
+        panel.add(createRatioImageButton, gc);
+
+        getContentPane().add(panel);
+    }
+
+    public void actionPerformed(ActionEvent e) {
+    	try {
+            if (e.getActionCommand().equals("setFirstImage")) {
+                firstImg = WindowManager.getCurrentImage();
+      	        if (firstImg == null) {
+                    accBlWindow.logError("No image is selected. (Ratio)");
+                    return;
+                }
+                if (firstImg.getImageStackSize() > 1) {
+                   accBlWindow.logError("Current image contains more than 1 channel ("+firstImg.getImageStackSize()+"). Please split it into parts. (Ratio)");
+                   firstImg = null;
+                   return;
+                } else if (firstImg.getNSlices() > 1) {
+                   accBlWindow.logError("Current image contains more than 1 slice ("+firstImg.getNSlices()+"). Please split it into parts. (Ratio)");
+                   firstImg = null;
+                   return;
+                }
+                firstImg.setTitle("Image 1 - " + new Date().toString());
+                new ImageConverter(firstImg).convertToGray32();
+                setFirstImgButton.setBackground(accBlWindow.greenColor);
+      	    } else if (e.getActionCommand().equals("setSecondImage")) {
+                secondImg = WindowManager.getCurrentImage();
+      	        if (secondImg == null) {
+                    accBlWindow.logError("No image is selected. (Ratio)");
+                    return;
+                }
+                if (secondImg.getImageStackSize() > 1) {
+                   accBlWindow.logError("Current image contains more than 1 channel ("+secondImg.getImageStackSize()+"). Please split it into parts. (Ratio)");
+                   secondImg = null;
+                   return;
+                } else if (secondImg.getNSlices() > 1) {
+                   accBlWindow.logError("Current image contains more than 1 slice ("+secondImg.getNSlices()+"). Please split it into parts. (Ratio)");
+                   secondImg = null;
+                   return;
+                }
+                secondImg.setTitle("Image 2 - " + new Date().toString());
+                new ImageConverter(secondImg).convertToGray32();
+                setSecondImgButton.setBackground(accBlWindow.greenColor);
+            } else if (e.getActionCommand().equals("useMainWindowImages")) {
+          	    if (useMainWindowImages.isSelected()) {
+	                setFirstImgButton.setEnabled(false);
+	                setSecondImgButton.setEnabled(false);
+       	        } else {
+	                setFirstImgButton.setEnabled(true);
+	                setSecondImgButton.setEnabled(true);
+          	    }
+      	    } else if (e.getActionCommand().equals("createRatioImage")) {
+      	        ImageProcessor ip1 = null;
+      	        ImageProcessor ip2 = null;
+      	        if (!useMainWindowImages.isSelected()) {
+                    if (firstImg == null) {
+                        accBlWindow.logError("No image 1 is set. (Ratio)");
+                        return;
+                    } else if (secondImg == null) {
+                        accBlWindow.logError("No image 2 is set. (Ratio)");
+                        return;
+                    }
+                    ip1 = firstImg.getProcessor();
+                    ip2 = secondImg.getProcessor();
+                } else {
+                    if (accBlWindow.getDonorBefore() == null) {
+                        accBlWindow.logError("No donor before bleaching image is set. (Ratio)");
+                        return;
+                    } else if (accBlWindow.getDonorAfter() == null) {
+                        accBlWindow.logError("No donor after image is set. (Ratio)");
+                        return;
+                    }
+                    ip1 = accBlWindow.getDonorBefore().getProcessor();
+                    ip2 = accBlWindow.getDonorAfter().getProcessor();
+                }
+
+                float[] ip1P = (float[])ip1.getPixels();
+                float[] ip2P = (float[])ip2.getPixels();
+
+                int width = ip1.getWidth();
+                int height = ip1.getHeight();
+                FrameBufferPool framePool = accBlWindow.getFramePool();
+                float[] ratioImgPixels = framePool.borrow(width, height);
+                for (int i = 0; i < ratioImgPixels.length; i++) {
+                    ratioImgPixels[i] = ip1P[i] / ip2P[i];
+                }
+                FloatProcessor fp = new FloatProcessor(width, height, ratioImgPixels, null);
+                ImagePlus ratioImg = new ImagePlus("Ratio of images", fp);
+                framePool.attach(ratioImg, ratioImgPixels);
+                ratioImg.show();
+           }
+        } catch (Throwable t) {
+            accBlWindow.logException(t.toString(), t);
+        }
+    }
+}
+
+
+class ShiftDialog extends JDialog implements ActionListener{
+    private AccPbFRET_Plugin accBlWindow;
+    JPanel panel;
+    JButton leftButton, rightButton, upButton, downButton;
+    JButton cancelButton = new JButton("Close");
+
+    public ShiftDialog(AccPbFRET_Plugin accBlWindow) {
+        setTitle("32bit image shifter");
+        this.accBlWindow = accBlWindow;
+        setDefaultCloseOperation(JFrame.HIDE_ON_CLOSE);
+        setModal(false);
+        createDialogGui();
+        getRootPane().setDefaultButton(cancelButton);
+        Dimension screen = Toolkit.getDefaultToolkit().getScreenSize();
+        setSize(150, 150);
+        setLocation((screen.width - getWidth())/2, (screen.height - getHeight())/2);
+    }
+
+    public void createDialogGui() {
+        GridBagLayout gridbaglayout = new GridBagLayout();
+        GridBagConstraints gc = new GridBagConstraints();
+        panel = new JPanel();
+        panel.setLayout(gridbaglayout);
+
+        gc.insets = new Insets(0,0,0,0);
+        gc.fill = GridBagConstraints.BOTH;
+        gc.gridwidth = 1;
+        gc.gridx = 1;
+        gc.gridy = 0;
+        upButton = new JButton("^");
+        upButton.addActionListener(this);
+        upButton.setActionCommand("up");
+        panel.add(upButton, gc);
+        gc.gridx = 0;
+        gc.gridy = 1;
+        leftButton = new JButton("<");
+        leftButton.addActionListener(this);
+        leftButton.setActionCommand("left");
+        panel.add(leftButton, gc);
+        gc.gridx = 2;
+        gc.gridy = 1;
+        rightButton = new JButton(">");
+        rightButton.addActionListener(this);
+        rightButton.setActionCommand("right");
+        panel.add(rightButton, gc);
+        gc.insets = new Insets(2,2,2,2);
+        gc.gridx = 1;
+        gc.gridy = 2;
+        downButton = new JButton("v");
+        downButton.addActionListener(this);
+        downButton.setActionCommand("down");
+        panel.add(downButton, gc);
+        gc.insets = new Insets(0,0,4,0);
+        gc.gridwidth = 3;
+        gc.gridx = 0;
+        gc.gridy = 3;
+        panel.add(cancelButton, gc);
+        cancelButton.addActionListener(this);
+        cancelButton.setActionCommand("cancel");
+
+        getContentPane().add(panel);
+    }
+
+    public void actionPerformed(ActionEvent e) {
+    	try {
+            if (e.getActionCommand().equals("cancel")) {
+	            setVisible(false);
+      	    } else if (e.getActionCommand().equals("up")) {
+                ImagePlus image = WindowManager.getCurrentImage();
+                shiftUp(image, 1);
+      	    } else if (e.getActionCommand().equals("down")) {
+                ImagePlus image = WindowManager.getCurrentImage();
+                shiftDown(image, 1);
+      	    } else if (e.getActionCommand().equals("left")) {
+                ImagePlus image = WindowManager.getCurrentImage();
+                shiftLeft(image, 1);
+      	    } else if (e.getActionCommand().equals("right")) {
+                ImagePlus image = WindowManager.getCurrentImage();
+                shiftRight(image, 1);
+            }
+        } catch (Throwable t) {
+            accBlWindow.logException(t.toString(), t);
+        }
+    }
+
+    public void shiftUp(ImagePlus image, int value){
+        if (image == null) {
+            return;
+        }
+        int width = image.getWidth();
+        int height = image.getHeight();
+        FloatProcessor fp = (FloatProcessor)image.getProcessor();
+        ColorModel cm = fp.getColorModel();
+
+        float[] fpPixels = (float[])fp.getPixels();
+        float[][] fpPixels2 = new float[width][height];
+        for (int i = 0; i < width; i++) {
+            for (int j = 0; j < height-value; j++) {
+                fpPixels2[i][j] = fpPixels[width*(j+value)+i];
+            }
+        }
+        FloatProcessor newFp = new FloatProcessor(fpPixels2);
+        newFp.setColorModel(cm);
+        image.setProcessor(image.getTitle(), newFp);
+        image.updateAndDraw();
+    }
+
+
+    public void shiftDown(ImagePlus image, int value){
+        if (image == null) {
+            return;
+        }
+        int width = image.getWidth();
+        int height = image.getHeight();
+        FloatProcessor fp = (FloatProcessor)image.getProcessor();
+        ColorModel cm = fp.getColorModel();
+
+        float[] fpPixels = (float[])fp.getPixels();
+        float[][] fpPixels2 = new float[width][height];
+        for (int i = 0; i < width; i++) {
+            for (int j = value; j < height; j++) {
+                fpPixels2[i][j] = fpPixels[width*(j-value)+i];
+            }
+        }
+        FloatProcessor newFp = new FloatProcessor(fpPixels2);
+        newFp.setColorModel(cm);
+        image.setProcessor(image.getTitle(), newFp);
+        image.updateAndDraw();
+    }
+
+
+    public void shiftLeft(ImagePlus image, int value){
+        if (image == null) {
+            return;
+        }
+        int width = image.getWidth();
+        int height = image.getHeight();
+        FloatProcessor fp = (FloatProcessor)image.getProcessor();
+        ColorModel cm = fp.getColorModel();
+
+        float[] fpPixels = (float[])fp.getPixels();
+        float[][] fpPixels2 = new float[width][height];
+        for (int i = 0; i < width-value; i++) {
+            for (int j = 0; j < height; j++) {
+                fpPixels2[i][j] = fpPixels[width*j+(i+value)];
+            }
+        }
+        FloatProcessor newFp = new FloatProcessor(fpPixels2);
+        newFp.setColorModel(cm);
+        image.setProcessor(image.getTitle(), newFp);
+        image.updateAndDraw();
+    }
+
+
+    public void shiftRight(ImagePlus image, int value){
+        if (image == null) {
+            return;
+        }
+        int width = image.getWidth();
+        int height = image.getHeight();
+        FloatProcessor fp = (FloatProcessor)image.getProcessor();
+        ColorModel cm = fp.getColorModel();
+
+        float[] fpPixels = (float[])fp.getPixels();
+        float[][] fpPixels2 = new float[width][height];
+        for (int i = value; i < width; i++) {
+            for (int j = 0; j < height; j++) {
+                fpPixels2[i][j] = fpPixels[width*j+(i-value)];
+            }
+        }
+        FloatProcessor newFp = new FloatProcessor(fpPixels2);
+        newFp.setColorModel(cm);
+        image.setProcessor(image.getTitle(), newFp);
+        image.updateAndDraw();
+    }
+}
+
+
+class DonorBlCorrDialog extends JDialog implements ActionListener{
+    private AccPbFRET_Plugin accBlWindow;
+    private ImagePlus donorCBefore, donorCAfter;
+    private JPanel panel;
+    private JButton setBeforeButton, setAfterButton, registerButton;
+    private JButton setBeforeThresholdButton, setAfterThresholdButton, calculateButton, setButton;
+    private JButton subtractBeforeButton, subtractAfterButton;
+    private JButton resetButton;
+    private ButtonGroup buttonGroup;
+    private JRadioButton averagesButton, quotientsButton;
+    private JLabel mode1ResultLabel, mode2ResultLabel;
+    private JCheckBox showBlCImagesCB;
+
+    public DonorBlCorrDialog(AccPbFRET_Plugin accBlWindow) {
+        setTitle("Donor bleaching correction factor");
+        this.accBlWindow = accBlWindow;
+        setDefaultCloseOperation(JFrame.DISPOSE_ON_CLOSE);
+        setModal(false);
+        createDialogGui();
+        Dimension screen = Toolkit.getDefaultToolkit().getScreenSize();
+        setSize(300, 410);
+        setLocation((screen.width - getWidth())/2, (screen.height - getHeight())/2);
+    }
+
+    public void createDialogGui() {
+        GridBagLayout gridbaglayout = new GridBagLayout();
+        GridBagConstraints gc = new GridBagConstraints();
+        panel = new JPanel();
+        panel.setLayout(gridbaglayout);
+
+        gc.insets = new Insets(2,2,6,2);
+        gc.fill = GridBagConstraints.BOTH;
+        gc.gridwidth = GridBagConstraints.REMAINDER;
+        gc.gridx = 0;
+        gc.gridy = 0;
+        JLabel infoLabel = new JLabel("<html><center>This factor is calculated based on images of the donor channel of a donor only labeled sample, before and after photobleaching.</center></html>");
+        panel.add(infoLabel, gc);
+        gc.insets = new Insets(2,2,2,2);
+        gc.gridwidth = 3;
+        gc.gridx = 0;
+        gc.gridy = 1;
+        setBeforeButton = new JButton("Set donor before bleaching (donor only)");
+        setBeforeButton.addActionListener(this);
+        setBeforeButton.setActionCommand("setCBefore");
+        panel.add(setBeforeButton, gc);
+        gc.gridx = 0;
+        gc.gridy = 2;
+        setAfterButton = new JButton("Set donor after bleaching (donor only)");
+        setAfterButton.addActionListener(this);
+        setAfterButton.setActionCommand("setCAfter");
+        panel.add(setAfterButton, gc);
+        gc.gridx = 0;
+        gc.gridy = 3;
+        registerButton = new JButton("Register images");
+        registerButton.addActionListener(this);
+        registerButton.setActionCommand("registerCImages");
+        panel.add(registerButton, gc);
+        gc.gridx = 0;
+        gc.gridy = 4;
+        subtractBeforeButton = new JButton("Subtract background of donor before");
+        subtractBeforeButton.addActionListener(this);
+        subtractBeforeButton.setActionCommand("subtractCBefore");
+        panel.add(subtractBeforeButton, gc);
+        gc.gridx = 0;
+        gc.gridy = 5;
+        subtractAfterButton = new JButton("Subtract background of donor after");
+        subtractAfterButton.addActionListener(this);
+        subtractAfterButton.setActionCommand("subtractCAfter");
+        panel.add(subtractAfterButton, gc);
+        gc.gridx = 0;
+        gc.gridy = 6;
+        setBeforeThresholdButton = new JButton("Set donor before threshold");
+        setBeforeThresholdButton.addActionListener(this);
+        setBeforeThresholdButton.setActionCommand("setCBeforeThreshold");
+        panel.add(setBeforeThresholdButton, gc);
+        gc.gridx = 0;
+        gc.gridy = 7;
+        setAfterThresholdButton = new JButton("Set donor after threshold");
+        setAfterThresholdButton.addActionListener(this);
+        setAfterThresholdButton.setActionCommand("setCAfterThreshold");
+        panel.add(setAfterThresholdButton, gc);
+        gc.gridx = 0;
+        gc.gridy = 8;
+        gc.gridheight = 2;
+        JPanel radioPanel = new JPanel();
+        GridBagLayout gbl = new GridBagLayout();
+        GridBagConstraints gcr = new GridBagConstraints();
+        radioPanel.setLayout(gbl);
+        gcr.insets = new Insets(0,4,4,4);
+        gcr.fill = GridBagConstraints.BOTH;
+        JLabel modeLabel = new JLabel("Mode:");
+        JLabel resultLabel = new JLabel("Result:");
+        mode1ResultLabel = new JLabel("", JLabel.CENTER);
+        mode2ResultLabel = new JLabel("", JLabel.CENTER);
+        quotientsButton = new JRadioButton("point-by-point");
+        quotientsButton.setToolTipText("The factor is the averaged ratio of corresponding pixel values in the donor before and after photobleaching images.");
+        averagesButton = new JRadioButton("average pixels");
+        averagesButton.setToolTipText("The factor is the ratio of the gated pixel averages in the donor before and after photobleaching images.");
+        quotientsButton.setSelected(true);
+        buttonGroup = new ButtonGroup();
+        buttonGroup.add(quotientsButton);
+        buttonGroup.add(averagesButton);
+        gcr.gridx = 0;
+        gcr.gridy = 0;
+        radioPanel.add(modeLabel, gcr);
+        gcr.gridx = 1;
+        gcr.gridy = 0;
+        radioPanel.add(quotientsButton, gcr);
+        gcr.gridx = 2;
+        gcr.gridy = 0;
+        radioPanel.add(averagesButton, gcr);
+        gcr.gridx = 0;
+        gcr.gridy = 1;
+        radioPanel.add(resultLabel, gcr);
+        gcr.gridx = 1;
+        gcr.gridy = 1;
+        radioPanel.add(mode1ResultLabel, gcr);
+        gcr.gridx = 2;
+        gcr.gridy = 1;
+        radioPanel.add(mode2ResultLabel, gcr);
+        panel.add(radioPanel, gc);
+        gc.gridx = 0;
+        gc.gridy = 10;
+        gc.gridheight = 1;
+        showBlCImagesCB = new JCheckBox("show correction image (for manual calc.)");
+        panel.add(showBlCImagesCB, gc);
+        gc.gridwidth = 1;
+        gc.gridheight = 1;
+        gc.gridx = 0;
+        gc.gridy = 11;
+        calculateButton = new JButton("Calculate");
+        calculateButton.addActionListener(this);
+        calculateButton.setActionCommand("calculate");
+        panel.add(calculateButton, gc);
+        gc.gridx = 1;
+        gc.gridy = 11;
+        setButton = new JButton("Set selected");
+        setButton.addActionListener(this);
+        setButton.setActionCommand("setfactor");
+        panel.add(setButton, gc);
+        gc.gridx = 2;
+        gc.gridy = 11;
+        resetButton = new JButton("Reset");
+        resetButton.addActionListener(this);
+        resetButton.setActionCommand("reset");
+        panel.add(resetButton, gc);
+
+        getContentPane().add(panel);
+    }
+
+    public void actionPerformed(ActionEvent e) {
+    	try {
+            if (e.getActionCommand().equals("reset")) {
+                donorCBefore = null;
+                donorCAfter = null;
+	            setBeforeButton.setBackground(accBlWindow.originalButtonColor);
+	            setAfterButton.setBackground(accBlWindow.originalButtonColor);
+	            setBeforeThresholdButton.setBackground(accBlWindow.originalButtonColor);
+                setAfterThresholdButton.setBackground(accBlWindow.originalButtonColor);
+                calculateButton.setBackground(accBlWindow.originalButtonColor);
+                setButton.setBackground(accBlWindow.originalButtonColor);
+                subtractBeforeButton.setBackground(accBlWindow.originalButtonColor);
+                subtractAfterButton.setBackground(accBlWindow.originalButtonColor);
+                registerButton.setBackground(accBlWindow.originalButtonColor);
+                mode1ResultLabel.setText("");
+                mode2ResultLabel.setText("");
+      	    } else if (e.getActionCommand().equals("setCBefore")) {
+                donorCBefore = WindowManager.getCurrentImage();
+      	        if (donorCBefore == null) {
+                    accBlWindow.logError("No image is selected. (bl. corr.)");
+                    return;
+                }
+                if (donorCBefore.getNChannels() > 1) {
+                   accBlWindow.logError("Current image contains more than 1 channel ("+donorCBefore.getNChannels()+"). Please split it into parts. (bl. corr.)");
+                   donorCBefore = null;
+                   return;
+                } else if (donorCBefore.getNSlices() > 1) {
+                   accBlWindow.logError("Current image contains more than 1 slice ("+donorCBefore.getNSlices()+"). Please split it into parts. (bl. corr.)");
+                   donorCBefore = null;
+                   return;
+                }
+                if (donorCBefore != null && donorCAfter != null && donorCBefore.equals(donorCAfter)) {
+                    accBlWindow.logError("The two images must not be the same. Please select and set an other image. (bl. corr.)");
+                    donorCBefore.setTitle("");
+                    donorCBefore = null;
+                    return;
+                }
+                donorCBefore.setTitle("Donor before bleaching (bl. corr.) - " + new Date().toString());
+                new ImageConverter(donorCBefore).convertToGray32();
+                setBeforeButton.setBackground(accBlWindow.greenColor);
+      	    } else if (e.getActionCommand().equals("setCAfter")) {
+                donorCAfter = WindowManager.getCurrentImage();
+      	        if (donorCAfter == null) {
+                    accBlWindow.logError("No image is selected. (bl. corr.)");
+                    return;
+                }
+                if (donorCAfter.getNChannels() > 1) {
+                   accBlWindow.logError("Current image contains more than 1 channel ("+donorCAfter.getNChannels()+"). Please split it into parts. (bl. corr.)");
+                   donorCAfter = null;
+                   return;
+                } else if (donorCAfter.getNSlices() > 1) {
+                   accBlWindow.logError("Current image contains more than 1 slice ("+donorCAfter.getNSlices()+"). Please split it into parts. (bl. corr.)");
+                   donorCAfter = null;
+                   return;
+                }
+                if (donorCBefore != null && donorCAfter != null && donorCBefore.equals(donorCAfter)) {
+                    accBlWindow.logError("The two images must not be the same. Please select and set an other image. (bl. corr.)");
+                    donorCAfter.setTitle("");
+                    donorCAfter = null;
+                    return;
+                }
+                donorCAfter.setTitle("Donor after bleaching (bl. corr.) - " + new Date().toString());
+                new ImageConverter(donorCAfter).convertToGray32();
+                setAfterButton.setBackground(accBlWindow.greenColor);
+      	    } else if (e.getActionCommand().equals("subtractCBefore")) {
+      	        if (donorCBefore == null) {
+                    accBlWindow.logError("No image is set as donor before bleaching. (bl. corr.)");
+                    return;
+                } else if (donorCBefore.getRoi() == null) {
+                    accBlWindow.logError("No ROI is defined for donor before bleaching. (bl. corr.)");
+                    return;
+                }
+                ImageProcessor ipDB = donorCBefore.getProcessor();
+                int width = donorCBefore.getWidth();
+                int height = donorCBefore.getHeight();
+                float backgroundAvgDB = accBlWindow.roiMean(donorCBefore);
+
+                float value = 0;
+                for (int x=0; x < width; x++) {
+                    for (int y=0; y < height; y++) {
+                        value = ipDB.getPixelValue(x,y);
+                        value = value - backgroundAvgDB;
+		                ipDB.putPixelValue(x, y, value);
+        		    }
+		        }
+		        donorCBefore.updateAndDraw();
+		        donorCBefore.killRoi();
+                accBlWindow.log("Subtracted background ("+backgroundAvgDB+") of donor before bleaching. (bl. corr.)");
+                subtractBeforeButton.setBackground(accBlWindow.greenColor);
+      	    } else if (e.getActionCommand().equals("subtractCAfter")) {
+      	        if (donorCAfter == null) {
+                    accBlWindow.logError("No image is set as donor after bleaching. (bl. corr.)");
+                    return;
+                } else if (donorCAfter.getRoi() == null) {
+                    accBlWindow.logError("No ROI is defined for donor after bleaching. (bl. corr.)");
+                    return;
+                }
+                ImageProcessor ipDA = donorCAfter.getProcessor();
+                int width = donorCAfter.getWidth();
+                int height = donorCAfter.getHeight();
+                float backgroundAvgDA = accBlWindow.roiMean(donorCAfter);
+
+                float value = 0;
+                for (int x=0; x < width; x++) {
+                    for (int y=0; y < height; y++) {
+                        value = ipDA.getPixelValue(x,y);
+                        value = value - backgroundAvgDA;
+		                ipDA.putPixelValue(x, y, value);
+        		    }
+		        }
+		        donorCAfter.updateAndDraw();
+		        donorCAfter.killRoi();
+                accBlWindow.log("Subtracted background ("+backgroundAvgDA+") of donor after bleaching. (bl. corr.)");
+                subtractAfterButton.setBackground(accBlWindow.greenColor);
+      	    } else if (e.getActionCommand().equals("setCBeforeThreshold")) {
+      	        if (donorCBefore == null) {
+                    accBlWindow.logError("No image is set as donor before bleaching. (bl. corr.)");
+                    return;
+                }
+                IJ.selectWindow(donorCBefore.getTitle());
+                IJ.run("Threshold...");
+                setBeforeThresholdButton.setBackground(accBlWindow.greenColor);
+      	    } else if (e.getActionCommand().equals("setCAfterThreshold")) {
+      	        if (donorCAfter == null) {
+                    accBlWindow.logError("No image is set as donor after bleaching. (bl. corr.)");
+                    return;
+                }
+                IJ.selectWindow(donorCAfter.getTitle());
+                IJ.run("Threshold...");
+                setAfterThresholdButton.setBackground(accBlWindow.greenColor);
+      	    } else if (e.getActionCommand().equals("calculate")) {
+                if (donorCBefore == null) {
+                    accBlWindow.logError("No image is set as donor before bleaching. (bl. corr.)");
+                    return;
+      	        } else if (donorCAfter == null) {
+                    accBlWindow.logError("No image is set as donor after bleaching. (bl. corr.)");
+                    return;
+                } else {
+                    DecimalFormat df = new DecimalFormat("#.###");
+                    ImageProcessor ipDB = donorCBefore.getProcessor();
+                    ImageProcessor ipDA = donorCAfter.getProcessor();
+                    float[] ipDBP = (float[])ipDB.getPixels();
+                    float[] ipDAP = (float[])ipDA.getPixels();
+                    float[] corrImgPixels = null;
+                    int width = ipDB.getWidth();
+                    int height = ipDB.getHeight();
+                    if(showBlCImagesCB.isSelected()) {
+                        corrImgPixels = new float[width*height];
+                    }
+                    long[] valid = ValidityMaskCache.and(accBlWindow.getValidityMasks().get(donorCBefore), accBlWindow.getValidityMasks().get(donorCAfter));
+                    double sumc = 0;
+                    double countc = 0;
+                    for (int w = 0; w < valid.length; w++) {
+                        if (valid[w] == 0) {
+                            continue;
+                        }
+                        int end = Math.min(ipDBP.length, (w + 1) << 6);
+                        for (int i = w << 6; i < end; i++) {
+                            if (ipDAP[i] > 0 && ipDBP[i] > 0) {
+                                double current = ipDBP[i] / ipDAP[i];
+                                sumc += current;
+                                countc++;
+                                if(showBlCImagesCB.isSelected()) {
+                                    corrImgPixels[i] = (float)current;
+                                }
+                            }
+                        }
+                    }
+                    float avg = (float)(sumc / countc);
+                    mode1ResultLabel.setText(df.format(avg).toString());
+
+                    double avgBefore = 0;
+                    double avgAfter = 0;
+                    countc = 0;
+                    sumc = 0;
+                    for (int i = 0; i < ipDBP.length; i++) {
+                        if (ipDBP[i] > 0) {
+                            sumc += ipDBP[i];
+                            countc++;
+                        }
+                    }
+                    avgBefore = sumc / countc;
+                    countc = 0;
+                    sumc = 0;
+                    for (int i = 0; i < ipDAP.length; i++) {
+                        if (ipDAP[i] > 0) {
+                            sumc += ipDAP[i];
+                            countc++;
+                        }
+                    }
+                    avgAfter = sumc / countc;
+                    mode2ResultLabel.setText(df.format((float)(avgBefore/avgAfter)).toString());
+                    calculateButton.setBackground(accBlWindow.greenColor);
+                    donorCBefore.changes = false;
+                    donorCAfter.changes = false;
+                    if(showBlCImagesCB.isSelected()) {
+                        ImagePlus corrImg = new ImagePlus("Donor bleaching correction image", new FloatProcessor(width, height, corrImgPixels, null));
+                        corrImg.show();
+                    }
+                }
+      	    } else if (e.getActionCommand().equals("setfactor")) {
+                    if (quotientsButton.isSelected()) {
+                        if (mode1ResultLabel.getText().equals("")) {
+                           accBlWindow.logError("The correction factor has to be calculated before setting it. (bl. corr.)");
+                           return;
+                        }
+                        accBlWindow.setBleachingCorrection(mode1ResultLabel.getText());
+                        setButton.setBackground(accBlWindow.greenColor);
+                        accBlWindow.calculateDBCorrButton.setBackground(accBlWindow.greenColor);
+                    } else {
+                        if (mode2ResultLabel.getText().equals("")) {
+                           accBlWindow.logError("The correction factor has to be calculated before setting it. (bl. corr.)");
+                           return;
+                        }
+                        accBlWindow.setBleachingCorrection(mode2ResultLabel.getText());
+                        setButton.setBackground(accBlWindow.greenColor);
+                        accBlWindow.calculateDBCorrButton.setBackground(accBlWindow.greenColor);
+                    }
+      	    } else if (e.getActionCommand().equals("registerCImages")) {
+      	        if (donorCBefore == null) {
+                    accBlWindow.logError("No image is set as donor before bleaching. (bl. corr.)");
+                    return;
+                } else if (donorCAfter == null) {
+                    accBlWindow.logError("No image is set as donor after bleaching. (bl. corr.)");
+                    return;
+                } else {
+                    FHT fht1 = new FHT(donorCBefore.getProcessor().duplicate());
+                    fht1.transform();
+                    FHT fht2 = new FHT(donorCAfter.getProcessor().duplicate());
+                    fht2.transform();
+                    FHT res = fht1.conjugateMultiply(fht2);
+                    res.inverseTransform();
+                    ImagePlus image = new ImagePlus("Result of registration", res);
+                    ImageProcessor ip = image.getProcessor();
+                    int width = ip.getWidth();
+                    int height = ip.getHeight();
+                    int maximum = 0;
+                    int maxx = -1;
+                    int maxy = -1;
+                    for (int i = 0; i < width; i++) {
+                        for (int j = 0; j < height; j++) {
+                            if (ip.getPixel(i, j) > maximum) {
+                                maximum = ip.getPixel(i, j);
+                                maxx = i;
+                                maxy = j;
+                            }
+                        }
+                    }
+                    int shiftX = 0;
+                    int shiftY = 0;
+                    if (maxx != 0 || maxy != 0){
+                        ShiftDialog sd = new ShiftDialog(accBlWindow);
+                        if (maxy > height/2) {
+                            accBlWindow.log("Shifting donor after image up " + (height-maxy) + " pixel" + ((height-maxy)>1?"s":"") + ". (bl. corr.)");
+                            sd.shiftUp(donorCAfter, height-maxy);
+                        } else if (maxy != 0) {
+                            accBlWindow.log("Shifting donor after image down " + maxy + " pixel" + (maxy>1?"s":"") + ". (bl. corr.)");
+                            sd.shiftDown(donorCAfter, maxy);
+                        }
+                        if (maxx > width/2) {
+                            accBlWindow.log("Shifting donor after image to the left " + (width-maxx) + " pixel" + ((width-maxx)>1?"s":"") + ". (bl. corr.)");
+                            sd.shiftLeft(donorCAfter, width-maxx);
+                        } else if (maxx != 0) {
+                            accBlWindow.log("Shifting donor after image to the right " + maxx + " pixel" + (maxx>1?"s":"") + ". (bl. corr.)");
+                            sd.shiftRight(donorCAfter, maxx);
+                        }
+                        actionPerformed(new ActionEvent(registerButton, 1, "registerCImages"));
+                    } else {
+                        accBlWindow.log("Registration finished. Maximum: x=" + maxx + " y=" + maxy + " (bl. corr.)");
+                        registerButton.setBackground(accBlWindow.greenColor);
+                    }
+                }
+            }
+        } catch (Throwable t) {
+            accBlWindow.logException(t.toString(), t);
+        }
+    }
+}
+
+
+class AcceptorCTCorrDialog extends JDialog implements ActionListener{
+    private AccPbFRET_Plugin accBlWindow;
+    private ImagePlus donorCBefore, acceptorCBefore;
+    private JPanel panel;
+    private JButton setDonorBeforeButton, setAcceptorBeforeButton;
+    private JButton setDonorBeforeThresholdButton, setAcceptorBeforeThresholdButton, calculateButton, setButton;
+    private JButton subtractDonorBeforeButton, subtractAcceptorBeforeButton;
+    private JButton resetButton;
+    private ButtonGroup buttonGroup;
+    private JRadioButton averagesButton, quotientsButton;
+    private JLabel mode1ResultLabel, mode2ResultLabel;
+    private JCheckBox showCTCImagesCB;
+
+    public AcceptorCTCorrDialog(AccPbFRET_Plugin accBlWindow) {
+        setTitle("Acceptor cross-talk correction factor");
+        this.accBlWindow = accBlWindow;
+        setDefaultCloseOperation(JFrame.DISPOSE_ON_CLOSE);
+        setModal(false);
+        createDialogGui();
+        Dimension screen = Toolkit.getDefaultToolkit().getScreenSize();
+        setSize(300, 380);
+        setLocation((screen.width - getWidth())/2, (screen.height - getHeight())/2);
+    }
+
+    public void createDialogGui() {
+        GridBagLayout gridbaglayout = new GridBagLayout();
+        GridBagConstraints gc = new GridBagConstraints();
+        panel = new JPanel();
+        panel.setLayout(gridbaglayout);
+
+        gc.insets = new Insets(2,2,6,2);
+        gc.fill = GridBagConstraints.BOTH;
+        gc.gridwidth = GridBagConstraints.REMAINDER;
+        gc.gridx = 0;
+        gc.gridy = 0;
+        JLabel infoLabel = new JLabel("<html><center>This factor is calculated based on images of donor and acceptor channels of an acceptor only labeled sample, before photobleaching.</center></html>");
+        panel.add(infoLabel, gc);
+        gc.insets = new Insets(2,2,2,2);
+        gc.gridwidth = 3;
+        gc.gridx = 0;
+        gc.gridy = 1;
+        setDonorBeforeButton = new JButton("Set donor before bleaching (acc. only)");
+        setDonorBeforeButton.addActionListener(this);
+        setDonorBeforeButton.setActionCommand("setDonorCBefore");
+        panel.add(setDonorBeforeButton, gc);
+        gc.gridx = 0;
+        gc.gridy = 2;
+        setAcceptorBeforeButton = new JButton("Set acceptor before bleaching (acc. only)");
+        setAcceptorBeforeButton.addActionListener(this);
+        setAcceptorBeforeButton.setActionCommand("setAcceptorCBefore");
+        panel.add(setAcceptorBeforeButton, gc);
+        gc.gridx = 0;
+        gc.gridy = 3;
+        subtractDonorBeforeButton = new JButton("Subtract background of donor before");
+        subtractDonorBeforeButton.addActionListener(this);
+        subtractDonorBeforeButton.setActionCommand("subtractDonorCBefore");
+        panel.add(subtractDonorBeforeButton, gc);
+        gc.gridx = 0;
+        gc.gridy = 4;
+        subtractAcceptorBeforeButton = new JButton("Subtract background of acceptor before");
+        subtractAcceptorBeforeButton.addActionListener(this);
+        subtractAcceptorBeforeButton.setActionCommand("subtractAcceptorCBefore");
+        panel.add(subtractAcceptorBeforeButton, gc);
+        gc.gridx = 0;
+        gc.gridy = 5;
+        setDonorBeforeThresholdButton = new JButton("Set donor before threshold");
+        setDonorBeforeThresholdButton.addActionListener(this);
+        setDonorBeforeThresholdButton.setActionCommand("setDonorCBeforeThreshold");
+        panel.add(setDonorBeforeThresholdButton, gc);
+        gc.gridx = 0;
+        gc.gridy = 6;
+        setAcceptorBeforeThresholdButton = new JButton("Set acceptor before threshold");
+        setAcceptorBeforeThresholdButton.addActionListener(this);
+        setAcceptorBeforeThresholdButton.setActionCommand("setAcceptorCBeforeThreshold");
+        panel.add(setAcceptorBeforeThresholdButton, gc);
+        gc.gridx = 0;
+        gc.gridy = 7;
+        gc.gridheight = 2;
+        JPanel radioPanel = new JPanel();
+        GridBagLayout gbl = new GridBagLayout();
+        GridBagConstraints gcr = new GridBagConstraints();
+        radioPanel.setLayout(gbl);
+        gcr.insets = new Insets(0,4,4,4);
+        gcr.fill = GridBagConstraints.BOTH;
+        JLabel modeLabel = new JLabel("Mode:");
+        JLabel resultLabel = new JLabel("Result:");
+        mode1ResultLabel = new JLabel("", JLabel.CENTER);
+        mode2ResultLabel = new JLabel("", JLabel.CENTER);
+        quotientsButton = new JRadioButton("point-by-point");
+        quotientsButton.setToolTipText("The factor is the averaged ratio of corresponding pixel values in the donor before and acceptor before photobleaching images.");
+        averagesButton = new JRadioButton("average pixels");
+        averagesButton.setToolTipText("The factor is the ratio of the gated pixel averages in the donor before and acceptor before photobleaching images.");
+        quotientsButton.setSelected(true);
+        buttonGroup = new ButtonGroup();
+        buttonGroup.add(quotientsButton);
+        buttonGroup.add(averagesButton);
+        gcr.gridx = 0;
+        gcr.gridy = 0;
+        radioPanel.add(modeLabel, gcr);
+        gcr.gridx = 1;
+        gcr.gridy = 0;
+        radioPanel.add(quotientsButton, gcr);
+        gcr.gridx = 2;
+        gcr.gridy = 0;
+        radioPanel.add(averagesButton, gcr);
+        gcr.gridx = 0;
+        gcr.gridy = 1;
+        radioPanel.add(resultLabel, gcr);
+        gcr.gridx = 1;
+        gcr.gridy = 1;
+        radioPanel.add(mode1ResultLabel, gcr);
+        gcr.gridx = 2;
+        gcr.gridy = 1;
+        radioPanel.add(mode2ResultLabel, gcr);
+        panel.add(radioPanel, gc);
+        gc.gridx = 0;
+        gc.gridy = 9;
+        gc.gridheight = 1;
+        showCTCImagesCB = new JCheckBox("show correction image (for manual calc.)");
+        panel.add(showCTCImagesCB, gc);
+        gc.gridwidth = 1;
+        gc.gridheight = 1;
+        gc.gridx = 0;
+        gc.gridy = 10;
+        calculateButton = new JButton("Calculate");
+        calculateButton.addActionListener(this);
+        calculateButton.setActionCommand("calculate");
+        panel.add(calculateButton, gc);
+        gc.gridx = 1;
+        gc.gridy = 10;
+        setButton = new JButton("Set selected");
+        setButton.addActionListener(this);
+        setButton.setActionCommand("setfactor");
+        panel.add(setButton, gc);
+        gc.gridx = 2;
+        gc.gridy = 10;
+        resetButton = new JButton("Reset");
+        resetButton.addActionListener(this);
+        resetButton.setActionCommand("reset");
+        panel.add(resetButton, gc);
+
+        getContentPane().add(panel);
+    }
+
+    public void actionPerformed(ActionEvent e) {
+    	try {
+            if (e.getActionCommand().equals("reset")) {
+                donorCBefore = null;
+                acceptorCBefore = null;
+	            setDonorBeforeButton.setBackground(accBlWindow.originalButtonColor);
+	            setAcceptorBeforeButton.setBackground(accBlWindow.originalButtonColor);
+	            setDonorBeforeThresholdButton.setBackground(accBlWindow.originalButtonColor);
+                setAcceptorBeforeThresholdButton.setBackground(accBlWindow.originalButtonColor);
+                calculateButton.setBackground(accBlWindow.originalButtonColor);
+                setButton.setBackground(accBlWindow.originalButtonColor);
+                subtractDonorBeforeButton.setBackground(accBlWindow.originalButtonColor);
+                subtractAcceptorBeforeButton.setBackground(accBlWindow.originalButtonColor);
+                mode1ResultLabel.setText("");
+                mode2ResultLabel.setText("");
+      	    } else if (e.getActionCommand().equals("setDonorCBefore")) {
+                donorCBefore = WindowManager.getCurrentImage();
+      	        if (donorCBefore == null) {
+                    accBlWindow.logError("No image is selected. (ct. corr.)");
+                    return;
+                }
+                if (donorCBefore.getNChannels() > 1) {
+                   accBlWindow.logError("Current image contains more than 1 channel ("+donorCBefore.getNChannels()+"). Please split it into parts. (ct. corr.)");
+                   donorCBefore = null;
+                   return;
+                } else if (donorCBefore.getNSlices() > 1) {
+                   accBlWindow.logError("Current image contains more than 1 slice ("+donorCBefore.getNSlices()+"). Please split it into parts. (ct. corr.)");
+                   donorCBefore = null;
+                   return;
+                }
+                if (donorCBefore != null && acceptorCBefore != null && donorCBefore.equals(acceptorCBefore)) {
+                    accBlWindow.logError("The two images must not be the same. Please select and set an other image. (ct. corr.)");
+                    donorCBefore.setTitle("");
+                    donorCBefore = null;
+                    return;
+                }
+                donorCBefore.setTitle("Donor before bleaching (ct. corr.) - " + new Date().toString());
+                new ImageConverter(donorCBefore).convertToGray32();
+                setDonorBeforeButton.setBackground(accBlWindow.greenColor);
+      	    } else if (e.getActionCommand().equals("setAcceptorCBefore")) {
+                acceptorCBefore = WindowManager.getCurrentImage();
+      	        if (acceptorCBefore == null) {
+                    accBlWindow.logError("No image is selected. (ct. corr.)");
+                    return;
+                }
+                if (acceptorCBefore.getNChannels() > 1) {
+                   accBlWindow.logError("Current image contains more than 1 channel ("+acceptorCBefore.getNChannels()+"). Please split it into parts. (ct. corr.)");
+                   acceptorCBefore = null;
+                   return;
+                } else if (acceptorCBefore.getNSlices() > 1) {
+                   accBlWindow.logError("Current image contains more than 1 slice ("+acceptorCBefore.getNSlices()+"). Please split it into parts. (ct. corr.)");
+                   acceptorCBefore = null;
+                   return;
+                }
+                if (donorCBefore != null && acceptorCBefore != null && donorCBefore.equals(acceptorCBefore)) {
+                    accBlWindow.logError("The two images must not be the same. Please select and set an other image. (ct. corr.)");
+                    acceptorCBefore.setTitle("");
+                    acceptorCBefore = null;
+                    return;
+                }
+                acceptorCBefore.setTitle("Acceptor before bleaching (ct. corr.) - " + new Date().toString());
+                new ImageConverter(acceptorCBefore).convertToGray32();
+                setAcceptorBeforeButton.setBackground(accBlWindow.greenColor);
+      	    } else if (e.getActionCommand().equals("subtractDonorCBefore")) {
+      	        if (donorCBefore == null) {
+                    accBlWindow.logError("No image is set as donor before bleaching. (ct. corr.)");
+                    return;
+                } else if (donorCBefore.getRoi() == null) {
+                    accBlWindow.logError("No ROI is defined for donor before bleaching. (ct. corr.)");
+                    return;
+                }
+                ImageProcessor ipDB = donorCBefore.getProcessor();
+                int width = donorCBefore.getWidth();
+                int height = donorCBefore.getHeight();
+                float backgroundAvgDB = accBlWindow.roiMean(donorCBefore);
+
+                float value = 0;
+                for (int x=0; x < width; x++) {
+                    for (int y=0; y < height; y++) {
+                        value = ipDB.getPixelValue(x,y);
+                        value = value - backgroundAvgDB;
+		                ipDB.putPixelValue(x, y, value);
+        		    }
+		        }
+		        donorCBefore.updateAndDraw();
+		        donorCBefore.killRoi();
+                accBlWindow.log("Subtracted background ("+backgroundAvgDB+") of donor before bleaching. (ct. corr.)");
+                subtractDonorBeforeButton.setBackground(accBlWindow.greenColor);
+      	    } else if (e.getActionCommand().equals("subtractAcceptorCBefore")) {
+      	        if (acceptorCBefore == null) {
+                    accBlWindow.logError("No image is set as acceptor before bleaching. (ct. corr.)");
+                    return;
+                } else if (acceptorCBefore.getRoi() == null) {
+                    accBlWindow.logError("No ROI is defined for acceptor before bleaching. (ct. corr.)");
+                    return;
+                }
+                ImageProcessor ipAB = acceptorCBefore.getProcessor();
+                int width = acceptorCBefore.getWidth();
+                int height = acceptorCBefore.getHeight();
+                float backgroundAvgDA = accBlWindow.roiMean(acceptorCBefore);
+
+                float value = 0;
+                for (int x=0; x < width; x++) {
+                    for (int y=0; y < height; y++) {
+                        value = ipAB.getPixelValue(x,y);
+                        value = value - backgroundAvgDA;
+		                ipAB.putPixelValue(x, y, value);
+        		    }
+		        }
+		        acceptorCBefore.updateAndDraw();
+		        acceptorCBefore.killRoi();
+                accBlWindow.log("Subtracted background ("+backgroundAvgDA+") of acceptor before bleaching. (ct. corr.)");
+                subtractAcceptorBeforeButton.setBackground(accBlWindow.greenColor);
+      	    } else if (e.getActionCommand().equals("setDonorCBeforeThreshold")) {
+      	        if (donorCBefore == null) {
+                    accBlWindow.logError("No image is set as donor before bleaching. (ct. corr.)");
+                    return;
+                }
+                IJ.selectWindow(donorCBefore.getTitle());
+                IJ.run("Threshold...");
+                setDonorBeforeThresholdButton.setBackground(accBlWindow.greenColor);
+      	    } else if (e.getActionCommand().equals("setAcceptorCBeforeThreshold")) {
+      	        if (acceptorCBefore == null) {
+                    accBlWindow.logError("No image is set as acceptor before bleaching. (ct. corr.)");
+                    return;
+                }
+                IJ.selectWindow(acceptorCBefore.getTitle());
+                IJ.run("Threshold...");
+                setAcceptorBeforeThresholdButton.setBackground(accBlWindow.greenColor);
+      	    } else if (e.getActionCommand().equals("calculate")) {
+                if (donorCBefore == null) {
+                    accBlWindow.logError("No image is set as donor before bleaching. (ct. corr.)");
+                    return;
+      	        } else if (acceptorCBefore == null) {
+                    accBlWindow.logError("No image is set as acceptor before bleaching. (ct. corr.)");
+                    return;
+                } else {
+                    DecimalFormat df = new DecimalFormat("#.###");
+                    ImageProcessor ipDB = donorCBefore.getProcessor();
+                    ImageProcessor ipAB = acceptorCBefore.getProcessor();
+                    float[] ipDBP = (float[])ipDB.getPixels();
+                    float[] ipABP = (float[])ipAB.getPixels();
+                    float[] corrImgPixels = null;
+                    int width = ipDB.getWidth();
+                    int height = ipDB.getHeight();
+                    if(showCTCImagesCB.isSelected()) {
+                        corrImgPixels = new float[width*height];
+                    }
+                    long[] valid = ValidityMaskCache.and(accBlWindow.getValidityMasks().get(donorCBefore), accBlWindow.getValidityMasks().get(acceptorCBefore));
+                    double sumc = 0;
+                    double countc = 0;
+                    for (int w = 0; w < valid.length; w++) {
+                        if (valid[w] == 0) {
+                            continue;
+                        }
+                        int end = Math.min(ipDBP.length, (w + 1) << 6);
+                        for (int i = w << 6; i < end; i++) {
+                            if (ipABP[i] > 0 && ipDBP[i] > 0) {
+                                double current = ipDBP[i] / ipABP[i];
+                                sumc += current;
+                                countc++;
+                                if(showCTCImagesCB.isSelected()) {
+                                    corrImgPixels[i] = (float)current;
+                                }
+                            }
+                        }
+                    }
+                    float avg = (float)(sumc / countc);
+                    mode1ResultLabel.setText(df.format(avg).toString());
+
+                    double avgDonorBefore = 0;
+                    double avgAcceptorBefore = 0;
+                    countc = 0;
+                    sumc = 0;
+                    for (int i = 0; i < ipDBP.length; i++) {
+                        if (ipDBP[i] > 0) {
+                            sumc += ipDBP[i];
+                            countc++;
+                        }
+                    }
+                    avgDonorBefore = sumc / countc;
+                    countc = 0;
+                    sumc = 0;
+                    for (int i = 0; i < ipABP.length; i++) {
+                        if (ipABP[i] > 0) {
+                            sumc += ipABP[i];
+                            countc++;
+                        }
+                    }
+                    avgAcceptorBefore = sumc / countc;
+                    mode2ResultLabel.setText(df.format((float)(avgDonorBefore/avgAcceptorBefore)).toString());
+                    calculateButton.setBackground(accBlWindow.greenColor);
+                    donorCBefore.changes = false;
+                    acceptorCBefore.changes = false;
+                    if(showCTCImagesCB.isSelected()) {
+                        ImagePlus corrImg = new ImagePlus("Cross-talk correction image", new FloatProcessor(width, height, corrImgPixels, null));
+                        corrImg.show();
+                    }
+                }
+      	    } else if (e.getActionCommand().equals("setfactor")) {
+                    if (quotientsButton.isSelected()) {
+                        if (mode1ResultLabel.getText().equals("")) {
+                           accBlWindow.logError("The correction factor has to be calculated before setting it. (ct. corr.)");
+                           return;
+                        }
+                        accBlWindow.setCrosstalkCorrection(mode1ResultLabel.getText());
+                        accBlWindow.calculateAccCTCorrButton.setBackground(accBlWindow.greenColor);
+                        setButton.setBackground(accBlWindow.greenColor);
+                    } else {
+                        if (mode2ResultLabel.getText().equals("")) {
+                           accBlWindow.logError("The correction factor has to be calculated before setting it. (ct. corr.)");
+                           return;
+                        }
+                        accBlWindow.setCrosstalkCorrection(mode2ResultLabel.getText());
+                        accBlWindow.calculateAccCTCorrButton.setBackground(accBlWindow.greenColor);
+                        setButton.setBackground(accBlWindow.greenColor);
+                    }
+            }
+        } catch (Throwable t) {
+            accBlWindow.logException(t.toString(), t);
+        }
+    }
+}
+
+
+class AcceptorPPCorrDialog extends JDialog implements ActionListener{
+    private AccPbFRET_Plugin accBlWindow;
+    private ImagePlus donorCAfter, acceptorCBefore;
+    private JPanel panel;
+    private JButton setDonorAfterButton, setAcceptorBeforeButton;
+    private JButton setDonorAfterThresholdButton, setAcceptorBeforeThresholdButton, calculateButton, setButton;
+    private JButton subtractDonorAfterButton, subtractAcceptorBeforeButton;
+    private JButton resetButton;
+    private ButtonGroup buttonGroup;
+    private JRadioButton averagesButton, quotientsButton;
+    private JLabel mode1ResultLabel, mode2ResultLabel;
+    private JCheckBox showPPImagesCB;
+
+    public AcceptorPPCorrDialog(AccPbFRET_Plugin accBlWindow) {
+        setTitle("Acceptor photoproduct correction factor");
+        this.accBlWindow = accBlWindow;
+        setDefaultCloseOperation(JFrame.DISPOSE_ON_CLOSE);
+        setModal(false);
+        createDialogGui();
+        Dimension screen = Toolkit.getDefaultToolkit().getScreenSize();
+        setSize(300, 380);
+        setLocation((screen.width - getWidth())/2, (screen.height - getHeight())/2);
+    }
+
+    public void createDialogGui() {
+        GridBagLayout gridbaglayout = new GridBagLayout();
+        GridBagConstraints gc = new GridBagConstraints();
+        panel = new JPanel();
+        panel.setLayout(gridbaglayout);
+
+        gc.insets = new Insets(2,2,6,2);
+        gc.fill = GridBagConstraints.BOTH;
+        gc.gridwidth = GridBagConstraints.REMAINDER;
+        gc.gridx = 0;
+        gc.gridy = 0;
+        JLabel infoLabel = new JLabel("<html><center>This factor is calculated based on images of a sample labeled with acceptor only, donor after and acceptor before photobleaching.</center></html>");
+        panel.add(infoLabel, gc);
+        gc.insets = new Insets(2,2,2,2);
+        gc.gridwidth = 3;
+        gc.gridx = 0;
+        gc.gridy = 1;
+        setDonorAfterButton = new JButton("Set donor after bleaching (acc. only)");
+        setDonorAfterButton.addActionListener(this);
+        setDonorAfterButton.setActionCommand("setDonorCAfter");
+        panel.add(setDonorAfterButton, gc);
         gc.gridx = 0;
         gc.gridy = 2;
         setAcceptorBeforeButton = new JButton("Set acceptor before bleaching (acc. only)");
@@ -3550,10 +5608,10 @@ class AcceptorCTCorrDialog extends JDialog implements ActionListener{
         panel.add(setAcceptorBeforeButton, gc);
         gc.gridx = 0;
         gc.gridy = 3;
-        subtractDonorBeforeButton = new JButton("Subtract background of donor before");
-        subtractDonorBeforeButton.addActionListener(this);
-        subtractDonorBeforeButton.setActionCommand("subtractDonorCBefore");
-        panel.add(subtractDonorBeforeButton, gc);
+        subtractDonorAfterButton = new JButton("Subtract background of donor after");
+        subtractDonorAfterButton.addActionListener(this);
+        subtractDonorAfterButton.setActionCommand("subtractDonorCAfter");
+        panel.add(subtractDonorAfterButton, gc);
         gc.gridx = 0;
         gc.gridy = 4;
         subtractAcceptorBeforeButton = new JButton("Subtract background of acceptor before");
@@ -3562,10 +5620,10 @@ class AcceptorCTCorrDialog extends JDialog implements ActionListener{
         panel.add(subtractAcceptorBeforeButton, gc);
         gc.gridx = 0;
         gc.gridy = 5;
-        setDonorBeforeThresholdButton = new JButton("Set donor before threshold");
-        setDonorBeforeThresholdButton.addActionListener(this);
-        setDonorBeforeThresholdButton.setActionCommand("setDonorCBeforeThreshold");
-        panel.add(setDonorBeforeThresholdButton, gc);
+        setDonorAfterThresholdButton = new JButton("Set donor after threshold");
+        setDonorAfterThresholdButton.addActionListener(this);
+        setDonorAfterThresholdButton.setActionCommand("setDonorCAfterThreshold");
+        panel.add(setDonorAfterThresholdButton, gc);
         gc.gridx = 0;
         gc.gridy = 6;
         setAcceptorBeforeThresholdButton = new JButton("Set acceptor before threshold");
@@ -3586,9 +5644,9 @@ class AcceptorCTCorrDialog extends JDialog implements ActionListener{
         mode1ResultLabel = new JLabel("", JLabel.CENTER);
         mode2ResultLabel = new JLabel("", JLabel.CENTER);
         quotientsButton = new JRadioButton("point-by-point");
-        quotientsButton.setToolTipText("The factor is the averaged ratio of corresponding pixel values in the donor before and acceptor before photobleaching images.");
+        quotientsButton.setToolTipText("The factor is the averaged ratio of corresponding pixel values in the donor after and acceptor before photobleaching images.");
         averagesButton = new JRadioButton("average pixels");
-        averagesButton.setToolTipText("The factor is the ratio of the gated pixel averages in the donor before and acceptor before photobleaching images.");
+        averagesButton.setToolTipText("The factor is the ratio of the gated pixel averages in the donor after and acceptor before photobleaching images.");
         quotientsButton.setSelected(true);
         buttonGroup = new ButtonGroup();
         buttonGroup.add(quotientsButton);
@@ -3615,753 +5673,3296 @@ class AcceptorCTCorrDialog extends JDialog implements ActionListener{
         gc.gridx = 0;
         gc.gridy = 9;
         gc.gridheight = 1;
-        showCTCImagesCB = new JCheckBox("show correction image (for manual calc.)");
-        panel.add(showCTCImagesCB, gc);
+        showPPImagesCB = new JCheckBox("show correction image (for manual calc.)");
+        panel.add(showPPImagesCB, gc);
         gc.gridwidth = 1;
         gc.gridheight = 1;
         gc.gridx = 0;
-        gc.gridy = 10;
-        calculateButton = new JButton("Calculate");
-        calculateButton.addActionListener(this);
-        calculateButton.setActionCommand("calculate");
-        panel.add(calculateButton, gc);
-        gc.gridx = 1;
-        gc.gridy = 10;
-        setButton = new JButton("Set selected");
-        setButton.addActionListener(this);
-        setButton.setActionCommand("setfactor");
-        panel.add(setButton, gc);
-        gc.gridx = 2;
-        gc.gridy = 10;
-        resetButton = new JButton("Reset");
-        resetButton.addActionListener(this);
-        resetButton.setActionCommand("reset");
-        panel.add(resetButton, gc);
+        gc.gridy = 10;
+        calculateButton = new JButton("Calculate");
+        calculateButton.addActionListener(this);
+        calculateButton.setActionCommand("calculate");
+        panel.add(calculateButton, gc);
+        gc.gridx = 1;
+        gc.gridy = 10;
+        setButton = new JButton("Set selected");
+        setButton.addActionListener(this);
+        setButton.setActionCommand("setfactor");
+        panel.add(setButton, gc);
+        gc.gridx = 2;
+        gc.gridy = 10;
+        resetButton = new JButton("Reset");
+        resetButton.addActionListener(this);
+        resetButton.setActionCommand("reset");
+        panel.add(resetButton, gc);
+
+        getContentPane().add(panel);
+    }
+
+    public void actionPerformed(ActionEvent e) {
+    	try {
+            if (e.getActionCommand().equals("reset")) {
+                donorCAfter = null;
+                acceptorCBefore = null;
+	            setDonorAfterButton.setBackground(accBlWindow.originalButtonColor);
+	            setAcceptorBeforeButton.setBackground(accBlWindow.originalButtonColor);
+	            setDonorAfterThresholdButton.setBackground(accBlWindow.originalButtonColor);
+                setAcceptorBeforeThresholdButton.setBackground(accBlWindow.originalButtonColor);
+                calculateButton.setBackground(accBlWindow.originalButtonColor);
+                setButton.setBackground(accBlWindow.originalButtonColor);
+                subtractDonorAfterButton.setBackground(accBlWindow.originalButtonColor);
+                subtractAcceptorBeforeButton.setBackground(accBlWindow.originalButtonColor);
+                mode1ResultLabel.setText("");
+                mode2ResultLabel.setText("");
+      	    } else if (e.getActionCommand().equals("setDonorCAfter")) {
+                donorCAfter = WindowManager.getCurrentImage();
+      	        if (donorCAfter == null) {
+                    accBlWindow.logError("No image is selected. (pp. corr.)");
+                    return;
+                }
+                if (donorCAfter.getNChannels() > 1) {
+                   accBlWindow.logError("Current image contains more than 1 channel ("+donorCAfter.getNChannels()+"). Please split it into parts. (pp. corr.)");
+                   donorCAfter = null;
+                   return;
+                } else if (donorCAfter.getNSlices() > 1) {
+                   accBlWindow.logError("Current image contains more than 1 slice ("+donorCAfter.getNSlices()+"). Please split it into parts. (pp. corr.)");
+                   donorCAfter = null;
+                   return;
+                }
+                if (donorCAfter != null && acceptorCBefore != null && donorCAfter.equals(acceptorCBefore)) {
+                    accBlWindow.logError("The two images must not be the same. Please select and set an other image. (pp. corr.)");
+                    donorCAfter.setTitle("");
+                    donorCAfter = null;
+                    return;
+                }
+                donorCAfter.setTitle("Donor after bleaching (pp. corr.) - " + new Date().toString());
+                new ImageConverter(donorCAfter).convertToGray32();
+                setDonorAfterButton.setBackground(accBlWindow.greenColor);
+      	    } else if (e.getActionCommand().equals("setAcceptorCBefore")) {
+                acceptorCBefore = WindowManager.getCurrentImage();
+      	        if (acceptorCBefore == null) {
+                    accBlWindow.logError("No image is selected. (pp. corr.)");
+                    return;
+                }
+                if (acceptorCBefore.getNChannels() > 1) {
+                   accBlWindow.logError("Current image contains more than 1 channel ("+acceptorCBefore.getNChannels()+"). Please split it into parts. (pp. corr.)");
+                   acceptorCBefore = null;
+                   return;
+                } else if (acceptorCBefore.getNSlices() > 1) {
+                   accBlWindow.logError("Current image contains more than 1 slice ("+acceptorCBefore.getNSlices()+"). Please split it into parts. (pp. corr.)");
+                   acceptorCBefore = null;
+                   return;
+                }
+                if (donorCAfter != null && acceptorCBefore != null && donorCAfter.equals(acceptorCBefore)) {
+                    accBlWindow.logError("The two images must not be the same. Please select and set an other image. (pp. corr.)");
+                    acceptorCBefore.setTitle("");
+                    acceptorCBefore = null;
+                    return;
+                }
+                acceptorCBefore.setTitle("Acceptor before bleaching (pp. corr.) - " + new Date().toString());
+                new ImageConverter(acceptorCBefore).convertToGray32();
+                setAcceptorBeforeButton.setBackground(accBlWindow.greenColor);
+      	    } else if (e.getActionCommand().equals("subtractDonorCAfter")) {
+      	        if (donorCAfter == null) {
+                    accBlWindow.logError("No image is set as donor after bleaching. (pp. corr.)");
+                    return;
+                } else if (donorCAfter.getRoi() == null) {
+                    accBlWindow.logError("No ROI is defined for donor after bleaching. (pp. corr.)");
+                    return;
+                }
+                ImageProcessor ipDA = donorCAfter.getProcessor();
+                int width = donorCAfter.getWidth();
+                int height = donorCAfter.getHeight();
+                float backgroundAvgDB = accBlWindow.roiMean(donorCAfter);
+
+                float value = 0;
+                for (int x=0; x < width; x++) {
+                    for (int y=0; y < height; y++) {
+                        value = ipDA.getPixelValue(x,y);
+                        value = value - backgroundAvgDB;
+		                ipDA.putPixelValue(x, y, value);
+        		    }
+		        }
+		        donorCAfter.updateAndDraw();
+		        donorCAfter.killRoi();
+                accBlWindow.log("Subtracted background ("+backgroundAvgDB+") of donor after bleaching. (pp. corr.)");
+                subtractDonorAfterButton.setBackground(accBlWindow.greenColor);
+      	    } else if (e.getActionCommand().equals("subtractAcceptorCBefore")) {
+      	        if (acceptorCBefore == null) {
+                    accBlWindow.logError("No image is set as acceptor before bleaching. (pp. corr.)");
+                    return;
+                } else if (acceptorCBefore.getRoi() == null) {
+                    accBlWindow.logError("No ROI is defined for acceptor before bleaching. (pp. corr.)");
+                    return;
+                }
+                ImageProcessor ipAB = acceptorCBefore.getProcessor();
+                int width = acceptorCBefore.getWidth();
+                int height = acceptorCBefore.getHeight();
+                float backgroundAvgDA = accBlWindow.roiMean(acceptorCBefore);
+
+                float value = 0;
+                for (int x=0; x < width; x++) {
+                    for (int y=0; y < height; y++) {
+                        value = ipAB.getPixelValue(x,y);
+                        value = value - backgroundAvgDA;
+		                ipAB.putPixelValue(x, y, value);
+        		    }
+		        }
+		        acceptorCBefore.updateAndDraw();
+		        acceptorCBefore.killRoi();
+                accBlWindow.log("Subtracted background ("+backgroundAvgDA+") of acceptor before bleaching. (pp. corr.)");
+                subtractAcceptorBeforeButton.setBackground(accBlWindow.greenColor);
+      	    } else if (e.getActionCommand().equals("setDonorCAfterThreshold")) {
+      	        if (donorCAfter == null) {
+                    accBlWindow.logError("No image is set as donor after bleaching. (pp. corr.)");
+                    return;
+                }
+                IJ.selectWindow(donorCAfter.getTitle());
+                IJ.run("Threshold...");
+                setDonorAfterThresholdButton.setBackground(accBlWindow.greenColor);
+      	    } else if (e.getActionCommand().equals("setAcceptorCBeforeThreshold")) {
+      	        if (acceptorCBefore == null) {
+                    accBlWindow.logError("No image is set as acceptor before bleaching. (pp. corr.)");
+                    return;
+                }
+                IJ.selectWindow(acceptorCBefore.getTitle());
+                IJ.run("Threshold...");
+                setAcceptorBeforeThresholdButton.setBackground(accBlWindow.greenColor);
+      	    } else if (e.getActionCommand().equals("calculate")) {
+                if (donorCAfter == null) {
+                    accBlWindow.logError("No image is set as donor after bleaching. (pp. corr.)");
+                    return;
+      	        } else if (acceptorCBefore == null) {
+                    accBlWindow.logError("No image is set as acceptor before bleaching. (pp. corr.)");
+                    return;
+                } else {
+                    DecimalFormat df = new DecimalFormat("#.###");
+                    ImageProcessor ipDA = donorCAfter.getProcessor();
+                    ImageProcessor ipAB = acceptorCBefore.getProcessor();
+                    float[] ipDAP = (float[])ipDA.getPixels();
+                    float[] ipABP = (float[])ipAB.getPixels();
+                    float[] corrImgPixels = null;
+                    int width = ipDA.getWidth();
+                    int height = ipDA.getHeight();
+                    if(showPPImagesCB.isSelected()) {
+                        corrImgPixels = new float[width*height];
+                    }
+                    long[] valid = ValidityMaskCache.and(accBlWindow.getValidityMasks().get(donorCAfter), accBlWindow.getValidityMasks().get(acceptorCBefore));
+                    double sumc = 0;
+                    double countc = 0;
+                    for (int w = 0; w < valid.length; w++) {
+                        if (valid[w] == 0) {
+                            continue;
+                        }
+                        int end = Math.min(ipDAP.length, (w + 1) << 6);
+                        for (int i = w << 6; i < end; i++) {
+                            if (ipABP[i] > 0 && ipDAP[i] > 0) {
+                                double current = ipDAP[i] / ipABP[i];
+                                sumc += current;
+                                countc++;
+                                if(showPPImagesCB.isSelected()) {
+                                    corrImgPixels[i] = (float)current;
+                                }
+                            }
+                        }
+                    }
+                    float avg = (float)(sumc / countc);
+                    mode1ResultLabel.setText(df.format(avg).toString());
+
+                    double avgDonorAfter = 0;
+                    double avgAcceptorBefore = 0;
+                    countc = 0;
+                    sumc = 0;
+                    for (int i = 0; i < ipDAP.length; i++) {
+                        if (ipDAP[i] > 0) {
+                            sumc += ipDAP[i];
+                            countc++;
+                        }
+                    }
+                    avgDonorAfter = sumc / countc;
+                    countc = 0;
+                    sumc = 0;
+                    for (int i = 0; i < ipABP.length; i++) {
+                        if (ipABP[i] > 0) {
+                            sumc += ipABP[i];
+                            countc++;
+                        }
+                    }
+                    avgAcceptorBefore = sumc / countc;
+                    mode2ResultLabel.setText(df.format((float)(avgDonorAfter/avgAcceptorBefore)).toString());
+                    calculateButton.setBackground(accBlWindow.greenColor);
+                    donorCAfter.changes = false;
+                    acceptorCBefore.changes = false;
+                    if(showPPImagesCB.isSelected()) {
+                        ImagePlus corrImg = new ImagePlus("Photoproduct correction image", new FloatProcessor(width, height, corrImgPixels, null));
+                        corrImg.show();
+                    }
+                }
+      	    } else if (e.getActionCommand().equals("setfactor")) {
+                    if (quotientsButton.isSelected()) {
+                        if (mode1ResultLabel.getText().equals("")) {
+                           accBlWindow.logError("The correction factor has to be calculated before setting it. (pp. corr.)");
+                           return;
+                        }
+                        accBlWindow.setPhotoproductCorrection(mode1ResultLabel.getText());
+                        setButton.setBackground(accBlWindow.greenColor);
+                        accBlWindow.calculateAccPPCorrButton.setBackground(accBlWindow.greenColor);
+                    } else {
+                        if (mode2ResultLabel.getText().equals("")) {
+                           accBlWindow.logError("The correction factor has to be calculated before setting it. (pp. corr.)");
+                           return;
+                        }
+                        accBlWindow.setPhotoproductCorrection(mode2ResultLabel.getText());
+                        setButton.setBackground(accBlWindow.greenColor);
+                        accBlWindow.calculateAccPPCorrButton.setBackground(accBlWindow.greenColor);
+                    }
+            }
+        } catch (Throwable t) {
+            accBlWindow.logException(t.toString(), t);
+        }
+    }
+}
+
+
+class HelpWindow extends JFrame {
+    private AccPbFRET_Plugin accBlWindow;
+    private JPanel panel;
+
+    public HelpWindow(AccPbFRET_Plugin accBlWindow) {
+        setTitle("AccPbFRET Help");
+        this.accBlWindow = accBlWindow;
+        setDefaultCloseOperation(JFrame.DISPOSE_ON_CLOSE);
+        createGui();
+        Dimension screen = Toolkit.getDefaultToolkit().getScreenSize();
+        setSize(600, 800);
+        setLocation((screen.width - getWidth())/2, (screen.height - getHeight())/2);
+    }
+
+    public void createGui() {
+        GridBagLayout gridbaglayout = new GridBagLayout();
+        GridBagConstraints gc = new GridBagConstraints();
+        panel = new JPanel();
+        panel.setLayout(gridbaglayout);
+        setFont(new Font("Helvetica", Font.PLAIN, 12));
+
+        gc.insets = new Insets(4,4,4,4);
+        gc.fill = GridBagConstraints.HORIZONTAL;
+        gc.gridwidth = GridBagConstraints.REMAINDER;
+        gc.gridx = 0;
+        gc.gridy = 0;
+        gc.weightx = 2;
+        JLabel label1 = new JLabel("<html><center><b>AccPbFRET Help</b></center></html>");
+        label1.setFont(new Font("Helvetica", Font.BOLD, 14));
+        panel.add(label1, gc);
+
+        gc.gridy = GridBagConstraints.RELATIVE;
+
+        JLabel label1b = new JLabel("<html><b><br><u>Menu structure</u></b></html>");
+        panel.add(label1b, gc);
+        JLabel label1c = new JLabel("<html>The \"File\" and \"Image\" menus include ImageJ commands that are likely to be frequently used in<br>the analysis process.<br><br>Also, messages generated during image processing can be saved or cleared from the \"File\" menu.<br>Furthermore, analysis data can be reset from the \"File\" menu and the plugin can be switched to<br>semi-automatic mode here as well.<br><br>In the \"Corrections\" menu, the checkboxes of desired correction algorithms need to be checked.<br><br>Donor bleaching is almost inevitable during the acquisition of sequential donor images and using<br>this factor (or at least checking its value) is highly recommended. When this correction is chosen,<br>the default value of 1% unwanted donor bleaching is assigned (yielding a factor of 1.01).<br><br>Acceptor crosstalk can be a problem depending on the filter sets and laser of choice. When this<br>correction is chosen, the default value of 1% unwanted acceptor bleed-through to the donor<br>channel is assigned (yielding a factor of 0.01).<br><br>Acceptor photoproduct(s) can be fluorescent and cross-talk into the donor channel. When<br>correction for this possibility is chosen, the default value of 1% unwanted acceptor photoprodocut<br>cross-talk to the donor channel  is assigned (yielding a factor of 0.01).<br><br>Partial acceptor photobleaching causes the underestimation of FRET. The correction for this<br>assumes a linear relation between the number of available (unbleached) acceptor molecules<br>and the efficiency of FRET. The default value 0 for this correction factor means a total (100%)<br>photodestruction of the acceptor.<br></html>");
+        panel.add(label1c, gc);
+
+        JLabel label2 = new JLabel("<html><b><br><u>Step 1: Opening and setting images</u></b></html>");
+        panel.add(label2, gc);
+        JLabel label3 = new JLabel("<html>Image files can be opened with the \"Open\" button, or with the \"Open image\" item in the \"File\"<br>menu. After opening, images can be set as donor before or after, or acceptor before or after<br>using the \"Set image\" buttons. If multichannel images are used (either having before and after<br>images, or donor and acceptor channel images, or both) in consecutive layers of stacked image<br>files, the opened image has to be split (item available from the \"Image\" menu) before setting. If<br>the \"Use LSM\" checkbox is checked, the LSM image files (up to AIM v. 4.x, files with *.lsm<br>extension) containing donor and acceptor channels in a time series encompassing both before<br>and after photobleaching images are split and set automatically after opening with the \"Open &<br>Set LSM\" button. Every previously opened image window will be closed after pressing this button.<br></html>");
+        panel.add(label3, gc);
+
+        JLabel label4 = new JLabel("<html><b><br><u>Step 2: Registration of donor images</u></b></html>");
+        panel.add(label4, gc);
+        JLabel label5 = new JLabel("<html>To register the donor images, press the \"Register\" button. If the checkbox is checked, acceptor<br>image pairs will automatically be resgistered using the same shift. This is important for<br>deterimining the correction factor for incomplete bleaching of the acceptor.</html>");
+        panel.add(label5, gc);
+
+        JLabel label6 = new JLabel("<html><b><br><u>Step 3: Subtraction of background of images</u></b></html>");
+        panel.add(label6, gc);
+        JLabel label7 = new JLabel("<html>To subtract background (the average of pixels in a selected ROI), the \"Subtract\" button has to<br>be pressed for each relevant image. The \"Copy\" button copies the ROI of the first image to the<br>others. This should be done after marking the ROI and before applying the subtraction. To avoid<br>incidental reusing of the ROI in further operations (such as Gaussian blurring), the ROI is<br>automatically deleted after applying the background correction.</html>");
+        panel.add(label7, gc);
+
+        JLabel label8 = new JLabel("<html><b><br><u>Step 4: Gaussian blurring of images</u></b></html>");
+        panel.add(label8, gc);
+        JLabel label9 = new JLabel("<html>Images can be blurred with the given radius by pressing the corresponding \"Blur\" button.<br>Blurring (together with thresholding) can be reverted using the \"Reset\" buttons in Step 5.</html>");
+        panel.add(label9, gc);
+
+        JLabel label10 = new JLabel("<html><b><br><u>Step 5: Setting thresholds for the images</u></b></html>");
+        panel.add(label10, gc);
+        JLabel label11 = new JLabel("<html>Thresholds can be applied to the images by pressing the corresponding \"Threshold\" button.<br>The dialog asks for the lower and upper limits (a threshold set with Image > Adjust > Threshold<br>is offered) and whether the background pixels are set to NaN or 0. The threshold is applied<br>again whenever the background, the registration or the blur of the image changes.<br>The \"Reset\" buttons reset both blur and threshold settings of the corresponding image.</html>");
+        panel.add(label11, gc);
+
+        JLabel label12 = new JLabel("<html><b><br><u>Correction 1: Calculation and setting of donor bleaching correction factor</u></b></html>");
+        panel.add(label12, gc);
+        JLabel label13 = new JLabel("<html>After pressing the \"Calculate\" button, a new window pops up, where the calculation of this factor<br>can be done with setting donor before and after photobleaching images of a sample labeled with<br>donor only, and taking similar steps as in the main window of<br>the program.</html>");
+        panel.add(label13, gc);
+
+        JLabel label14 = new JLabel("<html><b><br><u>Correction 2: Calculation and setting of acceptor cross-talk correction factor</u></b></html>");
+        panel.add(label14, gc);
+        JLabel label15 = new JLabel("<html>After pressing the \"Calculate\" button, a new window pops up, where the calculation of this factor<br>can be done with setting donor and acceptor images of a sample labeled with acceptor only<br>(before photobleaching), and taking similar steps as in the main window of the program.</html>");
+        panel.add(label15, gc);
+
+        JLabel label16 = new JLabel("<html><b><br><u>Correction 3: Calculation and setting of acceptor photoproduct correction factor</u></b></html>");
+        panel.add(label16, gc);
+        JLabel label17 = new JLabel("<html>After pressing the \"Calculate\" button, a new window pops up, where the calculation of this factor<br>can be done with setting donor (after photobleaching) and acceptor (before photobleaching)<br>images of a sample labeled with acceptor only, and taking similar steps as in the main window of<br>the program.</html>");
+        panel.add(label17, gc);
+
+        JLabel label18 = new JLabel("<html><b><br><u>Correction 4: Calculation of partial acceptor photobleaching correction factor</u></b></html>");
+        panel.add(label18, gc);
+        JLabel label19 = new JLabel("<html>To calculate this factor, press the \"Calculate\" button. The acceptor before and after photobleaching<br>images have to be set before the calculation. Usually this will already have been done in step 1,<br>where the measurement files (or stacked file) is opened.</html>");
+        panel.add(label19, gc);
+
+        JLabel label20 = new JLabel("<html><b><br><u>Step 6: Creation of the transfer (FRET efficiency) image</u></b></html>");
+        panel.add(label20, gc);
+        JLabel label21 = new JLabel("<html>After pressing the \"Create\" button, the transfer image will be calculated and displayed. If the<br>\"Results\" window is not open it will be opened too. If the \"Use also acceptor before image as<br>mask\" option is checked, the FRET image will be created by AND-ing this mask to the threshold<br>masks of the donor before and after images. At this point, the acceptor before image can be<br>cleared (at step 1), and any other relevant image can be loaded and applied as an additional<br>mask after processing and thresholding this image as desired (going through steps 3c, 4c and<br>5c).</html>");
+        panel.add(label21, gc);
+
+        JLabel label22 = new JLabel("<html><b><br><u>Step 7: Making measurements</u></b></html>");
+        panel.add(label22, gc);
+        JLabel label23 = new JLabel("<html>After the creation of the transfer image, ROIs can be selected on it, and measurements can be<br>made by pressing the \"Measure\" button. FRET histograms can be most easily viewed and<br>exported by clicking the \"Histogram\" item in the \"Image\" menu.</html>");
+        panel.add(label23, gc);
+
+        JLabel label24 = new JLabel("<html><br></html>");
+        panel.add(label24, gc);
+
+        JScrollPane logScrollPane = new JScrollPane(panel, JScrollPane.VERTICAL_SCROLLBAR_ALWAYS, JScrollPane.HORIZONTAL_SCROLLBAR_AS_NEEDED);
+        getContentPane().add(logScrollPane);
+    }
+}
+
+
+// Fused transfer image kernel: reads the donor before/after and acceptor before pixels once
+// and writes the FRET efficiency directly, with one loop per combination of enabled corrections.
+class FretKernel {
+    private final float[] donorBefore, donorAfter, acceptorBefore;
+    private final float donorBlCorr, acceptorCTCorr, acceptorPPCorr, partialBlCorr;
+    private final boolean crossTalkCorr, photoproductCorr, partialBlCorrection, acceptorAsMask;
+    private final long[] validity;
+    private final AccPbFRET_Plugin.FretFormula formula;
+    private final float[] acceptorAfter;
+    private final float noiseGain, noiseOffset;
+    private final float[] partialBlMap;
+    private final AccPbFRET_Plugin.FretVectorLoop vectorLoop;
+
+    public FretKernel(float[] donorBefore, float[] donorAfter, float[] acceptorBefore,
+                      float donorBlCorr, float acceptorCTCorr, float acceptorPPCorr, float partialBlCorr,
+                      boolean crossTalkCorr, boolean photoproductCorr, boolean partialBlCorrection, boolean acceptorAsMask) {
+        this(donorBefore, donorAfter, acceptorBefore, null, null, donorBlCorr, acceptorCTCorr, acceptorPPCorr, partialBlCorr,
+             crossTalkCorr, photoproductCorr, partialBlCorrection, acceptorAsMask, null, null, 1, 0, null);
+    }
+
+    private FretKernel(float[] donorBefore, float[] donorAfter, float[] acceptorBefore, float[] acceptorAfter, float[] partialBlMap,
+                       float donorBlCorr, float acceptorCTCorr, float acceptorPPCorr, float partialBlCorr,
+                       boolean crossTalkCorr, boolean photoproductCorr, boolean partialBlCorrection, boolean acceptorAsMask,
+                       long[] validity, AccPbFRET_Plugin.FretFormula formula, float noiseGain, float noiseOffset,
+                       AccPbFRET_Plugin.FretVectorLoop vectorLoop) {
+        this.donorBefore = donorBefore;
+        this.donorAfter = donorAfter;
+        this.acceptorBefore = acceptorBefore;
+        this.acceptorAfter = acceptorAfter;
+        this.partialBlMap = partialBlMap;
+        this.donorBlCorr = donorBlCorr;
+        this.acceptorCTCorr = acceptorCTCorr;
+        this.acceptorPPCorr = acceptorPPCorr;
+        this.partialBlCorr = partialBlCorr;
+        this.crossTalkCorr = crossTalkCorr;
+        this.photoproductCorr = photoproductCorr;
+        this.partialBlCorrection = partialBlCorrection;
+        this.acceptorAsMask = acceptorAsMask;
+        this.validity = validity;
+        this.formula = formula;
+        this.noiseGain = noiseGain;
+        this.noiseOffset = noiseOffset;
+        this.vectorLoop = vectorLoop;
+    }
+
+    // Copy of this kernel on other pixel arrays and factors. The validity bitmap is not copied.
+    private FretKernel derive(float[] donorBefore, float[] donorAfter, float[] acceptorBefore, float[] acceptorAfter, float[] partialBlMap,
+                              float donorBlCorr, float acceptorCTCorr, float acceptorPPCorr, float partialBlCorr) {
+        return new FretKernel(donorBefore, donorAfter, acceptorBefore, acceptorAfter, partialBlMap, donorBlCorr, acceptorCTCorr, acceptorPPCorr, partialBlCorr,
+                              crossTalkCorr, photoproductCorr, partialBlCorrection, acceptorAsMask, null, formula, noiseGain, noiseOffset, vectorLoop);
+    }
+
+    // The validity bitmap has to cover every channel the kernel reads (see readsAcceptor()).
+    public FretKernel withValidity(long[] validity) {
+        return new FretKernel(donorBefore, donorAfter, acceptorBefore, acceptorAfter, partialBlMap, donorBlCorr, acceptorCTCorr, acceptorPPCorr, partialBlCorr,
+                              crossTalkCorr, photoproductCorr, partialBlCorrection, acceptorAsMask, validity, formula, noiseGain, noiseOffset, vectorLoop);
+    }
+
+    // A custom formula replaces the built-in formulas, its pixels are not skipped by validity.
+    public FretKernel withFormula(AccPbFRET_Plugin.FretFormula formula, float[] acceptorAfter) {
+        return new FretKernel(donorBefore, donorAfter, acceptorBefore, acceptorAfter, partialBlMap, donorBlCorr, acceptorCTCorr, acceptorPPCorr, partialBlCorr,
+                              crossTalkCorr, photoproductCorr, partialBlCorrection, acceptorAsMask, null, formula, noiseGain, noiseOffset, vectorLoop);
+    }
+
+    // Shot noise model of the uncertainty image: the variance of a pixel value I is gain * (I - offset).
+    public FretKernel withNoiseModel(float gain, float offset) {
+        return new FretKernel(donorBefore, donorAfter, acceptorBefore, acceptorAfter, partialBlMap, donorBlCorr, acceptorCTCorr, acceptorPPCorr, partialBlCorr,
+                              crossTalkCorr, photoproductCorr, partialBlCorrection, acceptorAsMask, validity, formula, gain, offset, vectorLoop);
+    }
+
+    // Per-pixel partial photobleaching correction factors used instead of the single factor.
+    public FretKernel withPartialBlMap(float[] partialBlMap) {
+        return new FretKernel(donorBefore, donorAfter, acceptorBefore, acceptorAfter, partialBlMap, donorBlCorr, acceptorCTCorr, acceptorPPCorr, partialBlCorr,
+                              crossTalkCorr, photoproductCorr, partialBlCorrection, acceptorAsMask, validity, formula, noiseGain, noiseOffset, vectorLoop);
+    }
+
+    // The formulas without partial photobleaching correction run on the vector loop, null selects the scalar loops.
+    public FretKernel withVectorLoop(AccPbFRET_Plugin.FretVectorLoop vectorLoop) {
+        return new FretKernel(donorBefore, donorAfter, acceptorBefore, acceptorAfter, partialBlMap, donorBlCorr, acceptorCTCorr, acceptorPPCorr, partialBlCorr,
+                              crossTalkCorr, photoproductCorr, partialBlCorrection, acceptorAsMask, validity, formula, noiseGain, noiseOffset, vectorLoop);
+    }
+
+    // true if the kernel computes its formula on the vector loop
+    public boolean isVectorized() {
+        return vectorLoop != null && formula == null && !partialBlCorrection;
+    }
+
+    public boolean hasPartialBlMap() {
+        return partialBlMap != null;
+    }
+
+    // Kernel on every factor-th pixel of every factor-th row of the images, used for the live preview.
+    public FretKernel downsample(int width, int height, int factor) {
+        return derive(sample(donorBefore, width, height, factor), sample(donorAfter, width, height, factor),
+                      sample(acceptorBefore, width, height, factor), sample(acceptorAfter, width, height, factor),
+                      sample(partialBlMap, width, height, factor), donorBlCorr, acceptorCTCorr, acceptorPPCorr, partialBlCorr);
+    }
+
+    private static float[] sample(float[] pixels, int width, int height, int factor) {
+        if (pixels == null) {
+            return null;
+        }
+        float[] sampled = new float[((width + factor - 1) / factor) * ((height + factor - 1) / factor)];
+        int i = 0;
+        for (int y = 0; y < height; y += factor) {
+            for (int x = 0; x < width; x += factor) {
+                sampled[i++] = pixels[y*width + x];
+            }
+        }
+        return sampled;
+    }
+
+    public FretKernel withFactors(float donorBlCorr, float acceptorCTCorr, float acceptorPPCorr, float partialBlCorr) {
+        return new FretKernel(donorBefore, donorAfter, acceptorBefore, acceptorAfter, partialBlMap, donorBlCorr, acceptorCTCorr, acceptorPPCorr, partialBlCorr,
+                              crossTalkCorr, photoproductCorr, partialBlCorrection, acceptorAsMask, validity, formula, noiseGain, noiseOffset, vectorLoop);
+    }
+
+    // Kernel on the given pixels only, e.g. the valid pixels of a ROI.
+    public FretKernel select(int[] indices, int count) {
+        return derive(gather(donorBefore, indices, count), gather(donorAfter, indices, count),
+                      gather(acceptorBefore, indices, count), gather(acceptorAfter, indices, count),
+                      gather(partialBlMap, indices, count), donorBlCorr, acceptorCTCorr, acceptorPPCorr, partialBlCorr);
+    }
+
+    private static float[] gather(float[] pixels, int[] indices, int count) {
+        if (pixels == null) {
+            return null;
+        }
+        float[] gathered = new float[count];
+        for (int i = 0; i < count; i++) {
+            gathered[i] = pixels[indices[i]];
+        }
+        return gathered;
+    }
+
+    // donor bleaching, acceptor cross-talk, acceptor photoproduct and partial photobleaching factors
+    public float[] getFactors() {
+        return new float[] {donorBlCorr, acceptorCTCorr, acceptorPPCorr, partialBlCorr};
+    }
+
+    public long[] getValidity() {
+        return validity;
+    }
+
+    public boolean readsAcceptor() {
+        return crossTalkCorr || photoproductCorr || acceptorAsMask;
+    }
+
+    // Computes the transfer image pixels in the [from, to) index range. NaN input pixels
+    // propagate to NaN through the arithmetic, so no per-pixel NaN checks are needed. With a
+    // validity bitmap, runs of 64-pixel words without any valid pixel are filled with NaN directly.
+    public void compute(float[] out, int from, int to) {
+        if (validity == null) {
+            computeRange(out, from, to);
+            return;
+        }
+        int i = from;
+        while (i < to) {
+            boolean valid = validity[i >>> 6] != 0;
+            int end = i;
+            while (end < to && (validity[end >>> 6] != 0) == valid) {
+                end = Math.min(to, ((end >>> 6) + 1) << 6);
+            }
+            if (valid) {
+                computeRange(out, i, end);
+            } else {
+                Arrays.fill(out, i, end, Float.NaN);
+            }
+            i = end;
+        }
+    }
+
+    // Computes the transfer image pixels and, if variance is not null, their variance in the same
+    // traversal: the range is processed in blocks, and the variance of a block is propagated while
+    // its input pixels are still in the cache.
+    public void compute(float[] out, float[] variance, int from, int to) {
+        if (variance == null) {
+            compute(out, from, to);
+            return;
+        }
+        for (int start = from; start < to; start += VARIANCE_BLOCK) {
+            int end = Math.min(to, start + VARIANCE_BLOCK);
+            compute(out, start, end);
+            propagateVariance(out, variance, start, end);
+        }
+    }
 
-        getContentPane().add(panel);
+    private static final int VARIANCE_BLOCK = 4096;
+
+    // First-order propagation of the shot noise variance of db, da and ab through the general form of
+    // the formulas, E = 1 - (1-pb)*N/D with N = db - ct*ab, D = bl*(da - k*ab) - pb*N, k = pb*ct + pp*(1-pb).
+    // Disabled corrections have zero factors (bleaching 1), so this covers every built-in formula.
+    private void propagateVariance(float[] out, float[] variance, int from, int to) {
+        if (formula != null) {
+            Arrays.fill(variance, from, to, Float.NaN);
+            return;
+        }
+        float[] db = donorBefore;
+        float[] da = donorAfter;
+        float[] ab = acceptorBefore;
+        float[] pBl = partialBlCorrection ? partialBlMap : null;
+        double bl = donorBlCorr;
+        double ct = acceptorCTCorr;
+        double pb = partialBlCorrection ? partialBlCorr : 0;
+        double unbleached = (double)1 - pb;
+        double k = partialBlCorrection ? pb*ct + (double)acceptorPPCorr*unbleached : acceptorPPCorr;
+        double gain = noiseGain;
+        double offset = noiseOffset;
+        for (int i = from; i < to; i++) {
+            if (Float.isNaN(out[i])) {
+                variance[i] = Float.NaN;
+                continue;
+            }
+            if (pBl != null) {
+                pb = pBl[i];
+                unbleached = (double)1 - pb;
+                k = pb*ct + (double)acceptorPPCorr*unbleached;
+            }
+            double abi = ab == null ? 0 : ab[i];
+            double n = db[i] - ct*abi;
+            double d = bl*((double)da[i] - k*abi) - pb*n;
+            double d2 = d*d;
+            double gDb = unbleached*(d + pb*n) / d2;
+            double gDa = unbleached*n*bl / d2;
+            double gAb = unbleached*(ct*d - n*(bl*k - pb*ct)) / d2;
+            double v = gDb*gDb*gain*Math.max(db[i] - offset, 0) + gDa*gDa*gain*Math.max(da[i] - offset, 0);
+            if (ab != null) {
+                v += gAb*gAb*gain*Math.max(abi - offset, 0);
+            }
+            variance[i] = (float)v;
+        }
     }
 
-    public void actionPerformed(ActionEvent e) {
-    	try {
-            if (e.getActionCommand().equals("reset")) {
-                donorCBefore = null;
-                acceptorCBefore = null;
-	            setDonorBeforeButton.setBackground(accBlWindow.originalButtonColor);
-	            setAcceptorBeforeButton.setBackground(accBlWindow.originalButtonColor);
-	            setDonorBeforeThresholdButton.setBackground(accBlWindow.originalButtonColor);
-                setAcceptorBeforeThresholdButton.setBackground(accBlWindow.originalButtonColor);
-                calculateButton.setBackground(accBlWindow.originalButtonColor);
-                setButton.setBackground(accBlWindow.originalButtonColor);
-                subtractDonorBeforeButton.setBackground(accBlWindow.originalButtonColor);
-                subtractAcceptorBeforeButton.setBackground(accBlWindow.originalButtonColor);
-                mode1ResultLabel.setText("");
-                mode2ResultLabel.setText("");
-      	    } else if (e.getActionCommand().equals("setDonorCBefore")) {
-                donorCBefore = WindowManager.getCurrentImage();
-      	        if (donorCBefore == null) {
-                    accBlWindow.logError("No image is selected. (ct. corr.)");
-                    return;
-                }
-                if (donorCBefore.getNChannels() > 1) {
-                   accBlWindow.logError("Current image contains more than 1 channel ("+donorCBefore.getNChannels()+"). Please split it into parts. (ct. corr.)");
-                   donorCBefore = null;
-                   return;
-                } else if (donorCBefore.getNSlices() > 1) {
-                   accBlWindow.logError("Current image contains more than 1 slice ("+donorCBefore.getNSlices()+"). Please split it into parts. (ct. corr.)");
-                   donorCBefore = null;
-                   return;
-                }
-                if (donorCBefore != null && acceptorCBefore != null && donorCBefore.equals(acceptorCBefore)) {
-                    accBlWindow.logError("The two images must not be the same. Please select and set an other image. (ct. corr.)");
-                    donorCBefore.setTitle("");
-                    donorCBefore = null;
-                    return;
-                }
-                donorCBefore.setTitle("Donor before bleaching (ct. corr.) - " + new Date().toString());
-                new ImageConverter(donorCBefore).convertToGray32();
-                setDonorBeforeButton.setBackground(accBlWindow.greenColor);
-      	    } else if (e.getActionCommand().equals("setAcceptorCBefore")) {
-                acceptorCBefore = WindowManager.getCurrentImage();
-      	        if (acceptorCBefore == null) {
-                    accBlWindow.logError("No image is selected. (ct. corr.)");
-                    return;
-                }
-                if (acceptorCBefore.getNChannels() > 1) {
-                   accBlWindow.logError("Current image contains more than 1 channel ("+acceptorCBefore.getNChannels()+"). Please split it into parts. (ct. corr.)");
-                   acceptorCBefore = null;
-                   return;
-                } else if (acceptorCBefore.getNSlices() > 1) {
-                   accBlWindow.logError("Current image contains more than 1 slice ("+acceptorCBefore.getNSlices()+"). Please split it into parts. (ct. corr.)");
-                   acceptorCBefore = null;
-                   return;
-                }
-                if (donorCBefore != null && acceptorCBefore != null && donorCBefore.equals(acceptorCBefore)) {
-                    accBlWindow.logError("The two images must not be the same. Please select and set an other image. (ct. corr.)");
-                    acceptorCBefore.setTitle("");
-                    acceptorCBefore = null;
-                    return;
-                }
-                acceptorCBefore.setTitle("Acceptor before bleaching (ct. corr.) - " + new Date().toString());
-                new ImageConverter(acceptorCBefore).convertToGray32();
-                setAcceptorBeforeButton.setBackground(accBlWindow.greenColor);
-      	    } else if (e.getActionCommand().equals("subtractDonorCBefore")) {
-      	        if (donorCBefore == null) {
-                    accBlWindow.logError("No image is set as donor before bleaching. (ct. corr.)");
-                    return;
-                } else if (donorCBefore.getRoi() == null) {
-                    accBlWindow.logError("No ROI is defined for donor before bleaching. (ct. corr.)");
-                    return;
+    private void computeRange(float[] out, int from, int to) {
+        if (formula != null) {
+            formula.compute(donorBefore, donorAfter, acceptorBefore, acceptorAfter, out, from, to,
+                            donorBlCorr, acceptorCTCorr, acceptorPPCorr, partialBlCorr);
+            if (acceptorAsMask) {
+                float[] ab = acceptorBefore;
+                for (int i = from; i < to; i++) {
+                    out[i] = mask(out[i], ab[i]);
                 }
-                ImageProcessor ipDB = donorCBefore.getProcessor();
-                int width = donorCBefore.getWidth();
-                int height = donorCBefore.getHeight();
-                double sum = 0;
-                int count = 0;
-                for (int i=0; i<width; i++) {
-                    for (int j=0; j<height; j++) {
-                        if (donorCBefore.getRoi().contains(i, j)) {
-                            sum += ipDB.getPixelValue(i,j);
-                            count++;
-                        }
-		            }
-        		}
-		        float backgroundAvgDB = (float)(sum/count);
+            }
+        } else if (vectorLoop != null && !partialBlCorrection) {
+            vectorLoop.compute(donorBefore, donorAfter, acceptorBefore, out, from, to, donorBlCorr, acceptorCTCorr, acceptorPPCorr,
+                               crossTalkCorr, photoproductCorr, acceptorAsMask);
+        } else if (!partialBlCorrection) {
+            if (crossTalkCorr && photoproductCorr) {
+                standardCrossTalkPhotoproduct(out, from, to);
+            } else if (crossTalkCorr) {
+                standardCrossTalk(out, from, to);
+            } else if (photoproductCorr) {
+                standardPhotoproduct(out, from, to);
+            } else {
+                standard(out, from, to);
+            }
+        } else {
+            if (partialBlMap != null) {
+                partialMap(out, from, to);
+            } else if (crossTalkCorr) {
+                partialCrossTalk(out, from, to);
+            } else if (photoproductCorr) {
+                partialPhotoproduct(out, from, to);
+            } else {
+                partial(out, from, to);
+            }
+        }
+    }
 
-                float value = 0;
-                for (int x=0; x < width; x++) {
-                    for (int y=0; y < height; y++) {
-                        value = ipDB.getPixelValue(x,y);
-                        value = value - backgroundAvgDB;
-		                ipDB.putPixelValue(x, y, value);
-        		    }
-		        }
-		        donorCBefore.updateAndDraw();
-		        donorCBefore.killRoi();
-                accBlWindow.log("Subtracted background ("+backgroundAvgDB+") of donor before bleaching. (ct. corr.)");
-                subtractDonorBeforeButton.setBackground(accBlWindow.greenColor);
-      	    } else if (e.getActionCommand().equals("subtractAcceptorCBefore")) {
-      	        if (acceptorCBefore == null) {
-                    accBlWindow.logError("No image is set as acceptor before bleaching. (ct. corr.)");
-                    return;
-                } else if (acceptorCBefore.getRoi() == null) {
-                    accBlWindow.logError("No ROI is defined for acceptor before bleaching. (ct. corr.)");
-                    return;
+    private void standard(float[] out, int from, int to) {
+        float[] db = donorBefore;
+        float[] da = donorAfter;
+        float[] ab = acceptorBefore;
+        float blCorr = donorBlCorr;
+        boolean mask = acceptorAsMask;
+        for (int i = from; i < to; i++) {
+            float e = (float)1 - (db[i] / (da[i] * blCorr));
+            out[i] = mask ? mask(e, ab[i]) : e;
+        }
+    }
+
+    private void standardCrossTalk(float[] out, int from, int to) {
+        float[] db = donorBefore;
+        float[] da = donorAfter;
+        float[] ab = acceptorBefore;
+        float blCorr = donorBlCorr;
+        float ctCorr = acceptorCTCorr;
+        boolean mask = acceptorAsMask;
+        for (int i = from; i < to; i++) {
+            float e = (float)1 - ((db[i] - ab[i] * ctCorr) / (da[i] * blCorr));
+            out[i] = mask ? mask(e, ab[i]) : e;
+        }
+    }
+
+    private void standardPhotoproduct(float[] out, int from, int to) {
+        float[] db = donorBefore;
+        float[] da = donorAfter;
+        float[] ab = acceptorBefore;
+        float blCorr = donorBlCorr;
+        float ppCorr = acceptorPPCorr;
+        boolean mask = acceptorAsMask;
+        for (int i = from; i < to; i++) {
+            float e = (float)1 - (db[i] / ((da[i] - ab[i] * ppCorr) * blCorr));
+            out[i] = mask ? mask(e, ab[i]) : e;
+        }
+    }
+
+    private void standardCrossTalkPhotoproduct(float[] out, int from, int to) {
+        float[] db = donorBefore;
+        float[] da = donorAfter;
+        float[] ab = acceptorBefore;
+        float blCorr = donorBlCorr;
+        float ctCorr = acceptorCTCorr;
+        float ppCorr = acceptorPPCorr;
+        boolean mask = acceptorAsMask;
+        for (int i = from; i < to; i++) {
+            float e = (float)1 - ((db[i] - ab[i] * ctCorr) / ((da[i] - ab[i] * ppCorr) * blCorr));
+            out[i] = mask ? mask(e, ab[i]) : e;
+        }
+    }
+
+    private void partial(float[] out, int from, int to) {
+        float[] db = donorBefore;
+        float[] da = donorAfter;
+        float[] ab = acceptorBefore;
+        double blCorr = donorBlCorr;
+        double pBl = partialBlCorr;
+        double unbleached = (double)1 - pBl;
+        boolean mask = acceptorAsMask;
+        for (int i = from; i < to; i++) {
+            double dbi = db[i];
+            float dai = (float)(blCorr*(double)da[i] - pBl*dbi);
+            float e = (float)((double)1 - (unbleached*dbi / (double)dai));
+            out[i] = mask ? mask(e, ab[i]) : e;
+        }
+    }
+
+    private void partialPhotoproduct(float[] out, int from, int to) {
+        float[] db = donorBefore;
+        float[] da = donorAfter;
+        float[] ab = acceptorBefore;
+        double blCorr = donorBlCorr;
+        double pBl = partialBlCorr;
+        double unbleached = (double)1 - pBl;
+        double abCorr = pBl*(double)acceptorCTCorr + (double)acceptorPPCorr*unbleached;
+        boolean mask = acceptorAsMask;
+        for (int i = from; i < to; i++) {
+            double dbi = db[i];
+            float dai = (float)(blCorr*((double)da[i] - abCorr*(double)ab[i]) - pBl*dbi);
+            float e = (float)((double)1 - (unbleached*dbi / (double)dai));
+            out[i] = mask ? mask(e, ab[i]) : e;
+        }
+    }
+
+    private void partialCrossTalk(float[] out, int from, int to) {
+        float[] db = donorBefore;
+        float[] da = donorAfter;
+        float[] ab = acceptorBefore;
+        float ctCorr = acceptorCTCorr;
+        double blCorr = donorBlCorr;
+        double pBl = partialBlCorr;
+        double unbleached = (double)1 - pBl;
+        double abCorr = pBl*(double)acceptorCTCorr + (double)acceptorPPCorr*unbleached;
+        boolean mask = acceptorAsMask;
+        for (int i = from; i < to; i++) {
+            float abi = ab[i];
+            double dbi = db[i] - abi * ctCorr;
+            float dai = (float)(blCorr*((double)da[i] - abCorr*(double)abi) - pBl*dbi);
+            float e = (float)((double)1 - (unbleached*dbi / (double)dai));
+            out[i] = mask ? mask(e, ab[i]) : e;
+        }
+    }
+
+    // General partial photobleaching formula with the factor of every pixel taken from the map.
+    private void partialMap(float[] out, int from, int to) {
+        float[] db = donorBefore;
+        float[] da = donorAfter;
+        float[] ab = acceptorBefore;
+        float[] pBl = partialBlMap;
+        double blCorr = donorBlCorr;
+        double ctCorr = acceptorCTCorr;
+        double ppCorr = acceptorPPCorr;
+        boolean readsAb = crossTalkCorr || photoproductCorr;
+        boolean mask = acceptorAsMask;
+        for (int i = from; i < to; i++) {
+            double pb = pBl[i];
+            double unbleached = (double)1 - pb;
+            double abi = readsAb ? ab[i] : 0;
+            double dbi = db[i] - ctCorr*abi;
+            double abCorr = pb*ctCorr + ppCorr*unbleached;
+            float dai = (float)(blCorr*((double)da[i] - abCorr*abi) - pb*dbi);
+            float e = (float)((double)1 - (unbleached*dbi / (double)dai));
+            out[i] = mask ? mask(e, ab[i]) : e;
+        }
+    }
+
+    private static float mask(float e, float acceptor) {
+        if (Float.isNaN(acceptor) || acceptor == 0) {
+            return Float.NaN;
+        }
+        return e;
+    }
+}
+
+
+// Splits an image into bands of whole rows and processes them on a fork/join pool. The
+// bands are given to computeBand() as [from, to) pixel index ranges.
+abstract class RowBandTask extends RecursiveAction {
+    protected final int width, firstRow, lastRow, bandRows;
+
+    public RowBandTask(int width, int firstRow, int lastRow, int bandRows) {
+        this.width = width;
+        this.firstRow = firstRow;
+        this.lastRow = lastRow;
+        this.bandRows = bandRows;
+    }
+
+    protected void compute() {
+        if (lastRow - firstRow <= bandRows) {
+            computeBand(firstRow * width, lastRow * width);
+        } else {
+            int middleRow = (firstRow + lastRow) >>> 1;
+            invokeAll(createSubtask(firstRow, middleRow), createSubtask(middleRow, lastRow));
+        }
+    }
+
+    protected abstract RowBandTask createSubtask(int firstRow, int lastRow);
+
+    protected abstract void computeBand(int from, int to);
+}
+
+
+// Computes the [firstColumn, lastColumn) columns of the rows, all columns by default.
+class FretKernelTask extends RowBandTask {
+    private final FretKernel kernel;
+    private final float[] out, variance;
+    private final DensityAccumulator density;
+    private final int firstColumn, lastColumn;
+
+    public FretKernelTask(FretKernel kernel, float[] out, int width, int firstRow, int lastRow, int bandRows) {
+        this(kernel, out, null, width, firstRow, lastRow, bandRows);
+    }
+
+    public FretKernelTask(FretKernel kernel, float[] out, float[] variance, int width, int firstRow, int lastRow, int bandRows) {
+        this(kernel, out, variance, null, width, 0, width, firstRow, lastRow, bandRows);
+    }
+
+    // The computed pixels of every band are added to the density if it is not null.
+    public FretKernelTask(FretKernel kernel, float[] out, float[] variance, DensityAccumulator density, int width, int firstColumn, int lastColumn,
+                          int firstRow, int lastRow, int bandRows) {
+        super(width, firstRow, lastRow, bandRows);
+        this.kernel = kernel;
+        this.out = out;
+        this.variance = variance;
+        this.density = density;
+        this.firstColumn = firstColumn;
+        this.lastColumn = lastColumn;
+    }
+
+    protected RowBandTask createSubtask(int firstRow, int lastRow) {
+        return new FretKernelTask(kernel, out, variance, density, width, firstColumn, lastColumn, firstRow, lastRow, bandRows);
+    }
+
+    protected void computeBand(int from, int to) {
+        if (firstColumn == 0 && lastColumn == width) {
+            kernel.compute(out, variance, from, to);
+            if (density != null) {
+                density.add(out, from, to);
+            }
+            return;
+        }
+        for (int row = from / width; row < to / width; row++) {
+            kernel.compute(out, variance, row*width + firstColumn, row*width + lastColumn);
+            if (density != null) {
+                density.add(out, row*width + firstColumn, row*width + lastColumn);
+            }
+        }
+    }
+}
+
+// AA/AB ratio of the valid pixels of the ROI (bounds with an optional mask) and the 0/1 weights of
+// the pixels, the input of the normalized convolution of the partial photobleaching map.
+class PartialBlMapTask extends RowBandTask {
+    private final float[] acceptorBefore, acceptorAfter, ratio, weight;
+    private final long[] validity;
+    private final RoiMask mask;
+
+    public PartialBlMapTask(float[] acceptorBefore, float[] acceptorAfter, long[] validity, RoiMask mask,
+                            float[] ratio, float[] weight, int width, int firstRow, int lastRow, int bandRows) {
+        super(width, firstRow, lastRow, bandRows);
+        this.acceptorBefore = acceptorBefore;
+        this.acceptorAfter = acceptorAfter;
+        this.validity = validity;
+        this.mask = mask;
+        this.ratio = ratio;
+        this.weight = weight;
+    }
+
+    protected RowBandTask createSubtask(int firstRow, int lastRow) {
+        return new PartialBlMapTask(acceptorBefore, acceptorAfter, validity, mask, ratio, weight, width, firstRow, lastRow, bandRows);
+    }
+
+    protected void computeBand(int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (mask.contains(i % width, i / width) && ValidityMaskCache.isValid(validity, i) && acceptorBefore[i] != 0) {
+                ratio[i] = acceptorAfter[i] / acceptorBefore[i];
+                weight[i] = 1;
+            } else {
+                ratio[i] = 0;
+                weight[i] = 0;
+            }
+        }
+    }
+}
+
+// Pool of float pixel frames for computed images, keyed by the frame dimensions. A frame which
+// backs a displayed image is attached to it and returned to the pool only when the plugin replaces
+// it while the image still shows it, so repeated computations (e.g. in semi-automatic processing)
+// reuse memory. A frame of a closed image or of an image whose processor was replaced by others
+// (e.g. a type conversion, which undo keeps) may still be referenced elsewhere and is not reused.
+class FrameBufferPool implements ImageListener {
+    private static final int MAX_FREE_FRAMES = 4;
+    private HashMap<Long, ArrayDeque<float[]>> freeFrames = new HashMap<Long, ArrayDeque<float[]>>();
+    private IdentityHashMap<ImagePlus, float[]> attachedFrames = new IdentityHashMap<ImagePlus, float[]>();
+    private int freeFrameCount = 0;
+
+    public synchronized float[] borrow(int width, int height) {
+        ArrayDeque<float[]> frames = freeFrames.get(key(width, height));
+        if (frames != null && !frames.isEmpty()) {
+            freeFrameCount--;
+            return frames.pop();
+        }
+        return new float[width*height];
+    }
+
+    public synchronized void release(int width, int height, float[] frame) {
+        if (frame == null || frame.length != width*height) {
+            return;
+        }
+        Long key = key(width, height);
+        if (freeFrameCount >= MAX_FREE_FRAMES) {
+            // frames of other dimensions are unlikely to be needed again
+            Iterator<Map.Entry<Long, ArrayDeque<float[]>>> it = freeFrames.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<Long, ArrayDeque<float[]>> entry = it.next();
+                if (!entry.getKey().equals(key)) {
+                    freeFrameCount -= entry.getValue().size();
+                    it.remove();
                 }
-                ImageProcessor ipAB = acceptorCBefore.getProcessor();
-                int width = acceptorCBefore.getWidth();
-                int height = acceptorCBefore.getHeight();
-                double sum = 0;
-                int count = 0;
-                for (int i=0; i<width; i++) {
-                    for (int j=0; j<height; j++) {
-                        if (acceptorCBefore.getRoi().contains(i, j)) {
-                            sum += ipAB.getPixelValue(i,j);
-                            count++;
-                        }
-		            }
-        		}
-		        float backgroundAvgDA = (float)(sum/count);
+            }
+            if (freeFrameCount >= MAX_FREE_FRAMES) {
+                return;
+            }
+        }
+        ArrayDeque<float[]> frames = freeFrames.get(key);
+        if (frames == null) {
+            frames = new ArrayDeque<float[]>();
+            freeFrames.put(key, frames);
+        }
+        frames.push(frame);
+        freeFrameCount++;
+    }
 
-                float value = 0;
-                for (int x=0; x < width; x++) {
-                    for (int y=0; y < height; y++) {
-                        value = ipAB.getPixelValue(x,y);
-                        value = value - backgroundAvgDA;
-		                ipAB.putPixelValue(x, y, value);
-        		    }
-		        }
-		        acceptorCBefore.updateAndDraw();
-		        acceptorCBefore.killRoi();
-                accBlWindow.log("Subtracted background ("+backgroundAvgDA+") of acceptor before bleaching. (ct. corr.)");
-                subtractAcceptorBeforeButton.setBackground(accBlWindow.greenColor);
-      	    } else if (e.getActionCommand().equals("setDonorCBeforeThreshold")) {
-      	        if (donorCBefore == null) {
-                    accBlWindow.logError("No image is set as donor before bleaching. (ct. corr.)");
-                    return;
+    // Called before the frame of the image is replaced by frame (or after a new image is created).
+    public synchronized void attach(ImagePlus image, float[] frame) {
+        float[] previous = attachedFrames.put(image, frame);
+        if (previous != null && previous != frame && image.getProcessor() != null && image.getProcessor().getPixels() == previous) {
+            release(image.getWidth(), image.getHeight(), previous);
+        }
+    }
+
+    public synchronized void clear() {
+        freeFrames.clear();
+        attachedFrames.clear();
+        freeFrameCount = 0;
+    }
+
+    // The frame of a closed image may be referenced by other images (e.g. Images to Stack), it is not reused.
+    public synchronized void imageClosed(ImagePlus image) {
+        attachedFrames.remove(image);
+    }
+
+    public void imageOpened(ImagePlus image) {}
+
+    public void imageUpdated(ImagePlus image) {}
+
+    private static Long key(int width, int height) {
+        return Long.valueOf(((long)width << 32) | height);
+    }
+}
+
+// Bitmaps of the non-NaN pixels of images, one bit per pixel in 64-pixel words. Pixel loops AND
+// the bitmaps of the images they read and skip words without any valid pixel, which makes
+// thresholded images with NaN background proportionally cheaper to process. A bitmap is built
+// when first needed and dropped when the image gets another pixel array, is updated (e.g.
+// thresholded) or closed. Images without a window send no update events, so code changing the
+// pixels of an image in place has to call invalidate() (pooled frames are reused in place).
+class ValidityMaskCache implements ImageListener {
+    private IdentityHashMap<ImagePlus, long[]> masks = new IdentityHashMap<ImagePlus, long[]>();
+    private IdentityHashMap<ImagePlus, Object> maskedPixels = new IdentityHashMap<ImagePlus, Object>();
+
+    public synchronized long[] get(ImagePlus image) {
+        Object pixels = image.getProcessor().getPixels();
+        long[] mask = masks.get(image);
+        if (mask == null || maskedPixels.get(image) != pixels) {
+            mask = build(pixels, image.getWidth()*image.getHeight());
+            masks.put(image, mask);
+            maskedPixels.put(image, pixels);
+        }
+        return mask;
+    }
+
+    public synchronized void clear() {
+        masks.clear();
+        maskedPixels.clear();
+    }
+
+    public synchronized void invalidate(ImagePlus image) {
+        masks.remove(image);
+        maskedPixels.remove(image);
+    }
+
+    public void imageUpdated(ImagePlus image) {
+        invalidate(image);
+    }
+
+    public void imageClosed(ImagePlus image) {
+        invalidate(image);
+    }
+
+    public void imageOpened(ImagePlus image) {}
+
+    // only float images can contain NaN pixels, every pixel of other types is valid
+    public static long[] build(Object pixels, int length) {
+        long[] mask = new long[(length + 63) >>> 6];
+        if (!(pixels instanceof float[])) {
+            Arrays.fill(mask, -1L);
+            mask[mask.length - 1] = length % 64 == 0 ? -1L : (1L << (length % 64)) - 1;
+            return mask;
+        }
+        float[] p = (float[])pixels;
+        for (int w = 0; w < mask.length; w++) {
+            long word = 0;
+            int start = w << 6;
+            int end = Math.min(length, start + 64);
+            for (int i = start; i < end; i++) {
+                if (p[i] == p[i]) {
+                    word |= 1L << (i - start);
                 }
-                IJ.selectWindow(donorCBefore.getTitle());
-                IJ.run("Threshold...");
-                setDonorBeforeThresholdButton.setBackground(accBlWindow.greenColor);
-      	    } else if (e.getActionCommand().equals("setAcceptorCBeforeThreshold")) {
-      	        if (acceptorCBefore == null) {
-                    accBlWindow.logError("No image is set as acceptor before bleaching. (ct. corr.)");
-                    return;
+            }
+            mask[w] = word;
+        }
+        return mask;
+    }
+
+    public static long[] and(long[] a, long[] b) {
+        long[] mask = new long[Math.min(a.length, b.length)];
+        for (int w = 0; w < mask.length; w++) {
+            mask[w] = a[w] & b[w];
+        }
+        return mask;
+    }
+
+    public static boolean isValid(long[] mask, int i) {
+        return (mask[i >>> 6] & (1L << i)) != 0;
+    }
+}
+
+// Correction factor sensitivity sweep: the valid pixels of the ROI are gathered once into compact
+// arrays, then the transfer efficiency is calculated on them for every grid point of factor values.
+class SensitivitySweep {
+    public static final int MAX_GRID_POINTS = 1000;
+    private FretKernel kernel;
+    private int pixelCount;
+
+    public SensitivitySweep(FretKernel kernel, RoiMask mask, int width) {
+        long[] validity = kernel.getValidity();
+        Rectangle r = mask.getBounds();
+        int[] indices = new int[Math.max(0, r.width * r.height)];
+        int count = 0;
+        for (int y = r.y; y < r.y + r.height; y++) {
+            for (int x = r.x; x < r.x + r.width; x++) {
+                int i = y*width + x;
+                if ((validity == null || ValidityMaskCache.isValid(validity, i)) && mask.contains(x, y)) {
+                    indices[count++] = i;
                 }
-                IJ.selectWindow(acceptorCBefore.getTitle());
-                IJ.run("Threshold...");
-                setAcceptorBeforeThresholdButton.setBackground(accBlWindow.greenColor);
-      	    } else if (e.getActionCommand().equals("calculate")) {
-                if (donorCBefore == null) {
-                    accBlWindow.logError("No image is set as donor before bleaching. (ct. corr.)");
-                    return;
-      	        } else if (acceptorCBefore == null) {
-                    accBlWindow.logError("No image is set as acceptor before bleaching. (ct. corr.)");
-                    return;
-                } else {
-                    DecimalFormat df = new DecimalFormat("#.###");
-                    ImageProcessor ipDB = donorCBefore.getProcessor();
-                    ImageProcessor ipAB = acceptorCBefore.getProcessor();
-                    float[][] corrImgPoints = null;
-                    int width = ipDB.getWidth();
-                    int height = ipDB.getHeight();
-                    if(showCTCImagesCB.isSelected()) {
-                        corrImgPoints = new float[width][height];
-                    }
-                    double sumc = 0;
-                    double countc = 0;
-                    for (int i = 0; i < width; i++) {
-                        for (int j = 0; j < height; j++) {
-                            if (ipAB.getPixelValue(i, j) > 0 && ipDB.getPixelValue(i, j) > 0) {
-                                double current = ipDB.getPixelValue(i, j) / ipAB.getPixelValue(i, j);
-                                sumc += current;
-                                countc++;
-                                if(showCTCImagesCB.isSelected()) {
-                                    corrImgPoints[i][j] = (float)current;
-                                }
-                            }
-                        }
-                    }
-                    float avg = (float)(sumc / countc);
-                    mode1ResultLabel.setText(df.format(avg).toString());
+            }
+        }
+        this.kernel = kernel.select(indices, count);
+        this.pixelCount = count;
+    }
 
-                    float[] ipDBP = (float[])ipDB.getPixels();
-                    float[] ipABP = (float[])ipAB.getPixels();
-                    double avgDonorBefore = 0;
-                    double avgAcceptorBefore = 0;
-                    countc = 0;
-                    sumc = 0;
-                    for (int i = 0; i < ipDBP.length; i++) {
-                        if (ipDBP[i] > 0) {
-                            sumc += ipDBP[i];
-                            countc++;
-                        }
-                    }
-                    avgDonorBefore = sumc / countc;
-                    countc = 0;
-                    sumc = 0;
-                    for (int i = 0; i < ipABP.length; i++) {
-                        if (ipABP[i] > 0) {
-                            sumc += ipABP[i];
-                            countc++;
-                        }
-                    }
-                    avgAcceptorBefore = sumc / countc;
-                    mode2ResultLabel.setText(df.format((float)(avgDonorBefore/avgAcceptorBefore)).toString());
-                    calculateButton.setBackground(accBlWindow.greenColor);
-                    donorCBefore.changes = false;
-                    acceptorCBefore.changes = false;
-                    if(showCTCImagesCB.isSelected()) {
-                        ImagePlus corrImg = new ImagePlus("Cross-talk correction image", new FloatProcessor(corrImgPoints));
-                        corrImg.show();
-                    }
+    public int getPixelCount() {
+        return pixelCount;
+    }
+
+    // grid[g] holds the donor bleaching, cross-talk, photoproduct and partial bleaching factors of grid point g
+    public void evaluate(float[][] grid, double[] means, double[] medians, int[] counts, ForkJoinPool pool) {
+        SensitivitySweepTask task = new SensitivitySweepTask(this, grid, means, medians, counts, 0, grid.length);
+        if (pool != null) {
+            pool.invoke(task);
+        } else {
+            task.compute();
+        }
+    }
+
+    void evaluate(float[][] grid, double[] means, double[] medians, int[] counts, int from, int to) {
+        float[] e = new float[pixelCount];
+        for (int g = from; g < to; g++) {
+            kernel.withFactors(grid[g][0], grid[g][1], grid[g][2], grid[g][3]).compute(e, 0, pixelCount);
+            int n = 0;
+            double sum = 0;
+            for (int i = 0; i < pixelCount; i++) {
+                if (!Float.isNaN(e[i])) {
+                    sum += e[i];
+                    e[n++] = e[i];
                 }
-      	    } else if (e.getActionCommand().equals("setfactor")) {
-                    if (quotientsButton.isSelected()) {
-                        if (mode1ResultLabel.getText().equals("")) {
-                           accBlWindow.logError("The correction factor has to be calculated before setting it. (ct. corr.)");
-                           return;
-                        }
-                        accBlWindow.setCrosstalkCorrection(mode1ResultLabel.getText());
-                        accBlWindow.calculateAccCTCorrButton.setBackground(accBlWindow.greenColor);
-                        setButton.setBackground(accBlWindow.greenColor);
-                    } else {
-                        if (mode2ResultLabel.getText().equals("")) {
-                           accBlWindow.logError("The correction factor has to be calculated before setting it. (ct. corr.)");
-                           return;
-                        }
-                        accBlWindow.setCrosstalkCorrection(mode2ResultLabel.getText());
-                        accBlWindow.calculateAccCTCorrButton.setBackground(accBlWindow.greenColor);
-                        setButton.setBackground(accBlWindow.greenColor);
-                    }
             }
-        } catch (Throwable t) {
-            accBlWindow.logException(t.toString(), t);
+            counts[g] = n;
+            means[g] = n > 0 ? sum / n : Double.NaN;
+            medians[g] = PercentileSelector.median(e, n);
         }
     }
 }
 
 
-class AcceptorPPCorrDialog extends JDialog implements ActionListener{
-    private AccPbFRET_Plugin accBlWindow;
-    private ImagePlus donorCAfter, acceptorCBefore;
-    private JPanel panel;
-    private JButton setDonorAfterButton, setAcceptorBeforeButton;
-    private JButton setDonorAfterThresholdButton, setAcceptorBeforeThresholdButton, calculateButton, setButton;
-    private JButton subtractDonorAfterButton, subtractAcceptorBeforeButton;
-    private JButton resetButton;
-    private ButtonGroup buttonGroup;
-    private JRadioButton averagesButton, quotientsButton;
-    private JLabel mode1ResultLabel, mode2ResultLabel;
-    private JCheckBox showPPImagesCB;
+class SensitivitySweepTask extends RecursiveAction {
+    private SensitivitySweep sweep;
+    private float[][] grid;
+    private double[] means, medians;
+    private int[] counts;
+    private int from, to;
+
+    public SensitivitySweepTask(SensitivitySweep sweep, float[][] grid, double[] means, double[] medians, int[] counts, int from, int to) {
+        this.sweep = sweep;
+        this.grid = grid;
+        this.means = means;
+        this.medians = medians;
+        this.counts = counts;
+        this.from = from;
+        this.to = to;
+    }
 
-    public AcceptorPPCorrDialog(AccPbFRET_Plugin accBlWindow) {
-        setTitle("Acceptor photoproduct correction factor");
-        this.accBlWindow = accBlWindow;
-        setDefaultCloseOperation(JFrame.DISPOSE_ON_CLOSE);
-        setModal(false);
-        createDialogGui();
-        Dimension screen = Toolkit.getDefaultToolkit().getScreenSize();
-        setSize(300, 380);
-        setLocation((screen.width - getWidth())/2, (screen.height - getHeight())/2);
+    protected void compute() {
+        if (to - from <= 4) {
+            sweep.evaluate(grid, means, medians, counts, from, to);
+        } else {
+            int middle = (from + to) >>> 1;
+            invokeAll(new SensitivitySweepTask(sweep, grid, means, medians, counts, from, middle),
+                      new SensitivitySweepTask(sweep, grid, means, medians, counts, middle, to));
+        }
     }
+}
 
-    public void createDialogGui() {
-        GridBagLayout gridbaglayout = new GridBagLayout();
-        GridBagConstraints gc = new GridBagConstraints();
-        panel = new JPanel();
-        panel.setLayout(gridbaglayout);
+// Compiles custom transfer efficiency formulas into FretFormula classes with the Java compiler of
+// the running JDK. The whole pixel loop is generated around the expression, so the JIT compiles
+// it like the built-in kernels. Only numbers, operators, the pixel and factor variables and a few
+// Math functions are accepted, which keeps arbitrary code out of the generated class.
+class FretFormulaCompiler {
+    private static final String[] VARIABLES = {"db", "da", "ab", "aa", "bl", "ct", "pp", "pb"};
+    private static final String[] FUNCTIONS = {"sqrt", "exp", "log", "pow", "abs", "min", "max"};
+    private static final java.util.regex.Pattern TOKEN = java.util.regex.Pattern.compile(
+        "\\s+|[A-Za-z_][A-Za-z0-9_]*|(\\d+\\.?\\d*|\\.\\d+)([eE][+-]?\\d+)?|<=|>=|==|!=|&&|\\|\\||[-+*/(),?:<>!]");
+    private static int compiledClasses = 0;
+
+    public static AccPbFRET_Plugin.FretFormula compile(String expression) {
+        for (String name : identifiers(expression)) {
+            if (!Arrays.asList(VARIABLES).contains(name) && !Arrays.asList(FUNCTIONS).contains(name)) {
+                throw new IllegalArgumentException("unknown name: " + name);
+            }
+        }
+        String className = "AccPbFRET_Formula" + (++compiledClasses);
+        String source = "public final class " + className + " implements AccPbFRET_Plugin.FretFormula {\n" +
+                              "    public void compute(float[] dbP, float[] daP, float[] abP, float[] aaP, float[] out, int from, int to,\n" +
+                              "                        float blF, float ctF, float ppF, float pbF) {\n" +
+                              "        double bl = blF, ct = ctF, pp = ppF, pb = pbF;\n" +
+                              "        for (int i = from; i < to; i++) {\n" +
+                              "            double db = dbP[i];\n" +
+                              "            double da = daP[i];\n" +
+                              (uses(expression, "ab") ? "            double ab = abP[i];\n" : "") +
+                              (uses(expression, "aa") ? "            double aa = aaP[i];\n" : "") +
+                              "            out[i] = (float)(" + expression + ");\n" +
+                              "        }\n" +
+                              "    }\n" +
+                              "    private static double sqrt(double a) { return Math.sqrt(a); }\n" +
+                              "    private static double exp(double a) { return Math.exp(a); }\n" +
+                              "    private static double log(double a) { return Math.log(a); }\n" +
+                              "    private static double pow(double a, double b) { return Math.pow(a, b); }\n" +
+                              "    private static double abs(double a) { return Math.abs(a); }\n" +
+                              "    private static double min(double a, double b) { return Math.min(a, b); }\n" +
+                              "    private static double max(double a, double b) { return Math.max(a, b); }\n" +
+                              "}\n";
+        return (AccPbFRET_Plugin.FretFormula)instantiate(className, source, Collections.<String>emptyList(), "the formula");
+    }
 
-        gc.insets = new Insets(2,2,6,2);
-        gc.fill = GridBagConstraints.BOTH;
-        gc.gridwidth = GridBagConstraints.REMAINDER;
-        gc.gridx = 0;
-        gc.gridy = 0;
-        JLabel infoLabel = new JLabel("<html><center>This factor is calculated based on images of a sample labeled with acceptor only, donor after and acceptor before photobleaching.</center></html>");
-        panel.add(infoLabel, gc);
-        gc.insets = new Insets(2,2,2,2);
-        gc.gridwidth = 3;
-        gc.gridx = 0;
-        gc.gridy = 1;
-        setDonorAfterButton = new JButton("Set donor after bleaching (acc. only)");
-        setDonorAfterButton.addActionListener(this);
-        setDonorAfterButton.setActionCommand("setDonorCAfter");
-        panel.add(setDonorAfterButton, gc);
-        gc.gridx = 0;
-        gc.gridy = 2;
-        setAcceptorBeforeButton = new JButton("Set acceptor before bleaching (acc. only)");
-        setAcceptorBeforeButton.addActionListener(this);
-        setAcceptorBeforeButton.setActionCommand("setAcceptorCBefore");
-        panel.add(setAcceptorBeforeButton, gc);
-        gc.gridx = 0;
-        gc.gridy = 3;
-        subtractDonorAfterButton = new JButton("Subtract background of donor after");
-        subtractDonorAfterButton.addActionListener(this);
-        subtractDonorAfterButton.setActionCommand("subtractDonorCAfter");
-        panel.add(subtractDonorAfterButton, gc);
-        gc.gridx = 0;
-        gc.gridy = 4;
-        subtractAcceptorBeforeButton = new JButton("Subtract background of acceptor before");
-        subtractAcceptorBeforeButton.addActionListener(this);
-        subtractAcceptorBeforeButton.setActionCommand("subtractAcceptorCBefore");
-        panel.add(subtractAcceptorBeforeButton, gc);
-        gc.gridx = 0;
-        gc.gridy = 5;
-        setDonorAfterThresholdButton = new JButton("Set donor after threshold");
-        setDonorAfterThresholdButton.addActionListener(this);
-        setDonorAfterThresholdButton.setActionCommand("setDonorCAfterThreshold");
-        panel.add(setDonorAfterThresholdButton, gc);
-        gc.gridx = 0;
-        gc.gridy = 6;
-        setAcceptorBeforeThresholdButton = new JButton("Set acceptor before threshold");
-        setAcceptorBeforeThresholdButton.addActionListener(this);
-        setAcceptorBeforeThresholdButton.setActionCommand("setAcceptorCBeforeThreshold");
-        panel.add(setAcceptorBeforeThresholdButton, gc);
-        gc.gridx = 0;
-        gc.gridy = 7;
-        gc.gridheight = 2;
-        JPanel radioPanel = new JPanel();
-        GridBagLayout gbl = new GridBagLayout();
-        GridBagConstraints gcr = new GridBagConstraints();
-        radioPanel.setLayout(gbl);
-        gcr.insets = new Insets(0,4,4,4);
-        gcr.fill = GridBagConstraints.BOTH;
-        JLabel modeLabel = new JLabel("Mode:");
-        JLabel resultLabel = new JLabel("Result:");
-        mode1ResultLabel = new JLabel("", JLabel.CENTER);
-        mode2ResultLabel = new JLabel("", JLabel.CENTER);
-        quotientsButton = new JRadioButton("point-by-point");
-        quotientsButton.setToolTipText("The factor is the averaged ratio of corresponding pixel values in the donor after and acceptor before photobleaching images.");
-        averagesButton = new JRadioButton("average pixels");
-        averagesButton.setToolTipText("The factor is the ratio of the gated pixel averages in the donor after and acceptor before photobleaching images.");
-        quotientsButton.setSelected(true);
-        buttonGroup = new ButtonGroup();
-        buttonGroup.add(quotientsButton);
-        buttonGroup.add(averagesButton);
-        gcr.gridx = 0;
-        gcr.gridy = 0;
-        radioPanel.add(modeLabel, gcr);
-        gcr.gridx = 1;
-        gcr.gridy = 0;
-        radioPanel.add(quotientsButton, gcr);
-        gcr.gridx = 2;
-        gcr.gridy = 0;
-        radioPanel.add(averagesButton, gcr);
-        gcr.gridx = 0;
-        gcr.gridy = 1;
-        radioPanel.add(resultLabel, gcr);
-        gcr.gridx = 1;
-        gcr.gridy = 1;
-        radioPanel.add(mode1ResultLabel, gcr);
-        gcr.gridx = 2;
-        gcr.gridy = 1;
-        radioPanel.add(mode2ResultLabel, gcr);
-        panel.add(radioPanel, gc);
-        gc.gridx = 0;
-        gc.gridy = 9;
-        gc.gridheight = 1;
-        showPPImagesCB = new JCheckBox("show correction image (for manual calc.)");
-        panel.add(showPPImagesCB, gc);
-        gc.gridwidth = 1;
-        gc.gridheight = 1;
-        gc.gridx = 0;
-        gc.gridy = 10;
-        calculateButton = new JButton("Calculate");
-        calculateButton.addActionListener(this);
-        calculateButton.setActionCommand("calculate");
-        panel.add(calculateButton, gc);
-        gc.gridx = 1;
-        gc.gridy = 10;
-        setButton = new JButton("Set selected");
-        setButton.addActionListener(this);
-        setButton.setActionCommand("setfactor");
-        panel.add(setButton, gc);
-        gc.gridx = 2;
-        gc.gridy = 10;
-        resetButton = new JButton("Reset");
-        resetButton.addActionListener(this);
-        resetButton.setActionCommand("reset");
-        panel.add(resetButton, gc);
+    // Compiles the source of a public class in memory and returns a new instance of it. The options are
+    // added to those of the compiler, subject names the class in the messages of the exceptions.
+    public static Object instantiate(final String className, final String source, java.util.List<String> compilerOptions,
+                                     String subject) {
+        javax.tools.JavaCompiler compiler = javax.tools.ToolProvider.getSystemJavaCompiler();
+        if (compiler == null) {
+            throw new IllegalArgumentException("no Java compiler is available, ImageJ has to run on a JDK.");
+        }
+        final Map<String, ByteArrayOutputStream> classFiles = new HashMap<String, ByteArrayOutputStream>();
+        javax.tools.JavaFileObject sourceFile = new javax.tools.SimpleJavaFileObject(URI.create("string:///" + className + ".java"),
+                                                                                     javax.tools.JavaFileObject.Kind.SOURCE) {
+            public CharSequence getCharContent(boolean ignoreEncodingErrors) {
+                return source;
+            }
+        };
+        javax.tools.JavaFileManager fileManager = new javax.tools.ForwardingJavaFileManager<javax.tools.StandardJavaFileManager>(
+                compiler.getStandardFileManager(null, null, null)) {
+            public javax.tools.JavaFileObject getJavaFileForOutput(Location location, final String name, javax.tools.JavaFileObject.Kind kind,
+                                                                   javax.tools.FileObject sibling) {
+                return new javax.tools.SimpleJavaFileObject(URI.create("mem:///" + name + kind.extension), kind) {
+                    public OutputStream openOutputStream() {
+                        ByteArrayOutputStream out = new ByteArrayOutputStream();
+                        classFiles.put(name, out);
+                        return out;
+                    }
+                };
+            }
+        };
+        javax.tools.DiagnosticCollector<javax.tools.JavaFileObject> diagnostics = new javax.tools.DiagnosticCollector<javax.tools.JavaFileObject>();
+        java.util.List<String> options = new ArrayList<String>(Arrays.asList("-classpath", classPath(), "-g:none"));
+        options.addAll(compilerOptions);
+        boolean compiled = compiler.getTask(null, fileManager, diagnostics, options, null, Collections.singletonList(sourceFile)).call();
+        if (!compiled) {
+            String message = subject + " cannot be compiled.";
+            for (javax.tools.Diagnostic<? extends javax.tools.JavaFileObject> diagnostic : diagnostics.getDiagnostics()) {
+                if (diagnostic.getKind() == javax.tools.Diagnostic.Kind.ERROR) {
+                    message = subject + " cannot be compiled: " + diagnostic.getMessage(Locale.ENGLISH);
+                    break;
+                }
+            }
+            throw new IllegalArgumentException(message);
+        }
+        ClassLoader loader = new ClassLoader(AccPbFRET_Plugin.class.getClassLoader()) {
+            protected Class<?> findClass(String name) throws ClassNotFoundException {
+                ByteArrayOutputStream classFile = classFiles.get(name);
+                if (classFile == null) {
+                    throw new ClassNotFoundException(name);
+                }
+                byte[] bytes = classFile.toByteArray();
+                return defineClass(name, bytes, 0, bytes.length);
+            }
+        };
+        try {
+            return loader.loadClass(className).getDeclaredConstructor().newInstance();
+        } catch (Exception ex) {
+            throw new IllegalArgumentException(subject + " cannot be loaded (" + ex + ").");
+        } catch (LinkageError ex) {
+            throw new IllegalArgumentException(subject + " cannot be loaded (" + ex + ").");
+        }
+    }
+
+    public static boolean uses(String expression, String variable) {
+        return identifiers(expression).contains(variable);
+    }
+
+    private static java.util.List<String> identifiers(String expression) {
+        java.util.List<String> names = new ArrayList<String>();
+        java.util.regex.Matcher matcher = TOKEN.matcher(expression);
+        int position = 0;
+        while (position < expression.length()) {
+            if (!matcher.find(position) || matcher.start() != position) {
+                throw new IllegalArgumentException("invalid character at position " + (position + 1) + ": " + expression.charAt(position));
+            }
+            String token = matcher.group();
+            if (Character.isLetter(token.charAt(0)) || token.charAt(0) == '_') {
+                names.add(token);
+            }
+            position = matcher.end();
+        }
+        return names;
+    }
+
+    // the plugin classes and ImageJ are needed to compile against AccPbFRET_Plugin.FretFormula
+    private static String classPath() {
+        String classPath = System.getProperty("java.class.path");
+        Class<?>[] classes = {AccPbFRET_Plugin.class, IJ.class};
+        for (Class<?> c : classes) {
+            try {
+                classPath += File.pathSeparator + new File(c.getProtectionDomain().getCodeSource().getLocation().toURI()).getPath();
+            } catch (Exception ex) {
+                // the class path of the JVM is used only
+            }
+        }
+        return classPath;
+    }
+}
 
-        getContentPane().add(panel);
+// FloatVector loop of the transfer image formulas without partial photobleaching correction. The
+// jdk.incubator.vector module is resolved only if ImageJ is started with --add-modules jdk.incubator.vector,
+// so the loop is compiled at run time like the custom formulas, and the plugin builds and runs without it.
+// A pixel is masked out by blending NaN into the lanes where the acceptor is NaN or 0. The loop is used only
+// if it gives the same pixels as the scalar kernel on a test pattern.
+class FretVectorKernel {
+    private static final String CLASS_NAME = "AccPbFRET_VectorLoop";
+    // One loop per combination of corrections, like the scalar kernel, so no lane is loaded or tested needlessly.
+    private static String source() {
+        StringBuilder source = new StringBuilder();
+        source.append("import jdk.incubator.vector.*;\n")
+              .append("public final class " + CLASS_NAME + " implements AccPbFRET_Plugin.FretVectorLoop {\n")
+              .append("    private static final VectorSpecies<Float> SPECIES = FloatVector.SPECIES_PREFERRED;\n")
+              .append("    public void compute(float[] db, float[] da, float[] ab, float[] out, int from, int to,\n")
+              .append("                        float blCorr, float ctCorr, float ppCorr, boolean crossTalk, boolean photoproduct, boolean mask) {\n")
+              .append("        switch ((crossTalk ? 1 : 0) | (photoproduct ? 2 : 0) | (mask ? 4 : 0)) {\n");
+        for (int flags = 0; flags < 8; flags++) {
+            source.append("            case " + flags + ": loop" + flags + "(db, da, ab, out, from, to, blCorr, ctCorr, ppCorr); break;\n");
+        }
+        source.append("        }\n")
+              .append("    }\n");
+        for (int flags = 0; flags < 8; flags++) {
+            boolean crossTalk = (flags & 1) != 0, photoproduct = (flags & 2) != 0, mask = (flags & 4) != 0;
+            String n = crossTalk ? "vdb.sub(vab.mul(ctCorr))" : "vdb";
+            String d = photoproduct ? "vda.sub(vab.mul(ppCorr))" : "vda";
+            source.append("    private static void loop" + flags + "(float[] db, float[] da, float[] ab, float[] out, int from, int to,\n")
+                  .append("                              float blCorr, float ctCorr, float ppCorr) {\n")
+                  .append("        FloatVector one = FloatVector.broadcast(SPECIES, 1f);\n")
+                  .append("        FloatVector nan = FloatVector.broadcast(SPECIES, Float.NaN);\n")
+                  .append("        int i = from;\n")
+                  .append("        for (int upper = from + SPECIES.loopBound(to - from); i < upper; i += SPECIES.length()) {\n")
+                  .append("            FloatVector vdb = FloatVector.fromArray(SPECIES, db, i);\n")
+                  .append("            FloatVector vda = FloatVector.fromArray(SPECIES, da, i);\n")
+                  .append(crossTalk || photoproduct || mask ? "            FloatVector vab = FloatVector.fromArray(SPECIES, ab, i);\n" : "")
+                  .append("            FloatVector e = one.sub(" + n + ".div(" + d + ".mul(blCorr)));\n")
+                  .append(mask ? "            e = e.blend(nan, vab.test(VectorOperators.IS_NAN).or(vab.eq(0f)));\n" : "")
+                  .append("            e.intoArray(out, i);\n")
+                  .append("        }\n")
+                  .append("        for (; i < to; i++) {\n")
+                  .append("            float e = 1f - ((" + (crossTalk ? "db[i] - ab[i] * ctCorr" : "db[i]") + ") / ((" +
+                          (photoproduct ? "da[i] - ab[i] * ppCorr" : "da[i]") + ") * blCorr));\n")
+                  .append("            out[i] = " + (mask ? "Float.isNaN(ab[i]) || ab[i] == 0 ? Float.NaN : e" : "e") + ";\n")
+                  .append("        }\n")
+                  .append("    }\n");
+        }
+        return source.append("}\n").toString();
     }
 
-    public void actionPerformed(ActionEvent e) {
-    	try {
-            if (e.getActionCommand().equals("reset")) {
-                donorCAfter = null;
-                acceptorCBefore = null;
-	            setDonorAfterButton.setBackground(accBlWindow.originalButtonColor);
-	            setAcceptorBeforeButton.setBackground(accBlWindow.originalButtonColor);
-	            setDonorAfterThresholdButton.setBackground(accBlWindow.originalButtonColor);
-                setAcceptorBeforeThresholdButton.setBackground(accBlWindow.originalButtonColor);
-                calculateButton.setBackground(accBlWindow.originalButtonColor);
-                setButton.setBackground(accBlWindow.originalButtonColor);
-                subtractDonorAfterButton.setBackground(accBlWindow.originalButtonColor);
-                subtractAcceptorBeforeButton.setBackground(accBlWindow.originalButtonColor);
-                mode1ResultLabel.setText("");
-                mode2ResultLabel.setText("");
-      	    } else if (e.getActionCommand().equals("setDonorCAfter")) {
-                donorCAfter = WindowManager.getCurrentImage();
-      	        if (donorCAfter == null) {
-                    accBlWindow.logError("No image is selected. (pp. corr.)");
-                    return;
+    public static boolean isModulePresent() {
+        try {
+            Class.forName("jdk.incubator.vector.FloatVector");
+            return true;
+        } catch (Throwable t) {
+            return false;
+        }
+    }
+
+    // Compiles and checks the loop, throws an IllegalArgumentException with the reason if it cannot be used.
+    public static AccPbFRET_Plugin.FretVectorLoop load() {
+        if (!isModulePresent()) {
+            throw new IllegalArgumentException("the jdk.incubator.vector module is not available (ImageJ has to be started " +
+                                               "with --add-modules jdk.incubator.vector on Java 16 or later).");
+        }
+        AccPbFRET_Plugin.FretVectorLoop loop = (AccPbFRET_Plugin.FretVectorLoop)FretFormulaCompiler.instantiate(
+            CLASS_NAME, source(), Arrays.asList("--add-modules", "jdk.incubator.vector"), "the vector kernel");
+        verify(loop);
+        return loop;
+    }
+
+    // Compares the loop with the scalar kernel for every combination of corrections on a pattern with
+    // NaN, zero, infinite and denormal pixels and a length which is not a multiple of the vector length.
+    private static void verify(AccPbFRET_Plugin.FretVectorLoop loop) {
+        float[] special = {Float.NaN, 0f, -0f, Float.POSITIVE_INFINITY, Float.MIN_VALUE, 1f};
+        int length = 1031;
+        float[][] channels = new float[3][length];
+        Random random = new Random(1);
+        for (int c = 0; c < channels.length; c++) {
+            for (int i = 0; i < length; i++) {
+                channels[c][i] = random.nextInt(8) == 0 ? special[random.nextInt(special.length)] : random.nextFloat() * 4096;
+            }
+        }
+        float[] scalar = new float[length];
+        float[] vector = new float[length];
+        for (int flags = 0; flags < 8; flags++) {
+            boolean crossTalk = (flags & 1) != 0, photoproduct = (flags & 2) != 0, mask = (flags & 4) != 0;
+            FretKernel kernel = new FretKernel(channels[0], channels[1], channels[2], 1.1f, 0.07f, 0.03f, 0,
+                                               crossTalk, photoproduct, false, mask);
+            kernel.compute(scalar, 0, length);
+            kernel.withVectorLoop(loop).compute(vector, 0, length);
+            for (int i = 0; i < length; i++) {
+                if (Float.floatToIntBits(scalar[i]) != Float.floatToIntBits(vector[i])) {
+                    throw new IllegalArgumentException("the vector kernel differs from the scalar kernel.");
                 }
-                if (donorCAfter.getNChannels() > 1) {
-                   accBlWindow.logError("Current image contains more than 1 channel ("+donorCAfter.getNChannels()+"). Please split it into parts. (pp. corr.)");
-                   donorCAfter = null;
-                   return;
-                } else if (donorCAfter.getNSlices() > 1) {
-                   accBlWindow.logError("Current image contains more than 1 slice ("+donorCAfter.getNSlices()+"). Please split it into parts. (pp. corr.)");
-                   donorCAfter = null;
-                   return;
+            }
+        }
+    }
+}
+
+// Processing stages of a channel image: raw -> background subtracted -> registered (and cleared regions
+// set to 0) -> Gaussian blurred -> thresholded (background pixels set to NaN or 0).
+// Every stage has the parameters it depends on, so a parameter change recalculates only the stages
+// downstream of it (e.g. a new threshold does not redo the blur, a new blur radius does not redo the
+// registration). Only the outputs which are expensive to recalculate are kept, the raw image and the
+// blurred image: the background subtraction and the registration are done in one pass from the raw
+// image when they are needed, a stage which is not applied has no output, and the output of the last
+// stage is handed over to the displayed image.
+class ChannelPipeline {
+    public static final int RAW = 0, BACKGROUND = 1, REGISTERED = 2, BLURRED = 3, THRESHOLDED = 4, STAGES = 5;
+    public static final String[] THRESHOLD_MODES = {"NaN", "0", "None (no threshold)"};
+    public static final int THRESHOLD_NAN = 0, THRESHOLD_ZERO = 1, THRESHOLD_NONE = 2;
+    private int width, height;
+    private final float[] raw;
+    private float[] blurred = null;
+    private int validStages;
+    private int updatedStages = 0;
+    private boolean backgroundSubtracted = false;
+    private float background = 0;
+    private int shiftX = 0, shiftY = 0;
+    private ArrayList<Rectangle> clearedRegions = new ArrayList<Rectangle>();
+    private double blurRadius = 0;
+    private int thresholdMode = THRESHOLD_NONE;
+    private float lowerThreshold = 0, upperThreshold = 0;
+    private int binFactor = 1;
+    // parameters saved by saveState
+    private boolean saved = false, savedBackgroundSubtracted;
+    private float savedBackground;
+    private int savedShiftX, savedShiftY, savedClearedRegions;
+    private double savedBlurRadius;
+    private int savedThresholdMode;
+    private float savedLowerThreshold, savedUpperThreshold;
+
+    public ChannelPipeline(ImageProcessor raw) {
+        this(raw, 1);
+    }
+
+    // binFactor: the raw image is binned binFactor x binFactor (survey mode)
+    public ChannelPipeline(ImageProcessor raw, int binFactor) {
+        width = raw.getWidth();
+        height = raw.getHeight();
+        this.raw = (float[])raw.convertToFloat().duplicate().getPixels();
+        validStages = STAGES;
+        this.binFactor = binFactor;
+    }
+
+    public int getBinFactor() {
+        return binFactor;
+    }
+
+    // The background is measured on the displayed image, which is already background subtracted, so it
+    // is added to the previous backgrounds of the image: subtracting twice is cumulative.
+    public void addBackground(float background) {
+        this.background += background;
+        backgroundSubtracted = true;
+        invalidate(BACKGROUND);
+    }
+
+    // the shift is added to the previous shifts of the image
+    public void shift(int dx, int dy) {
+        shiftX += dx;
+        shiftY += dy;
+        invalidate(REGISTERED);
+    }
+
+    // Saves the parameters of the stages, the state of the image after a background subtraction.
+    public void saveState() {
+        saved = true;
+        savedBackgroundSubtracted = backgroundSubtracted;
+        savedBackground = background;
+        savedShiftX = shiftX;
+        savedShiftY = shiftY;
+        savedClearedRegions = clearedRegions.size();
+        savedBlurRadius = blurRadius;
+        savedThresholdMode = thresholdMode;
+        savedLowerThreshold = lowerThreshold;
+        savedUpperThreshold = upperThreshold;
+    }
+
+    // Restores the parameters saved by saveState, false if there are none. The stages are recalculated,
+    // so manual changes of the displayed image are replaced too.
+    public boolean restoreState() {
+        if (!saved) {
+            return false;
+        }
+        backgroundSubtracted = savedBackgroundSubtracted;
+        background = savedBackground;
+        shiftX = savedShiftX;
+        shiftY = savedShiftY;
+        while (clearedRegions.size() > savedClearedRegions) {
+            clearedRegions.remove(clearedRegions.size() - 1);
+        }
+        blurRadius = savedBlurRadius;
+        thresholdMode = savedThresholdMode;
+        lowerThreshold = savedLowerThreshold;
+        upperThreshold = savedUpperThreshold;
+        invalidate(BACKGROUND);
+        return true;
+    }
+
+    // The pixels of the region of the registered image are set to 0 (e.g. the background corner).
+    public void clear(Rectangle region) {
+        clearedRegions.add(new Rectangle(region));
+        invalidate(REGISTERED);
+    }
+
+    // The radius is given in full resolution pixels, it is scaled down for binned images.
+    public void setBlurRadius(double blurRadius) {
+        blurRadius = blurRadius / binFactor;
+        if (this.blurRadius != blurRadius) {
+            this.blurRadius = blurRadius;
+            invalidate(BLURRED);
+        }
+    }
+
+    // The pixels outside [lower, upper] are set to NaN or 0 (mode), THRESHOLD_NONE removes the threshold.
+    public void setThreshold(float lower, float upper, int mode) {
+        if (thresholdMode != mode || (mode != THRESHOLD_NONE && (lowerThreshold != lower || upperThreshold != upper))) {
+            thresholdMode = mode;
+            lowerThreshold = lower;
+            upperThreshold = upper;
+            invalidate(THRESHOLDED);
+        }
+    }
+
+    public boolean isThresholded() {
+        return thresholdMode != THRESHOLD_NONE;
+    }
+
+    public int getThresholdMode() {
+        return thresholdMode;
+    }
+
+    public float getLowerThreshold() {
+        return lowerThreshold;
+    }
+
+    public float getUpperThreshold() {
+        return upperThreshold;
+    }
+
+    private void invalidate(int stage) {
+        validStages = Math.min(validStages, stage);
+    }
+
+    // Recalculates the outdated stages and returns the output of the last stage, which the caller owns,
+    // or null if no stage is outdated (the output returned last time is still valid).
+    public float[] update() {
+        if (validStages == STAGES) {
+            updatedStages = 0;
+            return null;
+        }
+        updatedStages = STAGES - validStages;
+        float[] output;
+        if (blurRadius <= 0) {
+            blurred = null;
+            output = registered();
+        } else {
+            if (blurred == null || validStages <= BLURRED) {
+                blurred = registered();
+                if (blurred == raw) {
+                    blurred = raw.clone();
                 }
-                if (donorCAfter != null && acceptorCBefore != null && donorCAfter.equals(acceptorCBefore)) {
-                    accBlWindow.logError("The two images must not be the same. Please select and set an other image. (pp. corr.)");
-                    donorCAfter.setTitle("");
-                    donorCAfter = null;
-                    return;
+                new GaussianBlur().blur(new FloatProcessor(width, height, blurred, null), blurRadius);
+            }
+            output = blurred;
+        }
+        output = thresholded(output);
+        validStages = STAGES;
+        return output == raw || output == blurred ? output.clone() : output;
+    }
+
+    // number of the stages recalculated by the last update()
+    public int getUpdatedStages() {
+        return updatedStages;
+    }
+
+    // Background subtracted, shifted and cleared pixels, or the raw pixels if none of these is applied.
+    private float[] registered() {
+        if (!backgroundSubtracted && shiftX == 0 && shiftY == 0 && clearedRegions.isEmpty()) {
+            return raw;
+        }
+        float bg = backgroundSubtracted ? background : 0;
+        float[] output = new float[raw.length];
+        for (int y = Math.max(0, shiftY); y < Math.min(height, height + shiftY); y++) {
+            for (int x = Math.max(0, shiftX); x < Math.min(width, width + shiftX); x++) {
+                float value = raw[(y - shiftY)*width + (x - shiftX)];
+                if (backgroundSubtracted) {
+                    value -= bg;
+                    value = value < 0 ? 0 : value;
                 }
-                donorCAfter.setTitle("Donor after bleaching (pp. corr.) - " + new Date().toString());
-                new ImageConverter(donorCAfter).convertToGray32();
-                setDonorAfterButton.setBackground(accBlWindow.greenColor);
-      	    } else if (e.getActionCommand().equals("setAcceptorCBefore")) {
-                acceptorCBefore = WindowManager.getCurrentImage();
-      	        if (acceptorCBefore == null) {
-                    accBlWindow.logError("No image is selected. (pp. corr.)");
-                    return;
+                output[y*width + x] = value;
+            }
+        }
+        for (int r = 0; r < clearedRegions.size(); r++) {
+            Rectangle region = clearedRegions.get(r).intersection(new Rectangle(0, 0, width, height));
+            for (int y = region.y; y < region.y + region.height; y++) {
+                Arrays.fill(output, y*width + region.x, y*width + region.x + region.width, 0);
+            }
+        }
+        return output;
+    }
+
+    // NaN pixels stay NaN in both modes.
+    private float[] thresholded(float[] input) {
+        if (thresholdMode == THRESHOLD_NONE) {
+            return input;
+        }
+        float[] output = input == raw || input == blurred ? new float[input.length] : input;
+        float lower = lowerThreshold;
+        float upper = upperThreshold;
+        float outside = thresholdMode == THRESHOLD_NAN ? Float.NaN : 0;
+        for (int i = 0; i < input.length; i++) {
+            float value = input[i];
+            output[i] = (value >= lower && value <= upper) || value != value ? value : outside;
+        }
+        return output;
+    }
+}
+
+// Reads single rows of the image planes of an uncompressed TIFF based file (e.g. Zeiss LSM) without
+// reading whole images. The planes are the channels of the full resolution images in file order,
+// thumbnails are skipped. 8 and 16-bit unsigned integer and 32-bit float pixels are supported.
+class ScanlineReader {
+    private RandomAccessFile file;
+    private int width, height, fileType, bytesPerPixel;
+    private boolean intelByteOrder;
+    private ArrayList<long[]> planeStrips = new ArrayList<long[]>();
+    private ArrayList<Integer> planeRowsPerStrip = new ArrayList<Integer>();
+    private byte[] buffer;
+
+    public ScanlineReader(File imageFile) throws IOException {
+        FileInfo[] info = new TiffDecoder(imageFile.getParent() + File.separator, imageFile.getName()).getTiffInfo();
+        if (info == null || info.length == 0) {
+            throw new IOException("not a TIFF based image file");
+        }
+        for (int i = 0; i < info.length; i++) {
+            width = Math.max(width, info[i].width);
+        }
+        for (int i = 0; i < info.length; i++) {
+            FileInfo fi = info[i];
+            if (fi.width != width) {
+                continue;
+            }
+            if (planeStrips.isEmpty()) {
+                height = fi.height;
+                fileType = fi.fileType;
+                intelByteOrder = fi.intelByteOrder;
+                if (fileType == FileInfo.GRAY8) {
+                    bytesPerPixel = 1;
+                } else if (fileType == FileInfo.GRAY16_UNSIGNED) {
+                    bytesPerPixel = 2;
+                } else if (fileType == FileInfo.GRAY32_FLOAT) {
+                    bytesPerPixel = 4;
+                } else {
+                    throw new IOException("unsupported pixel type");
                 }
-                if (acceptorCBefore.getNChannels() > 1) {
-                   accBlWindow.logError("Current image contains more than 1 channel ("+acceptorCBefore.getNChannels()+"). Please split it into parts. (pp. corr.)");
-                   acceptorCBefore = null;
-                   return;
-                } else if (acceptorCBefore.getNSlices() > 1) {
-                   accBlWindow.logError("Current image contains more than 1 slice ("+acceptorCBefore.getNSlices()+"). Please split it into parts. (pp. corr.)");
-                   acceptorCBefore = null;
-                   return;
+            } else if (fi.height != height || fi.fileType != fileType || fi.intelByteOrder != intelByteOrder) {
+                throw new IOException("the images of the file have different formats");
+            }
+            if (fi.compression > FileInfo.COMPRESSION_NONE) {
+                throw new IOException("compressed images cannot be read row by row");
+            }
+            long planeBytes = (long)width * height * bytesPerPixel;
+            if (fi.samplesPerPixel <= 1 && (fi.stripOffsets == null || fi.stripOffsets.length <= 1)) {
+                for (int plane = 0; plane < Math.max(1, fi.nImages); plane++) {
+                    planeStrips.add(new long[] {fi.getOffset() + plane * (planeBytes + fi.gapBetweenImages)});
+                    planeRowsPerStrip.add(height);
                 }
-                if (donorCAfter != null && acceptorCBefore != null && donorCAfter.equals(acceptorCBefore)) {
-                    accBlWindow.logError("The two images must not be the same. Please select and set an other image. (pp. corr.)");
-                    acceptorCBefore.setTitle("");
-                    acceptorCBefore = null;
-                    return;
+            } else {
+                int samples = Math.max(1, fi.samplesPerPixel);
+                int rowsPerStrip = fi.rowsPerStrip > 0 ? Math.min(fi.rowsPerStrip, height) : height;
+                int stripsPerPlane = (height + rowsPerStrip - 1) / rowsPerStrip;
+                if (fi.stripOffsets.length != samples * stripsPerPlane) {
+                    throw new IOException("interleaved channels cannot be read row by row");
                 }
-                acceptorCBefore.setTitle("Acceptor before bleaching (pp. corr.) - " + new Date().toString());
-                new ImageConverter(acceptorCBefore).convertToGray32();
-                setAcceptorBeforeButton.setBackground(accBlWindow.greenColor);
-      	    } else if (e.getActionCommand().equals("subtractDonorCAfter")) {
-      	        if (donorCAfter == null) {
-                    accBlWindow.logError("No image is set as donor after bleaching. (pp. corr.)");
-                    return;
-                } else if (donorCAfter.getRoi() == null) {
-                    accBlWindow.logError("No ROI is defined for donor after bleaching. (pp. corr.)");
-                    return;
+                for (int sample = 0; sample < samples; sample++) {
+                    long[] strips = new long[stripsPerPlane];
+                    for (int s = 0; s < stripsPerPlane; s++) {
+                        strips[s] = fi.stripOffsets[sample * stripsPerPlane + s] & 0xffffffffL;
+                    }
+                    planeStrips.add(strips);
+                    planeRowsPerStrip.add(rowsPerStrip);
                 }
-                ImageProcessor ipDA = donorCAfter.getProcessor();
-                int width = donorCAfter.getWidth();
-                int height = donorCAfter.getHeight();
-                double sum = 0;
-                int count = 0;
-                for (int i=0; i<width; i++) {
-                    for (int j=0; j<height; j++) {
-                        if (donorCAfter.getRoi().contains(i, j)) {
-                            sum += ipDA.getPixelValue(i,j);
-                            count++;
-                        }
-		            }
-        		}
-		        float backgroundAvgDB = (float)(sum/count);
+            }
+        }
+        buffer = new byte[width * bytesPerPixel];
+        file = new RandomAccessFile(imageFile, "r");
+    }
 
-                float value = 0;
-                for (int x=0; x < width; x++) {
-                    for (int y=0; y < height; y++) {
-                        value = ipDA.getPixelValue(x,y);
-                        value = value - backgroundAvgDB;
-		                ipDA.putPixelValue(x, y, value);
-        		    }
-		        }
-		        donorCAfter.updateAndDraw();
-		        donorCAfter.killRoi();
-                accBlWindow.log("Subtracted background ("+backgroundAvgDB+") of donor after bleaching. (pp. corr.)");
-                subtractDonorAfterButton.setBackground(accBlWindow.greenColor);
-      	    } else if (e.getActionCommand().equals("subtractAcceptorCBefore")) {
-      	        if (acceptorCBefore == null) {
-                    accBlWindow.logError("No image is set as acceptor before bleaching. (pp. corr.)");
-                    return;
-                } else if (acceptorCBefore.getRoi() == null) {
-                    accBlWindow.logError("No ROI is defined for acceptor before bleaching. (pp. corr.)");
-                    return;
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public int getPlaneCount() {
+        return planeStrips.size();
+    }
+
+    public void readRow(int plane, int y, float[] row) throws IOException {
+        int rowsPerStrip = planeRowsPerStrip.get(plane);
+        file.seek(planeStrips.get(plane)[y / rowsPerStrip] + (long)(y % rowsPerStrip) * width * bytesPerPixel);
+        file.readFully(buffer);
+        if (bytesPerPixel == 1) {
+            for (int x = 0; x < width; x++) {
+                row[x] = buffer[x] & 0xff;
+            }
+        } else if (bytesPerPixel == 2) {
+            int low = intelByteOrder ? 0 : 1;
+            for (int x = 0; x < width; x++) {
+                row[x] = (buffer[2*x + low] & 0xff) | ((buffer[2*x + 1 - low] & 0xff) << 8);
+            }
+        } else {
+            for (int x = 0; x < width; x++) {
+                int b = 4*x;
+                int bits = intelByteOrder
+                           ? (buffer[b] & 0xff) | ((buffer[b + 1] & 0xff) << 8) | ((buffer[b + 2] & 0xff) << 16) | (buffer[b + 3] << 24)
+                           : (buffer[b + 3] & 0xff) | ((buffer[b + 2] & 0xff) << 8) | ((buffer[b + 1] & 0xff) << 16) | (buffer[b] << 24);
+                row[x] = Float.intBitsToFloat(bits);
+            }
+        }
+    }
+
+    public void close() throws IOException {
+        file.close();
+    }
+}
+
+// Writes a 32-bit float image as an uncompressed single strip TIFF row by row.
+class FloatTiffWriter {
+    private DataOutputStream out;
+    private int width, height;
+
+    public FloatTiffWriter(File imageFile, int width, int height) throws IOException {
+        this.width = width;
+        this.height = height;
+        out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(imageFile)));
+        out.writeShort(0x4d4d);
+        out.writeShort(42);
+        out.writeInt(8 + width * height * 4);
+    }
+
+    public void writeRow(float[] row) throws IOException {
+        for (int x = 0; x < width; x++) {
+            out.writeFloat(row[x]);
+        }
+    }
+
+    public void close() throws IOException {
+        out.writeShort(10);
+        writeEntry(256, 4, width);
+        writeEntry(257, 4, height);
+        writeEntry(258, 3, 32);
+        writeEntry(259, 3, 1);
+        writeEntry(262, 3, 1);
+        writeEntry(273, 4, 8);
+        writeEntry(277, 3, 1);
+        writeEntry(278, 4, height);
+        writeEntry(279, 4, width * height * 4);
+        writeEntry(339, 3, 3);
+        out.writeInt(0);
+        out.close();
+    }
+
+    private void writeEntry(int tag, int type, int value) throws IOException {
+        out.writeShort(tag);
+        out.writeShort(type);
+        out.writeInt(1);
+        if (type == 3) {
+            out.writeShort(value);
+            out.writeShort(0);
+        } else {
+            out.writeInt(value);
+        }
+    }
+}
+
+// Measurement of one two-channel LSM file (donor and acceptor, before and after photobleaching) in
+// streaming mode: the channels are read row by row, background corrected as in semi-automatic
+// processing (the upper left 1/6 x 1/6 corner is the background and is excluded), and the transfer
+// efficiency of a row is measured and discarded, so only a few rows are in memory. The median is exact:
+// the pixel values are ordered by their float bit patterns, and a second pass over the file selects
+// the lower 16 bits within the 16-bit bucket of the median found in the first pass.
+class StreamingFretJob implements Callable<double[]> {
+    public static final String[] COLUMNS = {"Pixels", "Not NaN p.", "Mean", "Median", "Std. dev.", "Min", "Max",
+                                            "Min (DB)", "Max (DB)", "Mean (DB)", "Min (DA)", "Max (DA)", "Mean (DA)",
+                                            "Min (AB)", "Max (AB)", "Mean (AB)"};
+    // plane order of the channels of the before and after photobleaching images
+    private static final int DB = 0, AB = 1, DA = 2, AA = 3;
+    private final File imageFile, transferFile;
+    private final float[] factors;
+    private final boolean crossTalkCorr, photoproductCorr, partialBlCorrection, acceptorAsMask;
+    private final AccPbFRET_Plugin.FretFormula formula;
+    private final boolean[] subtracted;
+    private int width, height, cornerWidth, cornerHeight;
+    private float[] background = new float[4];
+    private float[][] rows = new float[4][];
+    private float[] efficiency;
+    private FretKernel kernel;
+    private EfficiencyHistogram histogram = null, histogramTarget = null;
+    private EfficiencySketch sketch = null, sketchTarget = null;
+    private PixelTupleSink tupleSink = null;
+    private EfficiencyDensity density = null, densityTarget = null;
+    private AccPbFRET_Plugin.FretVectorLoop vectorLoop = null;
+
+    // factors: donor bleaching, acceptor cross-talk, acceptor photoproduct, partial photobleaching;
+    // subtracted: the DB, AB, DA, AA channels whose background is subtracted; transferFile may be null
+    public StreamingFretJob(File imageFile, File transferFile, float[] factors, boolean crossTalkCorr, boolean photoproductCorr,
+                            boolean partialBlCorrection, boolean acceptorAsMask,
+                            AccPbFRET_Plugin.FretFormula formula, boolean[] subtracted) {
+        this.imageFile = imageFile;
+        this.transferFile = transferFile;
+        this.factors = factors;
+        this.crossTalkCorr = crossTalkCorr;
+        this.photoproductCorr = photoproductCorr;
+        this.partialBlCorrection = partialBlCorrection;
+        this.acceptorAsMask = acceptorAsMask;
+        this.formula = formula;
+        this.subtracted = subtracted;
+    }
+
+    // The transfer efficiency of the file is collected in a histogram of the job, which is merged into the
+    // given histogram when the file has been measured. The histogram may be shared with other jobs.
+    public void setHistogram(EfficiencyHistogram histogram) {
+        this.histogramTarget = histogram;
+    }
+
+    // The transfer efficiency of the file is merged into the sketch as for setHistogram().
+    public void setSketch(EfficiencySketch sketch) {
+        this.sketchTarget = sketch;
+    }
+
+    // The tuples of the valid pixels of the file are written to the sink, which may be shared with other jobs.
+    // The background is subtracted from every channel of the tuples, also from those the kernel reads raw.
+    public void setTupleSink(PixelTupleSink tupleSink) {
+        this.tupleSink = tupleSink;
+    }
+
+    // The transfer efficiency of the file is merged into the density as for setHistogram().
+    public void setDensity(EfficiencyDensity density) {
+        this.densityTarget = density;
+    }
+
+    // The vector loop of the transfer image kernel, null for the scalar loops.
+    public void setVectorLoop(AccPbFRET_Plugin.FretVectorLoop vectorLoop) {
+        this.vectorLoop = vectorLoop;
+    }
+
+    public double[] call() throws IOException {
+        ScanlineReader reader = new ScanlineReader(imageFile);
+        try {
+            if (reader.getPlaneCount() < 4) {
+                throw new IOException("the file contains " + reader.getPlaneCount() + " channel images instead of 4");
+            }
+            width = reader.getWidth();
+            height = reader.getHeight();
+            cornerWidth = width / 6;
+            cornerHeight = height / 6;
+            for (int c = 0; c < 4; c++) {
+                rows[c] = new float[width];
+            }
+            efficiency = new float[width];
+            kernel = new FretKernel(rows[DB], rows[DA], rows[AB], factors[0], factors[1], factors[2], factors[3],
+                                    crossTalkCorr, photoproductCorr, partialBlCorrection, acceptorAsMask).withVectorLoop(vectorLoop);
+            if (formula != null) {
+                kernel = kernel.withFormula(formula, rows[AA]);
+            }
+            histogram = histogramTarget != null ? histogramTarget.emptyCopy() : null;
+            sketch = sketchTarget != null ? sketchTarget.emptyCopy() : null;
+            density = densityTarget != null ? densityTarget.emptyCopy() : null;
+            measureBackground(reader);
+            double[] results = measure(reader);
+            mergeDistributions();
+            return results;
+        } finally {
+            reader.close();
+            histogram = null;
+            sketch = null;
+            density = null;
+        }
+    }
+
+    // Only the files being measured hold distributions of their own, the finished ones are merged
+    // right away, so the memory use does not grow with the number of files.
+    private void mergeDistributions() {
+        if (histogram != null) {
+            synchronized (histogramTarget) {
+                histogramTarget.merge(histogram);
+            }
+        }
+        if (sketch != null) {
+            synchronized (sketchTarget) {
+                sketchTarget.merge(sketch);
+            }
+        }
+        if (density != null) {
+            synchronized (densityTarget) {
+                densityTarget.merge(density);
+            }
+        }
+    }
+
+    private void measureBackground(ScanlineReader reader) throws IOException {
+        for (int c = 0; c < 4; c++) {
+            if ((!subtracted[c] && tupleSink == null) || cornerWidth == 0 || cornerHeight == 0) {
+                continue;
+            }
+            double sum = 0;
+            for (int y = 0; y < cornerHeight; y++) {
+                reader.readRow(c, y, rows[c]);
+                for (int x = 0; x < cornerWidth; x++) {
+                    sum += rows[c][x];
                 }
-                ImageProcessor ipAB = acceptorCBefore.getProcessor();
-                int width = acceptorCBefore.getWidth();
-                int height = acceptorCBefore.getHeight();
-                double sum = 0;
-                int count = 0;
-                for (int i=0; i<width; i++) {
-                    for (int j=0; j<height; j++) {
-                        if (acceptorCBefore.getRoi().contains(i, j)) {
-                            sum += ipAB.getPixelValue(i,j);
-                            count++;
-                        }
-		            }
-        		}
-		        float backgroundAvgDA = (float)(sum/count);
+            }
+            background[c] = (float)(sum / (cornerWidth * cornerHeight));
+        }
+    }
 
-                float value = 0;
-                for (int x=0; x < width; x++) {
-                    for (int y=0; y < height; y++) {
-                        value = ipAB.getPixelValue(x,y);
-                        value = value - backgroundAvgDA;
-		                ipAB.putPixelValue(x, y, value);
-        		    }
-		        }
-		        acceptorCBefore.updateAndDraw();
-		        acceptorCBefore.killRoi();
-                accBlWindow.log("Subtracted background ("+backgroundAvgDA+") of acceptor before bleaching. (pp. corr.)");
-                subtractAcceptorBeforeButton.setBackground(accBlWindow.greenColor);
-      	    } else if (e.getActionCommand().equals("setDonorCAfterThreshold")) {
-      	        if (donorCAfter == null) {
-                    accBlWindow.logError("No image is set as donor after bleaching. (pp. corr.)");
-                    return;
+    // Reads the channel rows of the image row y, subtracts the background and computes the row of the transfer image.
+    private void computeRow(ScanlineReader reader, int y) throws IOException {
+        for (int c = 0; c < 4; c++) {
+            if (c == AA && formula == null && tupleSink == null) {
+                continue;
+            }
+            float[] row = rows[c];
+            reader.readRow(c, y, row);
+            if (subtracted[c]) {
+                float bg = background[c];
+                for (int x = 0; x < width; x++) {
+                    float value = row[x] - bg;
+                    row[x] = value < 0 ? 0 : value;
                 }
-                IJ.selectWindow(donorCAfter.getTitle());
-                IJ.run("Threshold...");
-                setDonorAfterThresholdButton.setBackground(accBlWindow.greenColor);
-      	    } else if (e.getActionCommand().equals("setAcceptorCBeforeThreshold")) {
-      	        if (acceptorCBefore == null) {
-                    accBlWindow.logError("No image is set as acceptor before bleaching. (pp. corr.)");
-                    return;
+                if (y < cornerHeight) {
+                    Arrays.fill(row, 0, cornerWidth, 0);
                 }
-                IJ.selectWindow(acceptorCBefore.getTitle());
-                IJ.run("Threshold...");
-                setAcceptorBeforeThresholdButton.setBackground(accBlWindow.greenColor);
-      	    } else if (e.getActionCommand().equals("calculate")) {
-                if (donorCAfter == null) {
-                    accBlWindow.logError("No image is set as donor after bleaching. (pp. corr.)");
-                    return;
-      	        } else if (acceptorCBefore == null) {
-                    accBlWindow.logError("No image is set as acceptor before bleaching. (pp. corr.)");
-                    return;
-                } else {
-                    DecimalFormat df = new DecimalFormat("#.###");
-                    ImageProcessor ipDA = donorCAfter.getProcessor();
-                    ImageProcessor ipAB = acceptorCBefore.getProcessor();
-                    float[][] corrImgPoints = null;
-                    int width = ipDA.getWidth();
-                    int height = ipDA.getHeight();
-                    if(showPPImagesCB.isSelected()) {
-                        corrImgPoints = new float[width][height];
+            }
+        }
+        kernel.compute(efficiency, 0, width);
+    }
+
+    // Value of the exported tuple: the pixel of the row of channel c with the background subtracted.
+    private float corrected(int c, int x, int y) {
+        float value = rows[c][x];
+        if (subtracted[c]) {
+            return value;
+        } else if (x < cornerWidth && y < cornerHeight) {
+            return 0;
+        }
+        value -= background[c];
+        return value < 0 ? 0 : value;
+    }
+
+    private double[] measure(ScanlineReader reader) throws IOException {
+        FloatTiffWriter writer = transferFile != null ? new FloatTiffWriter(transferFile, width, height) : null;
+        PixelTupleBuffer tuples = tupleSink != null ? tupleSink.open(imageFile.getName()) : null;
+        int[] upperCounts = new int[65536];
+        long notNan = 0;
+        long count = 0;
+        double sum = 0, sum2 = 0;
+        float min = Float.MAX_VALUE, max = -Float.MAX_VALUE;
+        int[] channels = {DB, DA, AB};
+        double[] channelMin = {Double.MAX_VALUE, Double.MAX_VALUE, Double.MAX_VALUE};
+        double[] channelMax = {-Double.MAX_VALUE, -Double.MAX_VALUE, -Double.MAX_VALUE};
+        double[] channelSum = new double[3];
+        try {
+            for (int y = 0; y < height; y++) {
+                computeRow(reader, y);
+                for (int x = 0; x < width; x++) {
+                    float e = efficiency[x];
+                    if (e >= -1) {
+                        notNan++;
                     }
-                    double sumc = 0;
-                    double countc = 0;
-                    for (int i = 0; i < width; i++) {
-                        for (int j = 0; j < height; j++) {
-                            if (ipAB.getPixelValue(i, j) > 0 && ipDA.getPixelValue(i, j) > 0) {
-                                double current = ipDA.getPixelValue(i, j) / ipAB.getPixelValue(i, j);
-                                sumc += current;
-                                countc++;
-                                if(showPPImagesCB.isSelected()) {
-                                    corrImgPoints[i][j] = (float)current;
-                                }
-                            }
+                    if (e >= -Float.MAX_VALUE && e <= Float.MAX_VALUE) {
+                        count++;
+                        sum += e;
+                        sum2 += (double)e * e;
+                        min = Math.min(min, e);
+                        max = Math.max(max, e);
+                        upperCounts[(key(e) >> 16) + 32768]++;
+                        if (histogram != null) {
+                            histogram.add(e);
+                        }
+                        if (sketch != null) {
+                            sketch.add(e);
+                        }
+                        if (tuples != null) {
+                            tuples.add(x, y, corrected(DB, x, y), corrected(DA, x, y), corrected(AB, x, y), corrected(AA, x, y), e);
+                        }
+                        if (density != null) {
+                            density.add(rows[DB][x], rows[AB][x], e);
                         }
                     }
-                    float avg = (float)(sumc / countc);
-                    mode1ResultLabel.setText(df.format(avg).toString());
+                }
+                for (int c = 0; c < channels.length; c++) {
+                    float[] row = rows[channels[c]];
+                    for (int x = 0; x < width; x++) {
+                        channelMin[c] = Math.min(channelMin[c], row[x]);
+                        channelMax[c] = Math.max(channelMax[c], row[x]);
+                        channelSum[c] += row[x];
+                    }
+                }
+                if (writer != null) {
+                    writer.writeRow(efficiency);
+                }
+            }
+            if (tuples != null) {
+                tuples.flush();
+            }
+        } finally {
+            if (writer != null) {
+                writer.close();
+            }
+        }
+        long pixels = (long)width * height;
+        double[] results = new double[COLUMNS.length];
+        results[0] = pixels;
+        results[1] = notNan;
+        results[2] = count > 0 ? sum / count : Double.NaN;
+        results[3] = count > 0 ? median(reader, upperCounts, count) : Double.NaN;
+        results[4] = count > 1 ? Math.sqrt((count * sum2 - sum * sum) / count / (count - 1.0)) : 0;
+        results[5] = count > 0 ? min : Double.NaN;
+        results[6] = count > 0 ? max : Double.NaN;
+        for (int c = 0; c < channels.length; c++) {
+            results[7 + 3*c] = channelMin[c];
+            results[8 + 3*c] = channelMax[c];
+            results[9 + 3*c] = channelSum[c] / pixels;
+        }
+        return results;
+    }
 
-                    float[] ipDAP = (float[])ipDA.getPixels();
-                    float[] ipABP = (float[])ipAB.getPixels();
-                    double avgDonorAfter = 0;
-                    double avgAcceptorBefore = 0;
-                    countc = 0;
-                    sumc = 0;
-                    for (int i = 0; i < ipDAP.length; i++) {
-                        if (ipDAP[i] > 0) {
-                            sumc += ipDAP[i];
-                            countc++;
+    // Exact median of the valid pixels: the middle value, or the mean of the two middle values for an even
+    // count. ImageJ estimates the median of 32-bit images from a histogram, so the values may differ slightly.
+    private double median(ScanlineReader reader, int[] upperCounts, long count) throws IOException {
+        long lowerRank = (count - 1) / 2;
+        long upperRank = count / 2;
+        int[] lowerBucket = findBucket(upperCounts, lowerRank);
+        int[] upperBucket = findBucket(upperCounts, upperRank);
+        int[] lowerCounts = new int[65536];
+        int[] upperBucketCounts = lowerBucket[0] == upperBucket[0] ? lowerCounts : new int[65536];
+        for (int y = 0; y < height; y++) {
+            computeRow(reader, y);
+            for (int x = 0; x < width; x++) {
+                float e = efficiency[x];
+                if (e >= -Float.MAX_VALUE && e <= Float.MAX_VALUE) {
+                    int k = key(e);
+                    int bucket = (k >> 16) + 32768;
+                    if (bucket == lowerBucket[0]) {
+                        lowerCounts[k & 0xffff]++;
+                    } else if (bucket == upperBucket[0]) {
+                        upperBucketCounts[k & 0xffff]++;
+                    }
+                }
+            }
+        }
+        float lower = value(lowerBucket[0], findBucket(lowerCounts, lowerBucket[1])[0]);
+        float upper = value(upperBucket[0], findBucket(upperBucketCounts, upperBucket[1])[0]);
+        return lowerRank == upperRank ? lower : (lower + upper) / 2;
+    }
+
+    // bucket of the value of the given rank and the rank of the value within the bucket
+    private static int[] findBucket(int[] counts, long rank) {
+        long below = 0;
+        for (int b = 0; b < counts.length; b++) {
+            if (below + counts[b] > rank) {
+                return new int[] {b, (int)(rank - below)};
+            }
+            below += counts[b];
+        }
+        return new int[] {counts.length - 1, 0};
+    }
+
+    // float bit pattern as an int with the same order as the float values
+    static int key(float value) {
+        int bits = Float.floatToIntBits(value);
+        return bits ^ ((bits >> 31) & 0x7fffffff);
+    }
+
+    static float value(int upperBucket, int lower) {
+        int k = ((upperBucket - 32768) << 16) | lower;
+        return Float.intBitsToFloat(k ^ ((k >> 31) & 0x7fffffff));
+    }
+}
+
+// Every column of a results row of Create and Measure in a single pass over the ROI: the pixel counts,
+// the statistics of the transfer image (and its inverse-variance weighted mean if the uncertainty image
+// is given), and the minimum, maximum and mean of the donor and acceptor images. As in ImageJ, NaN and
+// infinite pixels are left out of the statistics, and the median of an even count is the mean of the two
+// middle values.
+class FretMeasurement {
+    private static final int EFFICIENCY = 0, DONOR_BEFORE = 1, DONOR_AFTER = 2, ACCEPTOR_BEFORE = 3;
+    private final float[][] images;
+    private final float[] variance;
+    private final int width, height;
+    private long pixelCount, notNanCount;
+    private long[] counts = new long[4];
+    private double[] sums = new double[4];
+    private double[] mins = new double[4], maxs = new double[4];
+    private double sum2, weightSum, weightedSum;
+    private float[] values;
+    private double[] percents = new double[0];
+    private boolean iqr;
+    private double median;
+    private double[] percentileValues;
+    private int resamples = 0;
+    private double confidence;
+    private long seed;
+    private ForkJoinPool pool;
+    private double[] confidenceLimits;
+    private EfficiencySketch sketch = null;
+
+    // variance and the donor and acceptor images may be null
+    public FretMeasurement(float[] efficiency, float[] variance, float[] donorBefore, float[] donorAfter, float[] acceptorBefore, int width, int height) {
+        this.images = new float[][] {efficiency, donorBefore, donorAfter, acceptorBefore};
+        this.variance = variance;
+        this.width = width;
+        this.height = height;
+    }
+
+    // A measurement of the same images, to measure another ROI.
+    public FretMeasurement copy() {
+        FretMeasurement copy = new FretMeasurement(images[EFFICIENCY], variance, images[DONOR_BEFORE], images[DONOR_AFTER], images[ACCEPTOR_BEFORE], width, height);
+        copy.setPercentiles(percents, iqr);
+        copy.setBootstrap(resamples, confidence, seed, pool);
+        return copy;
+    }
+
+    // The percentiles (P5, P25, ...) and, if iqr is set, the interquartile range selected by measure.
+    public void setPercentiles(double[] percents, boolean iqr) {
+        this.percents = percents;
+        this.iqr = iqr;
+    }
+
+    // Bootstrap confidence intervals of the mean and the median computed by measure in the pool, none for
+    // 0 resamples.
+    public void setBootstrap(int resamples, double confidence, long seed, ForkJoinPool pool) {
+        this.resamples = resamples;
+        this.confidence = confidence;
+        this.seed = seed;
+        this.pool = pool;
+    }
+
+    // The measured transfer efficiency values are also added to the sketch.
+    public void setSketch(EfficiencySketch sketch) {
+        this.sketch = sketch;
+    }
+
+    public void measure(RoiMask mask) {
+        Rectangle clipped = mask.getBounds();
+        Arrays.fill(mins, Double.MAX_VALUE);
+        Arrays.fill(maxs, -Double.MAX_VALUE);
+        values = new float[Math.max(0, clipped.width) * Math.max(0, clipped.height)];
+        float[] efficiency = images[EFFICIENCY];
+        for (int y = clipped.y; y < clipped.y + clipped.height; y++) {
+            for (int x = clipped.x; x < clipped.x + clipped.width; x++) {
+                if (!mask.contains(x, y)) {
+                    continue;
+                }
+                int i = y*width + x;
+                pixelCount++;
+                float e = efficiency[i];
+                if (e >= -1) {
+                    notNanCount++;
+                }
+                if (e >= -Float.MAX_VALUE && e <= Float.MAX_VALUE) {
+                    values[(int)counts[EFFICIENCY]] = e;
+                    sum2 += (double)e * e;
+                    add(EFFICIENCY, e);
+                    if (sketch != null) {
+                        sketch.add(e);
+                    }
+                    if (variance != null) {
+                        double v = variance[i];
+                        if (v > 0 && v <= Float.MAX_VALUE) {
+                            weightSum += 1 / v;
+                            weightedSum += e / v;
                         }
                     }
-                    avgDonorAfter = sumc / countc;
-                    countc = 0;
-                    sumc = 0;
-                    for (int i = 0; i < ipABP.length; i++) {
-                        if (ipABP[i] > 0) {
-                            sumc += ipABP[i];
-                            countc++;
+                }
+                for (int c = DONOR_BEFORE; c <= ACCEPTOR_BEFORE; c++) {
+                    if (images[c] != null) {
+                        float value = images[c][i];
+                        if (value >= -Float.MAX_VALUE && value <= Float.MAX_VALUE) {
+                            add(c, value);
                         }
                     }
-                    avgAcceptorBefore = sumc / countc;
-                    mode2ResultLabel.setText(df.format((float)(avgDonorAfter/avgAcceptorBefore)).toString());
-                    calculateButton.setBackground(accBlWindow.greenColor);
-                    donorCAfter.changes = false;
-                    acceptorCBefore.changes = false;
-                    if(showPPImagesCB.isSelected()) {
-                        ImagePlus corrImg = new ImagePlus("Photoproduct correction image", new FloatProcessor(corrImgPoints));
-                        corrImg.show();
+                }
+            }
+        }
+        selectPercentiles();
+        if (resamples > 0) {
+            Arrays.sort(values, 0, (int)counts[EFFICIENCY]);
+            confidenceLimits = BootstrapInterval.compute(pool, values, (int)counts[EFFICIENCY], resamples, seed, confidence);
+        }
+        values = null;
+    }
+
+    private void add(int c, float value) {
+        counts[c]++;
+        sums[c] += value;
+        if (value < mins[c]) {
+            mins[c] = value;
+        }
+        if (value > maxs[c]) {
+            maxs[c] = value;
+        }
+    }
+
+    // The median and the percentiles are selected in place from the measured values, no sorted copy is made.
+    private void selectPercentiles() {
+        int count = percents.length;
+        double[] requested = Arrays.copyOf(percents, count + (iqr ? 3 : 1));
+        requested[count] = 50;
+        if (iqr) {
+            requested[count + 1] = 25;
+            requested[count + 2] = 75;
+        }
+        percentileValues = PercentileSelector.percentiles(values, (int)counts[EFFICIENCY], requested);
+        median = percentileValues[count];
+    }
+
+    public double getMedian() {
+        return median;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public double getStdDev() {
+        double n = counts[EFFICIENCY];
+        double sum = sums[EFFICIENCY];
+        return n > 1 ? Math.sqrt((n*sum2 - sum*sum) / n / (n - 1.0)) : 0;
+    }
+
+    private double getMean(int c) {
+        return counts[c] > 0 ? sums[c] / counts[c] : Double.NaN;
+    }
+
+    private double getMin(int c) {
+        return counts[c] > 0 ? mins[c] : Double.NaN;
+    }
+
+    private double getMax(int c) {
+        return counts[c] > 0 ? maxs[c] : Double.NaN;
+    }
+
+    public void addEfficiencyColumns(ResultsBuffer rt) {
+        rt.addValue("Pixels", pixelCount);
+        rt.addValue("Not NaN p.", notNanCount);
+        rt.addValue("Mean", (float)getMean(EFFICIENCY));
+        rt.addValue("Median", (float)getMedian());
+        rt.addValue("Std. dev.", (float)getStdDev());
+        rt.addValue("Min", (float)getMin(EFFICIENCY));
+        rt.addValue("Max", (float)getMax(EFFICIENCY));
+        if (variance != null) {
+            rt.addValue("Weighted mean", weightSum > 0 ? (float)(weightedSum / weightSum) : Float.NaN);
+            rt.addValue("Weighted SE", weightSum > 0 ? (float)Math.sqrt(1 / weightSum) : Float.NaN);
+        }
+    }
+
+    public void addPercentileColumns(ResultsBuffer rt) {
+        int count = percents.length;
+        for (int p = 0; p < count; p++) {
+            rt.addValue("P" + PercentileSelector.format(percents[p]), (float)percentileValues[p]);
+        }
+        if (iqr) {
+            rt.addValue("IQR", (float)(percentileValues[count + 2] - percentileValues[count + 1]));
+        }
+    }
+
+    public void addBootstrapColumns(ResultsBuffer rt) {
+        if (resamples > 0) {
+            rt.addValue("Mean CI low", (float)confidenceLimits[0]);
+            rt.addValue("Mean CI high", (float)confidenceLimits[1]);
+            rt.addValue("Median CI low", (float)confidenceLimits[2]);
+            rt.addValue("Median CI high", (float)confidenceLimits[3]);
+        }
+    }
+
+    // Images which are not given have 0 in their columns.
+    public void addChannelColumns(ResultsBuffer rt) {
+        String[] names = {"DB", "DA", "AB"};
+        for (int c = DONOR_BEFORE; c <= ACCEPTOR_BEFORE; c++) {
+            boolean given = images[c] != null;
+            rt.addValue("Min (" + names[c - 1] + ")", given ? (float)getMin(c) : 0);
+            rt.addValue("Max (" + names[c - 1] + ")", given ? (float)getMax(c) : 0);
+            rt.addValue("Mean (" + names[c - 1] + ")", given ? (float)getMean(c) : 0);
+        }
+    }
+}
+
+// Exact percentiles of the first n values of an array, selected in place by quickselect with a three-way
+// partition (expected O(n) time per percentile, many equal values included), without sorting a copy. A range
+// which does not shrink fast enough is sorted instead, which bounds the worst case. A percentile between two
+// ranks is interpolated linearly, so the 50th percentile is the median as ImageJ computes it.
+class PercentileSelector {
+    private static final int INSERTION_SORT_SIZE = 16;
+
+    public static double median(float[] values, int n) {
+        return percentiles(values, n, new double[] {50})[0];
+    }
+
+    // percents: 0 to 100, in any order. The values are reordered, NaN results for n = 0.
+    public static double[] percentiles(float[] values, int n, double[] percents) {
+        double[] results = new double[percents.length];
+        if (n == 0) {
+            Arrays.fill(results, Double.NaN);
+            return results;
+        }
+        double[] sorted = percents.clone();
+        Arrays.sort(sorted);
+        double[] sortedResults = new double[sorted.length];
+        int from = 0;
+        for (int p = 0; p < sorted.length; p++) {
+            double position = sorted[p] / 100 * (n - 1);
+            int k = Math.min((int)position, n - 1);
+            double fraction = position - k;
+            // the values below a selected rank stay below it, so higher ranks are searched above it only
+            double lower = select(values, from, n, k);
+            from = k;
+            if (fraction > 0 && k + 1 < n) {
+                double upper = select(values, k + 1, n, k + 1);
+                sortedResults[p] = (1 - fraction) * lower + fraction * upper;
+            } else {
+                sortedResults[p] = lower;
+            }
+        }
+        for (int p = 0; p < percents.length; p++) {
+            results[p] = sortedResults[Arrays.binarySearch(sorted, percents[p])];
+        }
+        return results;
+    }
+
+    // Reorders values[from, to) so that the k-th value is at index k with no greater value before it and
+    // no smaller value after it, and returns it.
+    static float select(float[] values, int from, int to, int k) {
+        int lo = from;
+        int hi = to - 1;
+        int partitions = 2 * (32 - Integer.numberOfLeadingZeros(to - from));
+        while (hi - lo >= INSERTION_SORT_SIZE) {
+            if (partitions-- == 0) {
+                Arrays.sort(values, lo, hi + 1);
+                return values[k];
+            }
+            float pivot = medianOfThree(values[lo], values[(lo + hi) >>> 1], values[hi]);
+            // values[lo, lt) < pivot, values[lt, i) == pivot, values(gt, hi] > pivot
+            int lt = lo;
+            int gt = hi;
+            int i = lo;
+            while (i <= gt) {
+                float value = values[i];
+                if (value < pivot) {
+                    values[i++] = values[lt];
+                    values[lt++] = value;
+                } else if (value > pivot) {
+                    values[i] = values[gt];
+                    values[gt--] = value;
+                } else {
+                    i++;
+                }
+            }
+            if (k < lt) {
+                hi = lt - 1;
+            } else if (k > gt) {
+                lo = gt + 1;
+            } else {
+                return pivot;
+            }
+        }
+        for (int i = lo + 1; i <= hi; i++) {
+            float value = values[i];
+            int j = i - 1;
+            while (j >= lo && values[j] > value) {
+                values[j + 1] = values[j];
+                j--;
+            }
+            values[j + 1] = value;
+        }
+        return values[k];
+    }
+
+    private static float medianOfThree(float a, float b, float c) {
+        if (a < b) {
+            return b < c ? b : (a < c ? c : a);
+        } else {
+            return a < c ? a : (b < c ? c : b);
+        }
+    }
+
+    // Percent values as they appear in column headings and settings, e.g. "5, 25, 2.5".
+    public static String format(double[] percents) {
+        StringBuilder text = new StringBuilder();
+        for (int p = 0; p < percents.length; p++) {
+            text.append(p > 0 ? ", " : "").append(format(percents[p]));
+        }
+        return text.toString();
+    }
+
+    public static String format(double percent) {
+        return percent == Math.rint(percent) ? "" + (long)percent : "" + percent;
+    }
+}
+
+// A ROI rasterized for an image: its bounding rectangle clipped to the image and a bit mask of its
+// pixels in that rectangle (none for a rectangular ROI). Without ROI the whole image is inside.
+class RoiMask {
+    private final Roi roi;
+    private final int imageWidth, imageHeight, shape;
+    private final Rectangle roiBounds, bounds;
+    private final long[] bits;
+
+    public RoiMask(Roi roi, int imageWidth, int imageHeight) {
+        this.roi = roi;
+        this.imageWidth = imageWidth;
+        this.imageHeight = imageHeight;
+        this.shape = shapeOf(roi);
+        Rectangle image = new Rectangle(0, 0, imageWidth, imageHeight);
+        roiBounds = roi != null ? roi.getBounds() : image;
+        Rectangle clipped = roiBounds.intersection(image);
+        bounds = clipped.isEmpty() ? new Rectangle(0, 0, 0, 0) : clipped;
+        ImageProcessor mask = roi != null ? roi.getMask() : null;
+        if (mask == null) {
+            bits = null;
+            return;
+        }
+        byte[] maskPixels = (byte[])mask.getPixels();
+        bits = new long[(bounds.width * bounds.height + 63) >>> 6];
+        for (int y = bounds.y; y < bounds.y + bounds.height; y++) {
+            int maskRow = (y - roiBounds.y) * roiBounds.width - roiBounds.x;
+            int bitRow = (y - bounds.y) * bounds.width - bounds.x;
+            for (int x = bounds.x; x < bounds.x + bounds.width; x++) {
+                if (maskPixels[maskRow + x] != 0) {
+                    int b = bitRow + x;
+                    bits[b >>> 6] |= 1L << b;
+                }
+            }
+        }
+    }
+
+    // Moving or reshaping a ROI changes its bounds or polygon, so its old mask is not reused.
+    public boolean isMaskOf(Roi roi, int imageWidth, int imageHeight) {
+        return roi == this.roi && imageWidth == this.imageWidth && imageHeight == this.imageHeight
+            && (roi == null || (roi.getBounds().equals(roiBounds) && shapeOf(roi) == shape));
+    }
+
+    private static int shapeOf(Roi roi) {
+        if (roi == null) {
+            return 0;
+        }
+        Polygon polygon = roi.getPolygon();
+        int hash = roi.getType();
+        for (int i = 0; polygon != null && i < polygon.npoints; i++) {
+            hash = 31*(31*hash + polygon.xpoints[i]) + polygon.ypoints[i];
+        }
+        return hash;
+    }
+
+    // The pixels of the ROI are inside this rectangle of the image.
+    public Rectangle getBounds() {
+        return bounds;
+    }
+
+    public boolean contains(int x, int y) {
+        x -= bounds.x;
+        y -= bounds.y;
+        if (x < 0 || y < 0 || x >= bounds.width || y >= bounds.height) {
+            return false;
+        }
+        int b = y*bounds.width + x;
+        return bits == null || (bits[b >>> 6] & (1L << b)) != 0;
+    }
+}
+
+// The most recently used ROI masks, so a ROI is rasterized once instead of calling Roi.contains for
+// every pixel of the image each time it is measured.
+class RoiMaskCache {
+    private static final int CAPACITY = 8;
+    private ArrayList<RoiMask> masks = new ArrayList<RoiMask>();
+
+    // roi may be null (the whole image)
+    public synchronized RoiMask get(Roi roi, int width, int height) {
+        for (int m = 0; m < masks.size(); m++) {
+            if (masks.get(m).isMaskOf(roi, width, height)) {
+                RoiMask mask = masks.remove(m);
+                masks.add(0, mask);
+                return mask;
+            }
+        }
+        RoiMask mask = new RoiMask(roi, width, height);
+        masks.add(0, mask);
+        if (masks.size() > CAPACITY) {
+            masks.remove(CAPACITY);
+        }
+        return mask;
+    }
+}
+
+// Measures the ROIs [from, to) of the ROI Manager, each with its own FretMeasurement.
+class RoiMeasurementTask extends RecursiveAction {
+    private FretMeasurement[] measurements;
+    private Roi[] rois;
+    private int from, to;
+
+    public RoiMeasurementTask(FretMeasurement[] measurements, Roi[] rois, int from, int to) {
+        this.measurements = measurements;
+        this.rois = rois;
+        this.from = from;
+        this.to = to;
+    }
+
+    protected void compute() {
+        if (to - from <= 1) {
+            for (int r = from; r < to; r++) {
+                FretMeasurement measurement = measurements[r];
+                measurement.measure(new RoiMask(rois[r], measurement.getWidth(), measurement.getHeight()));
+            }
+        } else {
+            int middle = (from + to) >>> 1;
+            invokeAll(new RoiMeasurementTask(measurements, rois, from, middle),
+                      new RoiMeasurementTask(measurements, rois, middle, to));
+        }
+    }
+}
+
+// Sums, sums of squares and numbers of the finite pixels of an image in the blocks of a grid (the last
+// column and row of blocks may be smaller), accumulated in one pass over the image. NaN and infinite
+// pixels are left out as in ImageJ.
+class BlockStatistics {
+    private final int columns, rows;
+    private final double[] sums, sumsOfSquares;
+    private final int[] counts;
+
+    public BlockStatistics(float[] pixels, int width, int height, int block) {
+        columns = (width + block - 1) / block;
+        rows = (height + block - 1) / block;
+        sums = new double[columns * rows];
+        sumsOfSquares = new double[sums.length];
+        counts = new int[sums.length];
+        for (int y = 0; y < height; y++) {
+            int rowStart = (y / block) * columns;
+            for (int x = 0; x < width; x++) {
+                float value = pixels[y*width + x];
+                if (value >= -Float.MAX_VALUE && value <= Float.MAX_VALUE) {
+                    int b = rowStart + x / block;
+                    sums[b] += value;
+                    sumsOfSquares[b] += (double)value * value;
+                    counts[b]++;
+                }
+            }
+        }
+    }
+
+    public int getColumns() {
+        return columns;
+    }
+
+    public int getRows() {
+        return rows;
+    }
+
+    public int count(int column, int row) {
+        return counts[row*columns + column];
+    }
+
+    public double mean(int column, int row) {
+        int b = row*columns + column;
+        return counts[b] > 0 ? sums[b] / counts[b] : Double.NaN;
+    }
+
+    // Sample standard deviation as in ImageJ.
+    public double stdDev(int column, int row) {
+        int b = row*columns + column;
+        double n = counts[b];
+        return n > 1 ? Math.sqrt(Math.max(0, (n*sumsOfSquares[b] - sums[b]*sums[b]) / n / (n - 1.0))) : 0;
+    }
+}
+
+// Histogram of the transfer efficiency in equal bins over a fixed range [min, max] (max is in the last
+// bin), with the number of finite values below and above the range. Histograms of the same range are
+// merged, so partial histograms of image bands or of the files of a batch add up to the whole.
+class EfficiencyHistogram {
+    private final double min, max, scale;
+    private final long[] counts;
+    private long below, above;
+
+    public EfficiencyHistogram(double min, double max, int bins) {
+        this.min = min;
+        this.max = max;
+        this.scale = bins / (max - min);
+        this.counts = new long[bins];
+    }
+
+    // An empty histogram with the same range and bins.
+    public EfficiencyHistogram emptyCopy() {
+        return new EfficiencyHistogram(min, max, counts.length);
+    }
+
+    public boolean hasRange(double min, double max, int bins) {
+        return min == this.min && max == this.max && bins == counts.length;
+    }
+
+    // NaN and infinite values are not counted.
+    public void add(float e) {
+        if (e < min) {
+            if (e >= -Float.MAX_VALUE) {
+                below++;
+            }
+        } else if (e > max) {
+            if (e <= Float.MAX_VALUE) {
+                above++;
+            }
+        } else if (e >= min) {
+            counts[Math.min((int)((e - min) * scale), counts.length - 1)]++;
+        }
+    }
+
+    public void merge(EfficiencyHistogram other) {
+        if (!other.hasRange(min, max, counts.length)) {
+            throw new IllegalArgumentException("histograms of different ranges cannot be merged");
+        }
+        for (int b = 0; b < counts.length; b++) {
+            counts[b] += other.counts[b];
+        }
+        below += other.below;
+        above += other.above;
+    }
+
+    public int getBins() {
+        return counts.length;
+    }
+
+    public long getCount(int bin) {
+        return counts[bin];
+    }
+
+    public double getBinStart(int bin) {
+        return min + bin / scale;
+    }
+
+    public long getBelow() {
+        return below;
+    }
+
+    public long getAbove() {
+        return above;
+    }
+
+    // One line per bin, the values below and above the range are in the first and last line.
+    public void writeCsv(File file) throws IOException {
+        PrintWriter writer = new PrintWriter(new BufferedWriter(new FileWriter(file)));
+        try {
+            writer.println("Bin start,Bin end,Count");
+            writer.println("-Infinity," + min + "," + below);
+            for (int b = 0; b < counts.length; b++) {
+                writer.println(getBinStart(b) + "," + (b + 1 < counts.length ? getBinStart(b + 1) : max) + "," + counts[b]);
+            }
+            writer.println(max + ",Infinity," + above);
+            if (writer.checkError()) {
+                throw new IOException("could not write " + file.getName());
+            }
+        } finally {
+            writer.close();
+        }
+    }
+
+    // Big-endian: the range (2 doubles), the number of bins (int), the counts below and above the range
+    // and the count of every bin (longs).
+    public void writeBinary(File file) throws IOException {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+        try {
+            out.writeDouble(min);
+            out.writeDouble(max);
+            out.writeInt(counts.length);
+            out.writeLong(below);
+            out.writeLong(above);
+            for (int b = 0; b < counts.length; b++) {
+                out.writeLong(counts[b]);
+            }
+        } finally {
+            out.close();
+        }
+    }
+}
+
+// Histogram of the transfer efficiency in the ROI of the rows [firstRow, lastRow). Every band fills its
+// own partial histogram, and the partial histograms are merged as the tasks are joined.
+class EfficiencyHistogramTask extends RecursiveTask<EfficiencyHistogram> {
+    private final float[] efficiency;
+    private final RoiMask mask;
+    private final EfficiencyHistogram template;
+    private final int width, firstRow, lastRow, bandRows;
+
+    public EfficiencyHistogramTask(float[] efficiency, RoiMask mask, EfficiencyHistogram template, int width, int firstRow, int lastRow, int bandRows) {
+        this.efficiency = efficiency;
+        this.mask = mask;
+        this.template = template;
+        this.width = width;
+        this.firstRow = firstRow;
+        this.lastRow = lastRow;
+        this.bandRows = bandRows;
+    }
+
+    protected EfficiencyHistogram compute() {
+        if (lastRow - firstRow <= bandRows) {
+            EfficiencyHistogram histogram = template.emptyCopy();
+            Rectangle bounds = mask.getBounds();
+            for (int y = firstRow; y < lastRow; y++) {
+                for (int x = bounds.x; x < bounds.x + bounds.width; x++) {
+                    if (mask.contains(x, y)) {
+                        histogram.add(efficiency[y*width + x]);
                     }
                 }
-      	    } else if (e.getActionCommand().equals("setfactor")) {
-                    if (quotientsButton.isSelected()) {
-                        if (mode1ResultLabel.getText().equals("")) {
-                           accBlWindow.logError("The correction factor has to be calculated before setting it. (pp. corr.)");
-                           return;
-                        }
-                        accBlWindow.setPhotoproductCorrection(mode1ResultLabel.getText());
-                        setButton.setBackground(accBlWindow.greenColor);
-                        accBlWindow.calculateAccPPCorrButton.setBackground(accBlWindow.greenColor);
-                    } else {
-                        if (mode2ResultLabel.getText().equals("")) {
-                           accBlWindow.logError("The correction factor has to be calculated before setting it. (pp. corr.)");
-                           return;
-                        }
-                        accBlWindow.setPhotoproductCorrection(mode2ResultLabel.getText());
-                        setButton.setBackground(accBlWindow.greenColor);
-                        accBlWindow.calculateAccPPCorrButton.setBackground(accBlWindow.greenColor);
-                    }
             }
-        } catch (Throwable t) {
-            accBlWindow.logException(t.toString(), t);
+            return histogram;
         }
+        int middleRow = (firstRow + lastRow) >>> 1;
+        EfficiencyHistogramTask upper = new EfficiencyHistogramTask(efficiency, mask, template, width, firstRow, middleRow, bandRows);
+        upper.fork();
+        EfficiencyHistogram histogram = new EfficiencyHistogramTask(efficiency, mask, template, width, middleRow, lastRow, bandRows).compute();
+        histogram.merge(upper.join());
+        return histogram;
     }
 }
 
+// Mergeable summary of the transfer efficiency of files and conditions in constant memory: the count,
+// the mean and the sum of squared deviations (updated by Welford's method, merged by Chan's formula), the
+// minimum and maximum, a quantile sketch and a fixed-bin histogram. The quantile sketch counts the values
+// in the 65536 buckets of the upper 16 bits of their float bit patterns, so a quantile is accurate to
+// about 1/128 of its value. NaN and infinite values are not counted.
+class EfficiencySketch {
+    private static final int BUCKETS = 65536;
+    private final EfficiencyHistogram histogram;
+    private final long[] buckets = new long[BUCKETS];
+    private long count;
+    private double mean, m2;
+    private float min = Float.MAX_VALUE, max = -Float.MAX_VALUE;
+    private int files;
+
+    // histogram: empty, with the range and bins of the histogram of the sketch
+    public EfficiencySketch(EfficiencyHistogram histogram) {
+        this.histogram = histogram;
+    }
 
-class HelpWindow extends JFrame {
-    private AccPbFRET_Plugin accBlWindow;
-    private JPanel panel;
+    public EfficiencySketch emptyCopy() {
+        return new EfficiencySketch(histogram.emptyCopy());
+    }
 
-    public HelpWindow(AccPbFRET_Plugin accBlWindow) {
-        setTitle("AccPbFRET Help");
-        this.accBlWindow = accBlWindow;
-        setDefaultCloseOperation(JFrame.DISPOSE_ON_CLOSE);
-        createGui();
-        Dimension screen = Toolkit.getDefaultToolkit().getScreenSize();
-        setSize(600, 800);
-        setLocation((screen.width - getWidth())/2, (screen.height - getHeight())/2);
+    public void add(float e) {
+        if (!(e >= -Float.MAX_VALUE && e <= Float.MAX_VALUE)) {
+            return;
+        }
+        count++;
+        double delta = e - mean;
+        mean += delta / count;
+        m2 += delta * (e - mean);
+        min = Math.min(min, e);
+        max = Math.max(max, e);
+        buckets[(StreamingFretJob.key(e) >> 16) + 32768]++;
+        histogram.add(e);
     }
 
-    public void createGui() {
-        GridBagLayout gridbaglayout = new GridBagLayout();
-        GridBagConstraints gc = new GridBagConstraints();
-        panel = new JPanel();
-        panel.setLayout(gridbaglayout);
-        setFont(new Font("Helvetica", Font.PLAIN, 12));
+    // A sketch which has not been merged from others counts as one file. The histograms have to have
+    // the same range, otherwise an IllegalArgumentException is thrown and this sketch is not changed.
+    public void merge(EfficiencySketch other) {
+        histogram.merge(other.histogram);
+        files += other.files > 0 ? other.files : 1;
+        if (other.count == 0) {
+            return;
+        }
+        long total = count + other.count;
+        double delta = other.mean - mean;
+        mean += delta * other.count / total;
+        m2 += other.m2 + delta * delta * count / total * other.count;
+        count = total;
+        min = Math.min(min, other.min);
+        max = Math.max(max, other.max);
+        for (int b = 0; b < BUCKETS; b++) {
+            buckets[b] += other.buckets[b];
+        }
+    }
 
-        gc.insets = new Insets(4,4,4,4);
-        gc.fill = GridBagConstraints.HORIZONTAL;
-        gc.gridwidth = GridBagConstraints.REMAINDER;
-        gc.gridx = 0;
-        gc.gridy = 0;
-        gc.weightx = 2;
-        JLabel label1 = new JLabel("<html><center><b>AccPbFRET Help</b></center></html>");
-        label1.setFont(new Font("Helvetica", Font.BOLD, 14));
-        panel.add(label1, gc);
+    public int getFiles() {
+        return files;
+    }
 
-        gc.gridy = GridBagConstraints.RELATIVE;
+    public long getCount() {
+        return count;
+    }
 
-        JLabel label1b = new JLabel("<html><b><br><u>Menu structure</u></b></html>");
-        panel.add(label1b, gc);
-        JLabel label1c = new JLabel("<html>The \"File\" and \"Image\" menus include ImageJ commands that are likely to be frequently used in<br>the analysis process.<br><br>Also, messages generated during image processing can be saved or cleared from the \"File\" menu.<br>Furthermore, analysis data can be reset from the \"File\" menu and the plugin can be switched to<br>semi-automatic mode here as well.<br><br>In the \"Corrections\" menu, the checkboxes of desired correction algorithms need to be checked.<br><br>Donor bleaching is almost inevitable during the acquisition of sequential donor images and using<br>this factor (or at least checking its value) is highly recommended. When this correction is chosen,<br>the default value of 1% unwanted donor bleaching is assigned (yielding a factor of 1.01).<br><br>Acceptor crosstalk can be a problem depending on the filter sets and laser of choice. When this<br>correction is chosen, the default value of 1% unwanted acceptor bleed-through to the donor<br>channel is assigned (yielding a factor of 0.01).<br><br>Acceptor photoproduct(s) can be fluorescent and cross-talk into the donor channel. When<br>correction for this possibility is chosen, the default value of 1% unwanted acceptor photoprodocut<br>cross-talk to the donor channel  is assigned (yielding a factor of 0.01).<br><br>Partial acceptor photobleaching causes the underestimation of FRET. The correction for this<br>assumes a linear relation between the number of available (unbleached) acceptor molecules<br>and the efficiency of FRET. The default value 0 for this correction factor means a total (100%)<br>photodestruction of the acceptor.<br></html>");
-        panel.add(label1c, gc);
+    public double getMean() {
+        return count > 0 ? mean : Double.NaN;
+    }
 
-        JLabel label2 = new JLabel("<html><b><br><u>Step 1: Opening and setting images</u></b></html>");
-        panel.add(label2, gc);
-        JLabel label3 = new JLabel("<html>Image files can be opened with the \"Open\" button, or with the \"Open image\" item in the \"File\"<br>menu. After opening, images can be set as donor before or after, or acceptor before or after<br>using the \"Set image\" buttons. If multichannel images are used (either having before and after<br>images, or donor and acceptor channel images, or both) in consecutive layers of stacked image<br>files, the opened image has to be split (item available from the \"Image\" menu) before setting. If<br>the \"Use LSM\" checkbox is checked, the LSM image files (up to AIM v. 4.x, files with *.lsm<br>extension) containing donor and acceptor channels in a time series encompassing both before<br>and after photobleaching images are split and set automatically after opening with the \"Open &<br>Set LSM\" button. Every previously opened image window will be closed after pressing this button.<br></html>");
-        panel.add(label3, gc);
+    // Sample standard deviation as in ImageJ.
+    public double getStdDev() {
+        return count > 1 ? Math.sqrt(m2 / (count - 1)) : 0;
+    }
 
-        JLabel label4 = new JLabel("<html><b><br><u>Step 2: Registration of donor images</u></b></html>");
-        panel.add(label4, gc);
-        JLabel label5 = new JLabel("<html>To register the donor images, press the \"Register\" button. If the checkbox is checked, acceptor<br>image pairs will automatically be resgistered using the same shift. This is important for<br>deterimining the correction factor for incomplete bleaching of the acceptor.</html>");
-        panel.add(label5, gc);
+    public double getMin() {
+        return count > 0 ? min : Double.NaN;
+    }
 
-        JLabel label6 = new JLabel("<html><b><br><u>Step 3: Subtraction of background of images</u></b></html>");
-        panel.add(label6, gc);
-        JLabel label7 = new JLabel("<html>To subtract background (the average of pixels in a selected ROI), the \"Subtract\" button has to<br>be pressed for each relevant image. The \"Copy\" button copies the ROI of the first image to the<br>others. This should be done after marking the ROI and before applying the subtraction. To avoid<br>incidental reusing of the ROI in further operations (such as Gaussian blurring), the ROI is<br>automatically deleted after applying the background correction.</html>");
-        panel.add(label7, gc);
+    public double getMax() {
+        return count > 0 ? max : Double.NaN;
+    }
 
-        JLabel label8 = new JLabel("<html><b><br><u>Step 4: Gaussian blurring of images</u></b></html>");
-        panel.add(label8, gc);
-        JLabel label9 = new JLabel("<html>Images can be blurred with the given radius by pressing the corresponding \"Blur\" button.<br>Blurring (together with thresholding) can be reverted using the \"Reset\" buttons in Step 5.</html>");
-        panel.add(label9, gc);
+    public EfficiencyHistogram getHistogram() {
+        return histogram;
+    }
 
-        JLabel label10 = new JLabel("<html><b><br><u>Step 5: Setting thresholds for the images</u></b></html>");
-        panel.add(label10, gc);
-        JLabel label11 = new JLabel("<html>Thresholds can be applied to the images by pressing the corresponding \"Threshold\" button.<br>After setting the threshold, the \"Apply\" button has to be pressed on bottom menu of the<br>\"Threshold\" window. After this, select \"Set background pixels to NaN\" and press \"Ok\".<br>Closing \"Threshold\" window will apply the thresholding LUT to the active image and therefore<br>should be avoided.<br>The \"Reset\" buttons reset both blur and threshold settings of the corresponding image.</html>");
-        panel.add(label11, gc);
+    // Interpolated within the bucket of the rank, with the ranks defined as in PercentileSelector.
+    public double getQuantile(double percent) {
+        if (count == 0) {
+            return Double.NaN;
+        } else if (percent <= 0) {
+            return min;
+        } else if (percent >= 100) {
+            return max;
+        }
+        double rank = percent / 100 * (count - 1);
+        long below = 0;
+        for (int b = 0; b < BUCKETS; b++) {
+            if (buckets[b] == 0 || below + buckets[b] <= (long)rank) {
+                below += buckets[b];
+                continue;
+            }
+            double lower = Math.max(min, StreamingFretJob.value(b, 0));
+            double upper = Math.min(max, StreamingFretJob.value(b, 0xffff));
+            return lower + (upper - lower) * Math.min(1, (rank - below + 0.5) / buckets[b]);
+        }
+        return max;
+    }
+}
 
-        JLabel label12 = new JLabel("<html><b><br><u>Correction 1: Calculation and setting of donor bleaching correction factor</u></b></html>");
-        panel.add(label12, gc);
-        JLabel label13 = new JLabel("<html>After pressing the \"Calculate\" button, a new window pops up, where the calculation of this factor<br>can be done with setting donor before and after photobleaching images of a sample labeled with<br>donor only, and taking similar steps as in the main window of<br>the program.</html>");
-        panel.add(label13, gc);
+// Per-pixel tuples (file name, x, y, DB, DA, AB, AA, E) written to a file through an NIO channel, as CSV
+// if the file name ends with .csv, otherwise binary. Every processed image fills its own
+// PixelTupleBuffer, which writes whole blocks of tuples, so images processed in parallel share one sink
+// and the tuples are never all in memory. A binary file is a sequence of blocks (big-endian): the length
+// of the UTF-8 image name (int), the name, the number of tuples (int) and the tuples, each x and y (ints)
+// and DB, DA, AB, AA and E (floats).
+class PixelTupleSink {
+    private final FileChannel channel;
+    private final boolean csv;
+    private long count = 0;
+
+    public PixelTupleSink(File file) throws IOException {
+        csv = file.getName().toLowerCase().endsWith(".csv");
+        channel = new FileOutputStream(file).getChannel();
+        if (csv) {
+            write(new ByteBuffer[] {ByteBuffer.wrap("File,X,Y,DB,DA,AB,AA,E\n".getBytes("UTF-8"))}, 0);
+        }
+    }
 
-        JLabel label14 = new JLabel("<html><b><br><u>Correction 2: Calculation and setting of acceptor cross-talk correction factor</u></b></html>");
-        panel.add(label14, gc);
-        JLabel label15 = new JLabel("<html>After pressing the \"Calculate\" button, a new window pops up, where the calculation of this factor<br>can be done with setting donor and acceptor images of a sample labeled with acceptor only<br>(before photobleaching), and taking similar steps as in the main window of the program.</html>");
-        panel.add(label15, gc);
+    public PixelTupleBuffer open(String imageName) throws IOException {
+        return new PixelTupleBuffer(this, imageName, csv);
+    }
 
-        JLabel label16 = new JLabel("<html><b><br><u>Correction 3: Calculation and setting of acceptor photoproduct correction factor</u></b></html>");
-        panel.add(label16, gc);
-        JLabel label17 = new JLabel("<html>After pressing the \"Calculate\" button, a new window pops up, where the calculation of this factor<br>can be done with setting donor (after photobleaching) and acceptor (before photobleaching)<br>images of a sample labeled with acceptor only, and taking similar steps as in the main window of<br>the program.</html>");
-        panel.add(label17, gc);
+    // Writes the buffers (a block of tuples) after each other, not interleaved with other blocks.
+    synchronized void write(ByteBuffer[] buffers, int tuples) throws IOException {
+        long remaining = 0;
+        for (int b = 0; b < buffers.length; b++) {
+            remaining += buffers[b].remaining();
+        }
+        while (remaining > 0) {
+            remaining -= channel.write(buffers);
+        }
+        count += tuples;
+    }
 
-        JLabel label18 = new JLabel("<html><b><br><u>Correction 4: Calculation of partial acceptor photobleaching correction factor</u></b></html>");
-        panel.add(label18, gc);
-        JLabel label19 = new JLabel("<html>To calculate this factor, press the \"Calculate\" button. The acceptor before and after photobleaching<br>images have to be set before the calculation. Usually this will already have been done in step 1,<br>where the measurement files (or stacked file) is opened.</html>");
-        panel.add(label19, gc);
+    public synchronized long getCount() {
+        return count;
+    }
 
-        JLabel label20 = new JLabel("<html><b><br><u>Step 6: Creation of the transfer (FRET efficiency) image</u></b></html>");
-        panel.add(label20, gc);
-        JLabel label21 = new JLabel("<html>After pressing the \"Create\" button, the transfer image will be calculated and displayed. If the<br>\"Results\" window is not open it will be opened too. If the \"Use also acceptor before image as<br>mask\" option is checked, the FRET image will be created by AND-ing this mask to the threshold<br>masks of the donor before and after images. At this point, the acceptor before image can be<br>cleared (at step 1), and any other relevant image can be loaded and applied as an additional<br>mask after processing and thresholding this image as desired (going through steps 3c, 4c and<br>5c).</html>");
-        panel.add(label21, gc);
+    public void close() throws IOException {
+        channel.close();
+    }
+}
 
-        JLabel label22 = new JLabel("<html><b><br><u>Step 7: Making measurements</u></b></html>");
-        panel.add(label22, gc);
-        JLabel label23 = new JLabel("<html>After the creation of the transfer image, ROIs can be selected on it, and measurements can be<br>made by pressing the \"Measure\" button. FRET histograms can be most easily viewed and<br>exported by clicking the \"Histogram\" item in the \"Image\" menu.</html>");
-        panel.add(label23, gc);
+class PixelTupleBuffer {
+    private static final int BLOCK_TUPLES = 65536;
+    private static final int TUPLE_BYTES = 28;
+    private final PixelTupleSink sink;
+    private final boolean csv;
+    private final byte[] name;
+    private final String quotedName;
+    private final ByteBuffer header, tuples;
+    private final StringBuilder lines;
+    private int count = 0;
+
+    PixelTupleBuffer(PixelTupleSink sink, String imageName, boolean csv) throws IOException {
+        this.sink = sink;
+        this.csv = csv;
+        this.name = imageName.getBytes("UTF-8");
+        this.quotedName = "\"" + imageName.replace("\"", "\"\"") + "\"";
+        header = csv ? null : ByteBuffer.allocate(8 + name.length);
+        tuples = csv ? null : ByteBuffer.allocate(BLOCK_TUPLES * TUPLE_BYTES);
+        lines = csv ? new StringBuilder() : null;
+    }
 
-        JLabel label24 = new JLabel("<html><br></html>");
-        panel.add(label24, gc);
+    public void add(int x, int y, float db, float da, float ab, float aa, float e) throws IOException {
+        if (csv) {
+            lines.append(quotedName).append(',').append(x).append(',').append(y).append(',').append(db).append(',').append(da)
+                 .append(',').append(ab).append(',').append(aa).append(',').append(e).append('\n');
+        } else {
+            tuples.putInt(x).putInt(y).putFloat(db).putFloat(da).putFloat(ab).putFloat(aa).putFloat(e);
+        }
+        if (++count == BLOCK_TUPLES) {
+            flush();
+        }
+    }
 
-        JScrollPane logScrollPane = new JScrollPane(panel, JScrollPane.VERTICAL_SCROLLBAR_ALWAYS, JScrollPane.HORIZONTAL_SCROLLBAR_AS_NEEDED);
-        getContentPane().add(logScrollPane);
+    public void flush() throws IOException {
+        if (count == 0) {
+            return;
+        }
+        if (csv) {
+            sink.write(new ByteBuffer[] {ByteBuffer.wrap(lines.toString().getBytes("UTF-8"))}, count);
+            lines.setLength(0);
+        } else {
+            header.clear();
+            header.putInt(name.length).put(name).putInt(count);
+            header.flip();
+            tuples.flip();
+            sink.write(new ByteBuffer[] {header, tuples}, count);
+            tuples.clear();
+        }
+        count = 0;
+    }
+}
+
+// Two-dimensional histogram of the transfer efficiency against the acceptor before photobleaching or the
+// DB/AB ratio in equal bins over fixed ranges (the maxima are in the last bins). Pixels of a finite
+// efficiency which are outside a range (or have no finite DB/AB ratio) are counted as outside. Densities
+// of the same ranges are merged, so partial densities of threads or of the files of a batch add up to the whole.
+class EfficiencyDensity {
+    public static final int ACCEPTOR = 0, RATIO = 1;
+    public static final String[] AXES = {"AB", "DB/AB"};
+    private final int axis, xBins, eBins;
+    private final double xMin, xMax, eMin, eMax, xScale, eScale;
+    private final long[] counts;
+    private long outside;
+
+    // axis: ACCEPTOR or RATIO
+    public EfficiencyDensity(int axis, double xMin, double xMax, int xBins, double eMin, double eMax, int eBins) {
+        this.axis = axis;
+        this.xMin = xMin;
+        this.xMax = xMax;
+        this.xBins = xBins;
+        this.eMin = eMin;
+        this.eMax = eMax;
+        this.eBins = eBins;
+        this.xScale = xBins / (xMax - xMin);
+        this.eScale = eBins / (eMax - eMin);
+        this.counts = new long[xBins * eBins];
+    }
+
+    // An empty density with the same axis, ranges and bins.
+    public EfficiencyDensity emptyCopy() {
+        return new EfficiencyDensity(axis, xMin, xMax, xBins, eMin, eMax, eBins);
+    }
+
+    public boolean hasRange(int axis, double xMin, double xMax, int xBins, double eMin, double eMax, int eBins) {
+        return axis == this.axis && xMin == this.xMin && xMax == this.xMax && xBins == this.xBins
+               && eMin == this.eMin && eMax == this.eMax && eBins == this.eBins;
+    }
+
+    // NaN and infinite efficiencies are not counted.
+    public void add(float donorBefore, float acceptorBefore, float e) {
+        double x = axis == RATIO ? (double)donorBefore / acceptorBefore : acceptorBefore;
+        if (x >= xMin && x <= xMax && e >= eMin && e <= eMax) {
+            int column = Math.min((int)((x - xMin) * xScale), xBins - 1);
+            int row = Math.min((int)((e - eMin) * eScale), eBins - 1);
+            counts[row*xBins + column]++;
+        } else if (e >= -Float.MAX_VALUE && e <= Float.MAX_VALUE) {
+            outside++;
+        }
+    }
+
+    public void merge(EfficiencyDensity other) {
+        if (!other.hasRange(axis, xMin, xMax, xBins, eMin, eMax, eBins)) {
+            throw new IllegalArgumentException("densities of different ranges cannot be merged");
+        }
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] += other.counts[i];
+        }
+        outside += other.outside;
+    }
+
+    public int getAxis() {
+        return axis;
+    }
+
+    public long getTotal() {
+        long total = 0;
+        for (int i = 0; i < counts.length; i++) {
+            total += counts[i];
+        }
+        return total;
+    }
+
+    public long getOutside() {
+        return outside;
+    }
+
+    // The counts as an image of xBins x eBins pixels, the efficiency increases upwards. The calibration
+    // converts the pixel coordinates to the x value and the efficiency.
+    public ImagePlus createImage(String title) {
+        float[] pixels = new float[counts.length];
+        for (int row = 0; row < eBins; row++) {
+            for (int column = 0; column < xBins; column++) {
+                pixels[(eBins - 1 - row)*xBins + column] = counts[row*xBins + column];
+            }
+        }
+        ImagePlus image = new ImagePlus(title, new FloatProcessor(xBins, eBins, pixels, null));
+        Calibration calibration = image.getCalibration();
+        calibration.pixelWidth = 1 / xScale;
+        calibration.pixelHeight = 1 / eScale;
+        calibration.xOrigin = -xMin * xScale;
+        calibration.yOrigin = eMax * eScale;
+        calibration.setInvertY(true);
+        calibration.setXUnit(AXES[axis]);
+        calibration.setYUnit("E");
+        return image;
+    }
+}
+
+// Density of the transfer efficiency of the pixels computed by the bands of a transfer image. Every thread
+// fills its own partial density, and the partial densities are merged when the transfer image is complete.
+class DensityAccumulator {
+    private final EfficiencyDensity template;
+    private final float[] donorBefore, acceptorBefore;
+    private final ArrayList<EfficiencyDensity> partials = new ArrayList<EfficiencyDensity>();
+    private final ThreadLocal<EfficiencyDensity> partial = new ThreadLocal<EfficiencyDensity>() {
+        protected EfficiencyDensity initialValue() {
+            EfficiencyDensity density = template.emptyCopy();
+            synchronized (partials) {
+                partials.add(density);
+            }
+            return density;
+        }
+    };
+
+    public DensityAccumulator(EfficiencyDensity template, float[] donorBefore, float[] acceptorBefore) {
+        this.template = template;
+        this.donorBefore = donorBefore;
+        this.acceptorBefore = acceptorBefore;
+    }
+
+    // Adds the pixels [from, to) of the transfer efficiency.
+    public void add(float[] efficiency, int from, int to) {
+        EfficiencyDensity density = partial.get();
+        for (int i = from; i < to; i++) {
+            density.add(donorBefore[i], acceptorBefore[i], efficiency[i]);
+        }
+    }
+
+    // The sum of the partial densities, called after the bands have been computed.
+    public EfficiencyDensity merge() {
+        EfficiencyDensity density = template.emptyCopy();
+        synchronized (partials) {
+            for (int i = 0; i < partials.size(); i++) {
+                density.merge(partials.get(i));
+            }
+        }
+        return density;
+    }
+}
+
+// Percentile bootstrap confidence intervals of the mean and the median of n values. A resample is drawn
+// as the number of times every one of the sorted values is drawn with replacement, so its mean is summed
+// while drawing and its median is found by counting up to the middle ranks without sorting. The resamples
+// are drawn in blocks, every block with its own SplittableRandom stream split from the seed in a fixed
+// order, so the intervals depend on the seed only and not on the number of threads.
+class BootstrapInterval {
+    static final int BLOCK_RESAMPLES = 32;
+
+    // sorted: the first n values in ascending order; confidence: 0 to 100. Returns the lower and upper limits
+    // of the mean and of the median, NaN for n = 0.
+    public static double[] compute(ForkJoinPool pool, float[] sorted, int n, int resamples, long seed, double confidence) {
+        double[] limits = new double[4];
+        if (n == 0 || resamples < 1) {
+            Arrays.fill(limits, Double.NaN);
+            return limits;
+        }
+        SplittableRandom root = new SplittableRandom(seed);
+        SplittableRandom[] randoms = new SplittableRandom[(resamples + BLOCK_RESAMPLES - 1) / BLOCK_RESAMPLES];
+        for (int b = 0; b < randoms.length; b++) {
+            randoms[b] = root.split();
+        }
+        double[] means = new double[resamples];
+        double[] medians = new double[resamples];
+        pool.invoke(new BootstrapTask(sorted, n, randoms, means, medians, 0, randoms.length));
+        Arrays.sort(means);
+        Arrays.sort(medians);
+        double tail = (100 - confidence) / 2;
+        limits[0] = percentile(means, tail);
+        limits[1] = percentile(means, 100 - tail);
+        limits[2] = percentile(medians, tail);
+        limits[3] = percentile(medians, 100 - tail);
+        return limits;
+    }
+
+    // Linear interpolation between ranks, as PercentileSelector.
+    private static double percentile(double[] sorted, double percent) {
+        double position = percent / 100 * (sorted.length - 1);
+        int k = Math.min((int)position, sorted.length - 1);
+        double fraction = position - k;
+        return fraction > 0 && k + 1 < sorted.length ? (1 - fraction) * sorted[k] + fraction * sorted[k + 1] : sorted[k];
+    }
+}
+
+// Resamples of the blocks [fromBlock, toBlock), every block with its own random stream.
+class BootstrapTask extends RecursiveAction {
+    private final float[] sorted;
+    private final int n;
+    private final SplittableRandom[] randoms;
+    private final double[] means, medians;
+    private final int fromBlock, toBlock;
+
+    public BootstrapTask(float[] sorted, int n, SplittableRandom[] randoms, double[] means, double[] medians, int fromBlock, int toBlock) {
+        this.sorted = sorted;
+        this.n = n;
+        this.randoms = randoms;
+        this.means = means;
+        this.medians = medians;
+        this.fromBlock = fromBlock;
+        this.toBlock = toBlock;
+    }
+
+    protected void compute() {
+        if (toBlock - fromBlock > 1) {
+            int middle = (fromBlock + toBlock) >>> 1;
+            invokeAll(new BootstrapTask(sorted, n, randoms, means, medians, fromBlock, middle),
+                      new BootstrapTask(sorted, n, randoms, means, medians, middle, toBlock));
+            return;
+        }
+        SplittableRandom random = randoms[fromBlock];
+        int[] draws = new int[n];
+        int first = fromBlock * BootstrapInterval.BLOCK_RESAMPLES;
+        int last = Math.min(first + BootstrapInterval.BLOCK_RESAMPLES, means.length);
+        for (int r = first; r < last; r++) {
+            Arrays.fill(draws, 0);
+            double sum = 0;
+            for (int j = 0; j < n; j++) {
+                int i = random.nextInt(n);
+                draws[i]++;
+                sum += sorted[i];
+            }
+            means[r] = sum / n;
+            // the median of an even count is the mean of the two middle values
+            int lowerRank = (n - 1) / 2;
+            int upperRank = n / 2;
+            int i = 0;
+            int counted = draws[0];
+            while (counted <= lowerRank) {
+                counted += draws[++i];
+            }
+            float lower = sorted[i];
+            while (counted <= upperRank) {
+                counted += draws[++i];
+            }
+            medians[r] = ((double)lower + sorted[i]) / 2;
+        }
+    }
+}
+
+// Results rows held in columns of primitive arrays, so that measurements append rows without a results
+// table and the rows are flushed to the ImageJ results table (and a CSV file) in bulk. The schema is typed
+// and grows as columns are first used: LABEL is the row label of the results table (the file name), TEXT
+// and NUMBER are ordinary columns. A heading is looked up in a hash map; on a flush, every column is looked
+// up in the results table once instead of once per value. Cells which are not set in a row are left empty.
+class ResultsBuffer {
+    public static final int NUMBER = 0, TEXT = 1, LABEL = 2;
+    private final HashMap<String, Integer> indices = new HashMap<String, Integer>();
+    private String[] headings = new String[32];
+    private int[] types = new int[32];
+    private double[][] numbers = new double[32][];
+    private String[][] texts = new String[32][];
+    private BitSet[] assigned = new BitSet[32];
+    private int columns, rows, capacity = 256;
+    private String csvHeader = null;
+
+    // The index of the column, which is added if the heading is new.
+    public int getColumn(String heading, int type) {
+        Integer index = indices.get(heading);
+        if (index != null) {
+            if (types[index] != type) {
+                throw new IllegalArgumentException("column " + heading + " has another type");
+            }
+            return index;
+        }
+        if (columns == headings.length) {
+            headings = Arrays.copyOf(headings, 2 * columns);
+            types = Arrays.copyOf(types, 2 * columns);
+            numbers = Arrays.copyOf(numbers, 2 * columns);
+            texts = Arrays.copyOf(texts, 2 * columns);
+            assigned = Arrays.copyOf(assigned, 2 * columns);
+        }
+        headings[columns] = heading;
+        types[columns] = type;
+        if (type == NUMBER) {
+            numbers[columns] = new double[capacity];
+        } else {
+            texts[columns] = new String[capacity];
+        }
+        assigned[columns] = new BitSet();
+        indices.put(heading, columns);
+        return columns++;
+    }
+
+    // Starts a new row, the values are added to it.
+    public void incrementCounter() {
+        if (rows == capacity) {
+            capacity *= 2;
+            for (int c = 0; c < columns; c++) {
+                if (types[c] == NUMBER) {
+                    numbers[c] = Arrays.copyOf(numbers[c], capacity);
+                } else {
+                    texts[c] = Arrays.copyOf(texts[c], capacity);
+                }
+            }
+        }
+        rows++;
+    }
+
+    public void addValue(int column, double value) {
+        numbers[column][rows - 1] = value;
+        assigned[column].set(rows - 1);
+    }
+
+    public void addValue(String heading, double value) {
+        addValue(getColumn(heading, NUMBER), value);
+    }
+
+    public void addValue(String heading, String text) {
+        setText(getColumn(heading, TEXT), text);
+    }
+
+    public void addLabel(String heading, String label) {
+        setText(getColumn(heading, LABEL), label);
+    }
+
+    private void setText(int column, String text) {
+        texts[column][rows - 1] = text;
+        assigned[column].set(rows - 1);
+    }
+
+    public int getRowCount() {
+        return rows;
+    }
+
+    // Removes the rows, the schema is kept.
+    public void clear() {
+        for (int c = 0; c < columns; c++) {
+            assigned[c].clear();
+            if (texts[c] != null) {
+                Arrays.fill(texts[c], 0, rows, null);
+            }
+        }
+        rows = 0;
+    }
+
+    // Adds the rows to the results table, the columns which are not set in any of the rows are left out.
+    public void addTo(ResultsTable rt) {
+        // the columns are created in the order of the schema, as adding the values by heading would
+        int[] tableColumns = new int[columns];
+        for (int c = 0; c < columns; c++) {
+            if (types[c] != LABEL && !assigned[c].isEmpty()) {
+                tableColumns[c] = rt.getColumnIndex(headings[c]);
+                if (tableColumns[c] == ResultsTable.COLUMN_NOT_FOUND) {
+                    tableColumns[c] = rt.getFreeColumn(headings[c]);
+                }
+            }
+        }
+        for (int r = 0; r < rows; r++) {
+            rt.incrementCounter();
+            for (int c = 0; c < columns; c++) {
+                if (!assigned[c].get(r)) {
+                    continue;
+                }
+                if (types[c] == NUMBER) {
+                    rt.addValue(tableColumns[c], numbers[c][r]);
+                } else if (types[c] == LABEL) {
+                    rt.addLabel(headings[c], texts[c][r]);
+                } else {
+                    rt.addValue(headings[c], texts[c][r]);
+                }
+            }
+        }
+    }
+
+    // Appends the rows to a CSV file of the columns which are set in any of the rows. A header line is
+    // written at the start of the file and whenever these columns change.
+    public void appendCsv(File file) throws IOException {
+        ArrayList<Integer> used = new ArrayList<Integer>();
+        StringBuilder header = new StringBuilder();
+        for (int c = 0; c < columns; c++) {
+            if (!assigned[c].isEmpty()) {
+                header.append(used.isEmpty() ? "" : ",").append(quote(headings[c]));
+                used.add(c);
+            }
+        }
+        PrintWriter writer = new PrintWriter(new BufferedWriter(new FileWriter(file, true)));
+        try {
+            if (file.length() == 0 || !header.toString().equals(csvHeader)) {
+                writer.println(header);
+                csvHeader = header.toString();
+            }
+            StringBuilder line = new StringBuilder();
+            for (int r = 0; r < rows; r++) {
+                line.setLength(0);
+                for (int u = 0; u < used.size(); u++) {
+                    int c = used.get(u);
+                    if (u > 0) {
+                        line.append(',');
+                    }
+                    if (!assigned[c].get(r)) {
+                        continue;
+                    } else if (types[c] == NUMBER) {
+                        line.append(format(numbers[c][r]));
+                    } else {
+                        line.append(quote(texts[c][r]));
+                    }
+                }
+                writer.println(line);
+            }
+            if (writer.checkError()) {
+                throw new IOException("could not write " + file.getName());
+            }
+        } finally {
+            writer.close();
+        }
+    }
+
+    // Integral values (pixel counts) without a fraction, others in the precision of the measurements.
+    private static String format(double value) {
+        return value == Math.rint(value) && Math.abs(value) < 1e15 ? Long.toString((long)value) : Float.toString((float)value);
+    }
+
+    private static String quote(String text) {
+        return text == null ? "" : "\"" + text.replace("\"", "\"\"") + "\"";
     }
 }
\ No newline at end of file